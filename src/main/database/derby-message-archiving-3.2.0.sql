@@ -16,3 +16,283 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+-- QUERY START:
+create procedure Tig_MA_AddMessageInTx(ownerJid varchar(2049), buddyJid varchar(2049), ts timestamp,
+    "stableId" varchar(36), "stanzaId" varchar(64), "refStableId" varchar(36),
+	"body" varchar(32672), "msg" varchar(32672))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.addMessage';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_EnsureJidId(jid varchar(2049))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.ensureJidId';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddMessageByIds(ownerId bigint, buddyId bigint, ts timestamp,
+    "stableId" varchar(36), "stanzaId" varchar(64), "refStableId" varchar(36),
+	"body" varchar(32672), "msg" varchar(32672))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.addMessageByIds';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_EnsureTagId(ownerId bigint, tag varchar(255))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.ensureTagId';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddTagsToMessageByIds(ownerId bigint, stableId varchar(36), tagIds varchar(32672))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.addTagsToMessageByIds';
+-- QUERY END:
+
+-- QUERY START:
+create index tig_ma_msgs_owner_id_ts_stable_id_index on tig_ma_msgs (owner_id, ts, stable_id);
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetMessagesByCursor(ownerJid varchar(2049), buddyJid varchar(2049), "from" timestamp, "to" timestamp,
+	"afterTs" timestamp, "afterStableId" varchar(36), "beforeTs" timestamp, "beforeStableId" varchar(36), "reverse" smallint, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getMessagesByCursor';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetMessagesByIds(ownerJid varchar(2049), stableIds varchar(32672))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getMessagesByIds';
+-- QUERY END:
+
+-- QUERY START:
+create table tig_ma_msgs_words (
+	owner_id bigint not null,
+	stable_id varchar(36) not null,
+	word varchar(64) not null,
+
+	primary key (owner_id, word, stable_id),
+	foreign key (owner_id, stable_id) references tig_ma_msgs (owner_id, stable_id) on delete cascade
+);
+-- QUERY END:
+
+-- QUERY START:
+create index tig_ma_msgs_words_owner_id_stable_id_index on tig_ma_msgs_words (owner_id, stable_id);
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_IndexBodyWords()
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.indexBodyWords';
+-- QUERY END:
+
+-- QUERY START:
+call Tig_MA_IndexBodyWords();
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredMessagesChunk("domain" varchar(1024), "before" timestamp, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.deleteExpiredMessagesChunk';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetExpiredMessagesCount("domain" varchar(1024), "before" timestamp)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getExpiredMessagesCount';
+-- QUERY END:
+
+-- QUERY START:
+create table tig_ma_user_retention (
+	jid_sha1 varchar(50) not null,
+	jid varchar(2049) not null,
+	"domain" varchar(1024) not null,
+	retention_days int not null,
+
+	primary key (jid_sha1)
+);
+-- QUERY END:
+
+-- QUERY START:
+create index tig_ma_user_retention_domain_retention_days_index on tig_ma_user_retention ("domain", retention_days);
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_SetUserRetention(ownerJid varchar(2049), retentionDays int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.setUserRetention';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetUserRetentionPeriods("domain" varchar(1024))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getUserRetentionPeriods';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredUserMessages("domain" varchar(1024), retentionDays int, "before" timestamp)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.deleteExpiredUserMessages';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredUserMessagesChunk("domain" varchar(1024), retentionDays int, "before" timestamp, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.deleteExpiredUserMessagesChunk';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteUnusedJids(afterId bigint, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.deleteUnusedJids';
+-- QUERY END:
+
+-- QUERY START:
+create table tig_ma_pending_removals (
+	jid_sha1 varchar(50) not null,
+	jid varchar(2049) not null,
+	removed_at timestamp not null,
+
+	primary key (jid_sha1)
+);
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddPendingRemoval(ownerJid varchar(2049), removedAt timestamp)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.addPendingRemoval';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetPendingRemovals()
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getPendingRemovals';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteRemovedUserMessages(ownerJid varchar(2049), "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.deleteRemovedUserMessages';
+-- QUERY END:
+
+-- QUERY START:
+create table tig_ma_msgs_daily (
+	owner_id bigint not null references tig_ma_jids (jid_id) on delete cascade,
+	buddy_id bigint not null,
+	ts_date date not null,
+	msgs_count int not null,
+	min_ts timestamp,
+	max_ts timestamp,
+
+	primary key (owner_id, ts_date, buddy_id)
+);
+-- QUERY END:
+
+-- QUERY START:
+create index tig_ma_msgs_daily_owner_id_buddy_id_ts_date_index on tig_ma_msgs_daily (owner_id, buddy_id, ts_date);
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetCollectionsByCursor(ownerJid varchar(2049), buddyJid varchar(2049), "from" timestamp, "to" timestamp,
+	"afterTs" timestamp, "afterBuddyId" bigint, "beforeTs" timestamp, "beforeBuddyId" bigint, "reverse" smallint, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getCollectionsByCursor';
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+	select owner_id, buddy_id, date(ts), count(1), min(ts), max(ts)
+	from tig_ma_msgs
+	where ts is not null
+	group by owner_id, buddy_id, date(ts);
+-- QUERY END:
+
+-- QUERY START:
+create table tig_ma_conversations (
+	owner_id bigint not null references tig_ma_jids (jid_id) on delete cascade,
+	buddy_id bigint not null,
+	last_ts timestamp,
+	last_stable_id varchar(36) not null,
+
+	primary key (owner_id, buddy_id)
+);
+-- QUERY END:
+
+-- QUERY START:
+create index tig_ma_conversations_owner_id_last_ts_last_stable_id_index on tig_ma_conversations (owner_id, last_ts, last_stable_id);
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)
+	select d.owner_id, d.buddy_id, d.last_ts, (
+			select max(m.stable_id)
+			from tig_ma_msgs m
+			where m.owner_id = d.owner_id and m.buddy_id = d.buddy_id and m.ts = d.last_ts
+		)
+	from (
+		select owner_id, buddy_id, max(max_ts) as last_ts
+		from tig_ma_msgs_daily
+		group by owner_id, buddy_id
+	) d;
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetRecentConversations(ownerJid varchar(2049), "beforeTs" timestamp, "beforeStableId" varchar(36), "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getRecentConversations';
+-- QUERY END:
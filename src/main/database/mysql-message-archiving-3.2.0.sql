@@ -24,6 +24,195 @@ drop procedure if exists Tig_MA_AddMessage;
 drop procedure if exists Tig_MA_AddTagToMessage;
 -- QUERY END:
 
+-- QUERY START:
+drop procedure if exists Tig_MA_AddMessageInTx;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_EnsureJidId;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_AddMessageByIds;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_EnsureTagId;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_AddTagsToMessageByIds;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetMessagesByCursor;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetMessagesByIds;
+-- QUERY END:
+
+-- QUERY START:
+drop function if exists Tig_MA_GetBodyContainsQuery;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_CreatePartitions;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DropExpiredPartitions;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteExpiredMessagesChunk;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetExpiredMessagesCount;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_SetUserRetention;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetUserRetentionPeriods;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteExpiredUserMessages;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteExpiredUserMessagesChunk;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_RemoveMessages;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteExpiredMessages;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteUnusedJids;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_AddPendingRemoval;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetPendingRemovals;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteRemovedUserMessages;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_AddToDailySummary;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_RefreshDailySummary;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteExpiredDailySummary;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_UpdateConversation;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_RefreshConversations;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetRecentConversations;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetMessagesCount;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetCollections;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetCollectionsCount;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetCollectionsByCursor;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_Upgrade;
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_ma_msgs_daily (
+    owner_id bigint unsigned not null,
+    buddy_id bigint unsigned not null,
+    ts_date date not null,
+    msgs_count int not null,
+    min_ts timestamp(6) null default null,
+    max_ts timestamp(6) null default null,
+
+    primary key (owner_id, ts_date, buddy_id),
+    key tig_ma_msgs_daily_owner_id_buddy_id_ts_date_index (owner_id, buddy_id, ts_date),
+    key tig_ma_msgs_daily_owner_id_min_ts_buddy_id_index (owner_id, min_ts, buddy_id),
+    constraint tig_ma_msgs_daily_owner_id foreign key (owner_id) references tig_ma_jids (jid_id) on delete cascade,
+    constraint tig_ma_msgs_daily_buddy_id foreign key (buddy_id) references tig_ma_jids (jid_id) on delete cascade
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_ma_conversations (
+    owner_id bigint unsigned not null,
+    buddy_id bigint unsigned not null,
+    last_ts timestamp(6) null default null,
+    last_stable_id binary(16) not null,
+
+    primary key (owner_id, buddy_id),
+    key tig_ma_conversations_owner_id_last_ts_last_stable_id_index (owner_id, last_ts, last_stable_id),
+    constraint tig_ma_conversations_owner_id foreign key (owner_id) references tig_ma_jids (jid_id) on delete cascade,
+    constraint tig_ma_conversations_buddy_id foreign key (buddy_id) references tig_ma_jids (jid_id) on delete cascade
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_ma_pending_removals (
+    jid_sha1 char(40) not null,
+    jid varchar(2049) not null,
+    removed_at timestamp(6) not null,
+
+    primary key (jid_sha1)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_ma_user_retention (
+    jid_sha1 char(40) not null,
+    jid varchar(2049) not null,
+    `domain` varchar(1024) not null,
+    retention_days int not null,
+
+    primary key (jid_sha1),
+    key tig_ma_user_retention_domain_retention_days (`domain`(255), retention_days)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
 delimiter //
 
 -- QUERY START:
@@ -54,8 +243,15 @@ begin
 	COMMIT;
 
 	START TRANSACTION;
+    -- primary key of partitioned tig_ma_msgs includes ts, so it does not prevent duplicates of stable id
     insert ignore into tig_ma_msgs (owner_id, stable_id, buddy_id, ts, stanza_id, is_ref, ref_stable_id, body, msg)
-    values (_owner_id, Tig_MA_UuidToOrdered(_stableId), _buddy_id, _ts, _stanzaId,  @is_ref, Tig_MA_UuidToOrdered(_refStableId), _body, _msg);
+    select _owner_id, Tig_MA_UuidToOrdered(_stableId), _buddy_id, _ts, _stanzaId,  @is_ref, Tig_MA_UuidToOrdered(_refStableId), _body, _msg
+        from dual
+        where not exists (select 1 from tig_ma_msgs where owner_id = _owner_id and stable_id = Tig_MA_UuidToOrdered(_stableId));
+    if row_count() > 0 then
+        call Tig_MA_AddToDailySummary(_owner_id, _buddy_id, _ts);
+        call Tig_MA_UpdateConversation(_owner_id, _buddy_id, _ts, Tig_MA_UuidToOrdered(_stableId));
+    end if;
 	COMMIT;
 end //
 -- QUERY END:
@@ -96,4 +292,1101 @@ begin
 end //
 -- QUERY END:
 
-delimiter ;
\ No newline at end of file
+-- QUERY START:
+create procedure Tig_MA_AddMessageInTx(_ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _ts timestamp(6),
+    _stableId varchar(36) CHARSET utf8,  _stanzaId varchar(64) CHARSET utf8, _refStableId varchar(36) CHARSET utf8,
+    _body mediumtext CHARSET utf8mb4 collate utf8mb4_bin, _msg mediumtext CHARSET utf8mb4 collate utf8mb4_bin)
+begin
+	declare _owner_id bigint;
+	declare _buddy_id bigint;
+
+    -- transaction is managed by the caller, so this procedure may be called many times before commit
+    set @is_ref = 0;
+    if _refStableId is not null then
+        set @is_ref = 1;
+    end if;
+
+	call Tig_MA_EnsureJid(_ownerJid, _owner_id);
+	call Tig_MA_EnsureJid(_buddyJid, _buddy_id);
+
+    -- primary key of partitioned tig_ma_msgs includes ts, so it does not prevent duplicates of stable id
+    insert ignore into tig_ma_msgs (owner_id, stable_id, buddy_id, ts, stanza_id, is_ref, ref_stable_id, body, msg)
+    select _owner_id, Tig_MA_UuidToOrdered(_stableId), _buddy_id, _ts, _stanzaId,  @is_ref, Tig_MA_UuidToOrdered(_refStableId), _body, _msg
+        from dual
+        where not exists (select 1 from tig_ma_msgs where owner_id = _owner_id and stable_id = Tig_MA_UuidToOrdered(_stableId));
+    if row_count() > 0 then
+        call Tig_MA_AddToDailySummary(_owner_id, _buddy_id, _ts);
+        call Tig_MA_UpdateConversation(_owner_id, _buddy_id, _ts, Tig_MA_UuidToOrdered(_stableId));
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_EnsureJidId(_jid varchar(2049) CHARSET utf8)
+begin
+    declare _jid_id bigint;
+    -- DO NOT REMOVE, required for properly handle exceptions within transactions!
+    DECLARE exit handler for sqlexception
+    BEGIN
+        -- ERROR
+        ROLLBACK;
+        RESIGNAL;
+    END;
+
+    START TRANSACTION;
+    call Tig_MA_EnsureJid(_jid, _jid_id);
+    COMMIT;
+
+    select _jid_id as jid_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddMessageByIds(_ownerId bigint, _buddyId bigint, _ts timestamp(6),
+    _stableId varchar(36) CHARSET utf8,  _stanzaId varchar(64) CHARSET utf8, _refStableId varchar(36) CHARSET utf8,
+    _body mediumtext CHARSET utf8mb4 collate utf8mb4_bin, _msg mediumtext CHARSET utf8mb4 collate utf8mb4_bin)
+begin
+    -- transaction is not started here, so procedure may be executed within transaction of a caller;
+    -- `insert ignore` is not used as it would silently ignore violation of foreign keys for removed jids
+    -- foreign keys are dropped when tig_ma_msgs is partitioned, so ids (possibly cached) need to be checked here
+    if (select count(1) from tig_ma_jids where jid_id in (_ownerId, _buddyId)) < (case when _ownerId = _buddyId then 1 else 2 end) then
+        signal sqlstate '23000' set message_text = 'Owner or buddy jid id does not exist';
+    end if;
+    if not exists (select 1 from tig_ma_msgs where owner_id = _ownerId and stable_id = Tig_MA_UuidToOrdered(_stableId)) then
+        begin
+            declare _inserted int default 1;
+            -- concurrent insert of the same message is a no-op and must not be counted in summaries
+            declare continue handler for 1062 set _inserted = 0;
+
+            insert into tig_ma_msgs (owner_id, stable_id, buddy_id, ts, stanza_id, is_ref, ref_stable_id, body, msg)
+            values (_ownerId, Tig_MA_UuidToOrdered(_stableId), _buddyId, _ts, _stanzaId, case when _refStableId is null then 0 else 1 end,
+                Tig_MA_UuidToOrdered(_refStableId), _body, _msg);
+            if _inserted = 1 then
+                call Tig_MA_AddToDailySummary(_ownerId, _buddyId, _ts);
+                call Tig_MA_UpdateConversation(_ownerId, _buddyId, _ts, Tig_MA_UuidToOrdered(_stableId));
+            end if;
+        end;
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_EnsureTagId(_ownerId bigint, _tag varchar(255) CHARSET utf8mb4 collate utf8mb4_bin)
+begin
+    declare _tag_id bigint;
+    declare x bigint;
+
+    -- DO NOT REMOVE, required for properly handle exceptions within transactions!
+    DECLARE exit handler for sqlexception
+    BEGIN
+        -- ERROR
+        ROLLBACK;
+        RESIGNAL;
+    END;
+
+    START TRANSACTION;
+    select tag_id into _tag_id from tig_ma_tags where owner_id = _ownerId and tag = _tag;
+    if _tag_id is null then
+        set x = LAST_INSERT_ID();
+        insert into tig_ma_tags (owner_id, tag)
+        values (_ownerId, _tag)
+        on duplicate key update tag_id = LAST_INSERT_ID(tag_id);
+        select LAST_INSERT_ID() into _tag_id;
+        if _tag_id = x then
+            select tag_id into _tag_id from tig_ma_tags where owner_id = _ownerId and tag = _tag;
+        end if;
+    end if;
+    COMMIT;
+
+    select _tag_id as tag_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddTagsToMessageByIds(_ownerId bigint, _stableId varchar(36) CHARSET utf8, _tagIds text CHARSET utf8)
+begin
+    -- _tagIds is a comma separated list of numeric ids of tags, ids not belonging to the owner are ignored
+    set @ownerId = _ownerId;
+    set @stableId = _stableId;
+    set @query = CONCAT('insert into tig_ma_msgs_tags (msg_owner_id, msg_stable_id, tag_id)
+        select t.owner_id, Tig_MA_UuidToOrdered(?), t.tag_id
+        from tig_ma_tags t
+        where t.owner_id = ? and t.tag_id in (', _tagIds, ')
+        on duplicate key update tag_id = t.tag_id');
+    prepare stmt from @query;
+    execute stmt using @stableId, @ownerId;
+    deallocate prepare stmt;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddToDailySummary(_ownerId bigint unsigned, _buddyId bigint unsigned, _ts timestamp(6))
+begin
+    if _ts is not null then
+        insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+            values (_ownerId, _buddyId, date(_ts), 1, _ts, _ts)
+            on duplicate key update msgs_count = msgs_count + 1, min_ts = least(min_ts, _ts), max_ts = greatest(max_ts, _ts);
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_RefreshDailySummary(_ownerId bigint unsigned, _buddyId bigint unsigned, _from timestamp(6), _to timestamp(6))
+begin
+    -- summaries of all days within the range are recalculated from messages which are left
+    delete from tig_ma_msgs_daily
+        where
+            owner_id = _ownerId
+            and (_buddyId is null or buddy_id = _buddyId)
+            and (_from is null or ts_date >= date(_from))
+            and (_to is null or ts_date <= date(_to));
+
+    insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+        select owner_id, buddy_id, date(ts), count(1), min(ts), max(ts)
+        from tig_ma_msgs
+        where
+            owner_id = _ownerId
+            and (_buddyId is null or buddy_id = _buddyId)
+            and ts is not null
+            and (_from is null or ts >= date(_from))
+            and (_to is null or ts < date(_to) + interval 1 day)
+        group by owner_id, buddy_id, date(ts);
+
+    call Tig_MA_RefreshConversations(_ownerId, _buddyId);
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredDailySummary(_domain varchar(1024) CHARSET utf8, _before timestamp(6))
+begin
+    -- summaries of whole days of expired messages are removed, summary of the last day is recalculated
+    delete d from tig_ma_msgs_daily d
+        inner join tig_ma_jids j on j.jid_id = d.owner_id
+        where j.`domain` = _domain and d.ts_date <= date(_before);
+
+    insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+        select m.owner_id, m.buddy_id, date(m.ts), count(1), min(m.ts), max(m.ts)
+        from tig_ma_jids j
+            inner join tig_ma_msgs m on m.owner_id = j.jid_id
+        where j.`domain` = _domain and m.ts >= date(_before) and m.ts < date(_before) + interval 1 day
+        group by m.owner_id, m.buddy_id, date(m.ts);
+
+    -- last message of a conversation is expired only if all messages of the conversation are expired
+    delete c from tig_ma_conversations c
+        inner join tig_ma_jids j on j.jid_id = c.owner_id
+        where j.`domain` = _domain and c.last_ts < _before;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_UpdateConversation(_ownerId bigint unsigned, _buddyId bigint unsigned, _ts timestamp(6), _stableId binary(16))
+begin
+    if _ts is not null then
+        -- last_stable_id has to be updated first, as it is compared with the previous value of last_ts
+        insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)
+            values (_ownerId, _buddyId, _ts, _stableId)
+            on duplicate key update
+                last_stable_id = if(_ts > last_ts or (_ts = last_ts and _stableId > last_stable_id), _stableId, last_stable_id),
+                last_ts = greatest(last_ts, _ts);
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_RefreshConversations(_ownerId bigint unsigned, _buddyId bigint unsigned)
+begin
+    -- summaries need to be refreshed first, as they point to the last day of each conversation
+    delete from tig_ma_conversations
+        where owner_id = _ownerId and (_buddyId is null or buddy_id = _buddyId);
+
+    insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)
+        select d.owner_id, d.buddy_id, d.last_ts, (
+                select max(m.stable_id)
+                from tig_ma_msgs m
+                where m.owner_id = d.owner_id and m.buddy_id = d.buddy_id and m.ts = d.last_ts
+            )
+        from (
+            select owner_id, buddy_id, max(max_ts) as last_ts
+            from tig_ma_msgs_daily
+            where owner_id = _ownerId and (_buddyId is null or buddy_id = _buddyId)
+            group by owner_id, buddy_id
+        ) d;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_Upgrade()
+begin
+    -- index used to seek pages of messages by (ts, stable_id) cursor
+    if not exists (select 1 from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and INDEX_NAME = 'tig_ma_msgs_owner_id_ts_stable_id_index') then
+        create index tig_ma_msgs_owner_id_ts_stable_id_index on tig_ma_msgs (owner_id, ts, stable_id);
+    end if;
+    -- full-text index used by searches of messages containing text
+    if not exists (select 1 from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and INDEX_NAME = 'tig_ma_msgs_body_fulltext_index') then
+        create fulltext index tig_ma_msgs_body_fulltext_index on tig_ma_msgs (body);
+    end if;
+    -- summaries of already archived messages
+    if not exists (select 1 from tig_ma_msgs_daily) then
+        insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+            select owner_id, buddy_id, date(ts), count(1), min(ts), max(ts)
+            from tig_ma_msgs
+            where ts is not null
+            group by owner_id, buddy_id, date(ts);
+    end if;
+    -- last messages of conversations, found using summaries
+    if not exists (select 1 from tig_ma_conversations) then
+        insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)
+            select d.owner_id, d.buddy_id, d.last_ts, (
+                    select max(m.stable_id)
+                    from tig_ma_msgs m
+                    where m.owner_id = d.owner_id and m.buddy_id = d.buddy_id and m.ts = d.last_ts
+                )
+            from (
+                select owner_id, buddy_id, max(max_ts) as last_ts
+                from tig_ma_msgs_daily
+                group by owner_id, buddy_id
+            ) d;
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create function Tig_MA_GetBodyContainsQuery(_in_str text CHARSET utf8mb4 collate utf8mb4_bin) returns text CHARSET utf8mb4 collate utf8mb4_bin READS SQL DATA
+begin
+    declare _query text CHARSET utf8mb4 collate utf8mb4_bin;
+    declare _against text CHARSET utf8mb4 collate utf8mb4_bin default '';
+    declare _word text CHARSET utf8mb4 collate utf8mb4_bin default '';
+    declare _c varchar(1) CHARSET utf8mb4 collate utf8mb4_bin;
+    declare _len int;
+    declare _i int default 1;
+    -- 0 - after a wildcard, 1 - reading a word following whitespace, 2 - after any other character
+    declare _state int default 0;
+
+    if _in_str is null then
+        return '';
+    end if;
+
+    set _query = CONCAT(' and m.body like ', replace(_in_str, ''',''', ''' and m.body like '''));
+    -- if full-text index exists, it is used to find messages containing words of searched terms
+    -- and the condition above only checks if found messages contain whole terms
+    if exists (select 1 from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and INDEX_NAME = 'tig_ma_msgs_body_fulltext_index') then
+        set _len = char_length(_in_str);
+        while _i <= _len + 1 do
+            if _i <= _len then
+                set _c = substring(_in_str, _i, 1);
+            else
+                set _c = ' ';
+            end if;
+            -- text following a wildcard may be a part of a longer word of the message (ie. 'ail' in 'failed'),
+            -- so only letters and digits following whitespace are matched as prefixes of words of the message
+            -- and if there are none (ie. single word or text without spaces), messages are checked only by LIKE
+            if _state = 1 and _c regexp '^[[:alnum:]]$' then
+                set _word = CONCAT(_word, _c);
+            else
+                -- words shorter than default innodb_ft_min_token_size are not indexed
+                if char_length(_word) >= 3 then
+                    set _against = CONCAT(_against, '+', _word, '* ');
+                end if;
+                set _word = '';
+                if _c = '%' then
+                    set _state = 0;
+                elseif _c regexp '^[[:space:]]$' then
+                    set _state = 1;
+                else
+                    set _state = 2;
+                end if;
+            end if;
+            set _i = _i + 1;
+        end while;
+        if _against <> '' then
+            set _query = CONCAT(' and match(m.body) against (', quote(_against), ' in boolean mode)', _query);
+        end if;
+    end if;
+    return _query;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetMessagesByCursor( _ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp(6), _to timestamp(6), _afterTs timestamp(6), _afterStableId varchar(36) CHARSET utf8, _beforeTs timestamp(6), _beforeStableId varchar(36) CHARSET utf8, _reverse tinyint, _limit int)
+begin
+    declare _ownerId bigint;
+    declare _afterId binary(16);
+    declare _beforeId binary(16);
+
+    select jid_id into _ownerId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_ownerJid));
+    if _afterTs is not null then
+        set _afterId = Tig_MA_UuidToOrdered(_afterStableId);
+    end if;
+    if _beforeTs is not null then
+        set _beforeId = Tig_MA_UuidToOrdered(_beforeStableId);
+    end if;
+
+    if _reverse = 1 then
+        select m.msg, m.ts, b.jid, Tig_MA_OrderedToUuid(m.stable_id) as stable_id, Tig_MA_OrderedToUuid(m.ref_stable_id) as ref_stable_id
+        from tig_ma_msgs m
+            inner join tig_ma_jids b on b.jid_id = m.buddy_id
+        where
+            m.owner_id = _ownerId
+            and (_buddyJid is null or b.jid_sha1 = SHA1(LOWER(_buddyJid)))
+            and (_from is null or m.ts >= _from)
+            and (_to is null or m.ts <= _to)
+            and (_afterTs is null or (m.ts >= _afterTs and (m.ts > _afterTs or m.stable_id > _afterId)))
+            and (_beforeTs is null or (m.ts <= _beforeTs and (m.ts < _beforeTs or m.stable_id < _beforeId)))
+        order by m.ts desc, m.stable_id desc
+        limit _limit;
+    else
+        select m.msg, m.ts, b.jid, Tig_MA_OrderedToUuid(m.stable_id) as stable_id, Tig_MA_OrderedToUuid(m.ref_stable_id) as ref_stable_id
+        from tig_ma_msgs m
+            inner join tig_ma_jids b on b.jid_id = m.buddy_id
+        where
+            m.owner_id = _ownerId
+            and (_buddyJid is null or b.jid_sha1 = SHA1(LOWER(_buddyJid)))
+            and (_from is null or m.ts >= _from)
+            and (_to is null or m.ts <= _to)
+            and (_afterTs is null or (m.ts >= _afterTs and (m.ts > _afterTs or m.stable_id > _afterId)))
+            and (_beforeTs is null or (m.ts <= _beforeTs and (m.ts < _beforeTs or m.stable_id < _beforeId)))
+        order by m.ts, m.stable_id
+        limit _limit;
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetMessagesByIds( _ownerJid varchar(2049) CHARSET utf8, _stableIds text CHARSET utf8)
+begin
+    -- _stableIds is a comma separated list of stable ids, it is validated as it is a part of the query
+    if _stableIds regexp '^[0-9a-fA-F-]+(,[0-9a-fA-F-]+)*$' then
+        set @ownerJid = _ownerJid;
+        set @query = CONCAT('select m.msg, m.ts, b.jid, Tig_MA_OrderedToUuid(m.stable_id) as stable_id, Tig_MA_OrderedToUuid(m.ref_stable_id) as ref_stable_id
+            from tig_ma_msgs m
+                inner join tig_ma_jids o on m.owner_id = o.jid_id
+                inner join tig_ma_jids b on b.jid_id = m.buddy_id
+            where
+                o.jid_sha1 = SHA1(LOWER(?))
+                and m.stable_id in (Tig_MA_UuidToOrdered(''', REPLACE(_stableIds, ',', '''), Tig_MA_UuidToOrdered('''), '''))');
+        prepare stmt from @query;
+        execute stmt using @ownerJid;
+        deallocate prepare stmt;
+    else
+        signal sqlstate '45000' set message_text = 'Invalid list of stable ids';
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_CreatePartitions(_from timestamp(6), _to timestamp(6))
+begin
+    declare _month datetime;
+    declare _upper bigint;
+    declare _created int default 0;
+
+    -- partitions are maintained only if tig_ma_msgs was partitioned by the partitioning script
+    if exists (select 1 from information_schema.PARTITIONS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and PARTITION_NAME = 'pmax') then
+        select coalesce(max(cast(PARTITION_DESCRIPTION as signed)), 0) into _upper
+            from information_schema.PARTITIONS
+            where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and PARTITION_NAME <> 'pmax';
+        set _month = date_format(_from, '%Y-%m-01');
+        while _month <= _to do
+            -- new partitions may only be split from the last one
+            if unix_timestamp(_month) >= _upper then
+                set @query = CONCAT('alter table tig_ma_msgs reorganize partition pmax into (partition p', date_format(_month, '%Y%m'),
+                    ' values less than (', unix_timestamp(_month + interval 1 month), '), partition pmax values less than maxvalue)');
+                prepare stmt from @query;
+                execute stmt;
+                deallocate prepare stmt;
+                set _upper = unix_timestamp(_month + interval 1 month);
+                set _created = _created + 1;
+            end if;
+            set _month = _month + interval 1 month;
+        end while;
+    end if;
+
+    select _created;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DropExpiredPartitions(_before timestamp(6))
+begin
+    declare _partitions text;
+    declare _dropped int default 0;
+    declare _upper bigint;
+
+    select group_concat(PARTITION_NAME order by PARTITION_ORDINAL_POSITION), count(1), max(cast(PARTITION_DESCRIPTION as signed))
+        into _partitions, _dropped, _upper
+        from information_schema.PARTITIONS
+        where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and PARTITION_NAME <> 'pmax'
+            and cast(PARTITION_DESCRIPTION as signed) <= unix_timestamp(_before);
+
+    if _dropped > 0 then
+        -- partitioned table cannot be referenced by a foreign key, so tags of messages of dropped partitions are
+        -- removed here
+        set @query = CONCAT('delete mt from tig_ma_msgs_tags mt inner join tig_ma_msgs partition (', _partitions,
+            ') m on m.owner_id = mt.msg_owner_id and m.stable_id = mt.msg_stable_id');
+        prepare stmt from @query;
+        execute stmt;
+        deallocate prepare stmt;
+
+        set @query = CONCAT('alter table tig_ma_msgs drop partition ', _partitions);
+        prepare stmt from @query;
+        execute stmt;
+        deallocate prepare stmt;
+
+        -- partitions hold whole months, so there are no messages left before the upper bound of the last dropped one
+        delete from tig_ma_msgs_daily where ts_date < date(from_unixtime(_upper));
+        delete from tig_ma_conversations where last_ts < from_unixtime(_upper);
+    end if;
+
+    select _dropped;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredMessagesChunk(_domain varchar(1024) CHARSET utf8, _before timestamp(6), _limit int)
+begin
+    declare _removed int default 0;
+    declare _offset int default _limit - 1;
+    declare _lastTs timestamp(6);
+
+    -- chunk is bounded by timestamp of its last message, so tags of the same messages may be removed first
+    select m.ts into _lastTs
+        from tig_ma_msgs m
+            inner join tig_ma_jids j on j.jid_id = m.owner_id
+        where m.ts < _before and j.`domain` = _domain
+        order by m.ts
+        limit _offset, 1;
+
+    -- tags are removed explicitly, as partitioned tig_ma_msgs is not referenced by tig_ma_msgs_tags
+    delete mt from tig_ma_msgs_tags mt
+        inner join tig_ma_msgs m on m.owner_id = mt.msg_owner_id and m.stable_id = mt.msg_stable_id
+        inner join tig_ma_jids j on j.jid_id = m.owner_id
+        where m.ts < _before and (_lastTs is null or m.ts <= _lastTs) and j.`domain` = _domain;
+
+    -- jids which are no longer used are removed by Tig_MA_DeleteUnusedJids
+    delete from tig_ma_msgs
+        where ts < _before and (_lastTs is null or ts <= _lastTs)
+            and owner_id in (select j.jid_id from tig_ma_jids j where j.`domain` = _domain);
+    set _removed = row_count();
+
+    -- summaries are updated once all expired messages are removed
+    if _removed < _limit then
+        call Tig_MA_DeleteExpiredDailySummary(_domain, _before);
+    end if;
+
+    select _removed;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetExpiredMessagesCount(_domain varchar(1024) CHARSET utf8, _before timestamp(6))
+begin
+    select count(1)
+        from tig_ma_msgs m
+            inner join tig_ma_jids j on j.jid_id = m.owner_id
+        where m.ts < _before and j.`domain` = _domain;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_SetUserRetention(_ownerJid varchar(2049) CHARSET utf8, _retentionDays int)
+begin
+    if _retentionDays is null then
+        delete from tig_ma_user_retention where jid_sha1 = SHA1(LOWER(_ownerJid));
+    else
+        insert into tig_ma_user_retention (jid_sha1, jid, `domain`, retention_days)
+            values (SHA1(LOWER(_ownerJid)), LOWER(_ownerJid), LOWER(substring_index(_ownerJid, '@', -1)), _retentionDays)
+            on duplicate key update retention_days = _retentionDays;
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetUserRetentionPeriods(_domain varchar(1024) CHARSET utf8)
+begin
+    select distinct retention_days from tig_ma_user_retention where `domain` = LOWER(_domain);
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredUserMessages(_domain varchar(1024) CHARSET utf8, _retentionDays int, _before timestamp(6))
+begin
+    -- removes messages of all users of the domain sharing the same retention period,
+    -- is_ref condition allows to use (owner_id, is_ref, ts) index for each of the owners
+    delete mt from tig_ma_user_retention r
+        inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1
+        inner join tig_ma_msgs m on m.owner_id = o.jid_id
+        inner join tig_ma_msgs_tags mt on mt.msg_owner_id = m.owner_id and mt.msg_stable_id = m.stable_id
+        where r.`domain` = LOWER(_domain) and r.retention_days = _retentionDays
+            and m.is_ref in (0, 1) and m.ts < _before;
+
+    delete m from tig_ma_user_retention r
+        inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1
+        inner join tig_ma_msgs m on m.owner_id = o.jid_id
+        where r.`domain` = LOWER(_domain) and r.retention_days = _retentionDays
+            and m.is_ref in (0, 1) and m.ts < _before;
+
+    delete d from tig_ma_user_retention r
+        inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1
+        inner join tig_ma_msgs_daily d on d.owner_id = o.jid_id
+        where r.`domain` = LOWER(_domain) and r.retention_days = _retentionDays and d.ts_date <= date(_before);
+
+    insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+        select m.owner_id, m.buddy_id, date(m.ts), count(1), min(m.ts), max(m.ts)
+        from tig_ma_user_retention r
+            inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1
+            inner join tig_ma_msgs m on m.owner_id = o.jid_id
+        where r.`domain` = LOWER(_domain) and r.retention_days = _retentionDays
+            and m.ts >= date(_before) and m.ts < date(_before) + interval 1 day
+        group by m.owner_id, m.buddy_id, date(m.ts);
+
+    delete c from tig_ma_user_retention r
+        inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1
+        inner join tig_ma_conversations c on c.owner_id = o.jid_id
+        where r.`domain` = LOWER(_domain) and r.retention_days = _retentionDays and c.last_ts < _before;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredUserMessagesChunk(_domain varchar(1024) CHARSET utf8, _retentionDays int, _before timestamp(6), _limit int)
+begin
+    declare _removed int default 0;
+    declare _offset int default _limit - 1;
+    declare _lastTs timestamp(6);
+
+    -- multiple-table delete does not support limit, so chunk is bounded by timestamp of its last message
+    select m.ts into _lastTs
+        from tig_ma_user_retention r
+            inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1
+            inner join tig_ma_msgs m on m.owner_id = o.jid_id
+        where r.`domain` = LOWER(_domain) and r.retention_days = _retentionDays
+            and m.is_ref in (0, 1) and m.ts < _before
+        order by m.ts
+        limit _offset, 1;
+
+    delete mt from tig_ma_user_retention r
+        inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1
+        inner join tig_ma_msgs m on m.owner_id = o.jid_id
+        inner join tig_ma_msgs_tags mt on mt.msg_owner_id = m.owner_id and mt.msg_stable_id = m.stable_id
+        where r.`domain` = LOWER(_domain) and r.retention_days = _retentionDays
+            and m.is_ref in (0, 1) and m.ts < _before and (_lastTs is null or m.ts <= _lastTs);
+
+    delete m from tig_ma_user_retention r
+        inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1
+        inner join tig_ma_msgs m on m.owner_id = o.jid_id
+        where r.`domain` = LOWER(_domain) and r.retention_days = _retentionDays
+            and m.is_ref in (0, 1) and m.ts < _before and (_lastTs is null or m.ts <= _lastTs);
+    set _removed = row_count();
+
+    -- summaries are updated once all expired messages are removed
+    if _removed < _limit then
+        call Tig_MA_DeleteExpiredUserMessages(_domain, _retentionDays, _before);
+    end if;
+
+    select _removed;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_RemoveMessages(_ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp(6), _to timestamp(6))
+begin
+    declare _ownerId bigint unsigned;
+    declare _buddyId bigint unsigned;
+
+    select jid_id into _ownerId from tig_ma_jids j where j.jid_sha1 = SHA1(LOWER(_ownerJid));
+    if _buddyJid is not null then
+        select jid_id into _buddyId from tig_ma_jids j where j.jid_sha1 = SHA1(LOWER(_buddyJid));
+    end if;
+
+    -- tags are removed explicitly, as partitioned tig_ma_msgs is not referenced by tig_ma_msgs_tags
+    delete mt from tig_ma_msgs_tags mt
+        inner join tig_ma_msgs m on m.owner_id = mt.msg_owner_id and m.stable_id = mt.msg_stable_id
+        where
+            m.owner_id = _ownerId
+            and (_from is null or m.ts >= _from)
+            and (_to is null or m.ts <= _to)
+            and (_buddyJid is null or m.buddy_id = _buddyId);
+
+    delete from tig_ma_msgs
+        where
+            owner_id = _ownerId
+            and (_from is null or ts >= _from)
+            and (_to is null or ts <= _to)
+            and (_buddyJid is null or buddy_id = _buddyId);
+
+    if _ownerId is not null and (_buddyJid is null or _buddyId is not null) then
+        call Tig_MA_RefreshDailySummary(_ownerId, _buddyId, _from, _to);
+    end if;
+
+    -- only owner and buddy are checked here, other jids which are no longer used are removed by Tig_MA_DeleteUnusedJids
+    delete from tig_ma_jids
+        where
+            jid_id in (_ownerId, _buddyId)
+            and not exists (
+                select 1 from tig_ma_msgs m where m.owner_id = jid_id
+            )
+            and not exists (
+                select 1 from tig_ma_msgs m where m.buddy_id = jid_id
+            );
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredMessages(_domain varchar(1024) CHARSET utf8, _before timestamp(6))
+begin
+    delete mt from tig_ma_msgs_tags mt
+        inner join tig_ma_msgs m on m.owner_id = mt.msg_owner_id and m.stable_id = mt.msg_stable_id
+        inner join tig_ma_jids j on j.jid_id = m.owner_id
+        where m.ts < _before and j.`domain` = _domain;
+    -- jids which are no longer used are removed by Tig_MA_DeleteUnusedJids
+    delete from tig_ma_msgs where ts < _before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and `domain` = _domain);
+    call Tig_MA_DeleteExpiredDailySummary(_domain, _before);
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteUnusedJids(_afterId bigint, _limit int)
+begin
+    declare _lastId bigint unsigned;
+    declare _removed int default 0;
+
+    -- checks next range of jids only, so the whole table is not scanned at once
+    select max(r.jid_id) into _lastId from (
+        select j.jid_id from tig_ma_jids j where j.jid_id > _afterId order by j.jid_id limit _limit
+    ) r;
+
+    if _lastId is not null then
+        delete from tig_ma_jids
+            where
+                jid_id > _afterId and jid_id <= _lastId
+                and not exists (
+                    select 1 from tig_ma_msgs m where m.owner_id = jid_id
+                )
+                and not exists (
+                    select 1 from tig_ma_msgs m where m.buddy_id = jid_id
+                );
+        set _removed = row_count();
+    end if;
+
+    select _lastId, _removed;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddPendingRemoval(_ownerJid varchar(2049) CHARSET utf8, _removedAt timestamp(6))
+begin
+    insert into tig_ma_pending_removals (jid_sha1, jid, removed_at)
+        values (SHA1(LOWER(_ownerJid)), _ownerJid, _removedAt)
+        on duplicate key update removed_at = _removedAt;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetPendingRemovals()
+begin
+    select jid from tig_ma_pending_removals;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteRemovedUserMessages(_ownerJid varchar(2049) CHARSET utf8, _limit int)
+begin
+    declare _ownerId bigint unsigned;
+    declare _removedAt timestamp(6);
+    declare _removed int default 0;
+    declare _offset int default _limit - 1;
+    declare _lastTs timestamp(6);
+
+    select removed_at into _removedAt from tig_ma_pending_removals where jid_sha1 = SHA1(LOWER(_ownerJid));
+    select jid_id into _ownerId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_ownerJid));
+
+    if _ownerId is not null and _removedAt is not null then
+        -- chunk is bounded by timestamp of its last message, so tags of the same messages may be removed first
+        select ts into _lastTs from tig_ma_msgs where owner_id = _ownerId and ts <= _removedAt order by ts limit _offset, 1;
+        if _lastTs is null then
+            set _lastTs = _removedAt;
+        end if;
+
+        delete mt from tig_ma_msgs_tags mt
+            inner join tig_ma_msgs m on m.owner_id = mt.msg_owner_id and m.stable_id = mt.msg_stable_id
+            where m.owner_id = _ownerId and m.ts <= _lastTs;
+        -- messages stored after the user was removed belong to a new account with the same jid
+        delete from tig_ma_msgs where owner_id = _ownerId and ts <= _lastTs;
+        set _removed = row_count();
+    end if;
+
+    if _removed < _limit then
+        if _ownerId is not null and _removedAt is not null then
+            -- no messages are left before the day of removal, so only summary of that day is recalculated
+            delete from tig_ma_msgs_daily where owner_id = _ownerId and ts_date < date(_removedAt);
+            call Tig_MA_RefreshDailySummary(_ownerId, null, _removedAt, _removedAt);
+        end if;
+        delete from tig_ma_jids
+            where
+                jid_id = _ownerId
+                and not exists (
+                    select 1 from tig_ma_msgs m where m.owner_id = jid_id
+                )
+                and not exists (
+                    select 1 from tig_ma_msgs m where m.buddy_id = jid_id
+                );
+        delete from tig_ma_user_retention where jid_sha1 = SHA1(LOWER(_ownerJid));
+        delete from tig_ma_pending_removals where jid_sha1 = SHA1(LOWER(_ownerJid));
+    end if;
+
+    select _removed;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetMessagesCount( _ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp(6), _to timestamp(6), _refType tinyint, _tags text CHARSET utf8mb4 collate utf8mb4_bin, _contains text CHARSET utf8mb4 collate utf8mb4_bin)
+begin
+    declare _ownerId bigint unsigned;
+    declare _buddyId bigint unsigned;
+
+    if _tags is not null or _contains is not null then
+        set @ownerJid = _ownerJid;
+        set @buddyJid = _buddyJid;
+        set @from = _from;
+        set @to = _to;
+        select Tig_MA_GetHasTagsQuery(_tags) into @tags_query;
+        select Tig_MA_GetBodyContainsQuery(_contains) into @contains_query;
+        set @msgs_query = 'select count(1)
+		from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = SHA1(LOWER(?))
+			and (? is null or b.jid_sha1 = SHA1(LOWER(?)))
+            and (m.is_ref = 0 or m.is_ref = 1)
+			and (? is null or m.ts >= ?)
+			and (? is null or m.ts <= ?)';
+        set @query = CONCAT(@msgs_query, @tags_query, @contains_query);
+        prepare stmt from @query;
+        execute stmt using @ownerJid, @buddyJid, @buddyJid, @from, @from, @to, @to;
+        deallocate prepare stmt;
+    elseif _refType = 1 then
+        select jid_id into _ownerId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_ownerJid));
+        if _buddyJid is not null then
+            select jid_id into _buddyId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_buddyJid));
+        end if;
+
+        -- whole days are counted using summaries, only messages of the first and the last day are counted
+        select (
+            select coalesce(sum(d.msgs_count), 0)
+            from tig_ma_msgs_daily d
+            where
+                d.owner_id = _ownerId
+                and (_buddyJid is null or d.buddy_id = _buddyId)
+                and (_from is null or d.ts_date > date(_from))
+                and (_to is null or d.ts_date < date(_to))
+        ) + (
+            select count(1)
+            from tig_ma_msgs m
+            where
+                _from is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= _from and m.ts < date(_from) + interval 1 day
+                and (_to is null or m.ts <= _to)
+        ) + (
+            select count(1)
+            from tig_ma_msgs m
+            where
+                _to is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= date(_to) and m.ts <= _to
+                and (_from is null or m.ts >= date(_from) + interval 1 day)
+        );
+    else
+        select count(1)
+        from tig_ma_msgs m
+            inner join tig_ma_jids o on m.owner_id = o.jid_id
+            inner join tig_ma_jids b on b.jid_id = m.buddy_id
+        where
+            o.jid_sha1 = SHA1(LOWER(_ownerJid))
+            and (_buddyJid is null or b.jid_sha1 = SHA1(LOWER(_buddyJid)))
+            and m.is_ref = 0
+            and (_from is null or m.ts >= _from)
+            and (_to is null or m.ts <= _to);
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetCollections( _ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp(6), _to timestamp(6), _tags text CHARSET utf8mb4 collate utf8mb4_bin, _contains text CHARSET utf8mb4 collate utf8mb4_bin, _limit int, _offset int)
+begin
+    declare _ownerId bigint unsigned;
+    declare _buddyId bigint unsigned;
+
+    if _tags is not null or _contains is not null then
+        set @ownerJid = _ownerJid;
+        set @buddyJid = _buddyJid;
+        set @from = _from;
+        set @to = _to;
+        set @limit = _limit;
+        set @offset = _offset;
+        select Tig_MA_GetHasTagsQuery(_tags) into @tags_query;
+        select Tig_MA_GetBodyContainsQuery(_contains) into @contains_query;
+        set @msgs_query = 'select min(m.ts), b.jid';
+        set @msgs_query = CONCAT( @msgs_query,' from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = SHA1(LOWER(?))
+			and (? is null or b.jid_sha1 = SHA1(LOWER(?)))
+            and (m.is_ref = 0 or m.is_ref = 1)
+			and (? is null or m.ts >= ?)
+			and (? is null or m.ts <= ?)');
+        set @groupby_query = ' group by date(m.ts), m.buddy_id, b.jid';
+        set @pagination_query = ' limit ? offset ?';
+        set @query = CONCAT(@msgs_query, @tags_query, @contains_query, @groupby_query, ' order by min(m.ts), b.jid', @pagination_query);
+        prepare stmt from @query;
+        execute stmt using @ownerJid, @buddyJid, @buddyJid, @from, @from, @to, @to, @limit, @offset;
+        deallocate prepare stmt;
+    else
+        select jid_id into _ownerId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_ownerJid));
+        if _buddyJid is not null then
+            select jid_id into _buddyId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_buddyJid));
+        end if;
+
+        -- collection is a conversation with a buddy during a day, so whole days are read from summaries
+        select c.ts, b.jid
+        from (
+            select d.min_ts as ts, d.buddy_id
+            from tig_ma_msgs_daily d
+            where
+                d.owner_id = _ownerId
+                and (_buddyJid is null or d.buddy_id = _buddyId)
+                and (_from is null or d.ts_date > date(_from))
+                and (_to is null or d.ts_date < date(_to))
+            union all
+            select min(m.ts), m.buddy_id
+            from tig_ma_msgs m
+            where
+                _from is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= _from and m.ts < date(_from) + interval 1 day
+                and (_to is null or m.ts <= _to)
+            group by m.buddy_id
+            union all
+            select min(m.ts), m.buddy_id
+            from tig_ma_msgs m
+            where
+                _to is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= date(_to) and m.ts <= _to
+                and (_from is null or m.ts >= date(_from) + interval 1 day)
+            group by m.buddy_id
+        ) c
+            inner join tig_ma_jids b on b.jid_id = c.buddy_id
+        order by c.ts, b.jid
+        limit _limit offset _offset;
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetCollectionsCount( _ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp(6), _to timestamp(6), _tags text CHARSET utf8mb4 collate utf8mb4_bin, _contains text CHARSET utf8mb4 collate utf8mb4_bin)
+begin
+    declare _ownerId bigint unsigned;
+    declare _buddyId bigint unsigned;
+
+    if _tags is not null or _contains is not null then
+        set @ownerJid = _ownerJid;
+        set @buddyJid = _buddyJid;
+        set @from = _from;
+        set @to = _to;
+        select Tig_MA_GetHasTagsQuery(_tags) into @tags_query;
+        select Tig_MA_GetBodyContainsQuery(_contains) into @contains_query;
+        set @msgs_query = 'select count(1) from (select min(m.ts), b.jid';
+        set @msgs_query = CONCAT( @msgs_query,' from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = SHA1(LOWER(?))
+			and (? is null or b.jid_sha1 = SHA1(LOWER(?)))
+            and (m.is_ref = 0 or m.is_ref = 1)
+			and (? is null or m.ts >= ?)
+			and (? is null or m.ts <= ?)');
+        set @groupby_query = ' group by date(m.ts), m.buddy_id, b.jid';
+        set @query = CONCAT(@msgs_query, @tags_query, @contains_query, @groupby_query, ' ) x');
+        prepare stmt from @query;
+        execute stmt using @ownerJid, @buddyJid, @buddyJid, @from, @from, @to, @to;
+        deallocate prepare stmt;
+    else
+        select jid_id into _ownerId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_ownerJid));
+        if _buddyJid is not null then
+            select jid_id into _buddyId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_buddyJid));
+        end if;
+
+        select (
+            select count(1)
+            from tig_ma_msgs_daily d
+            where
+                d.owner_id = _ownerId
+                and (_buddyJid is null or d.buddy_id = _buddyId)
+                and (_from is null or d.ts_date > date(_from))
+                and (_to is null or d.ts_date < date(_to))
+        ) + (
+            select count(distinct m.buddy_id)
+            from tig_ma_msgs m
+            where
+                _from is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= _from and m.ts < date(_from) + interval 1 day
+                and (_to is null or m.ts <= _to)
+        ) + (
+            select count(distinct m.buddy_id)
+            from tig_ma_msgs m
+            where
+                _to is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= date(_to) and m.ts <= _to
+                and (_from is null or m.ts >= date(_from) + interval 1 day)
+        );
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetCollectionsByCursor( _ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp(6), _to timestamp(6), _afterTs timestamp(6), _afterBuddyId bigint, _beforeTs timestamp(6), _beforeBuddyId bigint, _reverse tinyint, _limit int)
+begin
+    declare _ownerId bigint unsigned;
+    declare _buddyId bigint unsigned;
+
+    select jid_id into _ownerId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_ownerJid));
+    if _buddyJid is not null then
+        select jid_id into _buddyId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_buddyJid));
+    end if;
+
+    -- collections are ordered by (ts, buddy_id) so that a page may be continued from the last returned collection
+    if _reverse = 1 then
+        select c.ts, b.jid, c.buddy_id
+        from (
+            (select d.min_ts as ts, d.buddy_id
+            from tig_ma_msgs_daily d
+            where
+                d.owner_id = _ownerId
+                and (_buddyJid is null or d.buddy_id = _buddyId)
+                and (_from is null or d.min_ts >= date(_from) + interval 1 day)
+                and (_to is null or d.min_ts < date(_to))
+                and (_afterTs is null or (d.min_ts >= _afterTs and (d.min_ts > _afterTs or d.buddy_id > _afterBuddyId)))
+                and (_beforeTs is null or (d.min_ts <= _beforeTs and (d.min_ts < _beforeTs or d.buddy_id < _beforeBuddyId)))
+            order by d.min_ts desc, d.buddy_id desc
+            limit _limit)
+            union all
+            select min(m.ts), m.buddy_id
+            from tig_ma_msgs m
+            where
+                _from is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= _from and m.ts < date(_from) + interval 1 day
+                and (_to is null or m.ts <= _to)
+            group by m.buddy_id
+            having
+                (_afterTs is null or min(m.ts) > _afterTs or (min(m.ts) = _afterTs and m.buddy_id > _afterBuddyId))
+                and (_beforeTs is null or min(m.ts) < _beforeTs or (min(m.ts) = _beforeTs and m.buddy_id < _beforeBuddyId))
+            union all
+            select min(m.ts), m.buddy_id
+            from tig_ma_msgs m
+            where
+                _to is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= date(_to) and m.ts <= _to
+                and (_from is null or m.ts >= date(_from) + interval 1 day)
+            group by m.buddy_id
+            having
+                (_afterTs is null or min(m.ts) > _afterTs or (min(m.ts) = _afterTs and m.buddy_id > _afterBuddyId))
+                and (_beforeTs is null or min(m.ts) < _beforeTs or (min(m.ts) = _beforeTs and m.buddy_id < _beforeBuddyId))
+        ) c
+            inner join tig_ma_jids b on b.jid_id = c.buddy_id
+        order by c.ts desc, c.buddy_id desc
+        limit _limit;
+    else
+        select c.ts, b.jid, c.buddy_id
+        from (
+            (select d.min_ts as ts, d.buddy_id
+            from tig_ma_msgs_daily d
+            where
+                d.owner_id = _ownerId
+                and (_buddyJid is null or d.buddy_id = _buddyId)
+                and (_from is null or d.min_ts >= date(_from) + interval 1 day)
+                and (_to is null or d.min_ts < date(_to))
+                and (_afterTs is null or (d.min_ts >= _afterTs and (d.min_ts > _afterTs or d.buddy_id > _afterBuddyId)))
+                and (_beforeTs is null or (d.min_ts <= _beforeTs and (d.min_ts < _beforeTs or d.buddy_id < _beforeBuddyId)))
+            order by d.min_ts, d.buddy_id
+            limit _limit)
+            union all
+            select min(m.ts), m.buddy_id
+            from tig_ma_msgs m
+            where
+                _from is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= _from and m.ts < date(_from) + interval 1 day
+                and (_to is null or m.ts <= _to)
+            group by m.buddy_id
+            having
+                (_afterTs is null or min(m.ts) > _afterTs or (min(m.ts) = _afterTs and m.buddy_id > _afterBuddyId))
+                and (_beforeTs is null or min(m.ts) < _beforeTs or (min(m.ts) = _beforeTs and m.buddy_id < _beforeBuddyId))
+            union all
+            select min(m.ts), m.buddy_id
+            from tig_ma_msgs m
+            where
+                _to is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= date(_to) and m.ts <= _to
+                and (_from is null or m.ts >= date(_from) + interval 1 day)
+            group by m.buddy_id
+            having
+                (_afterTs is null or min(m.ts) > _afterTs or (min(m.ts) = _afterTs and m.buddy_id > _afterBuddyId))
+                and (_beforeTs is null or min(m.ts) < _beforeTs or (min(m.ts) = _beforeTs and m.buddy_id < _beforeBuddyId))
+        ) c
+            inner join tig_ma_jids b on b.jid_id = c.buddy_id
+        order by c.ts, c.buddy_id
+        limit _limit;
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetRecentConversations( _ownerJid varchar(2049) CHARSET utf8, _beforeTs timestamp(6), _beforeStableId varchar(36) CHARSET utf8, _limit int)
+begin
+    declare _ownerId bigint;
+    declare _beforeId binary(16);
+
+    select jid_id into _ownerId from tig_ma_jids where jid_sha1 = SHA1(LOWER(_ownerJid));
+    if _beforeTs is not null then
+        set _beforeId = Tig_MA_UuidToOrdered(_beforeStableId);
+    end if;
+
+    -- last message of each conversation, starting from the most recent one
+    select m.msg, m.ts, b.jid, Tig_MA_OrderedToUuid(m.stable_id) as stable_id, Tig_MA_OrderedToUuid(m.ref_stable_id) as ref_stable_id
+    from tig_ma_conversations c
+        inner join tig_ma_msgs m on m.owner_id = c.owner_id and m.stable_id = c.last_stable_id
+        inner join tig_ma_jids b on b.jid_id = c.buddy_id
+    where
+        c.owner_id = _ownerId
+        and (_beforeTs is null or (c.last_ts <= _beforeTs and (c.last_ts < _beforeTs or c.last_stable_id < _beforeId)))
+    order by c.last_ts desc, c.last_stable_id desc
+    limit _limit;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+call Tig_MA_Upgrade();
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_Upgrade;
+-- QUERY END:
@@ -0,0 +1,97 @@
+--
+-- Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+-- Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+--
+-- This program is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU Affero General Public License as published by
+-- the Free Software Foundation, version 3 of the License.
+--
+-- This program is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU Affero General Public License for more details.
+--
+-- You should have received a copy of the GNU Affero General Public License
+-- along with this program. Look for COPYING file in the top folder.
+-- If not, see http://www.gnu.org/licenses/.
+--
+
+-- Converts tig_ma_msgs to a table partitioned by months of the ts column, so that expired messages may be removed by
+-- dropping whole partitions (see remove-expired-partitions option of the message archive component).
+--
+-- This script is not executed during schema upgrade. It should be executed manually, once, after schema 3.2.0 was
+-- loaded and while the server is stopped, as it rebuilds the whole tig_ma_msgs table.
+--
+-- MySQL does not support foreign keys and full-text indexes in partitioned tables and requires ts to be a part of
+-- the primary key, so:
+-- - foreign keys of tig_ma_msgs and tig_ma_msgs_tags referencing it are dropped and tags of removed messages are
+--   removed explicitly by every procedure removing messages instead of a cascade and Tig_MA_AddMessageByIds checks
+--   that ids of jids exist (so messages are not stored with outdated cached ids of removed jids),
+-- - primary key (owner_id, stable_id, ts) no longer guarantees uniqueness of stable ids of an owner. Procedures adding
+--   messages check if a message with the same stable id already exists, but messages with the same stable id and
+--   different timestamps may still be stored if they are added concurrently,
+-- - full-text index of message bodies is dropped and searching falls back to the LIKE operator.
+
+delimiter //
+
+-- QUERY START:
+create procedure Tig_MA_PartitionMessages()
+begin
+    declare _month datetime;
+    declare _partitions text default '';
+
+    if not exists (select 1 from information_schema.PARTITIONS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and PARTITION_NAME = 'pmax') then
+        set @query = null;
+        select CONCAT('alter table tig_ma_msgs_tags ', group_concat(distinct CONCAT('drop foreign key ', constraint_name))) into @query
+            from information_schema.key_column_usage
+            where table_schema = database() and table_name = 'tig_ma_msgs_tags' and referenced_table_name = 'tig_ma_msgs';
+        if @query is not null then
+            prepare stmt from @query;
+            execute stmt;
+            deallocate prepare stmt;
+        end if;
+
+        set @query = null;
+        select CONCAT('alter table tig_ma_msgs ', group_concat(distinct CONCAT('drop foreign key ', constraint_name))) into @query
+            from information_schema.key_column_usage
+            where table_schema = database() and table_name = 'tig_ma_msgs' and referenced_table_name is not null;
+        if @query is not null then
+            prepare stmt from @query;
+            execute stmt;
+            deallocate prepare stmt;
+        end if;
+
+        if exists (select 1 from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and INDEX_NAME = 'tig_ma_msgs_body_fulltext_index') then
+            drop index tig_ma_msgs_body_fulltext_index on tig_ma_msgs;
+        end if;
+
+        alter table tig_ma_msgs
+            modify column ts timestamp(6) not null default current_timestamp(6),
+            drop primary key,
+            add primary key (owner_id, stable_id, ts);
+
+        set _month = date_format(coalesce((select min(ts) from tig_ma_msgs), now()), '%Y-%m-01');
+        while _month <= now() + interval 3 month do
+            set _partitions = CONCAT(_partitions, 'partition p', date_format(_month, '%Y%m'), ' values less than (',
+                unix_timestamp(_month + interval 1 month), '), ');
+            set _month = _month + interval 1 month;
+        end while;
+
+        set @query = CONCAT('alter table tig_ma_msgs partition by range (unix_timestamp(ts)) (', _partitions,
+            'partition pmax values less than maxvalue)');
+        prepare stmt from @query;
+        execute stmt;
+        deallocate prepare stmt;
+    end if;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+call Tig_MA_PartitionMessages();
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_PartitionMessages;
+-- QUERY END:
@@ -0,0 +1,74 @@
+--
+-- Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+-- Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+--
+-- This program is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU Affero General Public License as published by
+-- the Free Software Foundation, version 3 of the License.
+--
+-- This program is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU Affero General Public License for more details.
+--
+-- You should have received a copy of the GNU Affero General Public License
+-- along with this program. Look for COPYING file in the top folder.
+-- If not, see http://www.gnu.org/licenses/.
+--
+
+-- Converts tig_ma_msgs to a table partitioned by months of the ts column, so that expired messages may be removed by
+-- dropping whole partitions (see remove-expired-partitions option of the message archive component).
+--
+-- This script is not executed during schema upgrade. It should be executed manually, once, after schema 3.2.0 was
+-- loaded and while the server is stopped. It requires PostgreSQL 11 or newer and copies all archived messages.
+--
+-- Partitioned table has to include ts in its primary key and cannot be referenced by a foreign key, so tags of
+-- removed messages are no longer removed by a cascade. They are removed explicitly by every function removing messages
+-- instead. Primary key (owner_id, stable_id, ts) no longer guarantees uniqueness of stable ids of an owner. Functions
+-- adding messages check if a message with the same stable id already exists, but messages with the same stable id and
+-- different timestamps may still be stored if they are added concurrently.
+--
+-- Messages which do not fit into any monthly partition are stored in tig_ma_msgs_pdefault partition and are moved to
+-- a monthly partition by Tig_MA_CreatePartitions when it is created.
+
+-- QUERY START:
+do $$
+declare
+    temprow record;
+    _idx int := 0;
+begin
+if exists (select 1 from pg_partitioned_table where partrelid = to_regclass('public.tig_ma_msgs')) then
+    raise notice 'tig_ma_msgs is already partitioned';
+    return;
+end if;
+
+alter table tig_ma_msgs rename to tig_ma_msgs_unpartitioned;
+for temprow in
+    select indexname from pg_indexes where schemaname = 'public' and tablename = 'tig_ma_msgs_unpartitioned'
+loop
+    _idx := _idx + 1;
+    execute format('alter index %I rename to %I', temprow.indexname, 'tig_ma_msgs_unpartitioned_' || _idx);
+end loop;
+
+create table tig_ma_msgs (like tig_ma_msgs_unpartitioned including defaults including storage) partition by range (ts);
+perform Tig_MA_CreatePartitions(coalesce((select min(ts) from tig_ma_msgs_unpartitioned), now()), now() + interval '3 months');
+-- messages with timestamps not covered by monthly partitions (ie. if partitions were not created in time)
+create table tig_ma_msgs_pdefault partition of tig_ma_msgs default;
+
+insert into tig_ma_msgs select * from tig_ma_msgs_unpartitioned;
+
+alter table tig_ma_msgs
+    add primary key (owner_id, stable_id, ts),
+    add foreign key (owner_id) references tig_ma_jids (jid_id),
+    add foreign key (buddy_id) references tig_ma_jids (jid_id);
+create index tig_ma_msgs_owner_id_buddy_id_stable_id_index on tig_ma_msgs (owner_id, buddy_id, stable_id);
+create index tig_ma_msgs_owner_id_buddy_id_is_ref_ts_index on tig_ma_msgs (owner_id, buddy_id, is_ref, ts);
+create index tig_ma_msgs_owner_id_is_ref_ts_index on tig_ma_msgs (owner_id, is_ref, ts);
+create index tig_ma_msgs_owner_id_ts_stable_id_index on tig_ma_msgs (owner_id, ts, stable_id);
+create index tig_ma_msgs_ts_index on tig_ma_msgs (ts);
+create index tig_ma_msgs_body_fts_index on tig_ma_msgs using gin (to_tsvector('simple', coalesce(body, '')));
+
+-- drops also foreign key of tig_ma_msgs_tags referencing old table
+drop table tig_ma_msgs_unpartitioned cascade;
+end$$;
+-- QUERY END:
@@ -16,3 +16,1192 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+-- QUERY START:
+create table if not exists tig_ma_msgs_daily (
+    owner_id bigint not null references tig_ma_jids (jid_id) on delete cascade,
+    buddy_id bigint not null references tig_ma_jids (jid_id) on delete cascade,
+    ts_date date not null,
+    msgs_count int not null,
+    min_ts timestamp with time zone,
+    max_ts timestamp with time zone,
+
+    primary key (owner_id, ts_date, buddy_id)
+);
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if not exists (select 1 where (select to_regclass('public.tig_ma_msgs_daily_owner_id_buddy_id_ts_date_index')) is not null) then
+    create index tig_ma_msgs_daily_owner_id_buddy_id_ts_date_index on tig_ma_msgs_daily (owner_id, buddy_id, ts_date);
+end if;
+if not exists (select 1 where (select to_regclass('public.tig_ma_msgs_daily_owner_id_min_ts_buddy_id_index')) is not null) then
+    create index tig_ma_msgs_daily_owner_id_min_ts_buddy_id_index on tig_ma_msgs_daily (owner_id, min_ts, buddy_id);
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_ma_conversations (
+    owner_id bigint not null references tig_ma_jids (jid_id) on delete cascade,
+    buddy_id bigint not null references tig_ma_jids (jid_id) on delete cascade,
+    last_ts timestamp with time zone,
+    last_stable_id uuid not null,
+
+    primary key (owner_id, buddy_id)
+);
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if not exists (select 1 where (select to_regclass('public.tig_ma_conversations_owner_id_last_ts_last_stable_id_index')) is not null) then
+    create index tig_ma_conversations_owner_id_last_ts_last_stable_id_index on tig_ma_conversations (owner_id, last_ts, last_stable_id);
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_UtcDate(_ts timestamp with time zone) returns date as $$
+    -- days of summaries are always UTC days, independent of the time zone of the session
+    select (_ts at time zone 'UTC')::date;
+$$ LANGUAGE 'sql' immutable;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_UtcDayStart(_ts timestamp with time zone, _days int) returns timestamp with time zone as $$
+    select (Tig_MA_UtcDate(_ts) + _days)::timestamp at time zone 'UTC';
+$$ LANGUAGE 'sql' immutable;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_AddToDailySummary(_ownerId bigint, _buddyId bigint, _ts timestamp with time zone) returns void as $$
+begin
+    if _ts is not null then
+        insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+            values (_ownerId, _buddyId, Tig_MA_UtcDate(_ts), 1, _ts, _ts)
+            on conflict (owner_id, ts_date, buddy_id) do update set msgs_count = tig_ma_msgs_daily.msgs_count + 1,
+                min_ts = least(tig_ma_msgs_daily.min_ts, _ts), max_ts = greatest(tig_ma_msgs_daily.max_ts, _ts);
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_UpdateConversation(_ownerId bigint, _buddyId bigint, _ts timestamp with time zone, _stableId uuid) returns void as $$
+begin
+    if _ts is not null then
+        insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)
+            values (_ownerId, _buddyId, _ts, _stableId)
+            on conflict (owner_id, buddy_id) do update set last_ts = _ts, last_stable_id = _stableId
+                where (tig_ma_conversations.last_ts, tig_ma_conversations.last_stable_id) < (_ts, _stableId);
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_RefreshConversations(_ownerId bigint, _buddyId bigint) returns void as $$
+begin
+    -- summaries need to be refreshed first, as they point to the last day of each conversation
+    delete from tig_ma_conversations
+        where owner_id = _ownerId and (_buddyId is null or buddy_id = _buddyId);
+
+    insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)
+        select d.owner_id, d.buddy_id, d.last_ts, (
+                select max(m.stable_id::text)::uuid
+                from tig_ma_msgs m
+                where m.owner_id = d.owner_id and m.buddy_id = d.buddy_id and m.ts = d.last_ts
+            )
+        from (
+            select owner_id, buddy_id, max(max_ts) as last_ts
+            from tig_ma_msgs_daily
+            where owner_id = _ownerId and (_buddyId is null or buddy_id = _buddyId)
+            group by owner_id, buddy_id
+        ) d;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_RefreshDailySummary(_ownerId bigint, _buddyId bigint, _from timestamp with time zone, _to timestamp with time zone) returns void as $$
+begin
+    -- summaries of all days within the range are recalculated from messages which are left
+    delete from tig_ma_msgs_daily
+        where
+            owner_id = _ownerId
+            and (_buddyId is null or buddy_id = _buddyId)
+            and (_from is null or ts_date >= Tig_MA_UtcDate(_from))
+            and (_to is null or ts_date <= Tig_MA_UtcDate(_to));
+
+    insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+        select m.owner_id, m.buddy_id, Tig_MA_UtcDate(m.ts), count(1), min(m.ts), max(m.ts)
+        from tig_ma_msgs m
+        where
+            m.owner_id = _ownerId
+            and (_buddyId is null or m.buddy_id = _buddyId)
+            and m.ts is not null
+            and (_from is null or m.ts >= Tig_MA_UtcDayStart(_from, 0))
+            and (_to is null or m.ts < Tig_MA_UtcDayStart(_to, 1))
+        group by m.owner_id, m.buddy_id, Tig_MA_UtcDate(m.ts);
+
+    perform Tig_MA_RefreshConversations(_ownerId, _buddyId);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteExpiredDailySummary(_domain varchar(1024), _before timestamp with time zone) returns void as $$
+begin
+    -- summaries of whole days of expired messages are removed, summary of the last day is recalculated
+    delete from tig_ma_msgs_daily d
+        using tig_ma_jids j
+        where j.jid_id = d.owner_id and j."domain" = _domain and d.ts_date <= Tig_MA_UtcDate(_before);
+
+    insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+        select m.owner_id, m.buddy_id, Tig_MA_UtcDate(m.ts), count(1), min(m.ts), max(m.ts)
+        from tig_ma_jids j
+            inner join tig_ma_msgs m on m.owner_id = j.jid_id
+        where j."domain" = _domain and m.ts >= Tig_MA_UtcDayStart(_before, 0) and m.ts < Tig_MA_UtcDayStart(_before, 1)
+        group by m.owner_id, m.buddy_id, Tig_MA_UtcDate(m.ts);
+
+    -- last message of a conversation is expired only if all messages of the conversation are expired
+    delete from tig_ma_conversations c
+        using tig_ma_jids j
+        where j.jid_id = c.owner_id and j."domain" = _domain and c.last_ts < _before;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_AddMessageInTx(_ownerJid varchar(2049), _buddyJid varchar(2049), _ts timestamp with time zone,
+              _stableId varchar(36), _stanzaId varchar(64), _refStableId varchar(36), _body text, _msg text) returns void as $$
+begin
+    -- function is always executed within transaction of a caller
+    perform Tig_MA_AddMessage(_ownerJid, _buddyJid, _ts, _stableId, _stanzaId, _refStableId, _body, _msg);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_EnsureJidId(_jid varchar(2049)) returns bigint as $$
+begin
+    return Tig_MA_EnsureJid(_jid);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_AddMessageByIds(_ownerId bigint, _buddyId bigint, _ts timestamp with time zone,
+              _stableId varchar(36), _stanzaId varchar(64), _refStableId varchar(36), _body text, _msg text) returns void as $$
+declare
+    _inserted int := 0;
+begin
+    begin
+        insert into tig_ma_msgs (owner_id, stable_id, buddy_id, ts, stanza_id, is_ref, ref_stable_id, body, msg)
+        select _ownerId, uuid(_stableId), _buddyId, _ts, _stanzaId, case when _refStableId is null then 0 else 1 end, uuid(_refStableId), _body, _msg
+            where not exists (
+                select 1 from tig_ma_msgs where owner_id = _ownerId and stable_id = uuid(_stableId)
+            );
+        get diagnostics _inserted = row_count;
+    exception when unique_violation then
+    end;
+
+    if _inserted > 0 then
+        perform Tig_MA_AddToDailySummary(_ownerId, _buddyId, _ts);
+        perform Tig_MA_UpdateConversation(_ownerId, _buddyId, _ts, uuid(_stableId));
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_EnsureTagId(_ownerId bigint, _tag varchar(255)) returns bigint as $$
+declare
+    _tag_id bigint;
+begin
+    select tag_id into _tag_id from tig_ma_tags where owner_id = _ownerId and tag = _tag;
+    if _tag_id is null then
+        begin
+        with inserted as (
+	    		insert into tig_ma_tags (owner_id, tag) select _ownerId, _tag where not exists(
+				    select 1 from tig_ma_tags where owner_id = _ownerId and tag = _tag
+			    ) returning tag_id
+		    )
+        select tag_id into _tag_id from inserted;
+        exception when unique_violation then
+        end;
+
+        if _tag_id is null then
+            select tag_id into _tag_id  from tig_ma_tags where owner_id = _ownerId and tag = _tag;
+        end if;
+    end if;
+    return _tag_id;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_AddTagsToMessageByIds(_ownerId bigint, _stableId varchar(36), _tagIds text) returns void as $$
+begin
+    -- _tagIds is a comma separated list of numeric ids of tags, ids not belonging to the owner are ignored
+    insert into tig_ma_msgs_tags (msg_owner_id, msg_stable_id, tag_id)
+        select t.owner_id, uuid(_stableId), t.tag_id
+        from tig_ma_tags t
+        where t.owner_id = _ownerId
+            and t.tag_id = any(string_to_array(_tagIds, ',')::bigint[])
+            and not exists (
+                select 1 from tig_ma_msgs_tags mt where mt.msg_owner_id = _ownerId and mt.msg_stable_id = uuid(_stableId) and mt.tag_id = t.tag_id
+            );
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+-- index used to seek pages of messages by (ts, stable_id) cursor
+if not exists (select 1 where (select to_regclass('public.tig_ma_msgs_owner_id_ts_stable_id_index')) is not null) then
+create index tig_ma_msgs_owner_id_ts_stable_id_index on tig_ma_msgs (owner_id, ts, stable_id);
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetMessagesByCursor(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp with time zone, _to timestamp with time zone, _afterTs timestamp with time zone, _afterStableId varchar(36), _beforeTs timestamp with time zone, _beforeStableId varchar(36), _reverse smallint, _limit int) returns table(
+    "msg" text, "ts" timestamp with time zone, "buddyJid" varchar(2049), "stableId" varchar(36), "refStableId" varchar(36)
+) as $$
+declare
+    _ownerId bigint;
+begin
+    select jid_id into _ownerId from tig_ma_jids where lower(jid) = lower(_ownerJid);
+
+    if _reverse = 1 then
+        return query select m.msg, m.ts, b.jid, cast(m.stable_id as varchar(36)) as stable_id, cast(m.ref_stable_id as varchar(36)) as ref_stable_id
+            from tig_ma_msgs m
+                inner join tig_ma_jids b on b.jid_id = m.buddy_id
+            where
+                m.owner_id = _ownerId
+                and (_buddyJid is null or lower(b.jid) = lower(_buddyJid))
+                and (_from is null or m.ts >= _from)
+                and (_to is null or m.ts <= _to)
+                and (_afterTs is null or (m.ts, m.stable_id) > (_afterTs, uuid(_afterStableId)))
+                and (_beforeTs is null or (m.ts, m.stable_id) < (_beforeTs, uuid(_beforeStableId)))
+            order by m.ts desc, m.stable_id desc
+            limit _limit;
+    else
+        return query select m.msg, m.ts, b.jid, cast(m.stable_id as varchar(36)) as stable_id, cast(m.ref_stable_id as varchar(36)) as ref_stable_id
+            from tig_ma_msgs m
+                inner join tig_ma_jids b on b.jid_id = m.buddy_id
+            where
+                m.owner_id = _ownerId
+                and (_buddyJid is null or lower(b.jid) = lower(_buddyJid))
+                and (_from is null or m.ts >= _from)
+                and (_to is null or m.ts <= _to)
+                and (_afterTs is null or (m.ts, m.stable_id) > (_afterTs, uuid(_afterStableId)))
+                and (_beforeTs is null or (m.ts, m.stable_id) < (_beforeTs, uuid(_beforeStableId)))
+            order by m.ts, m.stable_id
+            limit _limit;
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetMessagesByIds(_ownerJid varchar(2049), _stableIds text) returns table(
+    "msg" text, "ts" timestamp with time zone, "buddyJid" varchar(2049), "stableId" varchar(36), "refStableId" varchar(36)
+) as $$
+begin
+    -- _stableIds is a comma separated list of stable ids
+    return query select m.msg, m.ts, b.jid, cast(m.stable_id as varchar(36)) as stable_id, cast(m.ref_stable_id as varchar(36)) as ref_stable_id
+        from tig_ma_msgs m
+            inner join tig_ma_jids o on m.owner_id = o.jid_id
+            inner join tig_ma_jids b on b.jid_id = m.buddy_id
+        where
+            m.stable_id = any(string_to_array(_stableIds, ',')::uuid[])
+            and lower(o.jid) = lower(_ownerJid);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+-- full-text index used by searches of messages containing text
+if not exists (select 1 where (select to_regclass('public.tig_ma_msgs_body_fts_index')) is not null) then
+create index tig_ma_msgs_body_fts_index on tig_ma_msgs using gin (to_tsvector('simple', coalesce(body, '')));
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetBodyContainsQuery(_in_str text) returns text as $$
+declare
+    _term text;
+    _word text;
+    _fts_query text := '';
+    _query text;
+begin
+	if _in_str is null then
+		return '';
+	end if;
+
+	_query := ' and m.body like ' || replace(_in_str, ''',''', ''' and m.body like ''');
+	-- if full-text index exists, it is used to find messages containing words of searched terms
+	-- and the condition above only checks if found messages contain whole terms
+	if (select to_regclass('public.tig_ma_msgs_body_fts_index')) is not null then
+		foreach _term in array string_to_array(substr(_in_str, 2, length(_in_str) - 2), ''',''') loop
+			-- text following a wildcard may be a part of a longer word of the message (ie. 'ail' in 'failed'),
+			-- so only words following whitespace are matched as prefixes of words of the message and if there
+			-- are none (ie. single word or text without spaces), messages are checked only by the LIKE condition
+			_term := regexp_replace(replace(_term, '''''', ''''), '(^|%)\S*', ' ', 'g');
+			foreach _word in array regexp_split_to_array(btrim(_term), '\s+') loop
+				_word := substring(_word from '^[[:alnum:]]+');
+				if _word is not null then
+					if _fts_query <> '' then
+						_fts_query := _fts_query || ' & ';
+					end if;
+					_fts_query := _fts_query || quote_literal(lower(_word)) || ':*';
+				end if;
+			end loop;
+		end loop;
+		if _fts_query <> '' then
+			_query := ' and to_tsvector(''simple'', coalesce(m.body, '''')) @@ to_tsquery(''simple'', ' || quote_literal(_fts_query) || ')' || _query;
+		end if;
+	end if;
+	-- query is used as a format string
+	return replace(_query, '%', '%%');
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_CreatePartitions(_from timestamp with time zone, _to timestamp with time zone) returns int as $$
+declare
+    _month timestamp;
+    _name text;
+    _lower text;
+    _upper text;
+    _inDefault boolean;
+    _created int := 0;
+begin
+    -- partitions are maintained only if tig_ma_msgs was partitioned by the partitioning script
+    if not exists (select 1 from pg_partitioned_table where partrelid = to_regclass('public.tig_ma_msgs')) then
+        return 0;
+    end if;
+    _month := date_trunc('month', _from at time zone 'UTC');
+    while _month <= (_to at time zone 'UTC') loop
+        _name := 'tig_ma_msgs_p' || to_char(_month, 'YYYYMM');
+        if (select to_regclass('public.' || _name)) is null then
+            _lower := to_char(_month, 'YYYY-MM-DD"T00:00:00Z"');
+            _upper := to_char(_month + interval '1 month', 'YYYY-MM-DD"T00:00:00Z"');
+            _inDefault := false;
+            if (select to_regclass('public.tig_ma_msgs_pdefault')) is not null then
+                execute format('select exists (select 1 from tig_ma_msgs_pdefault where ts >= %L and ts < %L)', _lower, _upper)
+                    into _inDefault;
+            end if;
+            if _inDefault then
+                -- partition cannot be created while default partition holds messages of its month, so they are
+                -- moved to a new table which is attached as the partition afterwards
+                execute format('create table %I (like tig_ma_msgs including defaults including storage)', _name);
+                execute format('with moved as (delete from tig_ma_msgs_pdefault where ts >= %L and ts < %L returning *) insert into %I select * from moved',
+                    _lower, _upper, _name);
+                execute format('alter table tig_ma_msgs attach partition %I for values from (%L) to (%L)', _name, _lower, _upper);
+            else
+                execute format('create table %I partition of tig_ma_msgs for values from (%L) to (%L)', _name, _lower, _upper);
+            end if;
+            _created := _created + 1;
+        end if;
+        _month := _month + interval '1 month';
+    end loop;
+    return _created;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DropExpiredPartitions(_before timestamp with time zone) returns int as $$
+declare
+    _partition record;
+    _dropped int := 0;
+    _upper timestamp with time zone;
+begin
+    for _partition in
+        select c.relname from pg_inherits i inner join pg_class c on c.oid = i.inhrelid
+            where i.inhparent = to_regclass('public.tig_ma_msgs') and c.relname ~ '^tig_ma_msgs_p[0-9]{6}$'
+            order by c.relname
+    loop
+        -- partition holds messages of a single month, so it may be dropped once the whole month expired
+        if ((to_date(substring(_partition.relname from 14), 'YYYYMM') + interval '1 month') at time zone 'UTC') <= _before then
+            -- partitioned table cannot be referenced by a foreign key, so tags of dropped messages are removed here
+            execute format('delete from tig_ma_msgs_tags mt using %I m where mt.msg_owner_id = m.owner_id and mt.msg_stable_id = m.stable_id',
+                _partition.relname);
+            execute format('drop table %I', _partition.relname);
+            _dropped := _dropped + 1;
+            _upper := (to_date(substring(_partition.relname from 14), 'YYYYMM') + interval '1 month') at time zone 'UTC';
+        end if;
+    end loop;
+
+    if _dropped > 0 then
+        -- only summaries of days which are fully covered by dropped partitions are removed
+        delete from tig_ma_msgs_daily where ts_date < Tig_MA_UtcDate(_upper);
+        delete from tig_ma_conversations where last_ts < _upper;
+    end if;
+    return _dropped;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteExpiredMessagesChunk(_domain varchar(1024), _before timestamp with time zone, _limit int) returns int as $$
+declare
+    _deleted int;
+begin
+    -- jids which are no longer used are removed by Tig_MA_DeleteUnusedJids
+    -- tags are removed explicitly, as partitioned tig_ma_msgs is not referenced by tig_ma_msgs_tags
+    with deleted as (
+        delete from tig_ma_msgs
+            where (owner_id, stable_id) in (
+                select m.owner_id, m.stable_id
+                    from tig_ma_msgs m
+                        inner join tig_ma_jids j on j.jid_id = m.owner_id
+                    where m.ts < _before and j."domain" = _domain
+                    order by m.ts
+                    limit _limit
+            )
+            returning owner_id, stable_id
+    ), deleted_tags as (
+        delete from tig_ma_msgs_tags mt using deleted d where mt.msg_owner_id = d.owner_id and mt.msg_stable_id = d.stable_id
+    )
+    select count(1) into _deleted from deleted;
+    if _deleted < _limit then
+        perform Tig_MA_DeleteExpiredDailySummary(_domain, _before);
+    end if;
+    return _deleted;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetExpiredMessagesCount(_domain varchar(1024), _before timestamp with time zone) returns bigint as $$
+begin
+    return (select count(1)
+        from tig_ma_msgs m
+            inner join tig_ma_jids j on j.jid_id = m.owner_id
+        where m.ts < _before and j."domain" = _domain);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_ma_user_retention (
+    jid varchar(2049) not null,
+    "domain" varchar(1024) not null,
+    retention_days int not null,
+
+    primary key (jid)
+);
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if not exists (select 1 where (select to_regclass('public.tig_ma_user_retention_domain_retention_days_index')) is not null) then
+    create index tig_ma_user_retention_domain_retention_days_index on tig_ma_user_retention ("domain", retention_days);
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_SetUserRetention(_ownerJid varchar(2049), _retentionDays int) returns void as $$
+begin
+    if _retentionDays is null then
+        delete from tig_ma_user_retention where jid = lower(_ownerJid);
+    else
+        insert into tig_ma_user_retention (jid, "domain", retention_days)
+            values (lower(_ownerJid), lower(substr(_ownerJid, strpos(_ownerJid, '@') + 1)), _retentionDays)
+            on conflict (jid) do update set retention_days = _retentionDays;
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetUserRetentionPeriods(_domain varchar(1024)) returns table (
+    "retention_days" int
+) as $$
+begin
+    return query select distinct r.retention_days from tig_ma_user_retention r where r."domain" = lower(_domain);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteExpiredUserMessages(_domain varchar(1024), _retentionDays int, _before timestamp with time zone) returns void as $$
+begin
+    -- removes messages of all users of the domain sharing the same retention period,
+    -- is_ref condition allows to use (owner_id, is_ref, ts) index for each of the owners
+    with deleted as (
+        delete from tig_ma_msgs m
+            using tig_ma_user_retention r, tig_ma_jids o
+            where r."domain" = lower(_domain) and r.retention_days = _retentionDays
+                and lower(o.jid) = r.jid
+                and m.owner_id = o.jid_id and m.is_ref in (0, 1) and m.ts < _before
+            returning m.owner_id, m.stable_id
+    )
+    delete from tig_ma_msgs_tags mt using deleted d where mt.msg_owner_id = d.owner_id and mt.msg_stable_id = d.stable_id;
+
+    delete from tig_ma_msgs_daily d
+        using tig_ma_user_retention r, tig_ma_jids o
+        where r."domain" = lower(_domain) and r.retention_days = _retentionDays
+            and lower(o.jid) = r.jid
+            and d.owner_id = o.jid_id and d.ts_date <= Tig_MA_UtcDate(_before);
+
+    insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+        select m.owner_id, m.buddy_id, Tig_MA_UtcDate(m.ts), count(1), min(m.ts), max(m.ts)
+        from tig_ma_user_retention r
+            inner join tig_ma_jids o on lower(o.jid) = r.jid
+            inner join tig_ma_msgs m on m.owner_id = o.jid_id
+        where r."domain" = lower(_domain) and r.retention_days = _retentionDays
+            and m.ts >= Tig_MA_UtcDayStart(_before, 0) and m.ts < Tig_MA_UtcDayStart(_before, 1)
+        group by m.owner_id, m.buddy_id, Tig_MA_UtcDate(m.ts);
+
+    delete from tig_ma_conversations c
+        using tig_ma_user_retention r, tig_ma_jids o
+        where r."domain" = lower(_domain) and r.retention_days = _retentionDays
+            and lower(o.jid) = r.jid
+            and c.owner_id = o.jid_id and c.last_ts < _before;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteExpiredUserMessagesChunk(_domain varchar(1024), _retentionDays int, _before timestamp with time zone, _limit int) returns int as $$
+declare
+    _deleted int;
+begin
+    with deleted as (
+        delete from tig_ma_msgs
+            where (owner_id, stable_id) in (
+                select m.owner_id, m.stable_id
+                    from tig_ma_user_retention r
+                        inner join tig_ma_jids o on lower(o.jid) = r.jid
+                        inner join tig_ma_msgs m on m.owner_id = o.jid_id
+                    where r."domain" = lower(_domain) and r.retention_days = _retentionDays
+                        and m.is_ref in (0, 1) and m.ts < _before
+                    limit _limit
+            )
+            returning owner_id, stable_id
+    ), deleted_tags as (
+        delete from tig_ma_msgs_tags mt using deleted d where mt.msg_owner_id = d.owner_id and mt.msg_stable_id = d.stable_id
+    )
+    select count(1) into _deleted from deleted;
+    -- summaries are updated once all expired messages are removed
+    if _deleted < _limit then
+        perform Tig_MA_DeleteExpiredUserMessages(_domain, _retentionDays, _before);
+    end if;
+    return _deleted;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteExpiredMessages(_domain varchar(1024), _before timestamp with time zone) returns void as $$
+begin
+    -- jids which are no longer used are removed by Tig_MA_DeleteUnusedJids
+    -- tags are removed explicitly, as partitioned tig_ma_msgs is not referenced by tig_ma_msgs_tags
+    with deleted as (
+        delete from tig_ma_msgs where ts < _before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and "domain" = _domain)
+            returning owner_id, stable_id
+    )
+    delete from tig_ma_msgs_tags mt using deleted d where mt.msg_owner_id = d.owner_id and mt.msg_stable_id = d.stable_id;
+    perform Tig_MA_DeleteExpiredDailySummary(_domain, _before);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+-- index used to check if jid is still used as a buddy
+if not exists (select 1 where (select to_regclass('public.tig_ma_msgs_buddy_id_index')) is not null) then
+create index tig_ma_msgs_buddy_id_index on tig_ma_msgs (buddy_id);
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteUnusedJids(_afterId bigint, _limit int) returns table (
+    "last_id" bigint, "removed" int
+) as $$
+declare
+    _lastId bigint;
+    _removed int;
+begin
+    _removed := 0;
+    -- checks next range of jids only, so the whole table is not scanned at once
+    select max(r.jid_id) into _lastId from (
+        select j.jid_id from tig_ma_jids j where j.jid_id > _afterId order by j.jid_id limit _limit
+    ) r;
+
+    if _lastId is not null then
+        delete from tig_ma_jids j
+            where
+                j.jid_id > _afterId and j.jid_id <= _lastId
+                and not exists (
+                    select 1 from tig_ma_msgs m where m.owner_id = j.jid_id
+                )
+                and not exists (
+                    select 1 from tig_ma_msgs m where m.buddy_id = j.jid_id
+                );
+        get diagnostics _removed = row_count;
+    end if;
+
+    return query select _lastId, _removed;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_ma_pending_removals (
+    jid varchar(2049) not null,
+    removed_at timestamp with time zone not null,
+
+    primary key (jid)
+);
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_AddPendingRemoval(_ownerJid varchar(2049), _removedAt timestamp with time zone) returns void as $$
+begin
+    insert into tig_ma_pending_removals (jid, removed_at)
+        values (lower(_ownerJid), _removedAt)
+        on conflict (jid) do update set removed_at = _removedAt;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetPendingRemovals() returns table (
+    "jid" varchar(2049)
+) as $$
+begin
+    return query select r.jid from tig_ma_pending_removals r;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteRemovedUserMessages(_ownerJid varchar(2049), _limit int) returns table (
+    "removed" int
+) as $$
+declare
+    _ownerId bigint;
+    _removedAt timestamp with time zone;
+    _removed int;
+begin
+    _removed := 0;
+    select r.removed_at into _removedAt from tig_ma_pending_removals r where r.jid = lower(_ownerJid);
+    select j.jid_id into _ownerId from tig_ma_jids j where lower(j.jid) = lower(_ownerJid);
+
+    if _ownerId is not null and _removedAt is not null then
+        -- messages stored after the user was removed belong to a new account with the same jid
+        with deleted as (
+            delete from tig_ma_msgs
+                where owner_id = _ownerId and stable_id in (
+                    select m.stable_id from tig_ma_msgs m where m.owner_id = _ownerId and m.ts <= _removedAt limit _limit
+                )
+                returning owner_id, stable_id
+        ), deleted_tags as (
+            delete from tig_ma_msgs_tags mt using deleted d where mt.msg_owner_id = d.owner_id and mt.msg_stable_id = d.stable_id
+        )
+        select count(1) into _removed from deleted;
+    end if;
+
+    if _removed < _limit then
+        if _ownerId is not null and _removedAt is not null then
+            -- no messages are left before the day of removal, so only summary of that day is recalculated
+            delete from tig_ma_msgs_daily where owner_id = _ownerId and ts_date < Tig_MA_UtcDate(_removedAt);
+            perform Tig_MA_RefreshDailySummary(_ownerId, null, _removedAt, _removedAt);
+        end if;
+        delete from tig_ma_jids j
+            where
+                j.jid_id = _ownerId
+                and not exists (
+                    select 1 from tig_ma_msgs m where m.owner_id = j.jid_id
+                )
+                and not exists (
+                    select 1 from tig_ma_msgs m where m.buddy_id = j.jid_id
+                );
+        delete from tig_ma_user_retention r where r.jid = lower(_ownerJid);
+        delete from tig_ma_pending_removals r where r.jid = lower(_ownerJid);
+    end if;
+
+    return query select _removed;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_AddMessage(_ownerJid varchar(2049), _buddyJid varchar(2049), _ts timestamp with time zone,
+              _stableId varchar(36), _stanzaId varchar(64), _refStableId varchar(36), _body text, _msg text) returns void as $$
+declare
+	_owner_id bigint;
+	_buddy_id bigint;
+	_inserted int := 0;
+begin
+	select Tig_MA_EnsureJid(_ownerJid) into _owner_id;
+	select Tig_MA_EnsureJid(_buddyJid) into _buddy_id;
+
+    begin
+        insert into tig_ma_msgs (owner_id, stable_id, buddy_id, ts, stanza_id, is_ref, ref_stable_id, body, msg)
+        select _owner_id, uuid(_stableId), _buddy_id, _ts, _stanzaId, case when _refStableId is null then 0 else 1 end, uuid(_refStableId), _body, _msg
+            where not exists (
+                select 1 from tig_ma_msgs where owner_id = _owner_id and stable_id = uuid(_stableId)
+            );
+        get diagnostics _inserted = row_count;
+    exception when unique_violation then
+    end;
+
+    if _inserted > 0 then
+        perform Tig_MA_AddToDailySummary(_owner_id, _buddy_id, _ts);
+        perform Tig_MA_UpdateConversation(_owner_id, _buddy_id, _ts, uuid(_stableId));
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_RemoveMessages(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp with time zone, _to timestamp with time zone) returns void as $$
+declare
+	_owner_id bigint;
+	_buddy_id bigint;
+begin
+	_owner_id = 0;
+	_buddy_id = 0;
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+	    select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
+	-- tags are removed explicitly, as partitioned tig_ma_msgs is not referenced by tig_ma_msgs_tags
+	with deleted as (
+	    delete from tig_ma_msgs
+	        where owner_id = _owner_id
+	        and (_buddyJid is null or buddy_id = _buddy_id)
+	        and (_from is null or ts >= _from) and (_to is null or ts <= _to)
+	    returning owner_id, stable_id, buddy_id
+	), deleted_tags as (
+	    delete from tig_ma_msgs_tags mt using deleted d where mt.msg_owner_id = d.owner_id and mt.msg_stable_id = d.stable_id
+	)
+	delete from tig_ma_jids
+	    where
+	        jid_id in (select buddy_id from deleted group by buddy_id)
+	        and not exists (
+	            select 1 from tig_ma_msgs m where m.owner_id = jid_id
+	        )
+	        and not exists (
+	            select 1 from tig_ma_msgs m where m.buddy_id = jid_id
+	        );
+
+	if _buddyJid is null then
+	    perform Tig_MA_RefreshDailySummary(_owner_id, null, _from, _to);
+	else
+	    perform Tig_MA_RefreshDailySummary(_owner_id, _buddy_id, _from, _to);
+	end if;
+
+	delete from tig_ma_jids
+	    where
+	        jid_id = _owner_id
+	        and not exists (
+	            select 1 from tig_ma_msgs m where m.owner_id = jid_id
+	        )
+	        and not exists (
+	            select 1 from tig_ma_msgs m where m.buddy_id = jid_id
+	        );
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetMessagesCount(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp with time zone, _to timestamp with time zone, _refType smallint, _tags text, _contains text) returns table(
+    "count" bigint
+) as $$
+declare
+    tags_query text;
+    contains_query text;
+    msgs_query text;
+    query_sql text;
+    _ownerId bigint;
+    _buddyId bigint;
+begin
+    if _tags is not null or _contains is not null then
+        select Tig_MA_GetHasTagsQuery(_tags) into tags_query;
+        select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
+        msgs_query := 'select count(1)
+		from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			lower(o.jid) = lower(%L)
+			and (%L is null or lower(b.jid) = lower(%L))
+            and (m.is_ref = 0 or m.is_ref = 1)
+			and (%L is null or m.ts >= %L)
+			and (%L is null or m.ts <= %L)';
+        query_sql = msgs_query || tags_query || contains_query;
+        return query execute format(query_sql, _ownerJid, _buddyJid, _buddyJid, _from, _from, _to, _to);
+    else
+        case _refType
+            when 1 then
+                select jid_id into _ownerId from tig_ma_jids where lower(jid) = lower(_ownerJid);
+                if _buddyJid is not null then
+                    select jid_id into _buddyId from tig_ma_jids where lower(jid) = lower(_buddyJid);
+                end if;
+
+                -- whole days are counted using summaries, only messages of the first and the last day are counted
+                return query select (
+                    select coalesce(sum(d.msgs_count), 0)
+                    from tig_ma_msgs_daily d
+                    where
+                        d.owner_id = _ownerId
+                        and (_buddyJid is null or d.buddy_id = _buddyId)
+                        and (_from is null or d.ts_date > Tig_MA_UtcDate(_from))
+                        and (_to is null or d.ts_date < Tig_MA_UtcDate(_to))
+                ) + (
+                    select count(1)
+                    from tig_ma_msgs m
+                    where
+                        _from is not null
+                        and m.owner_id = _ownerId
+                        and (_buddyJid is null or m.buddy_id = _buddyId)
+                        and m.ts >= _from and m.ts < Tig_MA_UtcDayStart(_from, 1)
+                        and (_to is null or m.ts <= _to)
+                ) + (
+                    select count(1)
+                    from tig_ma_msgs m
+                    where
+                        _to is not null
+                        and m.owner_id = _ownerId
+                        and (_buddyJid is null or m.buddy_id = _buddyId)
+                        and m.ts >= Tig_MA_UtcDayStart(_to, 0) and m.ts <= _to
+                        and (_from is null or m.ts >= Tig_MA_UtcDayStart(_from, 1))
+                );
+            else
+		        return query select count(1)
+                    from tig_ma_msgs m
+                        inner join tig_ma_jids o on m.owner_id = o.jid_id
+                        inner join tig_ma_jids b on b.jid_id = m.buddy_id
+                    where
+                        lower(o.jid) = lower(_ownerJid)
+                        and (_buddyJid is null or lower(b.jid) = lower(_buddyJid))
+                        and m.is_ref = 0
+                        and (_from is null or m.ts >= _from)
+                        and (_to is null or m.ts <= _to);
+        end case;
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetCollections(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp with time zone, _to timestamp with time zone, _tags text, _contains text, _limit int, _offset int) returns table(
+    "ts" timestamp with time zone, "with" varchar(2049)
+) as $$
+declare
+    tags_query text;
+    contains_query text;
+    msgs_query text;
+    pagination_query text;
+    groupby_query text;
+    query_sql text;
+    _ownerId bigint;
+    _buddyId bigint;
+begin
+    if _tags is not null or _contains is not null then
+        select Tig_MA_GetHasTagsQuery(_tags) into tags_query;
+        select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
+        msgs_query := 'select min(m.ts), b.jid';
+        msgs_query := msgs_query ||
+		' from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			lower(o.jid) = lower(%L)
+			and (%L is null or lower(b.jid) = lower(%L))
+            and (m.is_ref = 0 or m.is_ref = 1)
+			and (%L is null or m.ts >= %L)
+			and (%L is null or m.ts <= %L)';
+		groupby_query := ' group by Tig_MA_UtcDate(m.ts), m.buddy_id, b.jid';
+        pagination_query := ' limit %s offset %s';
+        query_sql := msgs_query || tags_query || contains_query || groupby_query || ' order by min(m.ts), b.jid' || pagination_query;
+        return query execute format(query_sql, _ownerJid, _buddyJid, _buddyJid, _from, _from, _to, _to, _limit, _offset);
+    else
+        select jid_id into _ownerId from tig_ma_jids where lower(jid) = lower(_ownerJid);
+        if _buddyJid is not null then
+            select jid_id into _buddyId from tig_ma_jids where lower(jid) = lower(_buddyJid);
+        end if;
+
+        -- collection is a conversation with a buddy during a day, so whole days are read from summaries
+		return query select c.ts, b.jid
+            from (
+                select d.min_ts as ts, d.buddy_id
+                from tig_ma_msgs_daily d
+                where
+                    d.owner_id = _ownerId
+                    and (_buddyJid is null or d.buddy_id = _buddyId)
+                    and (_from is null or d.ts_date > Tig_MA_UtcDate(_from))
+                    and (_to is null or d.ts_date < Tig_MA_UtcDate(_to))
+                union all
+                select min(m.ts), m.buddy_id
+                from tig_ma_msgs m
+                where
+                    _from is not null
+                    and m.owner_id = _ownerId
+                    and (_buddyJid is null or m.buddy_id = _buddyId)
+                    and m.ts >= _from and m.ts < Tig_MA_UtcDayStart(_from, 1)
+                    and (_to is null or m.ts <= _to)
+                group by m.buddy_id
+                union all
+                select min(m.ts), m.buddy_id
+                from tig_ma_msgs m
+                where
+                    _to is not null
+                    and m.owner_id = _ownerId
+                    and (_buddyJid is null or m.buddy_id = _buddyId)
+                    and m.ts >= Tig_MA_UtcDayStart(_to, 0) and m.ts <= _to
+                    and (_from is null or m.ts >= Tig_MA_UtcDayStart(_from, 1))
+                group by m.buddy_id
+            ) c
+                inner join tig_ma_jids b on b.jid_id = c.buddy_id
+            order by c.ts, b.jid
+            limit _limit offset _offset;
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetCollectionsCount(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp with time zone, _to timestamp with time zone, _tags text, _contains text) returns table(
+    "count" bigint
+) as $$
+declare
+    tags_query text;
+    contains_query text;
+    msgs_query text;
+    groupby_query text;
+    query_sql text;
+    _ownerId bigint;
+    _buddyId bigint;
+begin
+    if _tags is not null or _contains is not null then
+        select Tig_MA_GetHasTagsQuery(_tags) into tags_query;
+        select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
+        msgs_query := 'select count(1) from (select min(m.ts), b.jid';
+        msgs_query := msgs_query ||
+		' from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			lower(o.jid) = lower(%L)
+			and (%L is null or lower(b.jid) = lower(%L))
+            and (m.is_ref = 0 or m.is_ref = 1)
+			and (%L is null or m.ts >= %L)
+			and (%L is null or m.ts <= %L)';
+		groupby_query := ' group by Tig_MA_UtcDate(m.ts), m.buddy_id, b.jid';
+        query_sql := msgs_query || tags_query || contains_query || groupby_query || ') x';
+        return query execute format(query_sql, _ownerJid, _buddyJid, _buddyJid, _from, _from, _to, _to);
+    else
+        select jid_id into _ownerId from tig_ma_jids where lower(jid) = lower(_ownerJid);
+        if _buddyJid is not null then
+            select jid_id into _buddyId from tig_ma_jids where lower(jid) = lower(_buddyJid);
+        end if;
+
+		return query select (
+            select count(1)
+            from tig_ma_msgs_daily d
+            where
+                d.owner_id = _ownerId
+                and (_buddyJid is null or d.buddy_id = _buddyId)
+                and (_from is null or d.ts_date > Tig_MA_UtcDate(_from))
+                and (_to is null or d.ts_date < Tig_MA_UtcDate(_to))
+        ) + (
+            select count(distinct m.buddy_id)
+            from tig_ma_msgs m
+            where
+                _from is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= _from and m.ts < Tig_MA_UtcDayStart(_from, 1)
+                and (_to is null or m.ts <= _to)
+        ) + (
+            select count(distinct m.buddy_id)
+            from tig_ma_msgs m
+            where
+                _to is not null
+                and m.owner_id = _ownerId
+                and (_buddyJid is null or m.buddy_id = _buddyId)
+                and m.ts >= Tig_MA_UtcDayStart(_to, 0) and m.ts <= _to
+                and (_from is null or m.ts >= Tig_MA_UtcDayStart(_from, 1))
+        );
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetCollectionsByCursor(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp with time zone, _to timestamp with time zone, _afterTs timestamp with time zone, _afterBuddyId bigint, _beforeTs timestamp with time zone, _beforeBuddyId bigint, _reverse smallint, _limit int) returns table(
+    "ts" timestamp with time zone, "with" varchar(2049), "buddyId" bigint
+) as $$
+declare
+    _ownerId bigint;
+    _buddyId bigint;
+begin
+    select jid_id into _ownerId from tig_ma_jids where lower(jid) = lower(_ownerJid);
+    if _buddyJid is not null then
+        select jid_id into _buddyId from tig_ma_jids where lower(jid) = lower(_buddyJid);
+    end if;
+
+    -- collections are ordered by (ts, buddy_id) so that a page may be continued from the last returned collection
+    if _reverse = 1 then
+        return query select c.ts, b.jid, c.buddy_id
+            from (
+                (select d.min_ts as ts, d.buddy_id
+                from tig_ma_msgs_daily d
+                where
+                    d.owner_id = _ownerId
+                    and (_buddyJid is null or d.buddy_id = _buddyId)
+                    and (_from is null or d.min_ts >= Tig_MA_UtcDayStart(_from, 1))
+                    and (_to is null or d.min_ts < Tig_MA_UtcDayStart(_to, 0))
+                    and (_afterTs is null or (d.min_ts, d.buddy_id) > (_afterTs, _afterBuddyId))
+                    and (_beforeTs is null or (d.min_ts, d.buddy_id) < (_beforeTs, _beforeBuddyId))
+                order by d.min_ts desc, d.buddy_id desc
+                limit _limit)
+                union all
+                select min(m.ts), m.buddy_id
+                from tig_ma_msgs m
+                where
+                    _from is not null
+                    and m.owner_id = _ownerId
+                    and (_buddyJid is null or m.buddy_id = _buddyId)
+                    and m.ts >= _from and m.ts < Tig_MA_UtcDayStart(_from, 1)
+                    and (_to is null or m.ts <= _to)
+                group by m.buddy_id
+                having
+                    (_afterTs is null or (min(m.ts), m.buddy_id) > (_afterTs, _afterBuddyId))
+                    and (_beforeTs is null or (min(m.ts), m.buddy_id) < (_beforeTs, _beforeBuddyId))
+                union all
+                select min(m.ts), m.buddy_id
+                from tig_ma_msgs m
+                where
+                    _to is not null
+                    and m.owner_id = _ownerId
+                    and (_buddyJid is null or m.buddy_id = _buddyId)
+                    and m.ts >= Tig_MA_UtcDayStart(_to, 0) and m.ts <= _to
+                    and (_from is null or m.ts >= Tig_MA_UtcDayStart(_from, 1))
+                group by m.buddy_id
+                having
+                    (_afterTs is null or (min(m.ts), m.buddy_id) > (_afterTs, _afterBuddyId))
+                    and (_beforeTs is null or (min(m.ts), m.buddy_id) < (_beforeTs, _beforeBuddyId))
+            ) c
+                inner join tig_ma_jids b on b.jid_id = c.buddy_id
+            order by c.ts desc, c.buddy_id desc
+            limit _limit;
+    else
+        return query select c.ts, b.jid, c.buddy_id
+            from (
+                (select d.min_ts as ts, d.buddy_id
+                from tig_ma_msgs_daily d
+                where
+                    d.owner_id = _ownerId
+                    and (_buddyJid is null or d.buddy_id = _buddyId)
+                    and (_from is null or d.min_ts >= Tig_MA_UtcDayStart(_from, 1))
+                    and (_to is null or d.min_ts < Tig_MA_UtcDayStart(_to, 0))
+                    and (_afterTs is null or (d.min_ts, d.buddy_id) > (_afterTs, _afterBuddyId))
+                    and (_beforeTs is null or (d.min_ts, d.buddy_id) < (_beforeTs, _beforeBuddyId))
+                order by d.min_ts, d.buddy_id
+                limit _limit)
+                union all
+                select min(m.ts), m.buddy_id
+                from tig_ma_msgs m
+                where
+                    _from is not null
+                    and m.owner_id = _ownerId
+                    and (_buddyJid is null or m.buddy_id = _buddyId)
+                    and m.ts >= _from and m.ts < Tig_MA_UtcDayStart(_from, 1)
+                    and (_to is null or m.ts <= _to)
+                group by m.buddy_id
+                having
+                    (_afterTs is null or (min(m.ts), m.buddy_id) > (_afterTs, _afterBuddyId))
+                    and (_beforeTs is null or (min(m.ts), m.buddy_id) < (_beforeTs, _beforeBuddyId))
+                union all
+                select min(m.ts), m.buddy_id
+                from tig_ma_msgs m
+                where
+                    _to is not null
+                    and m.owner_id = _ownerId
+                    and (_buddyJid is null or m.buddy_id = _buddyId)
+                    and m.ts >= Tig_MA_UtcDayStart(_to, 0) and m.ts <= _to
+                    and (_from is null or m.ts >= Tig_MA_UtcDayStart(_from, 1))
+                group by m.buddy_id
+                having
+                    (_afterTs is null or (min(m.ts), m.buddy_id) > (_afterTs, _afterBuddyId))
+                    and (_beforeTs is null or (min(m.ts), m.buddy_id) < (_beforeTs, _beforeBuddyId))
+            ) c
+                inner join tig_ma_jids b on b.jid_id = c.buddy_id
+            order by c.ts, c.buddy_id
+            limit _limit;
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+-- summaries of already archived messages
+if not exists (select 1 from tig_ma_msgs_daily) then
+    insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+        select owner_id, buddy_id, Tig_MA_UtcDate(ts), count(1), min(ts), max(ts)
+        from tig_ma_msgs
+        where ts is not null
+        group by owner_id, buddy_id, Tig_MA_UtcDate(ts);
+end if;
+-- last messages of conversations, found using summaries
+if not exists (select 1 from tig_ma_conversations) then
+    insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)
+        select d.owner_id, d.buddy_id, d.last_ts, (
+                select max(m.stable_id::text)::uuid
+                from tig_ma_msgs m
+                where m.owner_id = d.owner_id and m.buddy_id = d.buddy_id and m.ts = d.last_ts
+            )
+        from (
+            select owner_id, buddy_id, max(max_ts) as last_ts
+            from tig_ma_msgs_daily
+            group by owner_id, buddy_id
+        ) d;
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetRecentConversations(_ownerJid varchar(2049), _beforeTs timestamp with time zone, _beforeStableId varchar(36), _limit int) returns table(
+    "msg" text, "ts" timestamp with time zone, "buddyJid" varchar(2049), "stableId" varchar(36), "refStableId" varchar(36)
+) as $$
+declare
+    _ownerId bigint;
+begin
+    select jid_id into _ownerId from tig_ma_jids where lower(jid) = lower(_ownerJid);
+
+    -- last message of each conversation, starting from the most recent one
+    return query select m.msg, m.ts, b.jid, cast(m.stable_id as varchar(36)) as stable_id, cast(m.ref_stable_id as varchar(36)) as ref_stable_id
+        from tig_ma_conversations c
+            inner join tig_ma_msgs m on m.owner_id = c.owner_id and m.stable_id = c.last_stable_id
+            inner join tig_ma_jids b on b.jid_id = c.buddy_id
+        where
+            c.owner_id = _ownerId
+            and (_beforeTs is null or (c.last_ts, c.last_stable_id) < (_beforeTs, uuid(_beforeStableId)))
+        order by c.last_ts desc, c.last_stable_id desc
+        limit _limit;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
@@ -16,3 +16,1452 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+-- QUERY START:
+IF NOT EXISTS (SELECT * FROM sys.objects WHERE object_id = OBJECT_ID(N'[dbo].[tig_ma_msgs_daily]') AND type in (N'U'))
+	CREATE TABLE [dbo].[tig_ma_msgs_daily] (
+		[owner_id] [bigint] NOT NULL,
+		[buddy_id] [bigint] NOT NULL,
+		[ts_date] [date] NOT NULL,
+		[msgs_count] [int] NOT NULL,
+		[min_ts] [datetime],
+		[max_ts] [datetime],
+		CONSTRAINT [PK_tig_ma_msgs_daily] PRIMARY KEY CLUSTERED ( [owner_id] ASC, [ts_date] ASC, [buddy_id] ASC ),
+		-- buddy_id is not a foreign key as SQL Server does not allow two cascade paths from tig_ma_jids
+		CONSTRAINT [FK_tig_ma_msgs_daily_owner_id] FOREIGN KEY ([owner_id])
+			REFERENCES [dbo].[tig_ma_jids]([jid_id]) on delete cascade
+	);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs_daily') AND NAME ='IX_tig_ma_msgs_daily_owner_id_buddy_id_ts_date')
+	CREATE INDEX IX_tig_ma_msgs_daily_owner_id_buddy_id_ts_date ON [dbo].[tig_ma_msgs_daily](owner_id, buddy_id, ts_date);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs_daily') AND NAME ='IX_tig_ma_msgs_daily_owner_id_min_ts_buddy_id')
+	CREATE INDEX IX_tig_ma_msgs_daily_owner_id_min_ts_buddy_id ON [dbo].[tig_ma_msgs_daily](owner_id, min_ts, buddy_id);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS (SELECT * FROM sys.objects WHERE object_id = OBJECT_ID(N'[dbo].[tig_ma_conversations]') AND type in (N'U'))
+	CREATE TABLE [dbo].[tig_ma_conversations] (
+		[owner_id] [bigint] NOT NULL,
+		[buddy_id] [bigint] NOT NULL,
+		[last_ts] [datetime],
+		[last_stable_id] [uniqueidentifier] NOT NULL,
+		CONSTRAINT [PK_tig_ma_conversations] PRIMARY KEY CLUSTERED ( [owner_id] ASC, [buddy_id] ASC ),
+		-- buddy_id is not a foreign key as SQL Server does not allow two cascade paths from tig_ma_jids
+		CONSTRAINT [FK_tig_ma_conversations_owner_id] FOREIGN KEY ([owner_id])
+			REFERENCES [dbo].[tig_ma_jids]([jid_id]) on delete cascade
+	);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_conversations') AND NAME ='IX_tig_ma_conversations_owner_id_last_ts_last_stable_id')
+	CREATE INDEX IX_tig_ma_conversations_owner_id_last_ts_last_stable_id ON [dbo].[tig_ma_conversations](owner_id, last_ts, last_stable_id);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_AddToDailySummary')
+	DROP PROCEDURE Tig_MA_AddToDailySummary
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_AddToDailySummary
+	@_ownerId bigint,
+	@_buddyId bigint,
+	@_ts datetime
+AS
+begin
+	set nocount on;
+	if @_ts is not null
+		begin
+		update tig_ma_msgs_daily with (updlock, serializable)
+			set msgs_count = msgs_count + 1,
+				min_ts = case when min_ts < @_ts then min_ts else @_ts end,
+				max_ts = case when max_ts > @_ts then max_ts else @_ts end
+			where owner_id = @_ownerId and ts_date = cast(@_ts as date) and buddy_id = @_buddyId;
+		if @@ROWCOUNT = 0
+			insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+				values (@_ownerId, @_buddyId, cast(@_ts as date), 1, @_ts, @_ts);
+		end
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_UpdateConversation')
+	DROP PROCEDURE Tig_MA_UpdateConversation
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_UpdateConversation
+	@_ownerId bigint,
+	@_buddyId bigint,
+	@_ts datetime,
+	@_stableId uniqueidentifier
+AS
+begin
+	set nocount on;
+	if @_ts is not null
+		begin
+		update tig_ma_conversations with (updlock, serializable)
+			set last_ts = case when last_ts > @_ts or (last_ts = @_ts and last_stable_id >= @_stableId) then last_ts else @_ts end,
+				last_stable_id = case when last_ts > @_ts or (last_ts = @_ts and last_stable_id >= @_stableId) then last_stable_id else @_stableId end
+			where owner_id = @_ownerId and buddy_id = @_buddyId;
+		if @@ROWCOUNT = 0
+			insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)
+				values (@_ownerId, @_buddyId, @_ts, @_stableId);
+		end
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_RefreshConversations')
+	DROP PROCEDURE Tig_MA_RefreshConversations
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_RefreshConversations
+	@_ownerId bigint,
+	@_buddyId bigint
+AS
+begin
+	set nocount on;
+	-- summaries need to be refreshed first, as they point to the last day of each conversation
+	delete from tig_ma_conversations
+		where owner_id = @_ownerId and (@_buddyId is null or buddy_id = @_buddyId);
+
+	insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)
+		select d.owner_id, d.buddy_id, d.last_ts, (
+				select top 1 m.stable_id
+				from tig_ma_msgs m
+				where m.owner_id = d.owner_id and m.buddy_id = d.buddy_id and m.ts = d.last_ts
+				order by m.stable_id desc
+			)
+		from (
+			select owner_id, buddy_id, max(max_ts) as last_ts
+			from tig_ma_msgs_daily
+			where owner_id = @_ownerId and (@_buddyId is null or buddy_id = @_buddyId)
+			group by owner_id, buddy_id
+		) d;
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_RefreshDailySummary')
+	DROP PROCEDURE Tig_MA_RefreshDailySummary
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_RefreshDailySummary
+	@_ownerId bigint,
+	@_buddyId bigint,
+	@_from datetime,
+	@_to datetime
+AS
+begin
+	set nocount on;
+	-- summaries of all days within the range are recalculated from messages which are left
+	delete from tig_ma_msgs_daily
+		where
+			owner_id = @_ownerId
+			and (@_buddyId is null or buddy_id = @_buddyId)
+			and (@_from is null or ts_date >= cast(@_from as date))
+			and (@_to is null or ts_date <= cast(@_to as date));
+
+	insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+		select m.owner_id, m.buddy_id, cast(m.ts as date), count(1), min(m.ts), max(m.ts)
+		from tig_ma_msgs m
+		where
+			m.owner_id = @_ownerId
+			and (@_buddyId is null or m.buddy_id = @_buddyId)
+			and m.ts is not null
+			and (@_from is null or m.ts >= cast(@_from as date))
+			and (@_to is null or m.ts < dateadd(day, 1, cast(@_to as date)))
+		group by m.owner_id, m.buddy_id, cast(m.ts as date);
+
+	exec Tig_MA_RefreshConversations @_ownerId=@_ownerId, @_buddyId=@_buddyId;
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteExpiredDailySummary')
+	DROP PROCEDURE Tig_MA_DeleteExpiredDailySummary
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredDailySummary
+	@_domain nvarchar(1024),
+	@_before datetime
+AS
+begin
+	set nocount on;
+	-- summaries of whole days of expired messages are removed, summary of the last day is recalculated
+	delete d from tig_ma_msgs_daily d
+		inner join tig_ma_jids j on j.jid_id = d.owner_id
+		where j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain and d.ts_date <= cast(@_before as date);
+
+	insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+		select m.owner_id, m.buddy_id, cast(m.ts as date), count(1), min(m.ts), max(m.ts)
+		from tig_ma_jids j
+			inner join tig_ma_msgs m on m.owner_id = j.jid_id
+		where j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain
+			and m.ts >= cast(@_before as date) and m.ts < dateadd(day, 1, cast(@_before as date))
+		group by m.owner_id, m.buddy_id, cast(m.ts as date);
+
+	-- last message of a conversation is expired only if all messages of the conversation are expired
+	delete c from tig_ma_conversations c
+		inner join tig_ma_jids j on j.jid_id = c.owner_id
+		where j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain and c.last_ts < @_before;
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_AddMessageInTx')
+	DROP PROCEDURE Tig_MA_AddMessageInTx
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_AddMessageInTx
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_ts datetime,
+	@_stableId nvarchar(36),
+	@_stanzaId nvarchar(64),
+	@_refStableId nvarchar(36),
+	@_body nvarchar(max),
+	@_msg nvarchar(max)
+
+AS
+begin
+    set nocount on;
+	-- procedure does not manage transactions, it is always executed within transaction of a caller
+	exec Tig_MA_AddMessage @_ownerJid=@_ownerJid, @_buddyJid=@_buddyJid, @_ts=@_ts, @_stableId=@_stableId,
+		@_stanzaId=@_stanzaId, @_refStableId=@_refStableId, @_body=@_body, @_msg=@_msg;
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_EnsureJidId')
+	DROP PROCEDURE Tig_MA_EnsureJidId
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_EnsureJidId
+	@_jid nvarchar(2049)
+AS
+begin
+	set nocount on;
+	declare @_jid_id bigint;
+
+	exec Tig_MA_EnsureJid @_jid=@_jid, @_jid_id=@_jid_id output;
+
+	select @_jid_id as jid_id;
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_AddMessageByIds')
+	DROP PROCEDURE Tig_MA_AddMessageByIds
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_AddMessageByIds
+	@_ownerId bigint,
+	@_buddyId bigint,
+	@_ts datetime,
+	@_stableId nvarchar(36),
+	@_stanzaId nvarchar(64),
+	@_refStableId nvarchar(36),
+	@_body nvarchar(max),
+	@_msg nvarchar(max)
+
+AS
+begin
+    set nocount on;
+
+	insert into tig_ma_msgs (owner_id, stable_id, buddy_id, ts, stanza_id, is_ref, ref_stable_id, body, msg)
+		select @_ownerId, CONVERT(uniqueidentifier, @_stableId), @_buddyId, @_ts, @_stanzaId, case when @_refStableId is null then 0 else 1 end, CONVERT(uniqueidentifier, @_refStableId), @_body, @_msg
+		where not exists (
+			select 1 from tig_ma_msgs
+			    where owner_id = @_ownerId
+			        and stable_id = CONVERT(uniqueidentifier, @_stableId)
+		);
+	if @@ROWCOUNT > 0
+		begin
+		exec Tig_MA_AddToDailySummary @_ownerId=@_ownerId, @_buddyId=@_buddyId, @_ts=@_ts;
+		exec Tig_MA_UpdateConversation @_ownerId=@_ownerId, @_buddyId=@_buddyId, @_ts=@_ts, @_stableId=@_stableId;
+		end
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_EnsureTagId')
+	DROP PROCEDURE Tig_MA_EnsureTagId
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_EnsureTagId
+	@_ownerId bigint,
+	@_tag nvarchar(255)
+AS
+begin
+	set nocount on;
+	declare @_tag_id bigint;
+
+	select @_tag_id = tag_id from tig_ma_tags where owner_id = @_ownerId and tag = @_tag;
+	if @_tag_id is null
+		begin
+		insert into tig_ma_tags (owner_id, tag) select @_ownerId, @_tag where not exists(
+			select 1 from tig_ma_tags where owner_id = @_ownerId and tag = @_tag
+		)
+		select @_tag_id = SCOPE_IDENTITY();
+		if @_tag_id is null
+			begin
+			select @_tag_id = tag_id from tig_ma_tags where owner_id = @_ownerId and tag = @_tag;
+			end
+		end
+
+	select @_tag_id as tag_id;
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_AddTagsToMessageByIds')
+	DROP PROCEDURE Tig_MA_AddTagsToMessageByIds
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_AddTagsToMessageByIds
+	@_ownerId bigint,
+	@_stableId nvarchar(36),
+	@_tagIds nvarchar(max)
+AS
+begin
+	set nocount on;
+	-- @_tagIds is a comma separated list of numeric ids of tags, ids not belonging to the owner are ignored
+	declare @query_sql nvarchar(max);
+	set @query_sql = N'insert into tig_ma_msgs_tags (msg_owner_id, msg_stable_id, tag_id)
+		select t.owner_id, CONVERT(uniqueidentifier, @_stableId), t.tag_id
+		from tig_ma_tags t
+		where t.owner_id = @_ownerId and t.tag_id in (' + @_tagIds + N')
+			and not exists (
+				select 1 from tig_ma_msgs_tags mt where mt.msg_owner_id = @_ownerId and mt.msg_stable_id = CONVERT(uniqueidentifier, @_stableId) and mt.tag_id = t.tag_id
+			)';
+	execute sp_executesql @query_sql, N'@_ownerId bigint, @_stableId nvarchar(36)', @_ownerId=@_ownerId, @_stableId=@_stableId;
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs') AND NAME ='IX_tig_ma_msgs_owner_id_ts_stable_id_index')
+CREATE INDEX IX_tig_ma_msgs_owner_id_ts_stable_id_index ON [dbo].[tig_ma_msgs] ([owner_id], [ts], [stable_id]);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetMessagesByCursor')
+	DROP PROCEDURE [dbo].[Tig_MA_GetMessagesByCursor]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetMessagesByCursor]
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_afterTs datetime,
+	@_afterStableId nvarchar(36),
+	@_beforeTs datetime,
+	@_beforeStableId nvarchar(36),
+	@_reverse tinyint,
+	@_limit int
+AS
+begin
+	SET NOCOUNT ON;
+	declare
+		@_ownerId bigint,
+		@_afterId uniqueidentifier,
+		@_beforeId uniqueidentifier;
+
+	select @_ownerId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+	if @_afterTs is not null
+		set @_afterId = CONVERT(uniqueidentifier, @_afterStableId);
+	if @_beforeTs is not null
+		set @_beforeId = CONVERT(uniqueidentifier, @_beforeStableId);
+
+	if @_reverse = 1
+		begin
+		select top (@_limit) m.msg, m.ts, b.jid, convert(nvarchar(36),m.stable_id) as stable_id, convert(nvarchar(36),m.ref_stable_id) as ref_stable_id
+		from tig_ma_msgs m
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			m.owner_id = @_ownerId
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid)))
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)
+			and (@_afterTs is null or (m.ts >= @_afterTs and (m.ts > @_afterTs or m.stable_id > @_afterId)))
+			and (@_beforeTs is null or (m.ts <= @_beforeTs and (m.ts < @_beforeTs or m.stable_id < @_beforeId)))
+		order by m.ts desc, m.stable_id desc;
+		end
+	else
+		begin
+		select top (@_limit) m.msg, m.ts, b.jid, convert(nvarchar(36),m.stable_id) as stable_id, convert(nvarchar(36),m.ref_stable_id) as ref_stable_id
+		from tig_ma_msgs m
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			m.owner_id = @_ownerId
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid)))
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)
+			and (@_afterTs is null or (m.ts >= @_afterTs and (m.ts > @_afterTs or m.stable_id > @_afterId)))
+			and (@_beforeTs is null or (m.ts <= @_beforeTs and (m.ts < @_beforeTs or m.stable_id < @_beforeId)))
+		order by m.ts, m.stable_id;
+		end
+	SET NOCOUNT OFF;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetMessagesByIds')
+	DROP PROCEDURE [dbo].[Tig_MA_GetMessagesByIds]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetMessagesByIds]
+	@_ownerJid nvarchar(2049),
+	@_stableIds nvarchar(max)
+AS
+begin
+	SET NOCOUNT ON;
+	-- @_stableIds is a comma separated list of stable ids, it is validated as it is a part of the query
+	if @_stableIds like '%[^0-9a-fA-F,-]%'
+		begin
+		raiserror('Invalid list of stable ids', 16, 1);
+		return;
+		end
+	declare @query_sql nvarchar(max);
+	set @query_sql = N'select m.msg, m.ts, b.jid, convert(nvarchar(36),m.stable_id) as stable_id, convert(nvarchar(36),m.ref_stable_id) as ref_stable_id
+		from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_ownerJid))
+			and m.stable_id in (''' + REPLACE(@_stableIds, N',', N''',''') + N''')';
+	execute sp_executesql @query_sql, N'@_ownerJid nvarchar(2049)', @_ownerJid=@_ownerJid;
+	SET NOCOUNT OFF;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetBodyContainsQuery')
+	DROP PROCEDURE [dbo].[Tig_MA_GetBodyContainsQuery]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetBodyContainsQuery]
+	@_in_str nvarchar(max),
+	@_out_query nvarchar(max) OUTPUT
+AS
+begin
+	declare
+		@_contains nvarchar(max) = N'',
+		@_word nvarchar(max) = N'',
+		@_c nchar(1),
+		@_len int,
+		@_i int = 1,
+		-- 0 - after a wildcard, 1 - reading a word following whitespace, 2 - after any other character
+		@_state int = 0;
+
+	if @_in_str is null
+		begin
+		set @_out_query = N'';
+		return;
+		end
+
+	set @_out_query = N' and m.body like ' + replace(@_in_str, N''',''', N''' and m.body like ''');
+	-- full-text index has to be created manually, if it exists it is used to find messages containing words
+	-- of searched terms and the condition above only checks if found messages contain whole terms
+	if exists (select 1 from sys.fulltext_indexes where object_id = object_id('dbo.tig_ma_msgs'))
+		begin
+		set @_len = len(@_in_str);
+		while @_i <= @_len + 1
+			begin
+			set @_c = case when @_i <= @_len then substring(@_in_str, @_i, 1) else N' ' end;
+			-- text following a wildcard may be a part of a longer word of the message (ie. 'ail' in 'failed'),
+			-- so only words following whitespace are matched as prefixes of words of the message and if there
+			-- are none (ie. single word or text without spaces), messages are checked only by the LIKE condition;
+			-- quotes and wildcards of the list of terms and characters with special meaning separate words
+			if @_state = 1 and charindex(@_c, N' ''%,"*()[]&|!~.?;:') = 0
+				set @_word = @_word + @_c;
+			else
+				begin
+				if len(@_word) > 0
+					begin
+					if len(@_contains) > 0
+						set @_contains = @_contains + N' AND ';
+					set @_contains = @_contains + N'"' + @_word + N'*"';
+					end
+				set @_word = N'';
+				set @_state = case when @_c = N'%' then 0 when @_c = N' ' then 1 else 2 end;
+				end
+			set @_i = @_i + 1;
+			end
+		if len(@_contains) > 0
+			set @_out_query = N' and contains(m.body, N''' + @_contains + N''')' + @_out_query;
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteExpiredMessagesChunk')
+	DROP PROCEDURE Tig_MA_DeleteExpiredMessagesChunk
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredMessagesChunk
+	@_domain nvarchar(1024),
+	@_before datetime,
+	@_limit int
+AS
+begin
+	set nocount on;
+	-- jids which are no longer used are removed by Tig_MA_DeleteUnusedJids
+	declare @_deleted int;
+	delete top (@_limit) from tig_ma_msgs where ts < @_before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and [domain_sha1] = HASHBYTES('SHA1', @_domain) and [domain] = @_domain);
+	set @_deleted = @@ROWCOUNT;
+	if @_deleted < @_limit
+		exec Tig_MA_DeleteExpiredDailySummary @_domain=@_domain, @_before=@_before;
+	select @_deleted;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetExpiredMessagesCount')
+	DROP PROCEDURE Tig_MA_GetExpiredMessagesCount
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_GetExpiredMessagesCount
+	@_domain nvarchar(1024),
+	@_before datetime
+AS
+begin
+	set nocount on;
+	select count(1)
+		from tig_ma_msgs m
+			inner join tig_ma_jids j on j.jid_id = m.owner_id
+		where m.ts < @_before and j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS (SELECT * FROM sys.objects WHERE object_id = OBJECT_ID(N'[dbo].[tig_ma_user_retention]') AND type in (N'U'))
+	CREATE TABLE [dbo].[tig_ma_user_retention] (
+		[jid_sha1] [varbinary](20) NOT NULL,
+		[jid] [nvarchar](2049) NOT NULL,
+		[domain] [nvarchar](1024) NOT NULL,
+		[domain_sha1] [varbinary](20) NOT NULL,
+		[retention_days] [int] NOT NULL,
+		CONSTRAINT [PK_tig_ma_user_retention] PRIMARY KEY CLUSTERED ( [jid_sha1] ASC )
+	);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_user_retention') AND NAME ='IX_tig_ma_user_retention_domain_sha1_retention_days')
+	CREATE INDEX IX_tig_ma_user_retention_domain_sha1_retention_days ON [dbo].[tig_ma_user_retention](domain_sha1, retention_days);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_SetUserRetention')
+	DROP PROCEDURE Tig_MA_SetUserRetention
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_SetUserRetention
+	@_ownerJid nvarchar(2049),
+	@_retentionDays int
+AS
+begin
+	set nocount on;
+	declare @_jid nvarchar(2049) = LOWER(@_ownerJid);
+	declare @_domain nvarchar(1024) = SUBSTRING(@_jid, CHARINDEX(N'@', @_jid) + 1, LEN(@_jid));
+
+	if @_retentionDays is null
+		delete from tig_ma_user_retention where jid_sha1 = HASHBYTES('SHA1', @_jid);
+	else
+		begin
+		update tig_ma_user_retention set retention_days = @_retentionDays where jid_sha1 = HASHBYTES('SHA1', @_jid);
+		if @@ROWCOUNT = 0
+			insert into tig_ma_user_retention (jid_sha1, jid, [domain], domain_sha1, retention_days)
+				values (HASHBYTES('SHA1', @_jid), @_jid, @_domain, HASHBYTES('SHA1', @_domain), @_retentionDays);
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetUserRetentionPeriods')
+	DROP PROCEDURE Tig_MA_GetUserRetentionPeriods
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_GetUserRetentionPeriods
+	@_domain nvarchar(1024)
+AS
+begin
+	set nocount on;
+	select distinct retention_days from tig_ma_user_retention where domain_sha1 = HASHBYTES('SHA1', LOWER(@_domain));
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteExpiredUserMessages')
+	DROP PROCEDURE Tig_MA_DeleteExpiredUserMessages
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredUserMessages
+	@_domain nvarchar(1024),
+	@_retentionDays int,
+	@_before datetime
+AS
+begin
+	-- removes messages of all users of the domain sharing the same retention period,
+	-- is_ref condition allows to use (owner_id, is_ref, ts) index for each of the owners
+	delete m from tig_ma_msgs m
+		inner join tig_ma_jids o on o.jid_id = m.owner_id
+		inner join tig_ma_user_retention r on r.jid_sha1 = o.jid_sha1
+		where r.domain_sha1 = HASHBYTES('SHA1', LOWER(@_domain)) and r.retention_days = @_retentionDays
+			and m.is_ref in (0, 1) and m.ts < @_before;
+
+	delete d from tig_ma_msgs_daily d
+		inner join tig_ma_jids o on o.jid_id = d.owner_id
+		inner join tig_ma_user_retention r on r.jid_sha1 = o.jid_sha1
+		where r.domain_sha1 = HASHBYTES('SHA1', LOWER(@_domain)) and r.retention_days = @_retentionDays
+			and d.ts_date <= cast(@_before as date);
+
+	insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+		select m.owner_id, m.buddy_id, cast(m.ts as date), count(1), min(m.ts), max(m.ts)
+		from tig_ma_user_retention r
+			inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1
+			inner join tig_ma_msgs m on m.owner_id = o.jid_id
+		where r.domain_sha1 = HASHBYTES('SHA1', LOWER(@_domain)) and r.retention_days = @_retentionDays
+			and m.ts >= cast(@_before as date) and m.ts < dateadd(day, 1, cast(@_before as date))
+		group by m.owner_id, m.buddy_id, cast(m.ts as date);
+
+	delete c from tig_ma_conversations c
+		inner join tig_ma_jids o on o.jid_id = c.owner_id
+		inner join tig_ma_user_retention r on r.jid_sha1 = o.jid_sha1
+		where r.domain_sha1 = HASHBYTES('SHA1', LOWER(@_domain)) and r.retention_days = @_retentionDays
+			and c.last_ts < @_before;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteExpiredUserMessagesChunk')
+	DROP PROCEDURE Tig_MA_DeleteExpiredUserMessagesChunk
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredUserMessagesChunk
+	@_domain nvarchar(1024),
+	@_retentionDays int,
+	@_before datetime,
+	@_limit int
+AS
+begin
+	set nocount on;
+	declare @_deleted int;
+	delete top (@_limit) m from tig_ma_msgs m
+		inner join tig_ma_jids o on o.jid_id = m.owner_id
+		inner join tig_ma_user_retention r on r.jid_sha1 = o.jid_sha1
+		where r.domain_sha1 = HASHBYTES('SHA1', LOWER(@_domain)) and r.retention_days = @_retentionDays
+			and m.is_ref in (0, 1) and m.ts < @_before;
+	set @_deleted = @@ROWCOUNT;
+	-- summaries are updated once all expired messages are removed
+	if @_deleted < @_limit
+		exec Tig_MA_DeleteExpiredUserMessages @_domain=@_domain, @_retentionDays=@_retentionDays, @_before=@_before;
+	select @_deleted;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_RemoveMessages')
+	DROP PROCEDURE Tig_MA_RemoveMessages
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_RemoveMessages
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime
+AS
+begin
+	declare @_owner_id bigint;
+	declare @_buddy_id bigint;
+	set @_owner_id = 0;
+	set @_buddy_id = 0;
+	select @_owner_id = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+	if @_buddyJid is not null
+		select @_buddy_id = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid));
+
+	delete from tig_ma_msgs where owner_id = @_owner_id and (@_buddyJid is null or buddy_id = @_buddy_id) and (@_from is null or ts >= @_from) and (@_to is null or ts <= @_to);
+
+	if @_buddyJid is null
+		exec Tig_MA_RefreshDailySummary @_ownerId=@_owner_id, @_buddyId=null, @_from=@_from, @_to=@_to;
+	else
+		exec Tig_MA_RefreshDailySummary @_ownerId=@_owner_id, @_buddyId=@_buddy_id, @_from=@_from, @_to=@_to;
+
+	-- only owner and buddy are checked here, other jids which are no longer used are removed by Tig_MA_DeleteUnusedJids
+	delete from tig_ma_jids
+		where
+			jid_id in (@_owner_id, @_buddy_id)
+			and not exists (
+				select 1 from tig_ma_msgs m where m.owner_id = tig_ma_jids.jid_id
+			)
+			and not exists (
+				select 1 from tig_ma_msgs m where m.buddy_id = tig_ma_jids.jid_id
+			);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteExpiredMessages')
+	DROP PROCEDURE Tig_MA_DeleteExpiredMessages
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredMessages
+	@_domain nvarchar(1024),
+	@_before datetime
+AS
+begin
+	-- jids which are no longer used are removed by Tig_MA_DeleteUnusedJids
+	delete from tig_ma_msgs where ts < @_before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and [domain_sha1] = HASHBYTES('SHA1', @_domain) and [domain] = @_domain);
+	exec Tig_MA_DeleteExpiredDailySummary @_domain=@_domain, @_before=@_before;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs') AND NAME ='IX_tig_ma_msgs_buddy_id_index')
+CREATE INDEX IX_tig_ma_msgs_buddy_id_index ON [dbo].[tig_ma_msgs] ([buddy_id]);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteUnusedJids')
+	DROP PROCEDURE Tig_MA_DeleteUnusedJids
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteUnusedJids
+	@_afterId bigint,
+	@_limit int
+AS
+begin
+	set nocount on;
+	declare @_lastId bigint;
+	declare @_removed int = 0;
+
+	-- checks next range of jids only, so the whole table is not scanned at once
+	select @_lastId = max(r.jid_id) from (
+		select top (@_limit) j.jid_id from tig_ma_jids j where j.jid_id > @_afterId order by j.jid_id
+	) r;
+
+	if @_lastId is not null
+		begin
+		delete from tig_ma_jids
+			where
+				jid_id > @_afterId and jid_id <= @_lastId
+				and not exists (
+					select 1 from tig_ma_msgs m where m.owner_id = tig_ma_jids.jid_id
+				)
+				and not exists (
+					select 1 from tig_ma_msgs m where m.buddy_id = tig_ma_jids.jid_id
+				);
+		set @_removed = @@ROWCOUNT;
+		end
+
+	select @_lastId as last_id, @_removed as removed;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS (SELECT * FROM sys.objects WHERE object_id = OBJECT_ID(N'[dbo].[tig_ma_pending_removals]') AND type in (N'U'))
+	CREATE TABLE [dbo].[tig_ma_pending_removals] (
+		[jid_sha1] [varbinary](20) NOT NULL,
+		[jid] [nvarchar](2049) NOT NULL,
+		[removed_at] [datetime] NOT NULL,
+		CONSTRAINT [PK_tig_ma_pending_removals] PRIMARY KEY CLUSTERED ( [jid_sha1] ASC )
+	);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_AddPendingRemoval')
+	DROP PROCEDURE Tig_MA_AddPendingRemoval
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_AddPendingRemoval
+	@_ownerJid nvarchar(2049),
+	@_removedAt datetime
+AS
+begin
+	set nocount on;
+	update tig_ma_pending_removals set removed_at = @_removedAt where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+	if @@ROWCOUNT = 0
+		insert into tig_ma_pending_removals (jid_sha1, jid, removed_at)
+			values (HASHBYTES('SHA1', LOWER(@_ownerJid)), @_ownerJid, @_removedAt);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetPendingRemovals')
+	DROP PROCEDURE Tig_MA_GetPendingRemovals
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_GetPendingRemovals
+AS
+begin
+	set nocount on;
+	select jid from tig_ma_pending_removals;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteRemovedUserMessages')
+	DROP PROCEDURE Tig_MA_DeleteRemovedUserMessages
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteRemovedUserMessages
+	@_ownerJid nvarchar(2049),
+	@_limit int
+AS
+begin
+	set nocount on;
+	declare @_ownerId bigint;
+	declare @_removedAt datetime;
+	declare @_removed int = 0;
+
+	select @_removedAt = removed_at from tig_ma_pending_removals where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+	select @_ownerId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+
+	if @_ownerId is not null and @_removedAt is not null
+		begin
+		-- messages stored after the user was removed belong to a new account with the same jid
+		delete top (@_limit) from tig_ma_msgs where owner_id = @_ownerId and ts <= @_removedAt;
+		set @_removed = @@ROWCOUNT;
+		end
+
+	if @_removed < @_limit
+		begin
+		if @_ownerId is not null and @_removedAt is not null
+			begin
+			-- no messages are left before the day of removal, so only summary of that day is recalculated
+			delete from tig_ma_msgs_daily where owner_id = @_ownerId and ts_date < cast(@_removedAt as date);
+			exec Tig_MA_RefreshDailySummary @_ownerId=@_ownerId, @_buddyId=null, @_from=@_removedAt, @_to=@_removedAt;
+			end
+		delete from tig_ma_jids
+			where
+				jid_id = @_ownerId
+				and not exists (
+					select 1 from tig_ma_msgs m where m.owner_id = tig_ma_jids.jid_id
+				)
+				and not exists (
+					select 1 from tig_ma_msgs m where m.buddy_id = tig_ma_jids.jid_id
+				);
+		delete from tig_ma_user_retention where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+		delete from tig_ma_pending_removals where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+		end
+
+	select @_removed as removed;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_AddMessage')
+	DROP PROCEDURE Tig_MA_AddMessage
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_AddMessage
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_ts datetime,
+	@_stableId nvarchar(36),
+	@_stanzaId nvarchar(64),
+	@_refStableId nvarchar(36),
+	@_body nvarchar(max),
+	@_msg nvarchar(max)
+
+AS
+begin
+    set nocount on;
+
+	declare @_owner_id bigint;
+	declare @_buddy_id bigint;
+
+	exec Tig_MA_EnsureJid @_jid=@_ownerJid, @_jid_id=@_owner_id output;
+	exec Tig_MA_EnsureJid @_jid=@_buddyJid, @_jid_id=@_buddy_id output;
+
+	insert into tig_ma_msgs (owner_id, stable_id, buddy_id, ts, stanza_id, is_ref, ref_stable_id, body, msg)
+		select @_owner_id, CONVERT(uniqueidentifier, @_stableId), @_buddy_id, @_ts, @_stanzaId, case when @_refStableId is null then 0 else 1 end, CONVERT(uniqueidentifier, @_refStableId), @_body, @_msg
+		where not exists (
+			select 1 from tig_ma_msgs
+			    where owner_id = @_owner_id
+			        and stable_id = CONVERT(uniqueidentifier, @_stableId)
+		);
+	if @@ROWCOUNT > 0
+		begin
+		exec Tig_MA_AddToDailySummary @_ownerId=@_owner_id, @_buddyId=@_buddy_id, @_ts=@_ts;
+		exec Tig_MA_UpdateConversation @_ownerId=@_owner_id, @_buddyId=@_buddy_id, @_ts=@_ts, @_stableId=@_stableId;
+		end
+	set nocount off;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetMessagesCount')
+	DROP PROCEDURE [dbo].[Tig_MA_GetMessagesCount]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetMessagesCount]
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_refType tinyint,
+	@_tags nvarchar(max),
+	@_contains nvarchar(max)
+AS
+begin
+	declare
+		@params_def nvarchar(max),
+		@tags_query nvarchar(max),
+		@contains_query nvarchar(max),
+		@msgs_query nvarchar(max),
+		@query_sql nvarchar(max),
+		@_ownerId bigint,
+		@_buddyId bigint;
+
+	if @_tags is not null or @_contains is not null
+		begin
+		set @params_def = N'@_ownerJid nvarchar(2049), @_buddyJid nvarchar(2049), @_from datetime, @_to datetime';
+		exec Tig_MA_GetHasTagsQuery @_in_str = @_tags, @_out_query = @tags_query output;
+		exec Tig_MA_GetBodyContainsQuery @_in_str = @_contains, @_out_query = @contains_query output;
+		set @msgs_query = N'select count(1)
+		from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_ownerJid))
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_buddyJid)))
+			and (m.is_ref = 0 or m.is_ref = 1)
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)';
+		set @query_sql = @msgs_query + @tags_query + @contains_query;
+		execute sp_executesql @query_sql, @params_def, @_ownerJid=@_ownerJid, @_buddyJid=@_buddyJid, @_from=@_from, @_to=@_to
+		end
+	else
+		begin
+		if @_refType = 1
+		    begin
+		        select @_ownerId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+		        if @_buddyJid is not null
+		            select @_buddyId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid));
+
+		        -- whole days are counted using summaries, only messages of the first and the last day are counted
+		        select (
+		            select coalesce(sum(d.msgs_count), 0)
+		            from tig_ma_msgs_daily d
+		            where
+		                d.owner_id = @_ownerId
+		                and (@_buddyJid is null or d.buddy_id = @_buddyId)
+		                and (@_from is null or d.ts_date > cast(@_from as date))
+		                and (@_to is null or d.ts_date < cast(@_to as date))
+		        ) + (
+		            select count(1)
+		            from tig_ma_msgs m
+		            where
+		                @_from is not null
+		                and m.owner_id = @_ownerId
+		                and (@_buddyJid is null or m.buddy_id = @_buddyId)
+		                and m.ts >= @_from and m.ts < dateadd(day, 1, cast(@_from as date))
+		                and (@_to is null or m.ts <= @_to)
+		        ) + (
+		            select count(1)
+		            from tig_ma_msgs m
+		            where
+		                @_to is not null
+		                and m.owner_id = @_ownerId
+		                and (@_buddyJid is null or m.buddy_id = @_buddyId)
+		                and m.ts >= cast(@_to as date) and m.ts <= @_to
+		                and (@_from is null or m.ts >= dateadd(day, 1, cast(@_from as date)))
+		        )
+		    end
+		else
+		    begin
+		        select count(1)
+		        from tig_ma_msgs m
+			        inner join tig_ma_jids o on m.owner_id = o.jid_id
+			        inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		        where
+			        o.jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid))
+			        and (@_buddyJid is null or b.jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid)))
+			        and (m.is_ref = 0)
+			        and (@_from is null or m.ts >= @_from)
+			        and (@_to is null or m.ts <= @_to)
+			end
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetCollections')
+	DROP PROCEDURE [dbo].[Tig_MA_GetCollections]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetCollections]
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_tags nvarchar(max),
+	@_contains nvarchar(max),
+	@_limit int,
+	@_offset int
+AS
+begin
+	declare
+		@params_def nvarchar(max),
+		@tags_query nvarchar(max),
+		@contains_query nvarchar(max),
+		@groupby_query nvarchar(max),
+		@msgs_query nvarchar(max),
+		@query_sql nvarchar(max),
+		@_ownerId bigint,
+		@_buddyId bigint;
+
+	if @_tags is not null or @_contains is not null
+		begin
+		set @params_def = N'@_ownerJid nvarchar(2049), @_buddyJid nvarchar(2049), @_from datetime, @_to datetime, @_limit int, @_offset int';
+		exec Tig_MA_GetHasTagsQuery @_in_str = @_tags, @_out_query = @tags_query output;
+		exec Tig_MA_GetBodyContainsQuery @_in_str = @_contains, @_out_query = @contains_query output;
+		set @msgs_query = N'select min(m.ts) as ts, b.jid, ROW_NUMBER() over (order by min(m.ts), b.jid) as row_num';
+
+		set @msgs_query = @msgs_query + N' from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_ownerJid))
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_buddyJid)))
+			and (m.is_ref = 0 or m.is_ref = 1)
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)';
+		set @groupby_query = N' group by cast(m.ts as date), m.buddy_id, b.jid';
+
+		set @query_sql = N';with results_cte as (' + @msgs_query + @tags_query + @contains_query + @groupby_query + N') select * from results_cte where row_num >= @_offset + 1 and row_num < @_offset + 1 + @_limit order by row_num'
+		execute sp_executesql @query_sql, @params_def, @_ownerJid=@_ownerJid, @_buddyJid=@_buddyJid, @_from=@_from, @_to=@_to, @_limit=@_limit, @_offset=@_offset
+		end
+	else
+		begin
+			select @_ownerId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+			if @_buddyJid is not null
+				select @_buddyId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid));
+
+			-- collection is a conversation with a buddy during a day, so whole days are read from summaries
+			;with collections_cte as (
+			select d.min_ts as ts, d.buddy_id
+			from tig_ma_msgs_daily d
+			where
+				d.owner_id = @_ownerId
+				and (@_buddyJid is null or d.buddy_id = @_buddyId)
+				and (@_from is null or d.ts_date > cast(@_from as date))
+				and (@_to is null or d.ts_date < cast(@_to as date))
+			union all
+			select min(m.ts), m.buddy_id
+			from tig_ma_msgs m
+			where
+				@_from is not null
+				and m.owner_id = @_ownerId
+				and (@_buddyJid is null or m.buddy_id = @_buddyId)
+				and m.ts >= @_from and m.ts < dateadd(day, 1, cast(@_from as date))
+				and (@_to is null or m.ts <= @_to)
+			group by m.buddy_id
+			union all
+			select min(m.ts), m.buddy_id
+			from tig_ma_msgs m
+			where
+				@_to is not null
+				and m.owner_id = @_ownerId
+				and (@_buddyJid is null or m.buddy_id = @_buddyId)
+				and m.ts >= cast(@_to as date) and m.ts <= @_to
+				and (@_from is null or m.ts >= dateadd(day, 1, cast(@_from as date)))
+			group by m.buddy_id
+			), results_cte as (
+			select c.ts, b.jid, row_number() over (order by c.ts, b.jid) as row_num
+			from collections_cte c
+				inner join tig_ma_jids b on b.jid_id = c.buddy_id
+			)
+			select * from results_cte where row_num >= @_offset + 1 and row_num < @_offset + 1 + @_limit order by row_num;
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetCollectionsCount')
+	DROP PROCEDURE [dbo].[Tig_MA_GetCollectionsCount]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetCollectionsCount]
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_tags nvarchar(max),
+	@_contains nvarchar(max)
+AS
+begin
+	declare
+		@params_def nvarchar(max),
+		@tags_query nvarchar(max),
+		@contains_query nvarchar(max),
+		@groupby_query nvarchar(max),
+		@msgs_query nvarchar(max),
+		@query_sql nvarchar(max),
+		@_ownerId bigint,
+		@_buddyId bigint;
+
+	if @_tags is not null or @_contains is not null
+		begin
+		set @params_def = N'@_ownerJid nvarchar(2049), @_buddyJid nvarchar(2049), @_from datetime, @_to datetime';
+		exec Tig_MA_GetHasTagsQuery @_in_str = @_tags, @_out_query = @tags_query output;
+		exec Tig_MA_GetBodyContainsQuery @_in_str = @_contains, @_out_query = @contains_query output;
+		set @msgs_query = N'select min(m.ts) as ts, b.jid';
+
+		set @msgs_query = @msgs_query + N' from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_ownerJid))
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_buddyJid)))
+			and (m.is_ref = 0 or m.is_ref = 1)
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)';
+		set @groupby_query = N' group by cast(m.ts as date), m.buddy_id, b.jid';
+
+		set @query_sql = N';with results_cte as (' + @msgs_query + @tags_query + @contains_query + @groupby_query + N') select count(1) from results_cte'
+		execute sp_executesql @query_sql, @params_def, @_ownerJid=@_ownerJid, @_buddyJid=@_buddyJid, @_from=@_from, @_to=@_to
+		end
+	else
+		begin
+			select @_ownerId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+			if @_buddyJid is not null
+				select @_buddyId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid));
+
+			select (
+				select count(1)
+				from tig_ma_msgs_daily d
+				where
+					d.owner_id = @_ownerId
+					and (@_buddyJid is null or d.buddy_id = @_buddyId)
+					and (@_from is null or d.ts_date > cast(@_from as date))
+					and (@_to is null or d.ts_date < cast(@_to as date))
+			) + (
+				select count(distinct m.buddy_id)
+				from tig_ma_msgs m
+				where
+					@_from is not null
+					and m.owner_id = @_ownerId
+					and (@_buddyJid is null or m.buddy_id = @_buddyId)
+					and m.ts >= @_from and m.ts < dateadd(day, 1, cast(@_from as date))
+					and (@_to is null or m.ts <= @_to)
+			) + (
+				select count(distinct m.buddy_id)
+				from tig_ma_msgs m
+				where
+					@_to is not null
+					and m.owner_id = @_ownerId
+					and (@_buddyJid is null or m.buddy_id = @_buddyId)
+					and m.ts >= cast(@_to as date) and m.ts <= @_to
+					and (@_from is null or m.ts >= dateadd(day, 1, cast(@_from as date)))
+			);
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetCollectionsByCursor')
+	DROP PROCEDURE [dbo].[Tig_MA_GetCollectionsByCursor]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetCollectionsByCursor]
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_afterTs datetime,
+	@_afterBuddyId bigint,
+	@_beforeTs datetime,
+	@_beforeBuddyId bigint,
+	@_reverse tinyint,
+	@_limit int
+AS
+begin
+	SET NOCOUNT ON;
+	declare
+		@_ownerId bigint,
+		@_buddyId bigint;
+
+	select @_ownerId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+	if @_buddyJid is not null
+		select @_buddyId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid));
+
+	-- collections are ordered by (ts, buddy_id) so that a page may be continued from the last returned collection
+	if @_reverse = 1
+		begin
+		;with collections_cte as (
+		select * from (
+			select top (@_limit) d.min_ts as ts, d.buddy_id
+			from tig_ma_msgs_daily d
+			where
+				d.owner_id = @_ownerId
+				and (@_buddyJid is null or d.buddy_id = @_buddyId)
+				and (@_from is null or d.min_ts >= dateadd(day, 1, cast(@_from as date)))
+				and (@_to is null or d.min_ts < cast(@_to as date))
+				and (@_afterTs is null or (d.min_ts >= @_afterTs and (d.min_ts > @_afterTs or d.buddy_id > @_afterBuddyId)))
+				and (@_beforeTs is null or (d.min_ts <= @_beforeTs and (d.min_ts < @_beforeTs or d.buddy_id < @_beforeBuddyId)))
+			order by d.min_ts desc, d.buddy_id desc
+		) x
+		union all
+		select min(m.ts), m.buddy_id
+		from tig_ma_msgs m
+		where
+			@_from is not null
+			and m.owner_id = @_ownerId
+			and (@_buddyJid is null or m.buddy_id = @_buddyId)
+			and m.ts >= @_from and m.ts < dateadd(day, 1, cast(@_from as date))
+			and (@_to is null or m.ts <= @_to)
+		group by m.buddy_id
+		having
+			(@_afterTs is null or min(m.ts) > @_afterTs or (min(m.ts) = @_afterTs and m.buddy_id > @_afterBuddyId))
+			and (@_beforeTs is null or min(m.ts) < @_beforeTs or (min(m.ts) = @_beforeTs and m.buddy_id < @_beforeBuddyId))
+		union all
+		select min(m.ts), m.buddy_id
+		from tig_ma_msgs m
+		where
+			@_to is not null
+			and m.owner_id = @_ownerId
+			and (@_buddyJid is null or m.buddy_id = @_buddyId)
+			and m.ts >= cast(@_to as date) and m.ts <= @_to
+			and (@_from is null or m.ts >= dateadd(day, 1, cast(@_from as date)))
+		group by m.buddy_id
+		having
+			(@_afterTs is null or min(m.ts) > @_afterTs or (min(m.ts) = @_afterTs and m.buddy_id > @_afterBuddyId))
+			and (@_beforeTs is null or min(m.ts) < @_beforeTs or (min(m.ts) = @_beforeTs and m.buddy_id < @_beforeBuddyId))
+		)
+		select top (@_limit) c.ts, b.jid, c.buddy_id
+		from collections_cte c
+			inner join tig_ma_jids b on b.jid_id = c.buddy_id
+		order by c.ts desc, c.buddy_id desc;
+		end
+	else
+		begin
+		;with collections_cte as (
+		select * from (
+			select top (@_limit) d.min_ts as ts, d.buddy_id
+			from tig_ma_msgs_daily d
+			where
+				d.owner_id = @_ownerId
+				and (@_buddyJid is null or d.buddy_id = @_buddyId)
+				and (@_from is null or d.min_ts >= dateadd(day, 1, cast(@_from as date)))
+				and (@_to is null or d.min_ts < cast(@_to as date))
+				and (@_afterTs is null or (d.min_ts >= @_afterTs and (d.min_ts > @_afterTs or d.buddy_id > @_afterBuddyId)))
+				and (@_beforeTs is null or (d.min_ts <= @_beforeTs and (d.min_ts < @_beforeTs or d.buddy_id < @_beforeBuddyId)))
+			order by d.min_ts, d.buddy_id
+		) x
+		union all
+		select min(m.ts), m.buddy_id
+		from tig_ma_msgs m
+		where
+			@_from is not null
+			and m.owner_id = @_ownerId
+			and (@_buddyJid is null or m.buddy_id = @_buddyId)
+			and m.ts >= @_from and m.ts < dateadd(day, 1, cast(@_from as date))
+			and (@_to is null or m.ts <= @_to)
+		group by m.buddy_id
+		having
+			(@_afterTs is null or min(m.ts) > @_afterTs or (min(m.ts) = @_afterTs and m.buddy_id > @_afterBuddyId))
+			and (@_beforeTs is null or min(m.ts) < @_beforeTs or (min(m.ts) = @_beforeTs and m.buddy_id < @_beforeBuddyId))
+		union all
+		select min(m.ts), m.buddy_id
+		from tig_ma_msgs m
+		where
+			@_to is not null
+			and m.owner_id = @_ownerId
+			and (@_buddyJid is null or m.buddy_id = @_buddyId)
+			and m.ts >= cast(@_to as date) and m.ts <= @_to
+			and (@_from is null or m.ts >= dateadd(day, 1, cast(@_from as date)))
+		group by m.buddy_id
+		having
+			(@_afterTs is null or min(m.ts) > @_afterTs or (min(m.ts) = @_afterTs and m.buddy_id > @_afterBuddyId))
+			and (@_beforeTs is null or min(m.ts) < @_beforeTs or (min(m.ts) = @_beforeTs and m.buddy_id < @_beforeBuddyId))
+		)
+		select top (@_limit) c.ts, b.jid, c.buddy_id
+		from collections_cte c
+			inner join tig_ma_jids b on b.jid_id = c.buddy_id
+		order by c.ts, c.buddy_id;
+		end
+	SET NOCOUNT OFF;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+-- summaries of already archived messages
+IF NOT EXISTS (SELECT 1 FROM [dbo].[tig_ma_msgs_daily])
+	insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)
+		select owner_id, buddy_id, cast(ts as date), count(1), min(ts), max(ts)
+		from tig_ma_msgs
+		where ts is not null
+		group by owner_id, buddy_id, cast(ts as date);
+-- QUERY END:
+GO
+
+-- QUERY START:
+-- last messages of conversations, found using summaries
+IF NOT EXISTS (SELECT 1 FROM [dbo].[tig_ma_conversations])
+	insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)
+		select d.owner_id, d.buddy_id, d.last_ts, (
+				select top 1 m.stable_id
+				from tig_ma_msgs m
+				where m.owner_id = d.owner_id and m.buddy_id = d.buddy_id and m.ts = d.last_ts
+				order by m.stable_id desc
+			)
+		from (
+			select owner_id, buddy_id, max(max_ts) as last_ts
+			from tig_ma_msgs_daily
+			group by owner_id, buddy_id
+		) d;
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetRecentConversations')
+	DROP PROCEDURE [dbo].[Tig_MA_GetRecentConversations]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetRecentConversations]
+	@_ownerJid nvarchar(2049),
+	@_beforeTs datetime,
+	@_beforeStableId nvarchar(36),
+	@_limit int
+AS
+begin
+	SET NOCOUNT ON;
+	declare
+		@_ownerId bigint,
+		@_beforeId uniqueidentifier;
+
+	select @_ownerId = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+	if @_beforeTs is not null
+		set @_beforeId = CONVERT(uniqueidentifier, @_beforeStableId);
+
+	-- last message of each conversation, starting from the most recent one
+	select top (@_limit) m.msg, m.ts, b.jid, convert(nvarchar(36),m.stable_id) as stable_id, convert(nvarchar(36),m.ref_stable_id) as ref_stable_id
+	from tig_ma_conversations c
+		inner join tig_ma_msgs m on m.owner_id = c.owner_id and m.stable_id = c.last_stable_id
+		inner join tig_ma_jids b on b.jid_id = c.buddy_id
+	where
+		c.owner_id = @_ownerId
+		and (@_beforeTs is null or (c.last_ts <= @_beforeTs and (c.last_ts < @_beforeTs or c.last_stable_id < @_beforeId)))
+	order by c.last_ts desc, c.last_stable_id desc;
+	SET NOCOUNT OFF;
+end
+-- QUERY END:
+GO
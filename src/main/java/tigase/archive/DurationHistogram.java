@@ -0,0 +1,82 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations of executions grouped in buckets with fixed upper bounds.
+ */
+public class DurationHistogram {
+
+	private static final long[] BUCKET_LIMITS = {100, 1000, 10 * 1000, 60 * 1000, 10 * 60 * 1000};
+	private static final String[] BUCKET_NAMES = {"<100ms", "<1s", "<10s", "<1m", "<10m", ">=10m"};
+
+	private final LongAdder[] buckets = new LongAdder[BUCKET_NAMES.length];
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+	private final LongAdder total = new LongAdder();
+
+	public DurationHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long millis) {
+		int i = 0;
+		while (i < BUCKET_LIMITS.length && millis >= BUCKET_LIMITS[i]) {
+			i++;
+		}
+		buckets[i].increment();
+		total.add(millis);
+		max.accumulate(millis);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	public long getCount(int bucket) {
+		return buckets[bucket].sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getTotal() {
+		return total.sum();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < buckets.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(BUCKET_NAMES[i]).append('=').append(buckets[i].sum());
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive;
+
+import tigase.server.Packet;
+import tigase.xmpp.jid.JID;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Registry of message archiving components running in this JVM, which allows session manager to pass messages for
+ * archiving directly to the queue of the component instead of routing them.
+ * <p>
+ * Component registers a receiver which accepts a packet without blocking and returns <code>false</code> if the packet
+ * could not be accepted (ie. queue is full). In such case or if there is no component with requested JID running
+ * locally, packet has to be routed as usual.
+ * </p>
+ */
+public class LocalArchivingHandoff {
+
+	private static final Map<JID, Predicate<Packet>> receivers = new ConcurrentHashMap<>();
+
+	public static void register(JID componentJid, Predicate<Packet> receiver) {
+		receivers.put(componentJid, receiver);
+	}
+
+	public static void unregister(JID componentJid, Predicate<Packet> receiver) {
+		receivers.remove(componentJid, receiver);
+	}
+
+	/**
+	 * Passes packet to the component with the JID if it is running in this JVM.
+	 *
+	 * @return true if the packet was accepted by the component and must not be routed
+	 */
+	public static boolean offer(JID componentJid, Packet packet) {
+		Predicate<Packet> receiver = receivers.get(componentJid);
+		return receiver != null && receiver.test(packet);
+	}
+
+	private LocalArchivingHandoff() {
+	}
+}
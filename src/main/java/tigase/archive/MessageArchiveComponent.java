@@ -20,6 +20,9 @@ package tigase.archive;
 //~--- non-JDK imports --------------------------------------------------------
 
 import tigase.archive.db.MessageArchiveRepository;
+import tigase.archive.db.MessageArchiveRepositoryPool;
+import tigase.archive.modules.ArchiveRemovalQueue;
+import tigase.archive.modules.ArchivingQueue;
 import tigase.component.AbstractKernelBasedComponent;
 import tigase.component.modules.impl.DiscoveryModule;
 import tigase.db.TigaseDBException;
@@ -43,7 +46,12 @@ import tigase.xmpp.mam.modules.GetFormModule;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.util.Collection;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,19 +73,57 @@ public class MessageArchiveComponent
 	private static final String REMOVE_EXPIRED_MESSAGES_DELAY_FIELD = "removeExpiredMessagesDelay";
 	private static final String REMOVE_EXPIRED_MESSAGES_PERIOD_KEY = "remove-expired-messages-period";
 	private static final String REMOVE_EXPIRED_MESSAGES_PERIOD_FIELD = "removeExpiredMessagesPeriod";
+	private static final String REMOVE_EXPIRED_PARTITIONS_KEY = "remove-expired-partitions";
+	private static final String CREATE_PARTITIONS_PERIOD_KEY = "create-partitions-period";
+	private static final String CREATE_PARTITIONS_PERIOD_FIELD = "createPartitionsPeriod";
+	private static final String REMOVE_EXPIRED_MESSAGES_CHUNK_SIZE_KEY = "remove-expired-messages-chunk-size";
+	private static final String REMOVE_EXPIRED_MESSAGES_CHUNK_PAUSE_KEY = "remove-expired-messages-chunk-pause";
+	private static final String REMOVE_EXPIRED_MESSAGES_DEADLINE_KEY = "remove-expired-messages-deadline";
+	private static final String REMOVE_EXPIRED_MESSAGES_THREADS_KEY = "remove-expired-messages-threads";
+	private static final String REMOVE_EXPIRED_MESSAGES_THREADS_FIELD = "removeExpiredMessagesThreads";
+	private static final String REMOVE_EXPIRED_MESSAGES_REPOSITORY_THREADS_KEY = "remove-expired-messages-repository-threads";
+	private static final String REMOVE_UNUSED_JIDS_CHUNK_SIZE_KEY = "remove-unused-jids-chunk-size";
+	// MySQL does not support timestamps before 1970-01-01 00:00:01 UTC
+	private static final LocalDateTime MIN_EXPIRATION_TIMESTAMP = LocalDateTime.of(1970, 1, 2, 0, 0);
 
 	//~--- fields ---------------------------------------------------------------
 
 	@Inject
 	protected MessageArchiveRepository msg_repo = null;
+	@Inject(nullAllowed = true)
+	private ArchiveRemovalQueue archiveRemovalQueue;
+	@Inject(nullAllowed = true)
+	private ArchivingQueue archivingQueue;
 	private RemoveExpiredTask expiredMessagesRemovalTask = null;
+	private CreatePartitionsTask partitionsCreationTask = null;
+	private JID handoffJid = null;
+	private final Predicate<Packet> handoffReceiver = this::addPacketNB;
 	private float expiredMessagesRemovalTimeAvg = -1;
+	private final Map<String, ExpiredMessagesRemoval> expiredMessagesRemovals = new ConcurrentHashMap<>();
+	private final DurationHistogram expiredMessagesRemovalTime = new DurationHistogram();
+	private final LongAdder removedUnusedJids = new LongAdder();
 	@ConfigField(desc = "Remove expired messages from repository", alias = REMOVE_EXPIRED_MESSAGES_KEY)
 	private boolean removeExpiredMessages = false;
 	@ConfigField(desc = "Initial delay since server statup until removal of expired messages", alias = REMOVE_EXPIRED_MESSAGES_DELAY_KEY)
 	private Duration removeExpiredMessagesDelay = Duration.ofHours(1);
 	@ConfigField(desc = "Period between expired message removals", alias = REMOVE_EXPIRED_MESSAGES_PERIOD_KEY)
 	private Duration removeExpiredMessagesPeriod = Duration.ofDays(1);
+	@ConfigField(desc = "Drop whole partitions of expired messages before removing remaining ones", alias = REMOVE_EXPIRED_PARTITIONS_KEY)
+	private boolean removeExpiredPartitions = false;
+	@ConfigField(desc = "Period between creations of missing partitions of messages, 0 disables creation", alias = CREATE_PARTITIONS_PERIOD_KEY)
+	private Duration createPartitionsPeriod = Duration.ofDays(1);
+	@ConfigField(desc = "Number of expired messages removed at once, 0 removes all expired messages of a domain at once", alias = REMOVE_EXPIRED_MESSAGES_CHUNK_SIZE_KEY)
+	private int removeExpiredMessagesChunkSize = 0;
+	@ConfigField(desc = "Pause between removals of chunks of expired messages", alias = REMOVE_EXPIRED_MESSAGES_CHUNK_PAUSE_KEY)
+	private Duration removeExpiredMessagesChunkPause = Duration.ofMillis(100);
+	@ConfigField(desc = "Maximal duration of single removal of expired messages, 0 disables limit", alias = REMOVE_EXPIRED_MESSAGES_DEADLINE_KEY)
+	private Duration removeExpiredMessagesDeadline = Duration.ZERO;
+	@ConfigField(desc = "Number of threads removing expired messages", alias = REMOVE_EXPIRED_MESSAGES_THREADS_KEY)
+	private int removeExpiredMessagesThreads = 4;
+	@ConfigField(desc = "Number of threads removing expired messages from a single repository at the same time", alias = REMOVE_EXPIRED_MESSAGES_REPOSITORY_THREADS_KEY)
+	private int removeExpiredMessagesRepositoryThreads = 1;
+	@ConfigField(desc = "Number of jids checked at once during removal of unused jids, 0 disables removal", alias = REMOVE_UNUSED_JIDS_CHUNK_SIZE_KEY)
+	private int removeUnusedJidsChunkSize = 1000;
 	@ConfigField(desc = "Tag support enabled", alias = TAGS_SUPPORT_PROP_KEY)
 	private boolean tagsSupport = false;
 
@@ -137,21 +183,79 @@ public class MessageArchiveComponent
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
 		list.add(getName(), "Removal time of expired messages (avg)", expiredMessagesRemovalTimeAvg, Level.FINE);
+		list.add(getName(), "Removal time of expired messages", expiredMessagesRemovalTime.toString(), Level.FINE);
+		if (list.checkLevel(Level.FINE)) {
+			long removedMessages = 0;
+			long removedChunks = 0;
+			long backlog = 0;
+			for (Map.Entry<String, ExpiredMessagesRemoval> e : expiredMessagesRemovals.entrySet()) {
+				ExpiredMessagesRemoval removal = e.getValue();
+				removedMessages += removal.removedMessages.sum();
+				removedChunks += removal.removedChunks.sum();
+				backlog += Math.max(0, removal.backlog);
+				if (list.checkLevel(Level.FINEST)) {
+					list.add(getName(), "Removed expired messages/" + e.getKey(), removal.removedMessages.sum(),
+							 Level.FINEST);
+					list.add(getName(), "Removed chunks of expired messages/" + e.getKey(),
+							 removal.removedChunks.sum(), Level.FINEST);
+					list.add(getName(), "Expired messages backlog/" + e.getKey(), removal.backlog, Level.FINEST);
+					list.add(getName(), "Removal time of expired messages/" + e.getKey(),
+							 removal.removalTime.toString(), Level.FINEST);
+					list.add(getName(), "Removal time of expired messages (total)/" + e.getKey(),
+							 removal.removalTime.getTotal(), Level.FINEST);
+					list.add(getName(), "Removal time of expired messages (max)/" + e.getKey(),
+							 removal.removalTime.getMax(), Level.FINEST);
+				}
+			}
+			list.add(getName(), "Removed expired messages", removedMessages, Level.FINE);
+			list.add(getName(), "Removed chunks of expired messages", removedChunks, Level.FINE);
+			list.add(getName(), "Expired messages backlog", backlog, Level.FINE);
+			list.add(getName(), "Removed unused jids", removedUnusedJids.sum(), Level.FINE);
+		}
+		msg_repo.collectStatistics(getName(), list);
+		if (archivingQueue != null) {
+			archivingQueue.getStatistics(getName(), list);
+		}
+		if (archiveRemovalQueue != null) {
+			archiveRemovalQueue.getStatistics(getName(), list);
+		}
 	}
 
 	@Override
 	public void initialize() {
 		super.initialize();
 		eventBus.registerAll(this);
+		// messages passed directly by session manager running in the same JVM are put into the same queues as routed
+		handoffJid = getComponentId();
+		LocalArchivingHandoff.register(handoffJid, handoffReceiver);
+		if (partitionsCreationTask == null) {
+			schedulePartitionsCreation();
+		}
 	}
 
 	@Override
 	public void beforeUnregister() {
+		if (handoffJid != null) {
+			LocalArchivingHandoff.unregister(handoffJid, handoffReceiver);
+			handoffJid = null;
+		}
 		eventBus.unregisterAll(this);
+		if (expiredMessagesRemovalTask != null) {
+			expiredMessagesRemovalTask.stop();
+			expiredMessagesRemovalTask = null;
+		}
+		if (partitionsCreationTask != null) {
+			partitionsCreationTask.cancel();
+			partitionsCreationTask = null;
+		}
 	}
 
 	@HandleEvent
 	public void onUserRemoved(UserRepository.UserRemovedEvent event) {
+		if (archiveRemovalQueue != null && archiveRemovalQueue.offer(event.jid)) {
+			// archive will be removed in the background
+			return;
+		}
 		try {
 			msg_repo.removeItems(event.jid, null, null, null);
 		} catch (TigaseDBException ex) {
@@ -166,9 +270,10 @@ public class MessageArchiveComponent
 		super.beanConfigurationChanged(changedFields);
 		if (changedFields.contains(REMOVE_EXPIRED_MESSAGES_FIELD) ||
 				changedFields.contains(REMOVE_EXPIRED_MESSAGES_PERIOD_FIELD) ||
-				changedFields.contains(REMOVE_EXPIRED_MESSAGES_DELAY_FIELD)) {
+				changedFields.contains(REMOVE_EXPIRED_MESSAGES_DELAY_FIELD) ||
+				changedFields.contains(REMOVE_EXPIRED_MESSAGES_THREADS_FIELD)) {
 			if (expiredMessagesRemovalTask != null) {
-				expiredMessagesRemovalTask.cancel();
+				expiredMessagesRemovalTask.stop();
 				expiredMessagesRemovalTask = null;
 			}
 
@@ -178,10 +283,13 @@ public class MessageArchiveComponent
 				log.log(Level.FINE,
 						"scheduling removal of expired messages to once every {0}ms after initial delay of {1}ms",
 						new Object[]{period, initialDelay});
-				expiredMessagesRemovalTask = new RemoveExpiredTask();
+				expiredMessagesRemovalTask = new RemoveExpiredTask(removeExpiredMessagesThreads);
 				addTimerTask(expiredMessagesRemovalTask, initialDelay, period);
 			}
 		}
+		if (changedFields.contains(CREATE_PARTITIONS_PERIOD_FIELD)) {
+			schedulePartitionsCreation();
+		}
 	}
 
 	@Override
@@ -197,51 +305,355 @@ public class MessageArchiveComponent
 		kernel.registerBean(GetFormModule.class).exec();
 	}
 
+	/**
+	 * Partitions for incoming messages are created independently of removal of expired messages, as they are required
+	 * even if messages are never removed.
+	 */
+	private void schedulePartitionsCreation() {
+		if (partitionsCreationTask != null) {
+			partitionsCreationTask.cancel();
+			partitionsCreationTask = null;
+		}
+		if (!createPartitionsPeriod.isZero()) {
+			long period = createPartitionsPeriod.toMillis();
+			log.log(Level.FINE, "scheduling creation of partitions of messages to once every {0}ms", period);
+			partitionsCreationTask = new CreatePartitionsTask();
+			addTimerTask(partitionsCreationTask, 0, period);
+		}
+	}
+
+	private ExpiredMessagesRemoval getExpiredMessagesRemoval(String domain) {
+		return expiredMessagesRemovals.computeIfAbsent(domain, key -> new ExpiredMessagesRemoval());
+	}
+
+	private static class ExpiredMessagesRemoval {
+
+		private final LongAdder removedChunks = new LongAdder();
+		private final LongAdder removedMessages = new LongAdder();
+		private final DurationHistogram removalTime = new DurationHistogram();
+		// number of expired messages left after last removal, -1 if unknown
+		private volatile long backlog = -1;
+		private volatile long lastCompleted = 0;
+
+		private void chunkRemoved(int removed) {
+			removedChunks.increment();
+			removedMessages.add(removed);
+		}
+
+		private void completed() {
+			backlog = 0;
+			lastCompleted = System.currentTimeMillis();
+		}
+
+	}
+
+	/**
+	 * Returns repository storing messages of the domain, so that the number of threads removing expired messages from
+	 * a single data source may be limited.
+	 */
+	private Object getRepositoryForDomain(String domain) {
+		if (msg_repo instanceof MessageArchiveRepositoryPool) {
+			return ((MessageArchiveRepositoryPool<?, ?>) msg_repo).getRepository(domain);
+		}
+		return msg_repo;
+	}
+
+	private class CreatePartitionsTask
+			extends TimerTask {
+
+		@Override
+		public void run() {
+			try {
+				long start = System.currentTimeMillis();
+				int created = msg_repo.createPartitions();
+				log.log(Level.FINEST, "created {0} partitions of messages in {1}ms",
+						new Object[]{created, System.currentTimeMillis() - start});
+			} catch (Exception ex) {
+				log.log(Level.FINE, "exception creating partitions of messages", ex);
+			}
+		}
+	}
+
 	private class RemoveExpiredTask
 			extends TimerTask {
 
+		private final ExecutorService executor;
+		private final AtomicBoolean running = new AtomicBoolean(false);
+
+		private RemoveExpiredTask(int threads) {
+			AtomicInteger threadNo = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+				Thread thread = new Thread(runnable, MessageArchiveComponent.this.getName() + "-remove-expired-" +
+						threadNo.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		private void stop() {
+			cancel();
+			executor.shutdownNow();
+		}
+
 		@Override
 		public void run() {
-			float time = 0;
-			float count = 0;
-			for (JID vhost : vHostManager.getAllVHosts()) {
-				try {
-					VHostItem item = vHostManager.getVHostItem(vhost.getDomain());
-					MessageArchiveVHostItemExtension extension = item.getExtension(MessageArchiveVHostItemExtension.class);
-					if (extension != null) {
-						RetentionType retentionType = extension.getRetentionType();
-						switch (retentionType) {
-							case numberOfDays:
-								Integer days = extension.getRetentionDays();
-								if (days != null) {
-									long start = System.currentTimeMillis();
-									LocalDateTime timestamp = LocalDateTime.now(ZoneId.of("Z")).minusDays(days);
-									msg_repo.deleteExpiredMessages(vhost.getBareJID(), timestamp);
-									long stop = System.currentTimeMillis();
-									long executedIn = stop - start;
-									time += executedIn;
-									log.log(Level.FINEST, "removed messsages older than {0} for domain {1} in {2}ms",
-											new Object[]{timestamp.toString(), vhost.getDomain(), executedIn});
-									count++;
+			// removal is executed outside of the timer thread and next one is skipped if previous is still running
+			if (!running.compareAndSet(false, true)) {
+				log.log(Level.FINE, "skipping removal of expired messages as previous removal is still running");
+				return;
+			}
+			try {
+				executor.execute(this::removeExpired);
+			} catch (RejectedExecutionException ex) {
+				running.set(false);
+			}
+		}
+
+		private void removeExpired() {
+			try {
+				if (removeExpiredPartitions) {
+					removeExpiredPartitions();
+				}
+				long deadline = removeExpiredMessagesDeadline.isZero()
+								? Long.MAX_VALUE
+								: System.currentTimeMillis() + removeExpiredMessagesDeadline.toMillis();
+				// domains not processed completely during previous runs are processed first
+				List<JID> vhosts = new ArrayList<>(vHostManager.getAllVHosts());
+				vhosts.sort(
+						Comparator.comparingLong(vhost -> getExpiredMessagesRemoval(vhost.getDomain()).lastCompleted));
+				Map<Object, Queue<JID>> vhostsByRepository = new IdentityHashMap<>();
+				for (JID vhost : vhosts) {
+					vhostsByRepository.computeIfAbsent(getRepositoryForDomain(vhost.getDomain()),
+													   repo -> new ConcurrentLinkedQueue<>()).add(vhost);
+				}
+
+				LongAdder time = new LongAdder();
+				LongAdder count = new LongAdder();
+				List<CompletableFuture<Void>> workers = new ArrayList<>();
+				for (Queue<JID> queue : vhostsByRepository.values()) {
+					int threads = Math.min(queue.size(), Math.max(1, removeExpiredMessagesRepositoryThreads));
+					for (int i = 0; i < threads; i++) {
+						workers.add(CompletableFuture.runAsync(() -> {
+							JID vhost;
+							while ((vhost = queue.poll()) != null && !executor.isShutdown()) {
+								if (System.currentTimeMillis() >= deadline) {
+									log.log(Level.FINE,
+											"removal of expired messages exceeded deadline, it will be resumed in next run");
+									return;
+								}
+								long executedIn = removeExpiredMessages(vhost, deadline);
+								if (executedIn >= 0) {
+									time.add(executedIn);
+									count.increment();
+								}
+							}
+						}, executor));
+					}
+				}
+				CompletableFuture.allOf(workers.toArray(new CompletableFuture[0]))
+						.thenRunAsync(() -> removeUnusedJids(deadline), executor)
+						.whenComplete((result, ex) -> {
+							long executed = count.sum();
+							expiredMessagesRemovalTimeAvg = (executed > 0) ? ((float) time.sum()) / executed : -1;
+							running.set(false);
+						});
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "exception scheduling removal of expired messages", ex);
+				running.set(false);
+			}
+		}
+
+		/**
+		 * Removes expired messages of the domain and returns time of execution in ms or <code>-1</code> if messages of
+		 * the domain are not removed.
+		 */
+		private long removeExpiredMessages(JID vhost, long deadline) {
+			try {
+				VHostItem item = vHostManager.getVHostItem(vhost.getDomain());
+				MessageArchiveVHostItemExtension extension = item.getExtension(MessageArchiveVHostItemExtension.class);
+				if (extension != null) {
+					RetentionType retentionType = extension.getRetentionType();
+					switch (retentionType) {
+						case numberOfDays:
+							Integer days = extension.getRetentionDays();
+							if (days != null) {
+								long start = System.currentTimeMillis();
+								LocalDateTime timestamp = LocalDateTime.now(ZoneId.of("Z")).minusDays(days);
+								removeExpiredMessages(vhost, timestamp, deadline);
+								long executedIn = System.currentTimeMillis() - start;
+								getExpiredMessagesRemoval(vhost.getDomain()).removalTime.record(executedIn);
+								expiredMessagesRemovalTime.record(executedIn);
+								log.log(Level.FINEST, "removed messsages older than {0} for domain {1} in {2}ms",
+										new Object[]{timestamp.toString(), vhost.getDomain(), executedIn});
+								return executedIn;
+							}
+							break;
+						case userDefined: {
+							long start = System.currentTimeMillis();
+							LocalDateTime now = LocalDateTime.now(ZoneId.of("Z"));
+							// users with the same retention period are handled at once
+							for (Integer userDays : msg_repo.getUserRetentionPeriods(vhost.getBareJID())) {
+								if (System.currentTimeMillis() >= deadline) {
+									log.log(Level.FINEST,
+											"deadline reached while removing expired messages for domain {0}",
+											vhost.getDomain());
+									break;
+								}
+								// failure of removal for one period should not stop removal for other periods
+								try {
+									removeExpiredUserMessages(vhost, userDays, now.minusDays(userDays), deadline);
+								} catch (Exception ex) {
+									log.log(Level.FINE, "exception removing messages expired after " + userDays +
+											" days for domain " + vhost.getDomain(), ex);
 								}
-								break;
-							case userDefined:
-								// right now there is no implementation for this so let's handle it in same way as unlimited
-							case unlimited:
-								log.log(Level.FINEST, "skipping removal of expired messages for domain {0}" +
-												" as removal for retention type {1} is not supported",
-										new Object[]{vhost.getDomain(), retentionType});
-								break;
+							}
+							long executedIn = System.currentTimeMillis() - start;
+							getExpiredMessagesRemoval(vhost.getDomain()).removalTime.record(executedIn);
+							expiredMessagesRemovalTime.record(executedIn);
+							log.log(Level.FINEST, "removed messsages expired according to user settings for domain {0} in {1}ms",
+									new Object[]{vhost.getDomain(), executedIn});
+							return executedIn;
 						}
-					} else {
-						log.log(Level.FINEST, "skipping removal of expired messages for domain {0}" +
-								" as retention type is not defined", new Object[]{vhost.getDomain()});
+						case unlimited:
+							log.log(Level.FINEST, "skipping removal of expired messages for domain {0}" +
+											" as removal for retention type {1} is not supported",
+									new Object[]{vhost.getDomain(), retentionType});
+							break;
 					}
-				} catch (Exception ex) {
-					log.log(Level.FINE, "exception removing expired messages", ex);
+				} else {
+					log.log(Level.FINEST, "skipping removal of expired messages for domain {0}" +
+							" as retention type is not defined", new Object[]{vhost.getDomain()});
+				}
+			} catch (Exception ex) {
+				log.log(Level.FINE, "exception removing expired messages", ex);
+			}
+			return -1;
+		}
+
+		private void removeExpiredMessages(JID vhost, LocalDateTime before, long deadline)
+				throws TigaseDBException {
+			ExpiredMessagesRemoval removal = getExpiredMessagesRemoval(vhost.getDomain());
+			int chunkSize = removeExpiredMessagesChunkSize;
+			if (chunkSize > 0) {
+				int removed;
+				while ((removed = msg_repo.deleteExpiredMessages(vhost.getBareJID(), before, chunkSize)) >= chunkSize) {
+					removal.chunkRemoved(removed);
+					if (System.currentTimeMillis() >= deadline) {
+						removal.backlog = msg_repo.getExpiredMessagesCount(vhost.getBareJID(), before);
+						log.log(Level.FINEST, "removal of expired messages for domain {0} stopped with {1} messages left",
+								new Object[]{vhost.getDomain(), removal.backlog});
+						return;
+					}
+					try {
+						Thread.sleep(removeExpiredMessagesChunkPause.toMillis());
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if (removed > 0) {
+					removal.chunkRemoved(removed);
+				}
+			} else {
+				msg_repo.deleteExpiredMessages(vhost.getBareJID(), before);
+			}
+			removal.completed();
+		}
+
+		private void removeExpiredUserMessages(JID vhost, int days, LocalDateTime before, long deadline)
+				throws TigaseDBException {
+			// very long retention periods would result in timestamps not supported by databases
+			if (before.isBefore(MIN_EXPIRATION_TIMESTAMP)) {
+				before = MIN_EXPIRATION_TIMESTAMP;
+			}
+			int chunkSize = removeExpiredMessagesChunkSize;
+			if (chunkSize <= 0) {
+				msg_repo.deleteExpiredUserMessages(vhost.getBareJID(), days, before);
+				return;
+			}
+			ExpiredMessagesRemoval removal = getExpiredMessagesRemoval(vhost.getDomain());
+			int removed;
+			while ((removed = msg_repo.deleteExpiredUserMessages(vhost.getBareJID(), days, before, chunkSize)) >=
+					chunkSize) {
+				removal.chunkRemoved(removed);
+				if (System.currentTimeMillis() >= deadline) {
+					log.log(Level.FINEST,
+							"removal of messages expired after {0} days for domain {1} stopped at deadline",
+							new Object[]{days, vhost.getDomain()});
+					return;
+				}
+				try {
+					Thread.sleep(removeExpiredMessagesChunkPause.toMillis());
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			if (removed > 0) {
+				removal.chunkRemoved(removed);
+			}
+		}
+
+		/**
+		 * Jids are not removed together with messages, as checking if a jid is still used requires scanning the whole
+		 * table of jids, so they are removed in ranges after messages of all domains are removed.
+		 */
+		private void removeUnusedJids(long deadline) {
+			int chunkSize = removeUnusedJidsChunkSize;
+			if (chunkSize <= 0 || executor.isShutdown()) {
+				return;
+			}
+			try {
+				long start = System.currentTimeMillis();
+				int removed = msg_repo.deleteUnusedJids(chunkSize, deadline);
+				removedUnusedJids.add(removed);
+				log.log(Level.FINEST, "removed {0} unused jids in {1}ms",
+						new Object[]{removed, System.currentTimeMillis() - start});
+			} catch (Exception ex) {
+				log.log(Level.FINE, "exception removing unused jids", ex);
+			}
+		}
+
+		private void removeExpiredPartitions() {
+			LocalDateTime before = getPartitionsRetentionTimestamp();
+			if (before == null) {
+				return;
+			}
+			try {
+				long start = System.currentTimeMillis();
+				int dropped = msg_repo.deleteExpiredPartitions(before);
+				log.log(Level.FINEST, "removed {0} partitions of messages older than {1} in {2}ms",
+						new Object[]{dropped, before.toString(), System.currentTimeMillis() - start});
+			} catch (Exception ex) {
+				log.log(Level.FINE, "exception removing expired partitions", ex);
+			}
+		}
+
+		/**
+		 * Partitions are shared by all vhosts, so messages may be dropped together with a partition only if they are
+		 * expired for every vhost. Returns <code>null</code> if any of vhosts keeps messages without limit.
+		 */
+		private LocalDateTime getPartitionsRetentionTimestamp() {
+			LocalDateTime now = LocalDateTime.now(ZoneId.of("Z"));
+			LocalDateTime before = null;
+			for (JID vhost : vHostManager.getAllVHosts()) {
+				VHostItem item = vHostManager.getVHostItem(vhost.getDomain());
+				MessageArchiveVHostItemExtension extension =
+						item == null ? null : item.getExtension(MessageArchiveVHostItemExtension.class);
+				Integer days = extension != null && extension.getRetentionType() == RetentionType.numberOfDays
+							   ? extension.getRetentionDays()
+							   : null;
+				if (days == null) {
+					log.log(Level.FINEST, "skipping removal of expired partitions as messages of domain {0}" +
+							" are not removed after a number of days", new Object[]{vhost.getDomain()});
+					return null;
+				}
+				LocalDateTime timestamp = now.minusDays(days);
+				if (before == null || timestamp.isBefore(before)) {
+					before = timestamp;
 				}
 			}
-			expiredMessagesRemovalTimeAvg = (count > 0) ? (time / count) : -1;
+			return before;
 		}
 
 	}
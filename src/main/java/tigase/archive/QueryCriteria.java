@@ -40,6 +40,7 @@ public class QueryCriteria
 	private List<Element> items;
 
 	private boolean useMessageIdInRsm = true;
+	private boolean recentConversations = false;
 
 	public Set<String> getContains() {
 		return Collections.unmodifiableSet(contains);
@@ -69,6 +70,14 @@ public class QueryCriteria
 		useMessageIdInRsm = value;
 	}
 
+	public boolean getRecentConversations() {
+		return recentConversations;
+	}
+
+	public void setRecentConversations(boolean value) {
+		recentConversations = value;
+	}
+
 	public void prepareResult(Element retList) {
 		RSM rsm = getRsm();
 		if (rsm.getCount() == null || rsm.getCount() != 0) {
@@ -109,6 +118,7 @@ public class QueryCriteria
 		sb.append(", tags=").append(tags);
 		sb.append(", collections=").append(collections);
 		sb.append(", useMessageIdInRsm=").append(useMessageIdInRsm);
+		sb.append(", recentConversations=").append(recentConversations);
 		sb.append(", fasteningCollation=").append(getFasteningCollation());
 		sb.append('}');
 		return sb.toString();
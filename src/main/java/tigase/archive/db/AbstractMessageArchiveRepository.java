@@ -102,18 +102,30 @@ public abstract class AbstractMessageArchiveRepository<Q extends Query, DS exten
 		return msg.getAttributeStaticStr("id");
 	}
 
-	protected String findRefStableId(BareJID owner, BareJID buddy, String refOriginId) {
-		return null;
+	protected String extractStanzaId(Element msg) {
+		return limitStanzaId(extractOriginId(msg));
 	}
 
-	protected void archiveMessage(BareJID owner, BareJID buddy, Date timestamp, Element msg, String stableId,
-								  Set<String> tags, ADP additionParametersProvider) {
-		String stanzaId = extractOriginId(msg);
+	protected String extractStanzaId(MessageContent content) {
+		return limitStanzaId(content.getOriginId());
+	}
+
+	private static String limitStanzaId(String stanzaId) {
 		// Some clients are sending large `id` attributes and we support storage only for 64 chars. `stanzaId` is only
 		// for a reference and future optimizations we may ignore too large values and just store null for them.
 		if (stanzaId != null && stanzaId.length() >= 64) {
-			stanzaId = null;
+			return null;
 		}
+		return stanzaId;
+	}
+
+	protected String findRefStableId(BareJID owner, BareJID buddy, String refOriginId) {
+		return null;
+	}
+
+	protected void archiveMessage(BareJID owner, BareJID buddy, Date timestamp, Element msg, String stableId,
+								  Set<String> tags, ADP additionParametersProvider) {
+		String stanzaId = extractStanzaId(msg);
 		String refStableId = findRefStableId(owner, buddy, null);
 		archiveMessage(owner, buddy, timestamp, msg, stableId, stanzaId, refStableId, tags, additionParametersProvider);
 	}
@@ -0,0 +1,87 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db;
+
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Holds all data required to store single message in the archive. Used when messages are passed to the repository
+ * in batches.
+ */
+public class ArchivedMessage {
+
+	private final BareJID owner;
+	private final JID buddy;
+	private final Date timestamp;
+	private final MessageContent content;
+	private final String stableId;
+	private final Set<String> tags;
+
+	public ArchivedMessage(BareJID owner, JID buddy, Date timestamp, Element message, String stableId,
+						   Set<String> tags) {
+		this(owner, buddy, timestamp, MessageContent.of(message), stableId, tags);
+	}
+
+	public ArchivedMessage(BareJID owner, JID buddy, Date timestamp, MessageContent content, String stableId,
+						   Set<String> tags) {
+		this.owner = owner;
+		this.buddy = buddy;
+		this.timestamp = timestamp;
+		this.content = content;
+		this.stableId = stableId;
+		this.tags = tags;
+	}
+
+	public BareJID getOwner() {
+		return owner;
+	}
+
+	public JID getBuddy() {
+		return buddy;
+	}
+
+	public Date getTimestamp() {
+		return timestamp;
+	}
+
+	public Element getMessage() {
+		return content.getMessage();
+	}
+
+	public MessageContent getContent() {
+		return content;
+	}
+
+	public String getStableId() {
+		return stableId;
+	}
+
+	public Set<String> getTags() {
+		return tags;
+	}
+
+	@Override
+	public String toString() {
+		return "ArchivedMessage[owner=" + owner + ", buddy=" + buddy + ", stableId=" + stableId + "]";
+	}
+}
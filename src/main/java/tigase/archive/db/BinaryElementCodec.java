@@ -0,0 +1,288 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db;
+
+import tigase.xml.Element;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes archived messages in a compact binary form which is turned back into an <code>Element</code> without
+ * tokenizing XML, which is much cheaper than parsing it while retrieving messages.
+ * <p>
+ * Element is written depth-first as its name, attributes, character data and children. Names of elements and
+ * attributes are written as references to a table containing names commonly used in stanzas, which is extended by
+ * each name not found in it when the name is written for the first time. Numbers are written as variable length
+ * integers and strings as UTF-8 prefixed with their length. Encoded message is stored as Base64 text with a marker
+ * containing version of the format, so it may be stored in the same column as XML of messages and recognized while
+ * it is read.
+ * </p>
+ * <p>
+ * Elements containing both character data and child elements are not encoded, as order of their nodes would not be
+ * preserved, and are stored as XML.
+ * </p>
+ */
+public class BinaryElementCodec {
+
+	private static final String MARKER_V1 = "e1:";
+	private static final int VERSION_1 = 1;
+
+	// must not be changed without changing version of the format, names may only be appended as a new version
+	private static final String[] NAMES_V1 = {"message", "body", "xmlns", "to", "from", "id", "type", "by",
+											  "stanza-id", "origin-id", "delay", "stamp", "thread", "subject",
+											  "markable", "received", "displayed", "request", "active", "store",
+											  "no-store", "replace", "x", "url", "encrypted", "header", "key",
+											  "iv", "payload", "sid", "rid", "encryption", "namespace", "jid",
+											  "jabber:client", "urn:xmpp:sid:0", "urn:xmpp:delay",
+											  "urn:xmpp:chat-markers:0", "urn:xmpp:receipts", "urn:xmpp:hints",
+											  "http://jabber.org/protocol/chatstates",
+											  "urn:xmpp:message-correct:0", "jabber:x:oob", "urn:xmpp:eme:0",
+											  "eu.siacs.conversations.axolotl"};
+	private static final Map<String, Integer> NAME_REFS_V1 = new HashMap<>();
+
+	static {
+		for (int i = 0; i < NAMES_V1.length; i++) {
+			NAME_REFS_V1.put(NAMES_V1[i], i + 1);
+		}
+	}
+
+	/**
+	 * Encodes message in binary form.
+	 *
+	 * @return encoded message with a marker or <code>null</code> if message cannot be encoded
+	 */
+	public static String encode(Element msg) {
+		return encode(msg, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Encodes message in binary form, if encoded message is shorter than its XML.
+	 *
+	 * @param xmlLength length of XML of the message
+	 *
+	 * @return encoded message with a marker or <code>null</code> if message cannot be encoded or encoded message
+	 * would not be shorter than its XML
+	 */
+	public static String encode(Element msg, int xmlLength) {
+		Encoder encoder = new Encoder();
+		if (!encoder.writeElement(msg)) {
+			return null;
+		}
+		// Base64 grows data by a third, so messages with long texts may be shorter if stored as XML
+		if (((encoder.out.size() + 2) / 3) * 4 + MARKER_V1.length() >= xmlLength) {
+			return null;
+		}
+		return MARKER_V1 + Base64.getEncoder().encodeToString(encoder.out.toByteArray());
+	}
+
+	/**
+	 * Decodes message stored in binary form.
+	 *
+	 * @throws IllegalArgumentException if encoded message is corrupted
+	 */
+	public static Element decode(String stored) {
+		if (!isEncoded(stored)) {
+			throw new IllegalArgumentException("Message is not encoded in a supported binary format");
+		}
+		Decoder decoder = new Decoder(Base64.getDecoder().decode(stored.substring(MARKER_V1.length())));
+		try {
+			if (decoder.readVarInt() != VERSION_1) {
+				throw new IllegalArgumentException("Unsupported version of binary format of a message");
+			}
+			Element result = decoder.readElement();
+			if (decoder.pos != decoder.data.length) {
+				throw new IllegalArgumentException("Unexpected data after encoded message");
+			}
+			return result;
+		} catch (ArrayIndexOutOfBoundsException | StringIndexOutOfBoundsException ex) {
+			throw new IllegalArgumentException("Encoded message is truncated", ex);
+		}
+	}
+
+	public static boolean isEncoded(String stored) {
+		return stored != null && stored.startsWith(MARKER_V1);
+	}
+
+	private BinaryElementCodec() {
+	}
+
+	private static class Encoder {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		private Map<String, Integer> names = null;
+
+		private Encoder() {
+			writeVarInt(VERSION_1);
+		}
+
+		private boolean writeElement(Element el) {
+			String cdata = el.getCData();
+			List<Element> children = el.getChildren();
+			if (cdata != null && children != null && !children.isEmpty()) {
+				return false;
+			}
+
+			writeName(el.getName());
+			Map<String, String> attributes = el.getAttributes();
+			if (attributes == null) {
+				writeVarInt(0);
+			} else {
+				writeVarInt(attributes.size());
+				for (Map.Entry<String, String> e : attributes.entrySet()) {
+					writeName(e.getKey());
+					writeString(e.getValue());
+				}
+			}
+			if (cdata == null) {
+				writeVarInt(0);
+			} else {
+				writeVarInt(1);
+				writeString(cdata);
+			}
+			if (children == null) {
+				writeVarInt(0);
+			} else {
+				writeVarInt(children.size());
+				for (Element child : children) {
+					if (!writeElement(child)) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		private void writeName(String name) {
+			Integer ref = NAME_REFS_V1.get(name);
+			if (ref == null && names != null) {
+				ref = names.get(name);
+			}
+			if (ref != null) {
+				writeVarInt(ref);
+				return;
+			}
+			if (names == null) {
+				names = new HashMap<>();
+			}
+			names.put(name, NAMES_V1.length + names.size() + 1);
+			writeVarInt(0);
+			writeString(name);
+		}
+
+		private void writeString(String str) {
+			byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+
+		private void writeVarInt(int value) {
+			while ((value & ~0x7F) != 0) {
+				out.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+	}
+
+	private static class Decoder {
+
+		private final byte[] data;
+		private List<String> names = null;
+		private int pos = 0;
+
+		private Decoder(byte[] data) {
+			this.data = data;
+		}
+
+		private Element readElement() {
+			String name = readName();
+			int attributesCount = readCount();
+			String[] attNames = new String[attributesCount];
+			String[] attValues = new String[attributesCount];
+			for (int i = 0; i < attributesCount; i++) {
+				attNames[i] = readName();
+				attValues[i] = readString();
+			}
+			Element el = new Element(name, attNames, attValues);
+			if (readVarInt() != 0) {
+				el.setCData(readString());
+			}
+			int childrenCount = readCount();
+			for (int i = 0; i < childrenCount; i++) {
+				el.addChild(readElement());
+			}
+			return el;
+		}
+
+		// each counted item takes at least one byte, so larger numbers are not valid
+		private int readCount() {
+			int count = readVarInt();
+			if (count < 0 || count > data.length - pos) {
+				throw new IllegalArgumentException("Invalid number of nodes in encoded message");
+			}
+			return count;
+		}
+
+		private String readName() {
+			int ref = readVarInt();
+			if (ref == 0) {
+				String name = readString().intern();
+				if (names == null) {
+					names = new ArrayList<>();
+				}
+				names.add(name);
+				return name;
+			}
+			if (ref <= NAMES_V1.length) {
+				return NAMES_V1[ref - 1];
+			}
+			if (names == null || ref - NAMES_V1.length > names.size()) {
+				throw new IllegalArgumentException("Invalid reference to a name in encoded message");
+			}
+			return names.get(ref - NAMES_V1.length - 1);
+		}
+
+		private String readString() {
+			int len = readVarInt();
+			if (len < 0 || len > data.length - pos) {
+				throw new IllegalArgumentException("Invalid length of a string in encoded message");
+			}
+			String str = new String(data, pos, len, StandardCharsets.UTF_8);
+			pos += len;
+			return str;
+		}
+
+		private int readVarInt() {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				byte b = data[pos++];
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Invalid number in encoded message");
+		}
+	}
+}
@@ -28,6 +28,8 @@ import tigase.db.Repository;
 import tigase.db.TigaseDBException;
 import tigase.db.util.RepositoryVersionAware;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticsList;
+import tigase.util.cache.LRUConcurrentCache;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
 import tigase.xml.SimpleParser;
@@ -44,11 +46,19 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Repository.Meta(supportedUris = {"jdbc:[^:]+:.*"}, isDefault = true)
 @Repository.SchemaId(id = Schema.MA_SCHEMA_ID, name = Schema.MA_SCHEMA_NAME)
@@ -60,40 +70,114 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 	private static final long LONG_NULL = 0;
 
 	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+	private static final Pattern STABLE_ID_PATTERN = Pattern.compile(
+			"[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
 
 	private static final String STORE_PLAINTEXT_BODY_KEY = "store-plaintext-body";
 
+	private static final String LEASE_CONNECTIONS_KEY = "lease-connections";
+	private static final String KEYSET_PAGINATION_KEY = "keyset-pagination";
+	private static final String KEYSET_PAGINATION_COUNT_KEY = "keyset-pagination-count";
+	private static final String COUNT_POLICY_KEY = "count-policy";
+
 	private static final String DELETE_EXPIRED_QUERY_TIMEOUT_KEY = "remove-expired-messages-query-timeout";
 	private static final int DEF_DELETE_EXPIRED_QUERY_TIMEOUT_VAL = 5 * 60;
+	// key used to obtain connection for maintenance of partitions shared by all domains
+	private static final BareJID PARTITIONS_KEY = BareJID.bareJIDInstanceNS("tig_ma_msgs-partitions");
+	// key used to obtain connection for removal of unused jids of all domains
+	private static final BareJID UNUSED_JIDS_KEY = BareJID.bareJIDInstanceNS("tig_ma_jids-unused");
 
 	private static final String DEF_GET_MESSAGE_QUERY = "{ call Tig_MA_GetMessage(?,?) }";
 	private static final String DEF_GET_MESSAGES_QUERY = "{ call Tig_MA_GetMessages(?,?,?,?,?,?,?,?,?) }";
+	private static final String DEF_GET_MESSAGES_BY_CURSOR_QUERY = "{ call Tig_MA_GetMessagesByCursor(?,?,?,?,?,?,?,?,?,?) }";
+	private static final String DEF_GET_RECENT_CONVERSATIONS_QUERY = "{ call Tig_MA_GetRecentConversations(?,?,?,?) }";
+	private static final String DEF_GET_MESSAGES_BY_IDS_QUERY = "{ call Tig_MA_GetMessagesByIds(?,?) }";
 	private static final String DEF_GET_MESSAGES_COUNT_QUERY = "{ call Tig_MA_GetMessagesCount(?,?,?,?,?,?,?) }";
 	private static final String DEF_GET_MESSAGES_POSITION_QUERY = "{ call Tig_MA_GetMessagePosition(?,?,?,?,?,?,?,?) }";
 	private static final String DEF_GET_COLLECTIONS_QUERY = "{ call Tig_MA_GetCollections(?,?,?,?,?,?,?,?) }";
 	private static final String DEF_GET_COLLECTIONS_COUNT_QUERY = "{ call Tig_MA_GetCollectionsCount(?,?,?,?,?,?) }";
+	private static final String DEF_GET_COLLECTIONS_BY_CURSOR_QUERY = "{ call Tig_MA_GetCollectionsByCursor(?,?,?,?,?,?,?,?,?,?) }";
 	private static final String DEF_ADD_MESSAGE_QUERY = "{ call Tig_MA_AddMessage(?,?,?,?,?,?,?,?) }";
+	private static final String DEF_ADD_MESSAGE_IN_TX_QUERY = "{ call Tig_MA_AddMessageInTx(?,?,?,?,?,?,?,?) }";
+	private static final String DEF_ADD_MESSAGE_BY_IDS_QUERY = "{ call Tig_MA_AddMessageByIds(?,?,?,?,?,?,?,?) }";
+	private static final String DEF_ENSURE_JID_ID_QUERY = "{ call Tig_MA_EnsureJidId(?) }";
 	private static final String DEF_ADD_TAG_TO_MESSAGE_QUERY = "{ call Tig_MA_AddTagToMessage(?,?,?) }";
+	private static final String DEF_ENSURE_TAG_ID_QUERY = "{ call Tig_MA_EnsureTagId(?,?) }";
+	private static final String DEF_ADD_TAGS_TO_MESSAGE_BY_IDS_QUERY = "{ call Tig_MA_AddTagsToMessageByIds(?,?,?) }";
 	private static final String DEF_REMOVE_MESSAGES_QUERY = "{ call Tig_MA_RemoveMessages(?,?,?,?) }";
 	private static final String DEF_DELETE_EXPIRED_MESSAGES_QUERY = "{ call Tig_MA_DeleteExpiredMessages(?,?) }";
+	private static final String DEF_DELETE_EXPIRED_MESSAGES_CHUNK_QUERY = "{ call Tig_MA_DeleteExpiredMessagesChunk(?,?,?) }";
+	private static final String DEF_GET_EXPIRED_MESSAGES_COUNT_QUERY = "{ call Tig_MA_GetExpiredMessagesCount(?,?) }";
+	private static final String DEF_ADD_PENDING_REMOVAL_QUERY = "{ call Tig_MA_AddPendingRemoval(?,?) }";
+	private static final String DEF_GET_PENDING_REMOVALS_QUERY = "{ call Tig_MA_GetPendingRemovals() }";
+	private static final String DEF_DELETE_REMOVED_USER_MESSAGES_QUERY = "{ call Tig_MA_DeleteRemovedUserMessages(?,?) }";
+	private static final String DEF_DELETE_UNUSED_JIDS_QUERY = "{ call Tig_MA_DeleteUnusedJids(?,?) }";
+	private static final String DEF_SET_USER_RETENTION_QUERY = "{ call Tig_MA_SetUserRetention(?,?) }";
+	private static final String DEF_GET_USER_RETENTION_PERIODS_QUERY = "{ call Tig_MA_GetUserRetentionPeriods(?) }";
+	private static final String DEF_DELETE_EXPIRED_USER_MESSAGES_QUERY = "{ call Tig_MA_DeleteExpiredUserMessages(?,?,?) }";
+	private static final String DEF_DELETE_EXPIRED_USER_MESSAGES_CHUNK_QUERY = "{ call Tig_MA_DeleteExpiredUserMessagesChunk(?,?,?,?) }";
+	private static final String DEF_CREATE_PARTITIONS_QUERY = "{ call Tig_MA_CreatePartitions(?,?) }";
+	private static final String DEF_DROP_EXPIRED_PARTITIONS_QUERY = "{ call Tig_MA_DropExpiredPartitions(?) }";
 	private static final String DEF_GET_TAGS_FOR_USER_QUERY = "{ call Tig_MA_GetTagsForUser(?,?,?,?) }";
 	private static final String DEF_GET_TAGS_FOR_USER_COUNT_QUERY = "{ call Tig_MA_GetTagsForUserCount(?,?) }";
 	@ConfigField(desc = "Query to add message to store", alias = "add-message-query")
 	protected String ADD_MESSAGE_QUERY = DEF_ADD_MESSAGE_QUERY;
+	@ConfigField(desc = "Query to add message to store within already started transaction", alias = "add-message-in-tx-query")
+	protected String ADD_MESSAGE_IN_TX_QUERY = DEF_ADD_MESSAGE_IN_TX_QUERY;
+	@ConfigField(desc = "Query to add message with owner and buddy passed as ids", alias = "add-message-by-ids-query")
+	protected String ADD_MESSAGE_BY_IDS_QUERY = DEF_ADD_MESSAGE_BY_IDS_QUERY;
+	@ConfigField(desc = "Query to retrieve id of a jid, jid is added if it does not exist", alias = "ensure-jid-id-query")
+	protected String ENSURE_JID_ID_QUERY = DEF_ENSURE_JID_ID_QUERY;
 	@ConfigField(desc = "Query to add tag to message in store", alias = "add-tag-to-message-query")
 	protected String ADD_TAG_TO_MESSAGE_QUERY = DEF_ADD_TAG_TO_MESSAGE_QUERY;
+	@ConfigField(desc = "Query to retrieve id of a tag of the owner, tag is added if it does not exist", alias = "ensure-tag-id-query")
+	protected String ENSURE_TAG_ID_QUERY = DEF_ENSURE_TAG_ID_QUERY;
+	@ConfigField(desc = "Query to add tags passed as list of ids to message in store", alias = "add-tags-to-message-by-ids-query")
+	protected String ADD_TAGS_TO_MESSAGE_BY_IDS_QUERY = DEF_ADD_TAGS_TO_MESSAGE_BY_IDS_QUERY;
 	@ConfigField(desc = "Query to delete expired messages", alias = "delete-expired-messages-query")
 	protected String DELETE_EXPIRED_MESSAGES_QUERY = DEF_DELETE_EXPIRED_MESSAGES_QUERY;
+	@ConfigField(desc = "Query to delete limited number of expired messages", alias = "delete-expired-messages-chunk-query")
+	protected String DELETE_EXPIRED_MESSAGES_CHUNK_QUERY = DEF_DELETE_EXPIRED_MESSAGES_CHUNK_QUERY;
+	@ConfigField(desc = "Query to retrieve number of expired messages", alias = "get-expired-messages-count-query")
+	protected String GET_EXPIRED_MESSAGES_COUNT_QUERY = DEF_GET_EXPIRED_MESSAGES_COUNT_QUERY;
+	@ConfigField(desc = "Query to register archive of removed user for removal", alias = "add-pending-removal-query")
+	protected String ADD_PENDING_REMOVAL_QUERY = DEF_ADD_PENDING_REMOVAL_QUERY;
+	@ConfigField(desc = "Query to retrieve users with archives registered for removal", alias = "get-pending-removals-query")
+	protected String GET_PENDING_REMOVALS_QUERY = DEF_GET_PENDING_REMOVALS_QUERY;
+	@ConfigField(desc = "Query to delete limited number of messages of removed user", alias = "delete-removed-user-messages-query")
+	protected String DELETE_REMOVED_USER_MESSAGES_QUERY = DEF_DELETE_REMOVED_USER_MESSAGES_QUERY;
+	@ConfigField(desc = "Query to delete unused jids from the next range of jids", alias = "delete-unused-jids-query")
+	protected String DELETE_UNUSED_JIDS_QUERY = DEF_DELETE_UNUSED_JIDS_QUERY;
+	@ConfigField(desc = "Query to set retention period of messages of the user", alias = "set-user-retention-query")
+	protected String SET_USER_RETENTION_QUERY = DEF_SET_USER_RETENTION_QUERY;
+	@ConfigField(desc = "Query to retrieve retention periods set by users of the domain", alias = "get-user-retention-periods-query")
+	protected String GET_USER_RETENTION_PERIODS_QUERY = DEF_GET_USER_RETENTION_PERIODS_QUERY;
+	@ConfigField(desc = "Query to delete expired messages of users with the same retention period", alias = "delete-expired-user-messages-query")
+	protected String DELETE_EXPIRED_USER_MESSAGES_QUERY = DEF_DELETE_EXPIRED_USER_MESSAGES_QUERY;
+	@ConfigField(desc = "Query to delete limited number of expired messages of users with the same retention period", alias = "delete-expired-user-messages-chunk-query")
+	protected String DELETE_EXPIRED_USER_MESSAGES_CHUNK_QUERY = DEF_DELETE_EXPIRED_USER_MESSAGES_CHUNK_QUERY;
+	@ConfigField(desc = "Query to create missing monthly partitions of messages", alias = "create-partitions-query")
+	protected String CREATE_PARTITIONS_QUERY = DEF_CREATE_PARTITIONS_QUERY;
+	@ConfigField(desc = "Query to drop partitions of expired messages", alias = "drop-expired-partitions-query")
+	protected String DROP_EXPIRED_PARTITIONS_QUERY = DEF_DROP_EXPIRED_PARTITIONS_QUERY;
 	@ConfigField(desc = "Query to retrieve number of collections", alias = "get-collections-count-query")
 	protected String GET_COLLECTIONS_COUNT_QUERY = DEF_GET_COLLECTIONS_COUNT_QUERY;
 	@ConfigField(desc = "Query to retrieve list of collections", alias = "get-collections-query")
 	protected String GET_COLLECTIONS_QUERY = DEF_GET_COLLECTIONS_QUERY;
+	@ConfigField(desc = "Query to retrieve list of collections following or preceding collection with id", alias = "get-collections-by-cursor-query")
+	protected String GET_COLLECTIONS_BY_CURSOR_QUERY = DEF_GET_COLLECTIONS_BY_CURSOR_QUERY;
 	@ConfigField(desc = "Query to retrieve message with id", alias = "get-message-query")
 	protected String GET_MESSAGE_QUERY = DEF_GET_MESSAGE_QUERY;
 	@ConfigField(desc = "Query to retrieve number of messages", alias = "get-messages-count-query")
 	protected String GET_MESSAGES_COUNT_QUERY = DEF_GET_MESSAGES_COUNT_QUERY;
 	@ConfigField(desc = "Query to retrieve list of messages", alias = "get-messages-query")
 	protected String GET_MESSAGES_QUERY = DEF_GET_MESSAGES_QUERY;
+	@ConfigField(desc = "Query to retrieve list of messages following or preceding message with id", alias = "get-messages-by-cursor-query")
+	protected String GET_MESSAGES_BY_CURSOR_QUERY = DEF_GET_MESSAGES_BY_CURSOR_QUERY;
+	@ConfigField(desc = "Query to retrieve list of messages with ids", alias = "get-messages-by-ids-query")
+	protected String GET_MESSAGES_BY_IDS_QUERY = DEF_GET_MESSAGES_BY_IDS_QUERY;
+	@ConfigField(desc = "Query to retrieve last message of each recent conversation", alias = "get-recent-conversations-query")
+	protected String GET_RECENT_CONVERSATIONS_QUERY = DEF_GET_RECENT_CONVERSATIONS_QUERY;
 	@ConfigField(desc = "Query to retrieve message possition", alias = "get-message-position-query")
 	protected String GET_MESSAGE_POSITION_QUERY = DEF_GET_MESSAGES_POSITION_QUERY;
 	@ConfigField(desc = "Query to retrieve number of tags used by user", alias = "get-tags-for-user-count-query")
@@ -109,6 +193,56 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 	private int delete_expired_timeout = DEF_DELETE_EXPIRED_QUERY_TIMEOUT_VAL;
 	@ConfigField(desc = "Store plaintext body in separate field", alias = STORE_PLAINTEXT_BODY_KEY)
 	private boolean storePlaintextBody = true;
+	@ConfigField(desc = "Store messages which XML is not shorter than this number of characters compressed, 0 disables compression", alias = "compress-messages-min-length")
+	private int compressMessagesMinLength = 0;
+	@ConfigField(desc = "Store messages in binary form which is retrieved without parsing XML", alias = "binary-messages")
+	private boolean binaryMessages = false;
+	@ConfigField(desc = "Lease whole connection for each operation instead of sharing statements", alias = LEASE_CONNECTIONS_KEY)
+	private boolean leaseConnections = false;
+	@ConfigField(desc = "Retrieve pages of messages by seeking from id of a message instead of using offsets", alias = KEYSET_PAGINATION_KEY)
+	private boolean keysetPagination = false;
+	@ConfigField(desc = "Count all messages matching query when using keyset pagination", alias = KEYSET_PAGINATION_COUNT_KEY)
+	private boolean keysetPaginationCount = true;
+	@ConfigField(desc = "Method of calculating number of all messages or collections matching a query", alias = COUNT_POLICY_KEY)
+	private CountPolicy countPolicy = CountPolicy.exact;
+	@ConfigField(desc = "Time for which calculated number of matching messages or collections is reused", alias = "count-cache-ttl")
+	private Duration countCacheTtl = Duration.ofMinutes(5);
+	@ConfigField(desc = "Size of cache of calculated numbers of matching messages or collections", alias = "count-cache-size")
+	private int countCacheSize = 10000;
+	private LRUConcurrentCache<String, CachedCount> countCache = new LRUConcurrentCache<>(countCacheSize);
+	@ConfigField(desc = "Parse and pass retrieved messages to the handler while reading results of a query", alias = "stream-items")
+	private boolean streamItems = false;
+	@ConfigField(desc = "Number of rows fetched at once while reading retrieved messages, 0 uses default of JDBC driver", alias = "items-fetch-size")
+	private int itemsFetchSize = 0;
+	// statements of which fetch size was already set, these are dropped with connections by the data repository
+	private final Map<PreparedStatement, Boolean> fetchSizeStatements = Collections.synchronizedMap(
+			new WeakHashMap<>());
+	@ConfigField(desc = "Number of months for which partitions of messages are created in advance", alias = "partitions-created-ahead")
+	private int partitionsCreatedAhead = 3;
+	// archives of these users are not returned by queries until they are removed
+	private final Set<BareJID> pendingRemovals = ConcurrentHashMap.newKeySet();
+	// id of the last jid checked by removal of unused jids
+	private volatile long unusedJidsCursor = 0;
+	// locks of handles of a data source pool which are leased by operations of this repository
+	private final Map<DataRepository, ReentrantLock> leaseLocks = new ConcurrentHashMap<>();
+	private final LongAdder leaseWaits = new LongAdder();
+	private final LongAdder leaseWaitTime = new LongAdder();
+	private final LongAdder statementLockWaits = new LongAdder();
+	private final LongAdder statementLockWaitTime = new LongAdder();
+	private final AtomicLong maxLockWaitTime = new AtomicLong();
+	@ConfigField(desc = "Size of cache of ids of jids, 0 disables cache", alias = "jid-id-cache-size")
+	private int jidIdCacheSize = 10000;
+	private LRUConcurrentCache<BareJID, Long> jidIdCache = new LRUConcurrentCache<>(jidIdCacheSize);
+	@ConfigField(desc = "Size of cache of ids of tags, 0 disables cache", alias = "tag-id-cache-size")
+	private int tagIdCacheSize = 10000;
+	private LRUConcurrentCache<TagIdKey, Long> tagIdCache = new LRUConcurrentCache<>(tagIdCacheSize);
+	@ConfigField(desc = "Number of recently archived messages of each user kept in memory to answer queries for messages following one of them, 0 disables cache", alias = "recent-items-cache-size")
+	private int recentItemsCacheSize = 0;
+	@ConfigField(desc = "Maximal size in bytes of all recently archived messages kept in memory", alias = "recent-items-cache-max-bytes")
+	private long recentItemsCacheMaxBytes = 32 * 1024 * 1024;
+	private RecentItemsCache recentItemsCache = null;
+	private final LongAdder recentItemsCacheHits = new LongAdder();
+	private final LongAdder recentItemsCacheMisses = new LongAdder();
 
 	//~--- methods --------------------------------------------------------------
 
@@ -117,25 +251,204 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 		try {
 			initPreparedStatements(data_repo);
 			this.data_repo = data_repo;
+			leaseLocks.clear();
 		} catch (SQLException ex) {
 			throw new RuntimeException("MessageArchiveDB initialization exception", ex);
 		}
 	}
 
+	public void setKeysetPagination(boolean keysetPagination) {
+		this.keysetPagination = keysetPagination;
+	}
+
+	public void setJidIdCacheSize(int jidIdCacheSize) {
+		this.jidIdCacheSize = jidIdCacheSize;
+		if (jidIdCacheSize <= 0) {
+			jidIdCache = null;
+		} else if (jidIdCache == null || jidIdCache.limit() != jidIdCacheSize) {
+			jidIdCache = new LRUConcurrentCache<>(jidIdCacheSize);
+		}
+	}
+
+	public void setTagIdCacheSize(int tagIdCacheSize) {
+		this.tagIdCacheSize = tagIdCacheSize;
+		if (tagIdCacheSize <= 0) {
+			tagIdCache = null;
+		} else if (tagIdCache == null || tagIdCache.limit() != tagIdCacheSize) {
+			tagIdCache = new LRUConcurrentCache<>(tagIdCacheSize);
+		}
+	}
+
+	public void setCountCacheSize(int countCacheSize) {
+		this.countCacheSize = countCacheSize;
+		if (countCacheSize <= 0) {
+			countCache = null;
+		} else if (countCache == null || countCache.limit() != countCacheSize) {
+			countCache = new LRUConcurrentCache<>(countCacheSize);
+		}
+	}
+
+	public void setRecentItemsCacheSize(int recentItemsCacheSize) {
+		this.recentItemsCacheSize = recentItemsCacheSize;
+		initRecentItemsCache();
+	}
+
+	public void setRecentItemsCacheMaxBytes(long recentItemsCacheMaxBytes) {
+		this.recentItemsCacheMaxBytes = recentItemsCacheMaxBytes;
+		initRecentItemsCache();
+	}
+
+	private void initRecentItemsCache() {
+		RecentItemsCache cache = recentItemsCache;
+		if (recentItemsCacheSize <= 0) {
+			recentItemsCache = null;
+		} else if (cache == null || cache.limit() != recentItemsCacheSize ||
+				cache.maxBytes() != recentItemsCacheMaxBytes) {
+			recentItemsCache = new RecentItemsCache(recentItemsCacheSize, recentItemsCacheMaxBytes);
+		}
+	}
+
 	@Override
 	public void archiveMessage(BareJID owner, JID buddy, Date timestamp, Element msg, String stableId,
 							   Set<String> tags) {
-		archiveMessage(owner, buddy.getBareJID(), timestamp, msg, stableId, tags, null);
+		archiveMessage(new ArchivedMessage(owner, buddy, timestamp, msg, stableId, tags));
+	}
+
+	@Override
+	public void archiveMessage(ArchivedMessage message) {
+		BareJID owner = message.getOwner();
+		BareJID buddy = message.getBuddy().getBareJID();
+		MessageContent content = message.getContent();
+		archiveMessage(owner, buddy, message.getTimestamp(), content, message.getStableId(),
+					   extractStanzaId(content), findRefStableId(owner, buddy, null), message.getTags(), null);
+	}
+
+	@Override
+	public void archiveMessages(List<ArchivedMessage> messages) throws TigaseDBException {
+		if (messages.isEmpty()) {
+			return;
+		}
+
+		for (ArchivedMessage message : messages) {
+			cacheRecentItem(message.getOwner(), message.getBuddy().getBareJID(), message.getTimestamp(),
+							message.getContent(), message.getStableId(),
+							findRefStableId(message.getOwner(), message.getBuddy().getBareJID(), null));
+		}
+
+		BareJID handleKey = messages.get(0).getOwner();
+		// transaction requires single connection, so we need to take it from the pool if it is not leased
+		boolean leased = isLeasingConnections();
+		DataRepository repo = null;
+		try {
+			repo = leased ? leaseRepoHandle(handleKey) : data_repo.takeRepoHandle(handleKey);
+			synchronized (repo) {
+				if (jidIdCache == null) {
+					storeMessages(repo, handleKey, messages, false);
+				} else {
+					try {
+						storeMessages(repo, handleKey, messages, true);
+					} catch (SQLException ex) {
+						if (!isMissingJidError(ex)) {
+							throw ex;
+						}
+						// jid could be removed from the database after it was cached (ie. by removal of expired messages)
+						log.log(Level.FINEST, "could not store batch using cached jid ids, retrying with jids", ex);
+						for (ArchivedMessage message : messages) {
+							invalidateJidId(message.getOwner());
+							invalidateJidId(message.getBuddy().getBareJID());
+						}
+						storeMessages(repo, handleKey, messages, false);
+					}
+				}
+			}
+		} catch (SQLException ex) {
+			// cached ids may be outdated, so we need to drop them before messages will be stored again
+			for (ArchivedMessage message : messages) {
+				invalidateJidId(message.getOwner());
+				invalidateJidId(message.getBuddy().getBareJID());
+				invalidateRecentItems(message.getOwner());
+			}
+			throw new TigaseDBException("Could not store batch of " + messages.size() + " messages", ex);
+		} finally {
+			if (leased) {
+				returnRepoHandle(repo);
+			} else if (repo != null) {
+				data_repo.releaseRepoHandle(repo);
+			}
+		}
+
+		// tags are added after messages are committed as procedures adding them may manage transactions on their own
+		for (ArchivedMessage message : messages) {
+			repo = null;
+			try {
+				repo = leaseRepoHandle(message.getOwner());
+				addTagsToMessage(repo, message.getOwner(), message.getStableId(), message.getTags());
+			} catch (SQLException ex) {
+				log.log(Level.WARNING, "Problem adding tags to message " + message.getStableId() + " of " +
+						message.getOwner(), ex);
+			} finally {
+				returnRepoHandle(repo);
+			}
+		}
+	}
+
+	private void storeMessages(DataRepository repo, BareJID handleKey, List<ArchivedMessage> messages, boolean byIds)
+			throws SQLException {
+		// ids need to be resolved before transaction is started as procedure adding jid may commit
+		long[] jidIds = null;
+		if (byIds) {
+			jidIds = new long[messages.size() * 2];
+			for (int j = 0; j < messages.size(); j++) {
+				ArchivedMessage message = messages.get(j);
+				jidIds[2 * j] = getJidId(repo, message.getOwner());
+				jidIds[2 * j + 1] = getJidId(repo, message.getBuddy().getBareJID());
+			}
+		}
+		repo.startTransaction();
+		try {
+			PreparedStatement add_message_st = repo.getPreparedStatement(handleKey, jidIds != null
+																					   ? ADD_MESSAGE_BY_IDS_QUERY
+																					   : ADD_MESSAGE_IN_TX_QUERY);
+			long waitStart = System.nanoTime();
+			synchronized (add_message_st) {
+				statementLockAcquired(waitStart);
+				for (int j = 0; j < messages.size(); j++) {
+					ArchivedMessage message = messages.get(j);
+					BareJID owner = message.getOwner();
+					BareJID buddy = message.getBuddy().getBareJID();
+					MessageContent content = message.getContent();
+					if (jidIds != null) {
+						setAddMessageByIdsParams(add_message_st, jidIds[2 * j], jidIds[2 * j + 1],
+												 message.getTimestamp(), content, message.getStableId(),
+												 extractStanzaId(content), findRefStableId(owner, buddy, null));
+					} else {
+						setAddMessageParams(add_message_st, owner, buddy, message.getTimestamp(), content,
+											message.getStableId(), extractStanzaId(content),
+											findRefStableId(owner, buddy, null), null);
+					}
+					add_message_st.executeUpdate();
+				}
+			}
+			repo.commit();
+		} catch (SQLException ex) {
+			repo.rollback();
+			throw ex;
+		} finally {
+			repo.endTransaction();
+		}
 	}
 
 	@Override
 	public void deleteExpiredMessages(BareJID owner, LocalDateTime before) throws TigaseDBException {
+		DataRepository repo = null;
 		try {
-			PreparedStatement delete_expired_msgs_st = data_repo.getPreparedStatement(owner,
+			repo = leaseRepoHandle(owner);
+			PreparedStatement delete_expired_msgs_st = repo.getPreparedStatement(owner,
 																					  DELETE_EXPIRED_MESSAGES_QUERY);
-			long timestamp_long = before.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-			Timestamp ts = new java.sql.Timestamp(timestamp_long);
+			Timestamp ts = toTimestamp(before);
+			long waitStart = System.nanoTime();
 			synchronized (delete_expired_msgs_st) {
+				statementLockAcquired(waitStart);
 				if (log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST,
 							"executing removal of expired messages for domain {0} with timeout set to {1} seconds",
@@ -146,8 +459,407 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 				data_repo.setTimestamp(delete_expired_msgs_st, 2, ts);
 				delete_expired_msgs_st.executeUpdate();
 			}
+			invalidateRecentItems(before);
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not remove expired messages", ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public int deleteExpiredMessages(BareJID owner, LocalDateTime before, int limit) throws TigaseDBException {
+		DataRepository repo = null;
+		ResultSet rs = null;
+		try {
+			repo = leaseRepoHandle(owner);
+			PreparedStatement stmt = repo.getPreparedStatement(owner, DELETE_EXPIRED_MESSAGES_CHUNK_QUERY);
+			long waitStart = System.nanoTime();
+			synchronized (stmt) {
+				statementLockAcquired(waitStart);
+				try {
+					stmt.setQueryTimeout(delete_expired_timeout);
+					stmt.setString(1, owner.toString());
+					data_repo.setTimestamp(stmt, 2, toTimestamp(before));
+					stmt.setInt(3, limit);
+					rs = stmt.executeQuery();
+					invalidateRecentItems(before);
+					return rs.next() ? rs.getInt(1) : 0;
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Could not remove expired messages", ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public long getExpiredMessagesCount(BareJID owner, LocalDateTime before) throws TigaseDBException {
+		DataRepository repo = null;
+		ResultSet rs = null;
+		try {
+			repo = leaseRepoHandle(owner);
+			PreparedStatement stmt = repo.getPreparedStatement(owner, GET_EXPIRED_MESSAGES_COUNT_QUERY);
+			long waitStart = System.nanoTime();
+			synchronized (stmt) {
+				statementLockAcquired(waitStart);
+				try {
+					stmt.setQueryTimeout(delete_expired_timeout);
+					stmt.setString(1, owner.toString());
+					data_repo.setTimestamp(stmt, 2, toTimestamp(before));
+					rs = stmt.executeQuery();
+					return rs.next() ? rs.getLong(1) : 0;
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not retrieve number of expired messages", ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public void addPendingRemoval(BareJID owner) throws TigaseDBException {
+		DataRepository repo = null;
+		try {
+			repo = leaseRepoHandle(owner);
+			PreparedStatement stmt = repo.getPreparedStatement(owner, ADD_PENDING_REMOVAL_QUERY);
+			long waitStart = System.nanoTime();
+			synchronized (stmt) {
+				statementLockAcquired(waitStart);
+				stmt.setString(1, owner.toString());
+				data_repo.setTimestamp(stmt, 2, new Timestamp(System.currentTimeMillis()));
+				stmt.executeUpdate();
+			}
+			pendingRemovals.add(owner);
+			invalidateRecentItems(owner);
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not register archive of " + owner + " for removal", ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public Set<BareJID> getPendingRemovals() throws TigaseDBException {
+		DataRepository repo = null;
+		ResultSet rs = null;
+		try {
+			repo = leaseRepoHandle(UNUSED_JIDS_KEY);
+			PreparedStatement stmt = repo.getPreparedStatement(UNUSED_JIDS_KEY, GET_PENDING_REMOVALS_QUERY);
+			Set<BareJID> pending = new HashSet<>();
+			long waitStart = System.nanoTime();
+			synchronized (stmt) {
+				statementLockAcquired(waitStart);
+				try {
+					rs = stmt.executeQuery();
+					while (rs.next()) {
+						pending.add(BareJID.bareJIDInstanceNS(rs.getString(1)));
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+			// removals might have been registered by other cluster nodes
+			pendingRemovals.addAll(pending);
+			return pending;
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not retrieve archives registered for removal", ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public int deleteRemovedUserMessages(BareJID owner, int limit) throws TigaseDBException {
+		DataRepository repo = null;
+		ResultSet rs = null;
+		try {
+			repo = leaseRepoHandle(owner);
+			PreparedStatement stmt = repo.getPreparedStatement(owner, DELETE_REMOVED_USER_MESSAGES_QUERY);
+			int removed = 0;
+			long waitStart = System.nanoTime();
+			synchronized (stmt) {
+				statementLockAcquired(waitStart);
+				try {
+					stmt.setQueryTimeout(delete_expired_timeout);
+					stmt.setString(1, owner.toString());
+					stmt.setInt(2, limit);
+					rs = stmt.executeQuery();
+					if (rs.next()) {
+						removed = rs.getInt(1);
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+			if (removed < limit) {
+				pendingRemovals.remove(owner);
+				// procedure removes jid of the user if it is no longer used
+				invalidateJidId(owner);
+				invalidateRecentItems(owner);
+			}
+			return removed;
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not remove messages of removed user " + owner, ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public int deleteUnusedJids(int limit, long deadline) throws TigaseDBException {
+		DataRepository repo = null;
+		ResultSet rs = null;
+		int removed = 0;
+		try {
+			repo = leaseRepoHandle(UNUSED_JIDS_KEY);
+			PreparedStatement stmt = repo.getPreparedStatement(UNUSED_JIDS_KEY, DELETE_UNUSED_JIDS_QUERY);
+			boolean completed = false;
+			while (!completed && System.currentTimeMillis() < deadline) {
+				long waitStart = System.nanoTime();
+				synchronized (stmt) {
+					statementLockAcquired(waitStart);
+					try {
+						stmt.setQueryTimeout(delete_expired_timeout);
+						stmt.setLong(1, unusedJidsCursor);
+						stmt.setInt(2, limit);
+						rs = stmt.executeQuery();
+						Long lastId = null;
+						if (rs.next()) {
+							lastId = rs.getLong(1);
+							if (rs.wasNull()) {
+								lastId = null;
+							}
+							removed += rs.getInt(2);
+						}
+						if (lastId == null) {
+							// all jids were checked, next removal starts from the beginning
+							unusedJidsCursor = 0;
+							completed = true;
+						} else {
+							unusedJidsCursor = lastId;
+						}
+					} finally {
+						data_repo.release(null, rs);
+					}
+				}
+			}
+			return removed;
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not remove unused jids", ex);
+		} finally {
+			returnRepoHandle(repo);
+			if (removed > 0) {
+				invalidateJidIds();
+			}
+		}
+	}
+
+	@Override
+	public void setUserRetention(BareJID owner, Integer days) throws TigaseDBException {
+		DataRepository repo = null;
+		try {
+			repo = leaseRepoHandle(owner);
+			PreparedStatement stmt = repo.getPreparedStatement(owner, SET_USER_RETENTION_QUERY);
+			long waitStart = System.nanoTime();
+			synchronized (stmt) {
+				statementLockAcquired(waitStart);
+				stmt.setString(1, owner.toString());
+				if (days == null) {
+					stmt.setNull(2, Types.INTEGER);
+				} else {
+					stmt.setInt(2, days);
+				}
+				stmt.executeUpdate();
+			}
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not set retention period of messages of " + owner, ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public Set<Integer> getUserRetentionPeriods(BareJID domain) throws TigaseDBException {
+		DataRepository repo = null;
+		ResultSet rs = null;
+		try {
+			repo = leaseRepoHandle(domain);
+			PreparedStatement stmt = repo.getPreparedStatement(domain, GET_USER_RETENTION_PERIODS_QUERY);
+			Set<Integer> periods = new TreeSet<>();
+			long waitStart = System.nanoTime();
+			synchronized (stmt) {
+				statementLockAcquired(waitStart);
+				try {
+					stmt.setString(1, domain.toString());
+					rs = stmt.executeQuery();
+					while (rs.next()) {
+						periods.add(rs.getInt(1));
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+			return periods;
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not retrieve retention periods of users of " + domain, ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public void deleteExpiredUserMessages(BareJID domain, int days, LocalDateTime before) throws TigaseDBException {
+		DataRepository repo = null;
+		try {
+			repo = leaseRepoHandle(domain);
+			PreparedStatement stmt = repo.getPreparedStatement(domain, DELETE_EXPIRED_USER_MESSAGES_QUERY);
+			long waitStart = System.nanoTime();
+			synchronized (stmt) {
+				statementLockAcquired(waitStart);
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST,
+							"executing removal of messages expired after {0} days for domain {1} with timeout set to {2} seconds",
+							new Object[]{days, domain, delete_expired_timeout});
+				}
+				stmt.setQueryTimeout(delete_expired_timeout);
+				stmt.setString(1, domain.toString());
+				stmt.setInt(2, days);
+				data_repo.setTimestamp(stmt, 3, toTimestamp(before));
+				stmt.executeUpdate();
+			}
+			invalidateRecentItems(before);
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not remove expired messages of users of " + domain, ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public int deleteExpiredUserMessages(BareJID domain, int days, LocalDateTime before, int limit)
+			throws TigaseDBException {
+		DataRepository repo = null;
+		ResultSet rs = null;
+		try {
+			repo = leaseRepoHandle(domain);
+			PreparedStatement stmt = repo.getPreparedStatement(domain, DELETE_EXPIRED_USER_MESSAGES_CHUNK_QUERY);
+			long waitStart = System.nanoTime();
+			synchronized (stmt) {
+				statementLockAcquired(waitStart);
+				try {
+					stmt.setQueryTimeout(delete_expired_timeout);
+					stmt.setString(1, domain.toString());
+					stmt.setInt(2, days);
+					data_repo.setTimestamp(stmt, 3, toTimestamp(before));
+					stmt.setInt(4, limit);
+					rs = stmt.executeQuery();
+					invalidateRecentItems(before);
+					return rs.next() ? rs.getInt(1) : 0;
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not remove expired messages of users of " + domain, ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public int createPartitions() throws TigaseDBException {
+		if (!isPartitioningSupported(data_repo)) {
+			return 0;
+		}
+		DataRepository repo = null;
+		try {
+			repo = leaseRepoHandle(PARTITIONS_KEY);
+			LocalDateTime now = LocalDateTime.now(ZoneId.of("Z"));
+			int created = executePartitionsQuery(repo, CREATE_PARTITIONS_QUERY, toTimestamp(now),
+												 toTimestamp(now.plusMonths(partitionsCreatedAhead)));
+			if (created > 0) {
+				log.log(Level.FINE, "created {0} partitions of messages", created);
+			}
+			return created;
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not create partitions", ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public int deleteExpiredPartitions(LocalDateTime before) throws TigaseDBException {
+		if (!isPartitioningSupported(data_repo)) {
+			return 0;
+		}
+		DataRepository repo = null;
+		try {
+			repo = leaseRepoHandle(PARTITIONS_KEY);
+			int dropped = executePartitionsQuery(repo, DROP_EXPIRED_PARTITIONS_QUERY, toTimestamp(before));
+			if (dropped > 0) {
+				// messages of some jids might have been removed
+				invalidateJidIds();
+				invalidateRecentItems(before);
+			}
+			return dropped;
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not remove expired partitions", ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	private int executePartitionsQuery(DataRepository repo, String query, Timestamp... params) throws SQLException {
+		PreparedStatement stmt = repo.getPreparedStatement(PARTITIONS_KEY, query);
+		ResultSet rs = null;
+		long waitStart = System.nanoTime();
+		synchronized (stmt) {
+			statementLockAcquired(waitStart);
+			try {
+				stmt.setQueryTimeout(delete_expired_timeout);
+				for (int i = 0; i < params.length; i++) {
+					data_repo.setTimestamp(stmt, i + 1, params[i]);
+				}
+				rs = stmt.executeQuery();
+				return rs.next() ? rs.getInt(1) : 0;
+			} finally {
+				data_repo.release(null, rs);
+			}
+		}
+	}
+
+	private static Timestamp toTimestamp(LocalDateTime timestamp) {
+		return new Timestamp(timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+	}
+
+	@Override
+	public void collectStatistics(String compName, StatisticsList list) {
+		long statementLockWaits = this.statementLockWaits.sum();
+		list.add(compName, "Statement lock wait time (avg)",
+				 statementLockWaits > 0 ? ((float) statementLockWaitTime.sum()) / statementLockWaits / 1000000 : -1,
+				 Level.FINE);
+		if (isLeasingConnections()) {
+			long leaseWaits = this.leaseWaits.sum();
+			list.add(compName, "Connection lease wait time (avg)",
+					 leaseWaits > 0 ? ((float) leaseWaitTime.sum()) / leaseWaits / 1000000 : -1, Level.FINE);
+			list.add(compName, "Leased connections",
+					 leaseLocks.values().stream().filter(ReentrantLock::isLocked).count(), Level.FINER);
+		}
+		list.add(compName, "Lock wait time (max)", maxLockWaitTime.get() / 1000000, Level.FINE);
+		RecentItemsCache recentItemsCache = this.recentItemsCache;
+		if (recentItemsCache != null) {
+			list.add(compName, "Recent items cache size", recentItemsCache.size(), Level.FINE);
+			list.add(compName, "Recent items cache bytes", recentItemsCache.bytes(), Level.FINER);
+			list.add(compName, "Recent items cache hits", recentItemsCacheHits.sum(), Level.FINE);
+			list.add(compName, "Recent items cache misses", recentItemsCacheMisses.sum(), Level.FINE);
 		}
 	}
 
@@ -158,33 +870,63 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 
 	@Override
 	public void queryCollections(Q crit, CollectionHandler<Q, MessageArchiveRepository.Collection> collectionHandler) throws TigaseDBException {
+		DataRepository repo = null;
 		try {
 			log.log(Level.FINEST, () -> "Querying collections: crit: " + crit);
-			Integer count = getCollectionsCount(crit);
-			if (count == null) {
-				count = 0;
+			if (pendingRemovals.contains(crit.getQuestionerJID().getBareJID())) {
+				calculateOffsetAndPosition(crit, 0, null, null, Range.FULL);
+				return;
 			}
+			repo = leaseRepoHandle(crit.getQuestionerJID().getBareJID());
+			if (isCollectionsKeysetPaginationPossible(crit)) {
+				queryCollectionsByCursor(repo, crit, collectionHandler);
+				return;
+			}
+			DataRepository countRepo = repo;
+			Integer count = getCount(crit, "collections", crit.getRsm().hasBefore(), () -> {
+				Integer collectionsCount = getCollectionsCount(countRepo, crit);
+				return collectionsCount == null ? 0 : collectionsCount;
+			});
 
 			Integer after = getColletionPosition(crit.getRsm().getAfter(), crit);
 			Integer before = getColletionPosition(crit.getRsm().getBefore(), crit);
 
-			calculateOffsetAndPosition(crit, count, before, after, Range.FULL);
+			calculatePageOffset(crit, count, before, after, Range.FULL);
 
-			getCollectionsItems(crit, collectionHandler);
+			getCollectionsItems(repo, crit, collectionHandler);
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Cound not retrieve collections", ex);
+		} finally {
+			returnRepoHandle(repo);
 		}
 	}
 
 	@Override
 	public void queryItems(Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler)
 			throws TigaseDBException, ComponentException {
+		DataRepository repo = null;
 		try {
 			log.log(Level.FINEST, () -> "Querying items, criteria: " + crit);
+			if (pendingRemovals.contains(crit.getQuestionerJID().getBareJID())) {
+				// archive of the removed user is not removed yet
+				if (!crit.getIds().isEmpty()) {
+					throw new ComponentException(Authorization.ITEM_NOT_FOUND,
+												 "Item with ID '" + crit.getIds().iterator().next() + "' does not exist.");
+				}
+				calculateOffsetAndPosition(crit, 0, null, null, Range.FULL);
+				return;
+			}
+			if (crit.getIds().isEmpty() && isKeysetPaginationPossible(crit) && queryItemsFromCache(crit, itemHandler)) {
+				return;
+			}
+			// all queries required to return a page are executed using the same connection
+			repo = leaseRepoHandle(crit.getQuestionerJID().getBareJID());
 			if (!crit.getIds().isEmpty()) {
+				Map<String, MAMRepository.Item> found = getItems(repo, crit);
+				// items are returned in the order in which they were requested
 				ArrayDeque<MAMRepository.Item> items = new ArrayDeque<>();
 				for (String id : crit.getIds()) {
-					MAMRepository.Item item = getItem(crit, id);
+					MAMRepository.Item item = found.get(id.toLowerCase());
 					if (item == null) {
 						throw new ComponentException(Authorization.ITEM_NOT_FOUND, "Item with ID '" + id + "' does not exist.");
 					}
@@ -193,44 +935,117 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 				for (MAMRepository.Item item : items) {
 					itemHandler.itemFound(crit, item);
 				}
+			} else if (isKeysetPaginationPossible(crit)) {
+				queryItemsByCursor(repo, crit, itemHandler);
 			} else {
-				Integer count = getItemsCount(crit);
-				if (count == null) {
-					count = 0;
-				}
+				// position of the last page can be calculated only from number of all matching messages
+				Integer count = getCount(repo, crit, crit.getRsm().hasBefore() || isItemIdSet(crit.getBeforeId()));
 
-				Range range = MAMUtil.rangeFromPositions(getItemPosition(crit.getAfterId(), crit), getItemPosition(crit.getBeforeId(), crit));
+				Range range = MAMUtil.rangeFromPositions(getItemPosition(repo, crit.getAfterId(), crit),
+														 getItemPosition(repo, crit.getBeforeId(), crit));
 
-				Integer afterPosRSM = getItemPosition(crit.getRsm().getAfter(), crit);
-				Integer beforePosRSM = getItemPosition(crit.getRsm().getBefore(), crit);
+				Integer afterPosRSM = getItemPosition(repo, crit.getRsm().getAfter(), crit);
+				Integer beforePosRSM = getItemPosition(repo, crit.getRsm().getBefore(), crit);
 
-				calculateOffsetAndPosition(crit, count, beforePosRSM, afterPosRSM, range);
+				calculatePageOffset(crit, count, beforePosRSM, afterPosRSM, range);
 
-				getItemsItems(crit, range, itemHandler);
+				getItemsItems(repo, crit, range, itemHandler);
 			}
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Cound not retrieve items", ex);
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public void queryRecentConversations(Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler)
+			throws TigaseDBException, ComponentException {
+		RSM rsm = crit.getRsm();
+		if (crit.getWith() != null || crit.getStart() != null || crit.getEnd() != null || !crit.getIds().isEmpty() ||
+				!crit.getTags().isEmpty() || !crit.getContains().isEmpty() || isItemIdSet(crit.getAfterId()) ||
+				isItemIdSet(crit.getBeforeId()) || isItemIdSet(rsm.getAfter()) ||
+				(rsm.getIndex() != null && rsm.getIndex() > 0)) {
+			throw new ComponentException(Authorization.BAD_REQUEST,
+										 "Recent conversations may only be limited and paged using RSM before");
+		}
+		DataRepository repo = null;
+		try {
+			log.log(Level.FINEST, () -> "Querying recent conversations, criteria: " + crit);
+			rsm.setIndex(null);
+			rsm.setCount(null);
+			if (pendingRemovals.contains(crit.getQuestionerJID().getBareJID())) {
+				return;
+			}
+			repo = leaseRepoHandle(crit.getQuestionerJID().getBareJID());
+			ItemCursor before = getItemCursor(repo, crit, rsm.getBefore());
+
+			// conversations are retrieved starting from the most recent one, but passed in chronological order
+			ArrayDeque<Item> results = new ArrayDeque<>();
+			if (rsm.getMax() > 0) {
+				ResultSet rs = null;
+				BareJID owner = crit.getQuestionerJID().getBareJID();
+				PreparedStatement get_conversations_st = repo.getPreparedStatement(owner, GET_RECENT_CONVERSATIONS_QUERY);
+				long waitStart = System.nanoTime();
+				synchronized (get_conversations_st) {
+					statementLockAcquired(waitStart);
+					try {
+						int i = 1;
+						get_conversations_st.setString(i++, owner.toString());
+						data_repo.setTimestamp(get_conversations_st, i++, before == null ? null : before.ts);
+						get_conversations_st.setString(i++, before == null ? null : before.stableId);
+						get_conversations_st.setInt(i++, rsm.getMax());
+
+						rs = get_conversations_st.executeQuery();
+						while (rs.next()) {
+							Item item = newItemInstance();
+							item.read(data_repo, rs, crit);
+							results.offerFirst(item);
+						}
+					} finally {
+						data_repo.release(null, rs);
+					}
+				}
+			}
+
+			ItemsDispatcher dispatcher = new ItemsDispatcher(crit, itemHandler);
+			Item item;
+			while ((item = results.poll()) != null) {
+				dispatcher.itemFound(item);
+			}
+			dispatcher.finish();
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not retrieve recent conversations", ex);
+		} finally {
+			returnRepoHandle(repo);
 		}
 	}
 
 	@Override
 	public void removeItems(BareJID owner, String withJid, Date start, Date end) throws TigaseDBException {
+		DataRepository repo = null;
 		try {
-			PreparedStatement remove_msgs_st = data_repo.getPreparedStatement(owner, REMOVE_MESSAGES_QUERY);
+			repo = leaseRepoHandle(owner);
+			PreparedStatement remove_msgs_st = repo.getPreparedStatement(owner, REMOVE_MESSAGES_QUERY);
 
+			long waitStart = System.nanoTime();
 			synchronized (remove_msgs_st) {
-				synchronized (remove_msgs_st) {
-					remove_msgs_st.setString(1, owner.toString());
-					remove_msgs_st.setString(2, withJid);
-					data_repo.setTimestamp(remove_msgs_st, 3,
-										   start == null ? null : new java.sql.Timestamp(start.getTime()));
-					data_repo.setTimestamp(remove_msgs_st, 4,
-										   end == null ? null : new java.sql.Timestamp(end.getTime()));
-					remove_msgs_st.executeUpdate();
-				}
+				statementLockAcquired(waitStart);
+				remove_msgs_st.setString(1, owner.toString());
+				remove_msgs_st.setString(2, withJid);
+				data_repo.setTimestamp(remove_msgs_st, 3,
+									   start == null ? null : new java.sql.Timestamp(start.getTime()));
+				data_repo.setTimestamp(remove_msgs_st, 4,
+									   end == null ? null : new java.sql.Timestamp(end.getTime()));
+				remove_msgs_st.executeUpdate();
 			}
+			invalidateRecentItems(owner);
+			// procedure removes jids which are no longer used
+			invalidateJidIds();
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Cound not remove items", ex);
+		} finally {
+			returnRepoHandle(repo);
 		}
 	}
 
@@ -239,13 +1054,20 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 	@Override
 	public List<String> getTags(BareJID owner, String startsWith, Q crit) throws TigaseDBException {
 		List<String> results = new ArrayList<String>();
+		if (pendingRemovals.contains(owner)) {
+			return results;
+		}
+		DataRepository repo = null;
 		try {
+			repo = leaseRepoHandle(owner);
 			ResultSet rs = null;
 			int count = 0;
 			startsWith = startsWith + "%";
 
-			PreparedStatement get_tags_count_st = data_repo.getPreparedStatement(owner, GET_TAGS_FOR_USER_COUNT_QUERY);
+			PreparedStatement get_tags_count_st = repo.getPreparedStatement(owner, GET_TAGS_FOR_USER_COUNT_QUERY);
+			long waitStart = System.nanoTime();
 			synchronized (get_tags_count_st) {
+				statementLockAcquired(waitStart);
 				try {
 					get_tags_count_st.setString(1, owner.toString());
 					get_tags_count_st.setString(2, startsWith);
@@ -263,8 +1085,10 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 			calculateOffsetAndPosition(crit, count, beforeStr == null ? null : Integer.parseInt(beforeStr),
 									   afterStr == null ? null : Integer.parseInt(afterStr), Range.FULL);
 
-			PreparedStatement get_tags_st = data_repo.getPreparedStatement(owner, GET_TAGS_FOR_USER_QUERY);
+			PreparedStatement get_tags_st = repo.getPreparedStatement(owner, GET_TAGS_FOR_USER_QUERY);
+			waitStart = System.nanoTime();
 			synchronized (get_tags_st) {
+				statementLockAcquired(waitStart);
 				try {
 					int i = 1;
 					get_tags_st.setString(i++, owner.toString());
@@ -290,6 +1114,8 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 			}
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Could not retrieve known tags from database", ex);
+		} finally {
+			returnRepoHandle(repo);
 		}
 
 		return results;
@@ -318,69 +1144,421 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 		return (Q) new QueryCriteria();
 	}
 
+	protected boolean isPartitioningSupported(DataRepository data_repo) {
+		switch (data_repo.getDatabaseType()) {
+			case mysql:
+			case postgresql:
+				return true;
+			default:
+				return false;
+		}
+	}
+
 	protected void initPreparedStatements(DataRepository data_repo) throws SQLException {
 		data_repo.initPreparedStatement(GET_MESSAGE_QUERY, GET_MESSAGE_QUERY);
 		data_repo.initPreparedStatement(GET_MESSAGES_QUERY, GET_MESSAGES_QUERY);
+		data_repo.initPreparedStatement(GET_MESSAGES_BY_CURSOR_QUERY, GET_MESSAGES_BY_CURSOR_QUERY);
+		data_repo.initPreparedStatement(GET_MESSAGES_BY_IDS_QUERY, GET_MESSAGES_BY_IDS_QUERY);
+		data_repo.initPreparedStatement(GET_RECENT_CONVERSATIONS_QUERY, GET_RECENT_CONVERSATIONS_QUERY);
 		data_repo.initPreparedStatement(GET_MESSAGES_COUNT_QUERY, GET_MESSAGES_COUNT_QUERY);
 		data_repo.initPreparedStatement(GET_MESSAGE_POSITION_QUERY, GET_MESSAGE_POSITION_QUERY);
 		data_repo.initPreparedStatement(GET_COLLECTIONS_QUERY, GET_COLLECTIONS_QUERY);
 		data_repo.initPreparedStatement(GET_COLLECTIONS_COUNT_QUERY, GET_COLLECTIONS_COUNT_QUERY);
+		data_repo.initPreparedStatement(GET_COLLECTIONS_BY_CURSOR_QUERY, GET_COLLECTIONS_BY_CURSOR_QUERY);
 		data_repo.initPreparedStatement(ADD_MESSAGE_QUERY, ADD_MESSAGE_QUERY);
+		data_repo.initPreparedStatement(ADD_MESSAGE_IN_TX_QUERY, ADD_MESSAGE_IN_TX_QUERY);
+		data_repo.initPreparedStatement(ADD_MESSAGE_BY_IDS_QUERY, ADD_MESSAGE_BY_IDS_QUERY);
+		data_repo.initPreparedStatement(ENSURE_JID_ID_QUERY, ENSURE_JID_ID_QUERY);
 		data_repo.initPreparedStatement(ADD_TAG_TO_MESSAGE_QUERY, ADD_TAG_TO_MESSAGE_QUERY);
+		data_repo.initPreparedStatement(ENSURE_TAG_ID_QUERY, ENSURE_TAG_ID_QUERY);
+		data_repo.initPreparedStatement(ADD_TAGS_TO_MESSAGE_BY_IDS_QUERY, ADD_TAGS_TO_MESSAGE_BY_IDS_QUERY);
 		data_repo.initPreparedStatement(REMOVE_MESSAGES_QUERY, REMOVE_MESSAGES_QUERY);
 		data_repo.initPreparedStatement(DELETE_EXPIRED_MESSAGES_QUERY, DELETE_EXPIRED_MESSAGES_QUERY);
+		data_repo.initPreparedStatement(DELETE_EXPIRED_MESSAGES_CHUNK_QUERY, DELETE_EXPIRED_MESSAGES_CHUNK_QUERY);
+		data_repo.initPreparedStatement(GET_EXPIRED_MESSAGES_COUNT_QUERY, GET_EXPIRED_MESSAGES_COUNT_QUERY);
+		data_repo.initPreparedStatement(DELETE_UNUSED_JIDS_QUERY, DELETE_UNUSED_JIDS_QUERY);
+		data_repo.initPreparedStatement(ADD_PENDING_REMOVAL_QUERY, ADD_PENDING_REMOVAL_QUERY);
+		data_repo.initPreparedStatement(GET_PENDING_REMOVALS_QUERY, GET_PENDING_REMOVALS_QUERY);
+		data_repo.initPreparedStatement(DELETE_REMOVED_USER_MESSAGES_QUERY, DELETE_REMOVED_USER_MESSAGES_QUERY);
+		data_repo.initPreparedStatement(SET_USER_RETENTION_QUERY, SET_USER_RETENTION_QUERY);
+		data_repo.initPreparedStatement(GET_USER_RETENTION_PERIODS_QUERY, GET_USER_RETENTION_PERIODS_QUERY);
+		data_repo.initPreparedStatement(DELETE_EXPIRED_USER_MESSAGES_QUERY, DELETE_EXPIRED_USER_MESSAGES_QUERY);
+		data_repo.initPreparedStatement(DELETE_EXPIRED_USER_MESSAGES_CHUNK_QUERY,
+										DELETE_EXPIRED_USER_MESSAGES_CHUNK_QUERY);
+		if (isPartitioningSupported(data_repo)) {
+			data_repo.initPreparedStatement(CREATE_PARTITIONS_QUERY, CREATE_PARTITIONS_QUERY);
+			data_repo.initPreparedStatement(DROP_EXPIRED_PARTITIONS_QUERY, DROP_EXPIRED_PARTITIONS_QUERY);
+		}
 		data_repo.initPreparedStatement(GET_TAGS_FOR_USER_QUERY, GET_TAGS_FOR_USER_QUERY);
 		data_repo.initPreparedStatement(GET_TAGS_FOR_USER_COUNT_QUERY, GET_TAGS_FOR_USER_COUNT_QUERY);
 	}
 	
 	protected void archiveMessage(BareJID owner, BareJID buddy, Date timestamp, Element msg, String stableId, String stanzaId, String refStableId,
 								  Set<String> tags, AddMessageAdditionalDataProvider additionParametersProvider) {
+		archiveMessage(owner, buddy, timestamp, MessageContent.of(msg), stableId, stanzaId, refStableId, tags,
+					   additionParametersProvider);
+	}
+
+	private void archiveMessage(BareJID owner, BareJID buddy, Date timestamp, MessageContent content, String stableId,
+								String stanzaId, String refStableId, Set<String> tags,
+								AddMessageAdditionalDataProvider additionParametersProvider) {
+		cacheRecentItem(owner, buddy, timestamp, content, stableId, refStableId);
+		DataRepository repo = null;
 		try {
-			java.sql.Timestamp mtime = new java.sql.Timestamp(timestamp.getTime());
+			repo = leaseRepoHandle(owner);
+			// additional parameters are passed only to procedure accepting jids
+			if (jidIdCache == null || additionParametersProvider != null ||
+					!archiveMessageByIds(repo, owner, buddy, timestamp, content, stableId, stanzaId, refStableId)) {
+				PreparedStatement add_message_st = repo.getPreparedStatement(owner, ADD_MESSAGE_QUERY);
+
+				long waitStart = System.nanoTime();
+				synchronized (add_message_st) {
+					statementLockAcquired(waitStart);
+					setAddMessageParams(add_message_st, owner, buddy, timestamp, content, stableId, stanzaId,
+										refStableId, additionParametersProvider);
+					add_message_st.executeUpdate();
+				}
+			}
 
-			String msgStr = msg.toString();
-			String body = storePlaintextBody ? msg.getChildCData(MSG_BODY_PATH) : null;
-			PreparedStatement add_message_st = data_repo.getPreparedStatement(owner, ADD_MESSAGE_QUERY);
+			addTagsToMessage(repo, owner, stableId, tags);
+		} catch (SQLException ex) {
+			invalidateRecentItems(owner);
+			if (ex.getErrorCode() == 1366 || ex.getMessage() != null && ex.getMessage().startsWith("Incorrect string value")) {
+				log.log(Level.WARNING, "Your MySQL configuration can't handle extended Unicode (for example emoji) correctly. Please refer to <Support for emoji and other icons> section of the server documentation");
+			} else {
+				log.log(Level.WARNING, "Problem adding new entry to DB: " + content.getMessage(), ex);
+			}
+		} finally {
+			returnRepoHandle(repo);
+		}
+	}
+	
+	/**
+	 * Stores message using ids of owner and buddy jids from the cache.
+	 *
+	 * @return false if message was not stored as cached ids were outdated
+	 */
+	protected boolean archiveMessageByIds(DataRepository repo, BareJID owner, BareJID buddy, Date timestamp,
+										  MessageContent content, String stableId, String stanzaId, String refStableId)
+			throws SQLException {
+		long ownerId = getJidId(repo, owner);
+		long buddyId = getJidId(repo, buddy);
+		PreparedStatement add_message_st = repo.getPreparedStatement(owner, ADD_MESSAGE_BY_IDS_QUERY);
+		long waitStart = System.nanoTime();
+		synchronized (add_message_st) {
+			statementLockAcquired(waitStart);
+			try {
+				setAddMessageByIdsParams(add_message_st, ownerId, buddyId, timestamp, content, stableId, stanzaId,
+										 refStableId);
+				add_message_st.executeUpdate();
+				return true;
+			} catch (SQLException ex) {
+				if (!isMissingJidError(ex)) {
+					throw ex;
+				}
+				// jid could be removed from the database after it was cached (ie. by removal of expired messages)
+				log.log(Level.FINEST, "could not store message using cached jid ids, retrying with jids", ex);
+				invalidateJidId(owner);
+				invalidateJidId(buddy);
+				return false;
+			}
+		}
+	}
 
-			synchronized (add_message_st) {
-				int i = 1;
-				add_message_st.setString(i++, owner.toString());
-				add_message_st.setString(i++, buddy.toString());
-				data_repo.setTimestamp(add_message_st, i++, mtime);
-				add_message_st.setString(i++, stableId);
-				add_message_st.setString(i++, stanzaId);
-				add_message_st.setString(i++, refStableId);
-				add_message_st.setString(i++, body);
-				add_message_st.setString(i++, msgStr);
+	/**
+	 * Checks if storing of a message failed because jid id does not exist, which is reported as a violation of a
+	 * foreign key or, when <code>tig_ma_msgs</code> is partitioned on MySQL, by a check in the procedure.
+	 */
+	protected boolean isMissingJidError(SQLException ex) {
+		for (SQLException e = ex; e != null; e = e.getNextException()) {
+			String state = e.getSQLState();
+			switch (e.getErrorCode()) {
+				// MySQL: foreign key violation
+				case 1452:
+					return true;
+				// MySQL: signal raised by Tig_MA_AddMessageByIds
+				case 1644:
+					if ("23000".equals(state)) {
+						return true;
+					}
+					break;
+				// SQL Server: conflict with a foreign key constraint
+				case 547:
+					if ("23000".equals(state)) {
+						return true;
+					}
+					break;
+				default:
+					break;
+			}
+			// PostgreSQL and Derby: foreign key violation
+			if ("23503".equals(state)) {
+				return true;
+			}
+		}
+		return false;
+	}
 
-				if (additionParametersProvider != null) {
-					additionParametersProvider.apply(add_message_st, i);
+	protected long getJidId(DataRepository repo, BareJID jid) throws SQLException {
+		LRUConcurrentCache<BareJID, Long> jidIdCache = this.jidIdCache;
+		Long jidId = jidIdCache == null ? null : jidIdCache.get(jid);
+		if (jidId != null) {
+			return jidId;
+		}
+
+		ResultSet rs = null;
+		PreparedStatement ensure_jid_id_st = repo.getPreparedStatement(jid, ENSURE_JID_ID_QUERY);
+		long waitStart = System.nanoTime();
+		synchronized (ensure_jid_id_st) {
+			statementLockAcquired(waitStart);
+			try {
+				ensure_jid_id_st.setString(1, jid.toString());
+				rs = ensure_jid_id_st.executeQuery();
+				if (rs.next()) {
+					jidId = rs.getLong(1);
 				}
+			} finally {
+				data_repo.release(null, rs);
+			}
+		}
+		if (jidId == null) {
+			throw new SQLException("Could not retrieve id of jid " + jid);
+		}
+		if (jidIdCache != null) {
+			jidIdCache.put(jid, jidId);
+		}
+		return jidId;
+	}
 
-				add_message_st.executeUpdate();
+	protected void invalidateJidId(BareJID jid) {
+		LRUConcurrentCache<BareJID, Long> jidIdCache = this.jidIdCache;
+		if (jidIdCache != null) {
+			jidIdCache.remove(jid);
+		}
+	}
+
+	// message is cached before it is stored, so it can be found in the cache as soon as it is visible in the database
+	private void cacheRecentItem(BareJID owner, BareJID buddy, Date timestamp, MessageContent content,
+								 String stableId, String refStableId) {
+		RecentItemsCache recentItemsCache = this.recentItemsCache;
+		if (recentItemsCache != null && stableId != null) {
+			recentItemsCache.add(owner, stableId, timestamp, buddy, content.getXml(), refStableId);
+		}
+	}
+
+	protected void invalidateRecentItems(BareJID owner) {
+		RecentItemsCache recentItemsCache = this.recentItemsCache;
+		if (recentItemsCache != null) {
+			recentItemsCache.invalidate(owner);
+		}
+	}
+
+	protected void invalidateRecentItems(LocalDateTime before) {
+		RecentItemsCache recentItemsCache = this.recentItemsCache;
+		if (recentItemsCache != null) {
+			recentItemsCache.removeOlderThan(toTimestamp(before));
+		}
+	}
+
+	protected void invalidateJidIds() {
+		LRUConcurrentCache<BareJID, Long> jidIdCache = this.jidIdCache;
+		if (jidIdCache != null) {
+			jidIdCache.clear();
+		}
+		// removal of jid cascades to its tags
+		LRUConcurrentCache<TagIdKey, Long> tagIdCache = this.tagIdCache;
+		if (tagIdCache != null) {
+			tagIdCache.clear();
+		}
+	}
+
+	protected long getTagId(DataRepository repo, BareJID owner, long ownerId, String tag) throws SQLException {
+		LRUConcurrentCache<TagIdKey, Long> tagIdCache = this.tagIdCache;
+		TagIdKey key = new TagIdKey(ownerId, tag);
+		Long tagId = tagIdCache == null ? null : tagIdCache.get(key);
+		if (tagId != null) {
+			return tagId;
+		}
+
+		ResultSet rs = null;
+		PreparedStatement ensure_tag_id_st = repo.getPreparedStatement(owner, ENSURE_TAG_ID_QUERY);
+		long waitStart = System.nanoTime();
+		synchronized (ensure_tag_id_st) {
+			statementLockAcquired(waitStart);
+			try {
+				ensure_tag_id_st.setLong(1, ownerId);
+				ensure_tag_id_st.setString(2, tag);
+				rs = ensure_tag_id_st.executeQuery();
+				if (rs.next()) {
+					tagId = rs.getLong(1);
+				}
+			} finally {
+				data_repo.release(null, rs);
+			}
+		}
+		if (tagId == null) {
+			throw new SQLException("Could not retrieve id of tag " + tag + " for " + owner);
+		}
+		if (tagIdCache != null) {
+			tagIdCache.put(key, tagId);
+		}
+		return tagId;
+	}
+
+	protected void setAddMessageByIdsParams(PreparedStatement add_message_st, long ownerId, long buddyId,
+											Date timestamp, MessageContent content, String stableId,
+											String stanzaId, String refStableId) throws SQLException {
+		add_message_st.setLong(1, ownerId);
+		add_message_st.setLong(2, buddyId);
+		setAddMessageDataParams(add_message_st, 3, timestamp, content, stableId, stanzaId, refStableId);
+	}
+
+	protected void setAddMessageParams(PreparedStatement add_message_st, BareJID owner, BareJID buddy, Date timestamp,
+									   MessageContent content, String stableId, String stanzaId, String refStableId,
+									   AddMessageAdditionalDataProvider additionParametersProvider)
+			throws SQLException {
+		add_message_st.setString(1, owner.toString());
+		add_message_st.setString(2, buddy.toString());
+		int i = setAddMessageDataParams(add_message_st, 3, timestamp, content, stableId, stanzaId, refStableId);
+
+		if (additionParametersProvider != null) {
+			additionParametersProvider.apply(add_message_st, i);
+		}
+	}
+
+	private int setAddMessageDataParams(PreparedStatement add_message_st, int i, Date timestamp,
+										MessageContent content, String stableId, String stanzaId,
+										String refStableId) throws SQLException {
+		java.sql.Timestamp mtime = new java.sql.Timestamp(timestamp.getTime());
+
+		String msgStr = binaryMessages ? BinaryElementCodec.encode(content.getMessage(), content.getXml().length()) : null;
+		if (msgStr == null) {
+			msgStr = content.getXml();
+			if (compressMessagesMinLength > 0) {
+				msgStr = MessageCompressor.compress(msgStr, compressMessagesMinLength);
+			}
+		}
+		String body = storePlaintextBody ? content.getBody() : null;
+
+		data_repo.setTimestamp(add_message_st, i++, mtime);
+		add_message_st.setString(i++, stableId);
+		add_message_st.setString(i++, stanzaId);
+		add_message_st.setString(i++, refStableId);
+		add_message_st.setString(i++, body);
+		add_message_st.setString(i++, msgStr);
+		return i;
+	}
+
+	protected void addTagsToMessage(DataRepository repo, BareJID owner, String stableId, Set<String> tags)
+			throws SQLException {
+		if (tags == null || tags.isEmpty()) {
+			return;
+		}
+		if (tagIdCache != null && jidIdCache != null) {
+			if (addTagsToMessageByIds(repo, owner, stableId, tags)) {
+				return;
+			}
+		}
+		PreparedStatement add_message_tag_st = repo.getPreparedStatement(owner, ADD_TAG_TO_MESSAGE_QUERY);
+		long waitStart = System.nanoTime();
+		synchronized (add_message_tag_st) {
+			statementLockAcquired(waitStart);
+			for (String tag : tags) {
+				add_message_tag_st.setString(1, owner.toString());
+				add_message_tag_st.setString(2, stableId);
+				add_message_tag_st.setString(3, tag);
+				add_message_tag_st.addBatch();
+			}
+			add_message_tag_st.executeBatch();
+		}
+	}
+
+	private boolean addTagsToMessageByIds(DataRepository repo, BareJID owner, String stableId, Set<String> tags)
+			throws SQLException {
+		long ownerId = getJidId(repo, owner);
+		StringBuilder tagIds = new StringBuilder();
+		for (String tag : tags) {
+			if (tagIds.length() > 0) {
+				tagIds.append(',');
 			}
+			tagIds.append(getTagId(repo, owner, ownerId, tag));
+		}
 
-			if (tags != null && !tags.isEmpty()) {
-				PreparedStatement add_message_tag_st = data_repo.getPreparedStatement(owner, ADD_TAG_TO_MESSAGE_QUERY);
-				synchronized (add_message_tag_st) {
+		PreparedStatement add_tags_st = repo.getPreparedStatement(owner, ADD_TAGS_TO_MESSAGE_BY_IDS_QUERY);
+		long waitStart = System.nanoTime();
+		synchronized (add_tags_st) {
+			statementLockAcquired(waitStart);
+			try {
+				add_tags_st.setLong(1, ownerId);
+				add_tags_st.setString(2, stableId);
+				add_tags_st.setString(3, tagIds.toString());
+				add_tags_st.execute();
+				return true;
+			} catch (SQLException ex) {
+				// cached ids could be removed from the database in the meantime
+				log.log(Level.FINEST, "could not add tags using cached ids, retrying with tag names", ex);
+				invalidateJidId(owner);
+				LRUConcurrentCache<TagIdKey, Long> tagIdCache = this.tagIdCache;
+				if (tagIdCache != null) {
 					for (String tag : tags) {
-						add_message_tag_st.setString(1, owner.toString());
-						add_message_tag_st.setString(2, stableId);
-						add_message_tag_st.setString(3, tag);
-						add_message_tag_st.addBatch();
+						tagIdCache.remove(new TagIdKey(ownerId, tag));
 					}
-					add_message_tag_st.executeBatch();
 				}
-			}
-		} catch (SQLException ex) {
-			if (ex.getErrorCode() == 1366 || ex.getMessage() != null && ex.getMessage().startsWith("Incorrect string value")) {
-				log.log(Level.WARNING, "Your MySQL configuration can't handle extended Unicode (for example emoji) correctly. Please refer to <Support for emoji and other icons> section of the server documentation");
-			} else {
-				log.log(Level.WARNING, "Problem adding new entry to DB: " + msg, ex);
+				return false;
 			}
 		}
 	}
-	
+
+	protected boolean isLeasingConnections() {
+		return leaseConnections;
+	}
+
+	/**
+	 * Returns data repository which should be used to execute operation for the owner. If leasing of connections is
+	 * enabled, it is a handle of the data source pool taken for the owner and held exclusively by the calling thread
+	 * until it is returned by calling {@link #returnRepoHandle(DataRepository)}.
+	 */
+	protected DataRepository leaseRepoHandle(BareJID owner) throws SQLException {
+		DataRepository data_repo = this.data_repo;
+		if (!leaseConnections) {
+			return data_repo;
+		}
+		DataRepository repo = data_repo.takeRepoHandle(owner);
+		ReentrantLock lock = leaseLocks.computeIfAbsent(repo, handle -> new ReentrantLock());
+		long waitStart = System.nanoTime();
+		try {
+			lock.lockInterruptibly();
+			return repo;
+		} catch (InterruptedException ex) {
+			data_repo.releaseRepoHandle(repo);
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection for " + owner, ex);
+		} finally {
+			long waitTime = System.nanoTime() - waitStart;
+			leaseWaits.increment();
+			leaseWaitTime.add(waitTime);
+			maxLockWaitTime.accumulateAndGet(waitTime, Math::max);
+		}
+	}
+
+	protected void returnRepoHandle(DataRepository repo) {
+		if (repo == null || !leaseConnections) {
+			return;
+		}
+		ReentrantLock lock = leaseLocks.get(repo);
+		if (lock != null && lock.isHeldByCurrentThread()) {
+			lock.unlock();
+		}
+		data_repo.releaseRepoHandle(repo);
+	}
+
+	protected void statementLockAcquired(long waitStart) {
+		long waitTime = System.nanoTime() - waitStart;
+		statementLockWaits.increment();
+		statementLockWaitTime.add(waitTime);
+		maxLockWaitTime.accumulateAndGet(waitTime, Math::max);
+	}
+
 	protected Timestamp convertToTimestamp(Date date) {
 		if (date == null) {
 			return null;
@@ -394,31 +1572,7 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 	}
 	
 	protected int setQueryParams(PreparedStatement stmt, Q crit, FasteningCollation fasteningCollation) throws SQLException {
-		int i = 1;
-		stmt.setString(i++, crit.getQuestionerJID().getBareJID().toString());
-		if (crit.getWith() != null) {
-			stmt.setString(i++, crit.getWith().getBareJID().toString());
-		} else {
-			stmt.setObject(i++, null);
-		}
-		if (crit.getStart() != null) {
-			if (data_repo.getDatabaseType() == DataRepository.dbTypes.mysql && crit.getStart().getTime() <= 0) {
-				stmt.setObject(i++, null);
-			} else {
-				data_repo.setTimestamp(stmt, i++, convertToTimestamp(crit.getStart()));
-			}
-		} else {
-			stmt.setObject(i++, null);
-		}
-		if (crit.getEnd() != null) {
-			if (data_repo.getDatabaseType() == DataRepository.dbTypes.mysql && crit.getEnd().getTime() <= 0) {
-				stmt.setObject(i++, null);
-			} else {
-				data_repo.setTimestamp(stmt, i++, convertToTimestamp(crit.getEnd()));
-			}
-		} else {
-			stmt.setObject(i++, null);
-		}
+		int i = setOwnerWithAndTimeRangeParams(stmt, crit);
 		if (fasteningCollation != null) {
 			stmt.setShort(i++, fasteningCollation.getValue());
 		}
@@ -450,6 +1604,48 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 		return i;
 	}
 
+	protected int setItemsByCursorQueryParams(PreparedStatement stmt, Q crit, ItemCursor after, ItemCursor before,
+											  boolean reverse, int limit) throws SQLException {
+		int i = setOwnerWithAndTimeRangeParams(stmt, crit);
+		data_repo.setTimestamp(stmt, i++, after == null ? null : after.ts);
+		stmt.setString(i++, after == null ? null : after.stableId);
+		data_repo.setTimestamp(stmt, i++, before == null ? null : before.ts);
+		stmt.setString(i++, before == null ? null : before.stableId);
+		stmt.setShort(i++, (short) (reverse ? 1 : 0));
+		stmt.setInt(i++, limit);
+		log.log(Level.FINEST, () -> "Setting PS parameters: `" + stmt + "`, crit: " + crit);
+		return i;
+	}
+
+	private int setOwnerWithAndTimeRangeParams(PreparedStatement stmt, Q crit) throws SQLException {
+		int i = 1;
+		stmt.setString(i++, crit.getQuestionerJID().getBareJID().toString());
+		if (crit.getWith() != null) {
+			stmt.setString(i++, crit.getWith().getBareJID().toString());
+		} else {
+			stmt.setObject(i++, null);
+		}
+		if (crit.getStart() != null) {
+			if (data_repo.getDatabaseType() == DataRepository.dbTypes.mysql && crit.getStart().getTime() <= 0) {
+				stmt.setObject(i++, null);
+			} else {
+				data_repo.setTimestamp(stmt, i++, convertToTimestamp(crit.getStart()));
+			}
+		} else {
+			stmt.setObject(i++, null);
+		}
+		if (crit.getEnd() != null) {
+			if (data_repo.getDatabaseType() == DataRepository.dbTypes.mysql && crit.getEnd().getTime() <= 0) {
+				stmt.setObject(i++, null);
+			} else {
+				data_repo.setTimestamp(stmt, i++, convertToTimestamp(crit.getEnd()));
+			}
+		} else {
+			stmt.setObject(i++, null);
+		}
+		return i;
+	}
+
 	protected Collection newCollectionInstance() {
 		return new Collection();
 	}
@@ -458,14 +1654,16 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 		return new Item();
 	}
 
-	private void getCollectionsItems(Q crit, CollectionHandler<Q, MessageArchiveRepository.Collection> collectionHandler) throws SQLException {
+	private void getCollectionsItems(DataRepository repo, Q crit, CollectionHandler<Q, MessageArchiveRepository.Collection> collectionHandler) throws SQLException {
 		log.log(Level.FINEST, () -> "Getting collections items: " + crit);
 		ResultSet selectRs = null;
 		BareJID owner = crit.getQuestionerJID().getBareJID();
-		PreparedStatement get_collections_st = data_repo.getPreparedStatement(owner, GET_COLLECTIONS_QUERY);
+		PreparedStatement get_collections_st = repo.getPreparedStatement(owner, GET_COLLECTIONS_QUERY);
 
 		int i = 2;
+		long waitStart = System.nanoTime();
 		synchronized (get_collections_st) {
+			statementLockAcquired(waitStart);
 			try {
 				setItemsQueryParams(get_collections_st, crit, null);
 
@@ -489,13 +1687,15 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 		}
 	}
 
-	private Integer getCollectionsCount(Q crit) throws SQLException {
+	private Integer getCollectionsCount(DataRepository repo, Q crit) throws SQLException {
 		log.log(Level.FINEST, () -> "Getting collections: " + crit);
 		ResultSet countRs = null;
 		Integer count = null;
 		BareJID owner = crit.getQuestionerJID().getBareJID();
-		PreparedStatement get_collections_count = data_repo.getPreparedStatement(owner, GET_COLLECTIONS_COUNT_QUERY);
+		PreparedStatement get_collections_count = repo.getPreparedStatement(owner, GET_COLLECTIONS_COUNT_QUERY);
+		long waitStart = System.nanoTime();
 		synchronized (get_collections_count) {
+			statementLockAcquired(waitStart);
 			try {
 				setCountQueryParams(get_collections_count, crit, null);
 				countRs = get_collections_count.executeQuery();
@@ -509,6 +1709,98 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 		return count;
 	}
 
+	private boolean isCollectionsKeysetPaginationPossible(Q crit) {
+		if (!keysetPagination || !crit.getTags().isEmpty() || !crit.getContains().isEmpty()) {
+			return false;
+		}
+		RSM rsm = crit.getRsm();
+		boolean afterIsCursor = CollectionCursor.parse(rsm.getAfter()) != null;
+		boolean beforeIsCursor = CollectionCursor.parse(rsm.getBefore()) != null;
+		// positions used as ids by offset based queries are still accepted
+		if ((isItemIdSet(rsm.getAfter()) && !afterIsCursor) || (isItemIdSet(rsm.getBefore()) && !beforeIsCursor)) {
+			return false;
+		}
+		return afterIsCursor || beforeIsCursor || rsm.getIndex() == null || rsm.getIndex() == 0;
+	}
+
+	private void queryCollectionsByCursor(DataRepository repo, Q crit,
+										  CollectionHandler<Q, MessageArchiveRepository.Collection> collectionHandler)
+			throws SQLException {
+		RSM rsm = crit.getRsm();
+		CollectionCursor after = CollectionCursor.parse(rsm.getAfter());
+		CollectionCursor before = CollectionCursor.parse(rsm.getBefore());
+		// for RSM <before/> we need last page of collections, so we fetch it in reversed order
+		boolean reverse = rsm.hasBefore();
+
+		Integer count = null;
+		if (keysetPaginationCount) {
+			count = getCount(crit, "collections", false, () -> {
+				Integer collectionsCount = getCollectionsCount(repo, crit);
+				return collectionsCount == null ? 0 : collectionsCount;
+			});
+		}
+
+		ArrayDeque<Collection> results = new ArrayDeque<>();
+		ArrayDeque<CollectionCursor> cursors = new ArrayDeque<>();
+		if (rsm.getMax() > 0) {
+			ResultSet rs = null;
+			BareJID owner = crit.getQuestionerJID().getBareJID();
+			PreparedStatement get_collections_st = repo.getPreparedStatement(owner, GET_COLLECTIONS_BY_CURSOR_QUERY);
+			long waitStart = System.nanoTime();
+			synchronized (get_collections_st) {
+				statementLockAcquired(waitStart);
+				try {
+					int i = setOwnerWithAndTimeRangeParams(get_collections_st, crit);
+					data_repo.setTimestamp(get_collections_st, i++, after == null ? null : after.ts);
+					get_collections_st.setObject(i++, after == null ? null : after.buddyId, Types.BIGINT);
+					data_repo.setTimestamp(get_collections_st, i++, before == null ? null : before.ts);
+					get_collections_st.setObject(i++, before == null ? null : before.buddyId, Types.BIGINT);
+					get_collections_st.setShort(i++, (short) (reverse ? 1 : 0));
+					get_collections_st.setInt(i++, rsm.getMax());
+
+					rs = get_collections_st.executeQuery();
+					while (rs.next()) {
+						Collection collection = newCollectionInstance();
+						int idx = collection.read(data_repo, rs, crit);
+						CollectionCursor cursor = new CollectionCursor(
+								collection.getStartTs() instanceof Timestamp
+								? (Timestamp) collection.getStartTs()
+								: convertToTimestamp(collection.getStartTs()), rs.getLong(idx));
+						if (reverse) {
+							results.offerFirst(collection);
+							cursors.offerFirst(cursor);
+						} else {
+							results.offerLast(collection);
+							cursors.offerLast(cursor);
+						}
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		}
+
+		// index is known without counting position of the cursor only for the first and the last page
+		Integer index = null;
+		if (after == null && before == null) {
+			if (!reverse) {
+				index = 0;
+			} else if (count != null) {
+				index = Math.max(count - results.size(), 0);
+			}
+		}
+		rsm.setIndex(index);
+		rsm.setCount(count);
+
+		for (Collection collection : results) {
+			collectionHandler.collectionFound(crit, collection);
+		}
+		if (!cursors.isEmpty()) {
+			rsm.setFirst(cursors.getFirst().toString());
+			rsm.setLast(cursors.getLast().toString());
+		}
+	}
+
 	private Integer getColletionPosition(String uid, Q query) {
 		if (uid == null || uid.isEmpty()) {
 			return null;
@@ -517,54 +1809,91 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 		return Integer.parseInt(uid);
 	}
 
-	private MAMRepository.Item getItem(Q crit, String itemId) throws SQLException {
-		log.log(Level.FINEST, () -> "Getting MAM item: " + crit + ", itemId: " + itemId);
+	/**
+	 * Retrieves messages with passed ids using a single query.
+	 *
+	 * @return map of found items with lowercased id of a message as a key
+	 */
+	private Map<String, MAMRepository.Item> getItems(DataRepository repo, Q crit) throws SQLException {
+		log.log(Level.FINEST, () -> "Getting MAM items: " + crit + ", ids: " + crit.getIds());
+		StringBuilder stableIds = new StringBuilder();
+		for (String id : crit.getIds()) {
+			// only valid UUIDs may be passed to the query, other ids may not exist in the repository
+			if (STABLE_ID_PATTERN.matcher(id).matches()) {
+				if (stableIds.length() > 0) {
+					stableIds.append(',');
+				}
+				stableIds.append(id);
+			}
+		}
+
+		Map<String, MAMRepository.Item> items = new HashMap<>();
+		if (stableIds.length() == 0) {
+			return items;
+		}
+
 		ResultSet rs = null;
 		BareJID owner = crit.getQuestionerJID().getBareJID();
-		PreparedStatement get_message_st = data_repo.getPreparedStatement(owner, GET_MESSAGE_QUERY);
-		synchronized (get_message_st) {
+		PreparedStatement get_messages_st = repo.getPreparedStatement(owner, GET_MESSAGES_BY_IDS_QUERY);
+		long waitStart = System.nanoTime();
+		synchronized (get_messages_st) {
+			statementLockAcquired(waitStart);
 			try {
-				get_message_st.setString(1, owner.toString());
-				get_message_st.setString(2, itemId);
-				rs = get_message_st.executeQuery();
-				if (rs.next()) {
+				get_messages_st.setString(1, owner.toString());
+				get_messages_st.setString(2, stableIds.toString());
+				rs = get_messages_st.executeQuery();
+				DomBuilderHandler domHandler = new DomBuilderHandler();
+				while (rs.next()) {
 					Item item = newItemInstance();
 					item.read(data_repo, rs, crit);
 
-					DomBuilderHandler domHandler = new DomBuilderHandler();
-					parser.parse(domHandler, item.messageStr.toCharArray(), 0, item.messageStr.length());
+					if (item.messageEl == null) {
+						parser.parse(domHandler, item.messageStr.toCharArray(), 0, item.messageStr.length());
 
-					Queue<Element> queue = domHandler.getParsedElements();
-					item.messageStr = null;
-					item.messageEl = queue.poll();
-					queue.clear();
-					return item;
+						Queue<Element> queue = domHandler.getParsedElements();
+						item.messageStr = null;
+						item.messageEl = queue.poll();
+						queue.clear();
+					}
+					items.put(item.id, item);
 				}
 			} finally {
 				data_repo.release(null, rs);
 			}
 		}
-		return null;
+		return items;
 	}
 
-	private void getItemsItems(Q crit, Range range, ItemHandler<Q, MAMRepository.Item> itemHandler) throws SQLException {
+	private void getItemsItems(DataRepository repo, Q crit, Range range, ItemHandler<Q, MAMRepository.Item> itemHandler) throws SQLException {
 		ResultSet rs = null;
 		Queue<Item> results = new ArrayDeque<Item>();
 		BareJID owner = crit.getQuestionerJID().getBareJID();
+		ItemsDispatcher dispatcher = new ItemsDispatcher(crit, itemHandler);
+		boolean dispatchWhileReading = isDispatchingWhileReading();
 
 		log.log(Level.FINER, () -> "Getting items items, criteria: " + crit + ", range: " + range);
 		// there is no point to execute query if limit is estimated to be 0
 		if (Math.min(range.size(), crit.getRsm().getMax()) > 0) {
-			PreparedStatement get_messages_st = data_repo.getPreparedStatement(owner, GET_MESSAGES_QUERY);
+			PreparedStatement get_messages_st = repo.getPreparedStatement(owner, GET_MESSAGES_QUERY);
+			long waitStart = System.nanoTime();
 			synchronized (get_messages_st) {
+				statementLockAcquired(waitStart);
 				try {
 					setItemsQueryParams(get_messages_st, crit, range, FasteningCollation.full);
+					setItemsFetchSize(get_messages_st);
 
 					log.log(Level.FINEST, () -> "Executing getting items items, criteria: " + crit + ", get_messages_st: " + get_messages_st);
 					rs = get_messages_st.executeQuery();
 					while (rs.next()) {
 						Item item = newItemInstance();
 						item.read(data_repo, rs, crit);
+						if (dispatchWhileReading) {
+							dispatcher.itemFound(item);
+							continue;
+						}
+						if (streamItems) {
+							dispatcher.parse(item);
+						}
 						results.offer(item);
 					}
 				} finally {
@@ -573,45 +1902,282 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 			}
 		}
 
-		if (!results.isEmpty()) {
-			DomBuilderHandler domHandler = new DomBuilderHandler();
+		Item item;
+		while ((item = results.poll()) != null) {
+			dispatcher.itemFound(item);
+		}
+		dispatcher.finish();
+	}
 
-			Date startTimestamp = crit.getStart();
-			Item item = null;
-			int idx = crit.getRsm().getIndex();
-			int i = 0;
-			while ((item = results.poll()) != null) {
-				// workaround for case in which start was not specified
-				if (startTimestamp == null) {
-					startTimestamp = item.timestamp;
+	/**
+	 * Items may be passed to the handler before the whole result is read only if the statement belongs to a
+	 * connection leased by the current thread, as otherwise a slow handler would block other users of the statement.
+	 */
+	private boolean isDispatchingWhileReading() {
+		return streamItems && isLeasingConnections();
+	}
+
+	private void setItemsFetchSize(PreparedStatement stmt) throws SQLException {
+		// statements are prepared lazily by the data repository, so fetch size is set when statement is used first time,
+		// negative value is allowed as Integer.MIN_VALUE enables streaming of results by MySQL driver
+		if (itemsFetchSize != 0 && fetchSizeStatements.put(stmt, Boolean.TRUE) == null) {
+			stmt.setFetchSize(itemsFetchSize);
+		}
+	}
+
+	private boolean isKeysetPaginationPossible(Q crit) {
+		if (!keysetPagination || !crit.getUseMessageIdInRsm()) {
+			return false;
+		}
+		// filtering by tags or content and jumping to index is supported only by offset based queries
+		if (!crit.getTags().isEmpty() || !crit.getContains().isEmpty()) {
+			return false;
+		}
+		RSM rsm = crit.getRsm();
+		if (rsm.getIndex() != null && rsm.getIndex() > 0) {
+			return false;
+		}
+		// we would not know which of the ids is closer to the other bound without comparing their positions
+		return !(isItemIdSet(crit.getAfterId()) && isItemIdSet(rsm.getAfter())) &&
+				!(isItemIdSet(crit.getBeforeId()) && isItemIdSet(rsm.getBefore()));
+	}
+
+	private void queryItemsByCursor(DataRepository repo, Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler)
+			throws SQLException, ComponentException {
+		RSM rsm = crit.getRsm();
+		ItemCursor after = getItemCursor(repo, crit, isItemIdSet(crit.getAfterId()) ? crit.getAfterId() : rsm.getAfter());
+		ItemCursor before = getItemCursor(repo, crit,
+										  isItemIdSet(crit.getBeforeId()) ? crit.getBeforeId() : rsm.getBefore());
+		// for RSM <before/> we need last page of results, so we fetch it in reversed order
+		boolean reverse = rsm.hasBefore();
+
+		Integer count = null;
+		boolean rangeLimited = isItemIdSet(crit.getAfterId()) || isItemIdSet(crit.getBeforeId());
+		if (keysetPaginationCount && !rangeLimited) {
+			count = getCount(repo, crit, false);
+		}
+
+		// index is known without counting position of the cursor only for the first and the last page
+		Integer index = null;
+		if (after == null && before == null && !reverse) {
+			index = 0;
+		}
+		rsm.setIndex(index);
+		rsm.setCount(count);
+
+		ArrayDeque<Item> results = new ArrayDeque<>();
+		BareJID owner = crit.getQuestionerJID().getBareJID();
+		ItemsDispatcher dispatcher = new ItemsDispatcher(crit, itemHandler);
+		// items of reversed page can be passed to the handler only after all were read
+		boolean dispatchWhileReading = isDispatchingWhileReading() && !reverse;
+		if (rsm.getMax() > 0) {
+			ResultSet rs = null;
+			PreparedStatement get_messages_st = repo.getPreparedStatement(owner, GET_MESSAGES_BY_CURSOR_QUERY);
+			long waitStart = System.nanoTime();
+			synchronized (get_messages_st) {
+				statementLockAcquired(waitStart);
+				try {
+					setItemsByCursorQueryParams(get_messages_st, crit, after, before, reverse, rsm.getMax());
+					setItemsFetchSize(get_messages_st);
+
+					rs = get_messages_st.executeQuery();
+					while (rs.next()) {
+						Item item = newItemInstance();
+						item.read(data_repo, rs, crit);
+						if (dispatchWhileReading) {
+							dispatcher.itemFound(item);
+							continue;
+						}
+						if (reverse) {
+							results.offerFirst(item);
+						} else {
+							results.offerLast(item);
+						}
+						if (streamItems) {
+							dispatcher.parse(item);
+						}
+					}
+				} finally {
+					data_repo.release(null, rs);
 				}
+			}
+		}
 
-				parser.parse(domHandler, item.messageStr.toCharArray(), 0, item.messageStr.length());
+		if (after == null && before == null && reverse && count != null) {
+			rsm.setIndex(Math.max(count - results.size(), 0));
+		}
 
-				Queue<Element> queue = domHandler.getParsedElements();
-				Element msg = null;
+		Item item;
+		while ((item = results.poll()) != null) {
+			dispatcher.itemFound(item);
+		}
+		dispatcher.finish();
+	}
 
-				item.messageStr = null;
-				item.messageEl = queue.poll();
-				if (!crit.getUseMessageIdInRsm()) {
-					item.id = String.valueOf(idx + i);
+	/**
+	 * Returns page of messages following the message with id passed in the query using recently archived messages
+	 * kept in memory.
+	 *
+	 * @return false if the query has to be executed by the database
+	 */
+	private boolean queryItemsFromCache(Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler) {
+		RecentItemsCache recentItemsCache = this.recentItemsCache;
+		if (recentItemsCache == null) {
+			return false;
+		}
+		RSM rsm = crit.getRsm();
+		boolean rangeLimited = isItemIdSet(crit.getAfterId());
+		String afterId = rangeLimited ? crit.getAfterId() : rsm.getAfter();
+		// only the database knows number of all matching messages
+		if (!isItemIdSet(afterId) || isItemIdSet(crit.getBeforeId()) || rsm.hasBefore() ||
+				(keysetPaginationCount && !rangeLimited && countPolicy != CountPolicy.none)) {
+			return false;
+		}
+		BareJID owner = crit.getQuestionerJID().getBareJID();
+		List<RecentItemsCache.Entry> entries = recentItemsCache.getItemsAfter(owner, afterId);
+		if (entries == null) {
+			recentItemsCacheMisses.increment();
+			return false;
+		}
+		recentItemsCacheHits.increment();
+
+		rsm.setIndex(null);
+		rsm.setCount(null);
+
+		BareJID with = crit.getWith() == null ? null : crit.getWith().getBareJID();
+		ItemsDispatcher dispatcher = new ItemsDispatcher(crit, itemHandler);
+		int found = 0;
+		for (RecentItemsCache.Entry entry : entries) {
+			if (found >= rsm.getMax()) {
+				break;
+			}
+			if ((with != null && !with.equals(entry.getBuddy())) ||
+					(crit.getStart() != null && entry.getTimestamp().before(crit.getStart())) ||
+					(crit.getEnd() != null && entry.getTimestamp().after(crit.getEnd()))) {
+				continue;
+			}
+			Item item = newItemInstance();
+			item.owner = owner;
+			item.id = entry.getId();
+			item.messageStr = entry.getMessage();
+			item.timestamp = entry.getTimestamp();
+			if (with == null) {
+				item.with = entry.getBuddy().toString();
+			}
+			item.refId = entry.getRefId();
+			dispatcher.itemFound(item);
+			found++;
+		}
+		dispatcher.finish();
+		return true;
+	}
+
+	private ItemCursor getItemCursor(DataRepository repo, Q crit, String itemId)
+			throws SQLException, ComponentException {
+		if (!isItemIdSet(itemId)) {
+			return null;
+		}
+
+		ItemCursor cursor = null;
+		ResultSet rs = null;
+		BareJID owner = crit.getQuestionerJID().getBareJID();
+		PreparedStatement get_message_st = repo.getPreparedStatement(owner, GET_MESSAGE_QUERY);
+		long waitStart = System.nanoTime();
+		synchronized (get_message_st) {
+			statementLockAcquired(waitStart);
+			try {
+				get_message_st.setString(1, owner.toString());
+				get_message_st.setString(2, itemId);
+				rs = get_message_st.executeQuery();
+				if (rs.next()) {
+					Date ts = repo.getTimestamp(rs, 2);
+					cursor = new ItemCursor(ts instanceof Timestamp ? (Timestamp) ts : convertToTimestamp(ts),
+											rs.getString(4));
 				}
-				itemHandler.itemFound(crit, item);
-				queue.clear();
-				i++;
+			} finally {
+				data_repo.release(null, rs);
 			}
+		}
 
-			crit.setStart(startTimestamp);
+		if (cursor == null) {
+			throw new ComponentException(Authorization.ITEM_NOT_FOUND, "Item with id " + itemId + " not found");
 		}
+		return cursor;
+	}
+
+	private static boolean isItemIdSet(String itemId) {
+		return itemId != null && !itemId.isEmpty();
 	}
 	
-	private Integer getItemsCount(Q crit) throws SQLException {
+	private Integer getCount(DataRepository repo, Q crit, boolean required) throws SQLException {
+		return getCount(crit, "items", required, () -> {
+			Integer count = getItemsCount(repo, crit);
+			return count == null ? 0 : count;
+		});
+	}
+
+	/**
+	 * Returns number of messages or collections matching the query according to the configured count policy.
+	 *
+	 * @param required <code>true</code> if exact number is required to calculate position of the requested page
+	 *
+	 * @return number of matching entries or <code>null</code> if it was not calculated
+	 */
+	private Integer getCount(Q crit, String type, boolean required, CountQuery query) throws SQLException {
+		if (required || countPolicy == CountPolicy.exact) {
+			return query.execute();
+		}
+		if (countPolicy == CountPolicy.none) {
+			return null;
+		}
+
+		LRUConcurrentCache<String, CachedCount> countCache = this.countCache;
+		if (countCache == null) {
+			return query.execute();
+		}
+		String key = getCountCacheKey(crit, type);
+		long now = System.currentTimeMillis();
+		CachedCount cached = countCache.get(key);
+		if (cached != null && cached.expiresAt > now) {
+			return cached.count;
+		}
+		int count = query.execute();
+		countCache.put(key, new CachedCount(count, now + countCacheTtl.toMillis()));
+		return count;
+	}
+
+	private static String getCountCacheKey(QueryCriteria crit, String type) {
+		StringBuilder sb = new StringBuilder(type);
+		sb.append('|').append(crit.getQuestionerJID().getBareJID());
+		sb.append('|').append(crit.getWith() == null ? null : crit.getWith().getBareJID());
+		sb.append('|').append(crit.getStart() == null ? null : crit.getStart().getTime());
+		sb.append('|').append(crit.getEnd() == null ? null : crit.getEnd().getTime());
+		sb.append('|').append(new TreeSet<>(crit.getTags()));
+		sb.append('|').append(new TreeSet<>(crit.getContains()));
+		return sb.toString();
+	}
+
+	/**
+	 * Calculates offset of the requested page. Number of all matching entries may be unknown, unless the last page
+	 * was requested.
+	 */
+	private void calculatePageOffset(Q crit, Integer count, Integer before, Integer after, Range range) {
+		calculateOffsetAndPosition(crit, count == null ? Integer.MAX_VALUE : count, before, after, range);
+		if (count == null) {
+			// RSM allows to omit number of all items
+			crit.getRsm().setCount(null);
+		}
+	}
+
+	private Integer getItemsCount(DataRepository repo, Q crit) throws SQLException {
 		log.log(Level.FINEST, () -> "Getting items count, criteria: " + crit);
 		Integer count = null;
 		ResultSet rs = null;
 		BareJID owner = crit.getQuestionerJID().getBareJID();
-		PreparedStatement get_messages_st = data_repo.getPreparedStatement(owner, GET_MESSAGES_COUNT_QUERY);
+		PreparedStatement get_messages_st = repo.getPreparedStatement(owner, GET_MESSAGES_COUNT_QUERY);
+		long waitStart = System.nanoTime();
 		synchronized (get_messages_st) {
+			statementLockAcquired(waitStart);
 			try {
 				setCountQueryParams(get_messages_st, crit, FasteningCollation.full);
 
@@ -626,7 +2192,7 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 		return count;
 	}
 
-	private Integer getItemPosition(String uid, Q query) throws SQLException, ComponentException {
+	private Integer getItemPosition(DataRepository repo, String uid, Q query) throws SQLException, ComponentException {
 		log.log(Level.FINEST, () -> "Getting item position, criteria: " + query + ", uid: " + uid);
 		if (uid == null || uid.isEmpty()) {
 			return null;
@@ -639,8 +2205,10 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 		Integer position = null;
 		ResultSet rs = null;
 		BareJID owner = query.getQuestionerJID().getBareJID();
-		PreparedStatement get_message_position_st = data_repo.getPreparedStatement(owner, GET_MESSAGE_POSITION_QUERY);
+		PreparedStatement get_message_position_st = repo.getPreparedStatement(owner, GET_MESSAGE_POSITION_QUERY);
+		long waitStart = System.nanoTime();
 		synchronized (get_message_position_st) {
+			statementLockAcquired(waitStart);
 			try {
 				int i = setCountQueryParams(get_message_position_st, query, FasteningCollation.full);
 				get_message_position_st.setString(i++, uid);
@@ -730,7 +2298,16 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 		protected int read(DataRepository repo, ResultSet rs, Q crit) throws SQLException {
 			owner = crit.getQuestionerJID().getBareJID();
 			int i = 1;
-			messageStr = rs.getString(i++);
+			String stored = rs.getString(i++);
+			try {
+				if (BinaryElementCodec.isEncoded(stored)) {
+					messageEl = BinaryElementCodec.decode(stored);
+				} else {
+					messageStr = MessageCompressor.decompress(stored);
+				}
+			} catch (IllegalArgumentException ex) {
+				throw new SQLException("Could not decode archived message", ex);
+			}
 			timestamp = repo.getTimestamp(rs, i++);
 			if (crit.getWith() == null) {
 				with = rs.getString(i);
@@ -749,6 +2326,166 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria>
 	public interface AddMessageAdditionalDataProvider extends AbstractMessageArchiveRepository.AddMessageAdditionalDataProvider {
 		void apply(PreparedStatement stmt, int idx) throws SQLException;
 	}
-}
 
-//~ Formatted in Tigase Code Convention on 13/02/20
+	/**
+	 * Parses retrieved items and passes them to the item handler in the order in which they were retrieved.
+	 */
+	private final class ItemsDispatcher {
+
+		private final Q crit;
+		private final ItemHandler<Q, MAMRepository.Item> itemHandler;
+		private final DomBuilderHandler domHandler = new DomBuilderHandler();
+		private Date startTimestamp;
+		private int i = 0;
+
+		private ItemsDispatcher(Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler) {
+			this.crit = crit;
+			this.itemHandler = itemHandler;
+			this.startTimestamp = crit.getStart();
+		}
+
+		private void itemFound(Item item) {
+			// workaround for case in which start was not specified
+			if (startTimestamp == null) {
+				startTimestamp = item.timestamp;
+			}
+
+			parse(item);
+			if (!crit.getUseMessageIdInRsm()) {
+				item.id = String.valueOf(crit.getRsm().getIndex() + i);
+			}
+			itemHandler.itemFound(crit, item);
+			i++;
+		}
+
+		/**
+		 * Replaces XML of the retrieved item with parsed element, so only one of them is kept in memory.
+		 */
+		private void parse(Item item) {
+			// messages stored in binary form are decoded while they are read
+			if (item.messageEl == null) {
+				parser.parse(domHandler, item.messageStr.toCharArray(), 0, item.messageStr.length());
+
+				Queue<Element> queue = domHandler.getParsedElements();
+
+				item.messageStr = null;
+				item.messageEl = queue.poll();
+				queue.clear();
+			}
+		}
+
+		private void finish() {
+			if (i > 0) {
+				crit.setStart(startTimestamp);
+			}
+		}
+	}
+
+	/**
+	 * Method of calculating number of all messages or collections matching a query, which is returned in RSM
+	 * <code>count</code> element.
+	 */
+	public enum CountPolicy {
+		/** number is calculated by the database for each query */
+		exact,
+		/** number calculated by the database is reused by queries with the same filters until it expires */
+		cached,
+		/** number is not calculated, unless it is required to retrieve the last page */
+		none
+	}
+
+	@FunctionalInterface
+	private interface CountQuery {
+
+		int execute() throws SQLException;
+	}
+
+	private static final class CachedCount {
+
+		private final int count;
+		private final long expiresAt;
+
+		private CachedCount(int count, long expiresAt) {
+			this.count = count;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	protected static final class ItemCursor {
+
+		private final Timestamp ts;
+		private final String stableId;
+
+		private ItemCursor(Timestamp ts, String stableId) {
+			this.ts = ts;
+			this.stableId = stableId;
+		}
+	}
+
+	/**
+	 * Position of a collection in the list ordered by start of the collection and id of the buddy, used as an id of
+	 * the collection in RSM when pages of collections are retrieved using keyset pagination.
+	 */
+	protected static final class CollectionCursor {
+
+		private static final Pattern PATTERN = Pattern.compile("^(-?[0-9]+):([0-9]+):([0-9]+)$");
+
+		private final Timestamp ts;
+		private final long buddyId;
+
+		private static CollectionCursor parse(String value) {
+			if (value == null) {
+				return null;
+			}
+			Matcher matcher = PATTERN.matcher(value);
+			if (!matcher.matches()) {
+				return null;
+			}
+			try {
+				Timestamp ts = new Timestamp(Long.parseLong(matcher.group(1)));
+				ts.setNanos(Integer.parseInt(matcher.group(2)));
+				return new CollectionCursor(ts, Long.parseLong(matcher.group(3)));
+			} catch (IllegalArgumentException ex) {
+				return null;
+			}
+		}
+
+		private CollectionCursor(Timestamp ts, long buddyId) {
+			this.ts = ts;
+			this.buddyId = buddyId;
+		}
+
+		@Override
+		public String toString() {
+			return ts.getTime() + ":" + ts.getNanos() + ":" + buddyId;
+		}
+	}
+
+	private static final class TagIdKey {
+
+		private final long ownerId;
+		private final String tag;
+
+		private TagIdKey(long ownerId, String tag) {
+			this.ownerId = ownerId;
+			this.tag = tag;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof TagIdKey)) {
+				return false;
+			}
+			TagIdKey that = (TagIdKey) o;
+			return ownerId == that.ownerId && tag.equals(that.tag);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Long.hashCode(ownerId) + tag.hashCode();
+		}
+	}
+}
@@ -18,16 +18,20 @@
 package tigase.archive.db;
 
 import tigase.annotations.TigaseDeprecated;
+import tigase.component.exceptions.ComponentException;
 import tigase.db.DataSource;
 import tigase.db.DataSourceAware;
 import tigase.db.TigaseDBException;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
+import tigase.xmpp.Authorization;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.MAMRepository;
 import tigase.xmpp.mam.Query;
 
 import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -87,20 +91,163 @@ public interface MessageArchiveRepository<Q extends tigase.archive.xep0136.Query
 
 	void archiveMessage(BareJID owner, JID buddy, Date timestamp, Element msg, String stableId, Set<String> tags);
 
+	/**
+	 * Stores message in the repository. Implementations may reuse content already extracted from the message.
+	 */
+	default void archiveMessage(ArchivedMessage message) {
+		archiveMessage(message.getOwner(), message.getBuddy(), message.getTimestamp(), message.getMessage(),
+					   message.getStableId(), message.getTags());
+	}
+
+	/**
+	 * Stores all passed messages in the repository. Implementations may store them within a single transaction, so if
+	 * an exception is thrown none of the messages should be considered as stored.
+	 */
+	default void archiveMessages(List<ArchivedMessage> messages) throws TigaseDBException {
+		for (ArchivedMessage message : messages) {
+			archiveMessage(message);
+		}
+	}
+
 	void deleteExpiredMessages(BareJID owner, LocalDateTime before) throws TigaseDBException;
 
+	/**
+	 * Removes up to <code>limit</code> of the oldest expired messages of the domain. Jids which are no longer used are
+	 * not removed, see {@link #deleteUnusedJids(int, long)}.
+	 *
+	 * @return number of removed messages, if lower than <code>limit</code> then there are no more expired messages
+	 */
+	default int deleteExpiredMessages(BareJID owner, LocalDateTime before, int limit) throws TigaseDBException {
+		deleteExpiredMessages(owner, before);
+		return 0;
+	}
+
+	/**
+	 * Returns number of expired messages of the domain or <code>-1</code> if it is not known.
+	 */
+	default long getExpiredMessagesCount(BareJID owner, LocalDateTime before) throws TigaseDBException {
+		return -1;
+	}
+
+	/**
+	 * Registers archive of the removed user for removal in chunks by
+	 * {@link #deleteRemovedUserMessages(BareJID, int)}. Messages of the user are not returned by queries from this
+	 * point. Repositories which do not support it remove the whole archive at once.
+	 */
+	default void addPendingRemoval(BareJID owner) throws TigaseDBException {
+		removeItems(owner, null, null, null);
+	}
+
+	/**
+	 * Returns users whose archives were registered for removal and are not removed yet.
+	 */
+	default Set<BareJID> getPendingRemovals() throws TigaseDBException {
+		return Collections.emptySet();
+	}
+
+	/**
+	 * Removes up to <code>limit</code> messages of the archive of the removed user.
+	 *
+	 * @return number of removed messages, if lower than <code>limit</code> then the archive is removed completely and
+	 * it is no longer pending removal
+	 */
+	default int deleteRemovedUserMessages(BareJID owner, int limit) throws TigaseDBException {
+		return 0;
+	}
+
+	/**
+	 * Removes jids which are no longer used by any message. Jids are checked in ranges of <code>limit</code> jids,
+	 * continuing from the range at which the previous call stopped, until all jids are checked or the deadline (in
+	 * ms) is reached.
+	 *
+	 * @return number of removed jids
+	 */
+	default int deleteUnusedJids(int limit, long deadline) throws TigaseDBException {
+		return 0;
+	}
+
+	/**
+	 * Stores retention period (in days) set by the user for messages in its archive. Passing <code>null</code> removes
+	 * it, so messages of the user will not be removed due to expiration.
+	 */
+	default void setUserRetention(BareJID owner, Integer days) throws TigaseDBException {
+		throw new TigaseDBException("Retention periods set by users are not supported by " + getClass().getName());
+	}
+
+	/**
+	 * Returns distinct retention periods (in days) set by users of the domain.
+	 */
+	default Set<Integer> getUserRetentionPeriods(BareJID domain) throws TigaseDBException {
+		return Collections.emptySet();
+	}
+
+	/**
+	 * Removes messages older than passed timestamp of all users of the domain which set retention period to
+	 * <code>days</code>.
+	 */
+	default void deleteExpiredUserMessages(BareJID domain, int days, LocalDateTime before) throws TigaseDBException {
+	}
+
+	/**
+	 * Removes up to <code>limit</code> expired messages of users of the domain which set retention period to
+	 * <code>days</code>.
+	 *
+	 * @return number of removed messages, if lower than <code>limit</code> then there are no more expired messages
+	 */
+	default int deleteExpiredUserMessages(BareJID domain, int days, LocalDateTime before, int limit)
+			throws TigaseDBException {
+		deleteExpiredUserMessages(domain, days, before);
+		return 0;
+	}
+
+	/**
+	 * Creates partitions of the repository for messages which will be archived in the following months.
+	 *
+	 * @return number of created partitions, always 0 if repository is not partitioned
+	 */
+	default int createPartitions() throws TigaseDBException {
+		return 0;
+	}
+
+	/**
+	 * Drops partitions of the repository which contain only messages older than passed timestamp, no matter to which
+	 * domain they belong.
+	 *
+	 * @return number of dropped partitions, always 0 if repository is not partitioned
+	 */
+	default int deleteExpiredPartitions(LocalDateTime before) throws TigaseDBException {
+		return 0;
+	}
+
 	/**
 	 * Destroys instance of this repository and releases resources allocated if possible
 	 */
 	default void destroy() {
 	}
 
+	/**
+	 * Adds statistics of this repository to the list
+	 */
+	default void collectStatistics(String compName, StatisticsList list) {
+	}
+
 	String getStableId(BareJID owner, BareJID buddy, String stanzaId) throws TigaseDBException;
 
 	void removeItems(BareJID owner, String withJid, Date start, Date end) throws TigaseDBException;
 
 	List<String> getTags(BareJID owner, String startsWith, Q criteria) throws TigaseDBException;
 
+	/**
+	 * Passes the last message of each conversation of the owner to the handler, starting from the most recently active
+	 * conversation. Number of conversations is limited by RSM <code>max</code> and older conversations are retrieved by
+	 * passing id of the oldest returned message as RSM <code>before</code>.
+	 */
+	default void queryRecentConversations(Q query, ItemHandler<Q, MAMRepository.Item> itemHandler)
+			throws TigaseDBException, ComponentException {
+		throw new ComponentException(Authorization.FEATURE_NOT_IMPLEMENTED,
+									 "Retrieving recent conversations is not supported");
+	}
+
 	@TigaseDeprecated(since = "3.0.0", note = "XEP-0136 support will be removed in future version")
 	@Deprecated
 	void queryCollections(Q query, CollectionHandler<Q, MessageArchiveRepository.Collection> collectionHandler) throws TigaseDBException;
@@ -28,15 +28,14 @@ import tigase.db.TigaseDBException;
 import tigase.db.beans.MDRepositoryBeanWithStatistics;
 import tigase.kernel.beans.Bean;
 import tigase.server.BasicComponent;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.MAMRepository;
 
 import java.time.LocalDateTime;
-import java.util.Date;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.stream.Stream;
 
 /**
@@ -66,11 +65,114 @@ public class MessageArchiveRepositoryPool<Q extends QueryCriteria, R extends Mes
 		getRepository(owner.getDomain()).archiveMessage(owner, buddy, timestamp, msg, stableId, tags);
 	}
 
+	@Override
+	public void archiveMessage(ArchivedMessage message) {
+		getRepository(message.getOwner().getDomain()).archiveMessage(message);
+	}
+
+	@Override
+	public void archiveMessages(List<ArchivedMessage> messages) throws TigaseDBException {
+		Map<R, List<ArchivedMessage>> messagesByRepository = new IdentityHashMap<>();
+		for (ArchivedMessage message : messages) {
+			messagesByRepository.computeIfAbsent(getRepository(message.getOwner().getDomain()),
+												 repo -> new ArrayList<>()).add(message);
+		}
+		for (Map.Entry<R, List<ArchivedMessage>> e : messagesByRepository.entrySet()) {
+			e.getKey().archiveMessages(e.getValue());
+		}
+	}
+
 	@Override
 	public void deleteExpiredMessages(BareJID owner, LocalDateTime before) throws TigaseDBException {
 		getRepository(owner.getDomain()).deleteExpiredMessages(owner, before);
 	}
 
+	@Override
+	public int deleteExpiredMessages(BareJID owner, LocalDateTime before, int limit) throws TigaseDBException {
+		return getRepository(owner.getDomain()).deleteExpiredMessages(owner, before, limit);
+	}
+
+	@Override
+	public long getExpiredMessagesCount(BareJID owner, LocalDateTime before) throws TigaseDBException {
+		return getRepository(owner.getDomain()).getExpiredMessagesCount(owner, before);
+	}
+
+	@Override
+	public void addPendingRemoval(BareJID owner) throws TigaseDBException {
+		getRepository(owner.getDomain()).addPendingRemoval(owner);
+	}
+
+	@Override
+	public Set<BareJID> getPendingRemovals() throws TigaseDBException {
+		Set<BareJID> pending = new HashSet<>();
+		Iterator<R> it = repositoriesStream().iterator();
+		while (it.hasNext()) {
+			pending.addAll(it.next().getPendingRemovals());
+		}
+		return pending;
+	}
+
+	@Override
+	public int deleteRemovedUserMessages(BareJID owner, int limit) throws TigaseDBException {
+		return getRepository(owner.getDomain()).deleteRemovedUserMessages(owner, limit);
+	}
+
+	@Override
+	public int deleteUnusedJids(int limit, long deadline) throws TigaseDBException {
+		int removed = 0;
+		Iterator<R> it = repositoriesStream().iterator();
+		while (it.hasNext() && System.currentTimeMillis() < deadline) {
+			removed += it.next().deleteUnusedJids(limit, deadline);
+		}
+		return removed;
+	}
+
+	@Override
+	public void setUserRetention(BareJID owner, Integer days) throws TigaseDBException {
+		getRepository(owner.getDomain()).setUserRetention(owner, days);
+	}
+
+	@Override
+	public Set<Integer> getUserRetentionPeriods(BareJID domain) throws TigaseDBException {
+		return getRepository(domain.getDomain()).getUserRetentionPeriods(domain);
+	}
+
+	@Override
+	public void deleteExpiredUserMessages(BareJID domain, int days, LocalDateTime before) throws TigaseDBException {
+		getRepository(domain.getDomain()).deleteExpiredUserMessages(domain, days, before);
+	}
+
+	@Override
+	public int deleteExpiredUserMessages(BareJID domain, int days, LocalDateTime before, int limit)
+			throws TigaseDBException {
+		return getRepository(domain.getDomain()).deleteExpiredUserMessages(domain, days, before, limit);
+	}
+
+	@Override
+	public int createPartitions() throws TigaseDBException {
+		int created = 0;
+		Iterator<R> it = repositoriesStream().iterator();
+		while (it.hasNext()) {
+			created += it.next().createPartitions();
+		}
+		return created;
+	}
+
+	@Override
+	public int deleteExpiredPartitions(LocalDateTime before) throws TigaseDBException {
+		int dropped = 0;
+		Iterator<R> it = repositoriesStream().iterator();
+		while (it.hasNext()) {
+			dropped += it.next().deleteExpiredPartitions(before);
+		}
+		return dropped;
+	}
+
+	@Override
+	public void collectStatistics(String compName, StatisticsList list) {
+		repositoriesStream().forEach(repo -> repo.collectStatistics(compName, list));
+	}
+
 	@Override
 	public String getStableId(BareJID owner, BareJID buddy, String stanzaId) throws TigaseDBException {
 		return getRepository(owner.getDomain()).getStableId(owner, buddy, stanzaId);
@@ -94,9 +196,19 @@ public class MessageArchiveRepositoryPool<Q extends QueryCriteria, R extends Mes
 	@Override
 	public void queryItems(Q query, MAMRepository.ItemHandler<Q, MAMRepository.Item> itemHandler)
 			throws RepositoryException, ComponentException {
+		if (query.getRecentConversations()) {
+			queryRecentConversations(query, itemHandler);
+			return;
+		}
 		getRepository(query.getQuestionerJID().getDomain()).queryItems(query, itemHandler);
 	}
 
+	@Override
+	public void queryRecentConversations(Q query, MAMRepository.ItemHandler<Q, MAMRepository.Item> itemHandler)
+			throws TigaseDBException, ComponentException {
+		getRepository(query.getQuestionerJID().getDomain()).queryRecentConversations(query, itemHandler);
+	}
+
 	@Override
 	public void removeItems(BareJID owner, String withJid, Date start, Date end) throws TigaseDBException {
 		getRepository(owner.getDomain()).removeItems(owner, withJid, start, end);
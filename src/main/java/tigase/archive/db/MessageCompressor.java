@@ -0,0 +1,131 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses XML of archived messages with deflate using a preset dictionary of fragments common to XMPP stanzas,
+ * which makes compression effective even for short messages.
+ * <p>
+ * Compressed message is encoded with Base64 and prefixed with a marker containing version of the dictionary, so it
+ * may be stored in the same column as XML of uncompressed messages. As XML of a message always starts with
+ * <code>&lt;</code>, compressed and uncompressed messages may be mixed in the same table and are recognized while
+ * they are read.
+ * </p>
+ */
+public class MessageCompressor {
+
+	private static final String MARKER_V1 = "z1:";
+
+	// fragments used most often are placed at the end of the dictionary as they are cheaper to reference
+	private static final byte[] DICTIONARY_V1 = ("<x xmlns=\"jabber:x:oob\"><url>https://</url></x>" +
+			"<x xmlns=\"jabber:x:conference\" jid=\"" + "<encrypted xmlns=\"eu.siacs.conversations.axolotl\">" +
+			"<header sid=\"<key rid=\"<iv></iv></header><payload></payload></encrypted>" +
+			"<encryption xmlns=\"urn:xmpp:eme:0\" namespace=\"" +
+			"<store xmlns=\"urn:xmpp:hints\"/><no-store xmlns=\"urn:xmpp:hints\"/>" +
+			"<markable xmlns=\"urn:xmpp:chat-markers:0\"/><displayed xmlns=\"urn:xmpp:chat-markers:0\" id=\"" +
+			"<received xmlns=\"urn:xmpp:chat-markers:0\" id=\"<received xmlns=\"urn:xmpp:receipts\" id=\"" +
+			"<request xmlns=\"urn:xmpp:receipts\"/><active xmlns=\"http://jabber.org/protocol/chatstates\"/>" +
+			"<delay xmlns=\"urn:xmpp:delay\" stamp=\"\" from=\"<replace xmlns=\"urn:xmpp:message-correct:0\" id=\"" +
+			"<thread></thread><subject></subject><origin-id xmlns=\"urn:xmpp:sid:0\" id=\"" +
+			"<stanza-id xmlns=\"urn:xmpp:sid:0\" by=\"\" id=\"\"/></body></message>" +
+			"<message xmlns=\"jabber:client\" type=\"groupchat\" type=\"chat\" from=\"\" to=\"\" id=\"\"><body>").getBytes(
+			StandardCharsets.UTF_8);
+
+	private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * Compresses XML of a message if it is not shorter than <code>minLength</code> and compression reduces its size.
+	 *
+	 * @return compressed message with a marker or passed XML if it was not compressed
+	 */
+	public static String compress(String xml, int minLength) {
+		if (xml == null || xml.length() < minLength) {
+			return xml;
+		}
+
+		byte[] data = xml.getBytes(StandardCharsets.UTF_8);
+		Deflater deflater = DEFLATERS.get();
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY_V1);
+		deflater.setInput(data);
+		deflater.finish();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+		byte[] buf = new byte[1024];
+		while (!deflater.finished()) {
+			int len = deflater.deflate(buf);
+			out.write(buf, 0, len);
+		}
+
+		// Base64 grows data by a third, so compressed form has to be considerably smaller to be worth storing
+		if (((out.size() + 2) / 3) * 4 + MARKER_V1.length() >= xml.length()) {
+			return xml;
+		}
+		return MARKER_V1 + Base64.getEncoder().encodeToString(out.toByteArray());
+	}
+
+	/**
+	 * Returns XML of a message which was read from the database, decompressing it if it was stored compressed.
+	 *
+	 * @throws IllegalArgumentException if message is marked as compressed but cannot be decompressed
+	 */
+	public static String decompress(String stored) {
+		if (!isCompressed(stored)) {
+			return stored;
+		}
+
+		byte[] data = Base64.getDecoder().decode(stored.substring(MARKER_V1.length()));
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(data);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+		byte[] buf = new byte[1024];
+		try {
+			while (!inflater.finished()) {
+				int len = inflater.inflate(buf);
+				if (len == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(DICTIONARY_V1);
+					} else if (inflater.needsInput()) {
+						throw new IllegalArgumentException("Compressed message is truncated");
+					}
+				}
+				out.write(buf, 0, len);
+			}
+		} catch (DataFormatException ex) {
+			throw new IllegalArgumentException("Compressed message is corrupted", ex);
+		}
+		return out.toString(StandardCharsets.UTF_8);
+	}
+
+	public static boolean isCompressed(String stored) {
+		return stored != null && stored.startsWith(MARKER_V1);
+	}
+
+	private MessageCompressor() {
+	}
+}
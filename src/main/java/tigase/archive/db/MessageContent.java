@@ -0,0 +1,104 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db;
+
+import tigase.xml.Element;
+
+import java.util.List;
+
+/**
+ * Parts of a message which are required to archive it, extracted from the message in a single pass over its children.
+ * XML of the message is created when it is first requested and reused afterwards, so the message is serialized only
+ * once no matter how many times it is stored or cached.
+ * <p>
+ * Message must not be modified after its content was extracted.
+ * </p>
+ */
+public class MessageContent {
+
+	private static final String ORIGIN_ID_XMLNS = "urn:xmpp:sid:0";
+
+	private final Element message;
+	private String body;
+	private Element delay;
+	private String originId;
+	private String xml;
+
+	public static MessageContent of(Element message) {
+		MessageContent content = new MessageContent(message);
+		List<Element> children = message.getChildren();
+		if (children != null) {
+			for (Element child : children) {
+				switch (child.getName()) {
+					case "body":
+						if (content.body == null) {
+							content.body = child.getCData();
+						}
+						break;
+					case "delay":
+						if (content.delay == null) {
+							content.delay = child;
+						}
+						break;
+					case "origin-id":
+						if (content.originId == null && ORIGIN_ID_XMLNS.equals(child.getXMLNS())) {
+							content.originId = child.getAttributeStaticStr("id");
+						}
+						break;
+					default:
+						break;
+				}
+			}
+		}
+		if (content.originId == null) {
+			content.originId = message.getAttributeStaticStr("id");
+		}
+		return content;
+	}
+
+	private MessageContent(Element message) {
+		this.message = message;
+	}
+
+	public Element getMessage() {
+		return message;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	public Element getDelay() {
+		return delay;
+	}
+
+	/**
+	 * Returns value of <code>id</code> of <code>origin-id</code> element of the message or <code>id</code> of the
+	 * message if it has no <code>origin-id</code>.
+	 */
+	public String getOriginId() {
+		return originId;
+	}
+
+	public String getXml() {
+		if (xml == null) {
+			xml = message.toString();
+		}
+		return xml;
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db;
+
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps the most recent messages archived for each user in memory, so that queries for messages following one of
+ * them (ie. catching up after reconnection) do not have to reach the database.
+ * <p>
+ * Messages of a user are kept in a buffer ordered by timestamps and limited to a configured number of items. Buffers
+ * of users which were not used for the longest time are dropped when size of all kept messages exceeds the limit.
+ * Buffer contains all messages stored after it was created, so items which are older than the buffer are not kept as
+ * messages with such timestamps could be stored in the database before the buffer was created.
+ * </p>
+ */
+public class RecentItemsCache {
+
+	// approximate memory used by an entry and its buffer slot, excluding strings
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final LinkedHashMap<BareJID, Buffer> buffers = new LinkedHashMap<>(16, 0.75f, true);
+	private final int limit;
+	private final long maxBytes;
+	private long bytes = 0;
+	private int size = 0;
+
+	public RecentItemsCache(int limit, long maxBytes) {
+		this.limit = limit;
+		this.maxBytes = maxBytes;
+	}
+
+	public int limit() {
+		return limit;
+	}
+
+	public long maxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Adds message to the buffer of the owner. Should be called before message is stored, so that the message can be
+	 * found in the cache as soon as it is visible in the database. If storing fails, buffer of the owner has to be
+	 * invalidated.
+	 */
+	public synchronized void add(BareJID owner, String id, Date timestamp, BareJID buddy, String message,
+								 String refId) {
+		Buffer buffer = buffers.get(owner);
+		if (buffer == null) {
+			buffer = new Buffer(System.currentTimeMillis());
+			buffers.put(owner, buffer);
+		}
+		Entry entry = new Entry(id.toLowerCase(), timestamp, buddy, message,
+								refId == null ? null : refId.toLowerCase());
+		int removed = buffer.add(entry, limit);
+		if (removed < 0) {
+			return;
+		}
+		size += 1 - removed;
+		bytes += entry.bytes;
+		if (removed > 0) {
+			bytes -= buffer.evictedBytes;
+		}
+		while (bytes > maxBytes && !buffers.isEmpty()) {
+			Iterator<Buffer> it = buffers.values().iterator();
+			remove(it.next());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Returns messages of the owner following the message with passed id in the order of their timestamps.
+	 *
+	 * @return messages following the message or <code>null</code> if the message is not cached or the order of
+	 * following messages could differ from the order of messages returned by the database
+	 */
+	public synchronized List<Entry> getItemsAfter(BareJID owner, String id) {
+		Buffer buffer = buffers.get(owner);
+		if (buffer == null) {
+			return null;
+		}
+		String lowerId = id.toLowerCase();
+		List<Entry> entries = buffer.entries;
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			if (!entries.get(i).id.equals(lowerId)) {
+				continue;
+			}
+			// messages with the same timestamp are ordered by the database using their ids
+			for (int j = i + 1; j < entries.size(); j++) {
+				if (entries.get(j).timestamp.getTime() == entries.get(j - 1).timestamp.getTime()) {
+					return null;
+				}
+			}
+			return i + 1 == entries.size()
+				   ? Collections.emptyList()
+				   : new ArrayList<>(entries.subList(i + 1, entries.size()));
+		}
+		return null;
+	}
+
+	public synchronized void invalidate(BareJID owner) {
+		Buffer buffer = buffers.remove(owner);
+		if (buffer != null) {
+			remove(buffer);
+		}
+	}
+
+	/**
+	 * Removes messages with timestamps before passed date, ie. after expired messages were removed from the database.
+	 */
+	public synchronized void removeOlderThan(Date before) {
+		Iterator<Buffer> it = buffers.values().iterator();
+		while (it.hasNext()) {
+			Buffer buffer = it.next();
+			Iterator<Entry> entries = buffer.entries.iterator();
+			while (entries.hasNext()) {
+				Entry entry = entries.next();
+				if (!entry.timestamp.before(before)) {
+					break;
+				}
+				entries.remove();
+				size--;
+				bytes -= entry.bytes;
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		buffers.clear();
+		size = 0;
+		bytes = 0;
+	}
+
+	private void remove(Buffer buffer) {
+		for (Entry entry : buffer.entries) {
+			bytes -= entry.bytes;
+		}
+		size -= buffer.entries.size();
+	}
+
+	public static final class Entry {
+
+		private final String id;
+		private final Date timestamp;
+		private final BareJID buddy;
+		private final String message;
+		private final String refId;
+		private final int bytes;
+
+		private Entry(String id, Date timestamp, BareJID buddy, String message, String refId) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.buddy = buddy;
+			this.message = message;
+			this.refId = refId;
+			this.bytes = ENTRY_OVERHEAD + 2 * (id.length() + message.length());
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public Date getTimestamp() {
+			return timestamp;
+		}
+
+		public BareJID getBuddy() {
+			return buddy;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public String getRefId() {
+			return refId;
+		}
+	}
+
+	private static final class Buffer {
+
+		private final long createdAt;
+		private final ArrayList<Entry> entries = new ArrayList<>();
+		private int evictedBytes;
+
+		private Buffer(long createdAt) {
+			this.createdAt = createdAt;
+		}
+
+		/**
+		 * @return number of evicted entries or -1 if entry was not added
+		 */
+		private int add(Entry entry, int limit) {
+			long ts = entry.timestamp.getTime();
+			// message could be stored in the database before this buffer was created
+			if (ts <= createdAt) {
+				return -1;
+			}
+			int idx = entries.size();
+			while (idx > 0 && entries.get(idx - 1).timestamp.getTime() > ts) {
+				idx--;
+			}
+			if (idx == 0 && entries.size() >= limit) {
+				// older than all kept messages, so it cannot follow any of them
+				return -1;
+			}
+			entries.add(idx, entry);
+			evictedBytes = 0;
+			int evicted = 0;
+			while (entries.size() > limit) {
+				evictedBytes += entries.remove(0).bytes;
+				evicted++;
+			}
+			return evicted;
+		}
+	}
+}
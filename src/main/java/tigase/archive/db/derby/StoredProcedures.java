@@ -24,6 +24,9 @@ import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -33,6 +36,7 @@ public class StoredProcedures {
 
 	private static final Logger log = Logger.getLogger(StoredProcedures.class.getName());
 	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_WORD_LENGTH = 64;
 
 	private static void addJid(BareJID bareJid, String jidSha1) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -61,6 +65,11 @@ public class StoredProcedures {
 		long ownerId = ensureJid(ownerJid);
 		long buddyId = ensureJid(buddyJid);
 
+		addMessageByIds(ownerId, buddyId, ts, stableId, stanzaId, refStableId, body, msg);
+	}
+
+	public static void addMessageByIds(long ownerId, long buddyId, Timestamp ts, String stableId, String stanzaId,
+									   String refStableId, String body, String msg) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
@@ -87,6 +96,694 @@ public class StoredProcedures {
 			ps.setLong(++i, ownerId);
 			ps.setString(++i, stableId);
 			ps.execute();
+
+			if (ps.getUpdateCount() > 0) {
+				if (body != null) {
+					addBodyWords(conn, ownerId, stableId, body);
+				}
+				addToDailySummary(conn, ownerId, buddyId, ts);
+				updateConversation(conn, ownerId, buddyId, ts, stableId);
+			}
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void addTagToMessage(String ownerJid, String stableId, String tag) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			Long ownerId = ensureJid(ownerJid);
+			long tagId = getOrAddTagId(conn, ownerId, tag);
+
+			PreparedStatement ps = conn.prepareStatement(
+					"insert into tig_ma_msgs_tags (msg_owner_id, msg_stable_id, tag_id) select ?, ?, ? from SYSIBM.SYSDUMMY1" +
+							" where not exists (select 1 from tig_ma_msgs_tags mt where mt.msg_owner_id = ? and mt.msg_stable_id = ? and mt.tag_id = ?)");
+
+			ps.setLong(1, ownerId);
+			ps.setString(2, stableId);
+			ps.setLong(3, tagId);
+			ps.setLong(4, ownerId);
+			ps.setString(5, stableId);
+			ps.setLong(6, tagId);
+
+			ps.executeUpdate();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void addTagsToMessageByIds(long ownerId, String stableId, String tagIds) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (String tagId : tagIds.split(",")) {
+				if (sb.length() > 0) {
+					sb.append(",");
+				}
+				// only numeric values are allowed as they are appended to the query
+				sb.append(Long.parseLong(tagId.trim()));
+			}
+			PreparedStatement ps = conn.prepareStatement(
+					"insert into tig_ma_msgs_tags (msg_owner_id, msg_stable_id, tag_id) select t.owner_id, ?, t.tag_id from tig_ma_tags t" +
+							" where t.owner_id = ? and t.tag_id in (" + sb + ")" +
+							" and not exists (select 1 from tig_ma_msgs_tags mt where mt.msg_owner_id = t.owner_id and mt.msg_stable_id = ? and mt.tag_id = t.tag_id)");
+
+			ps.setString(1, stableId);
+			ps.setLong(2, ownerId);
+			ps.setString(3, stableId);
+
+			ps.executeUpdate();
+		} catch (NumberFormatException e) {
+			throw new SQLException("Invalid list of tag ids: " + tagIds, e);
+		} finally {
+			conn.close();
+		}
+	}
+
+	protected static StringBuilder appendContainsQuery(StringBuilder sb, String contains) {
+		if (contains != null) {
+			// terms are passed as a list of quoted patterns, ie. '%term1%','%term2%'
+			for (String term : contains.substring(1, contains.length() - 1).split("','")) {
+				String text = term.replace("''", "'");
+				// words contain only letters and digits, so they may be safely appended to the query
+				for (String word : extractIndexedWords(text)) {
+					sb.append(" and exists (select 1 from tig_ma_msgs_words w where w.owner_id = m.owner_id" +
+									  " and w.stable_id = m.stable_id and w.word like '")
+							.append(word)
+							.append("%')");
+				}
+			}
+			sb.append(" and m.body like ").append(contains.replace("','", "' and m.body like '"));
+		}
+		return sb;
+	}
+
+	/**
+	 * Returns words of the searched pattern which have to be beginnings of words of a matching message. Word
+	 * following the wildcard may be a part of a longer word of a message (ie. <code>ail</code> of
+	 * <code>%ail%</code> in <code>failed</code>), so it is not returned and if there are no other words, the message
+	 * can be found only by checking its whole body.
+	 */
+	protected static Set<String> extractIndexedWords(String pattern) {
+		Set<String> words = new LinkedHashSet<>();
+		for (String part : pattern.split("%")) {
+			int i = 0;
+			while (i < part.length() && Character.isLetterOrDigit(part.charAt(i))) {
+				i++;
+			}
+			words.addAll(extractWords(part.substring(i)));
+		}
+		return words;
+	}
+
+	protected static Set<String> extractWords(String text) {
+		Set<String> words = new LinkedHashSet<>();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				word.append(c);
+			} else if (word.length() > 0) {
+				String w = word.toString().toLowerCase(Locale.ROOT);
+				words.add(w.length() > MAX_WORD_LENGTH ? w.substring(0, MAX_WORD_LENGTH) : w);
+				word.setLength(0);
+			}
+		}
+		return words;
+	}
+
+	public static void indexBodyWords() throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select m.owner_id, m.stable_id, m.body from tig_ma_msgs m where m.body is not null" +
+							" and not exists (select 1 from tig_ma_msgs_words w where w.owner_id = m.owner_id and w.stable_id = m.stable_id)");
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				addBodyWords(conn, rs.getLong(1), rs.getString(2), rs.getString(3));
+			}
+			rs.close();
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static void addBodyWords(Connection conn, long ownerId, String stableId, String body)
+			throws SQLException {
+		Set<String> words = extractWords(body);
+		if (words.isEmpty()) {
+			return;
+		}
+		PreparedStatement ps = conn.prepareStatement(
+				"insert into tig_ma_msgs_words (owner_id, stable_id, word) values (?, ?, ?)");
+		for (String word : words) {
+			ps.setLong(1, ownerId);
+			ps.setString(2, stableId);
+			ps.setString(3, word);
+			ps.addBatch();
+		}
+		ps.executeBatch();
+	}
+
+	private static synchronized void addToDailySummary(Connection conn, long ownerId, long buddyId, Timestamp ts)
+			throws SQLException {
+		if (ts == null) {
+			return;
+		}
+		PreparedStatement ps = conn.prepareStatement(
+				"update tig_ma_msgs_daily set msgs_count = msgs_count + 1," +
+						" min_ts = case when min_ts < ? then min_ts else ? end," +
+						" max_ts = case when max_ts > ? then max_ts else ? end" +
+						" where owner_id = ? and ts_date = ? and buddy_id = ?");
+		ps.setTimestamp(1, ts);
+		ps.setTimestamp(2, ts);
+		ps.setTimestamp(3, ts);
+		ps.setTimestamp(4, ts);
+		ps.setLong(5, ownerId);
+		ps.setDate(6, dayOf(ts));
+		ps.setLong(7, buddyId);
+		if (ps.executeUpdate() == 0) {
+			ps = conn.prepareStatement(
+					"insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts) values (?, ?, ?, 1, ?, ?)");
+			ps.setLong(1, ownerId);
+			ps.setLong(2, buddyId);
+			ps.setDate(3, dayOf(ts));
+			ps.setTimestamp(4, ts);
+			ps.setTimestamp(5, ts);
+			ps.executeUpdate();
+		}
+	}
+
+	private static synchronized void updateConversation(Connection conn, long ownerId, long buddyId, Timestamp ts,
+														String stableId) throws SQLException {
+		if (ts == null) {
+			return;
+		}
+		PreparedStatement ps = conn.prepareStatement(
+				"select last_ts, last_stable_id from tig_ma_conversations where owner_id = ? and buddy_id = ?");
+		ps.setLong(1, ownerId);
+		ps.setLong(2, buddyId);
+		ResultSet rs = ps.executeQuery();
+		try {
+			if (rs.next()) {
+				Timestamp lastTs = rs.getTimestamp(1);
+				int cmp = lastTs == null ? -1 : lastTs.compareTo(ts);
+				if (cmp > 0 || (cmp == 0 && rs.getString(2).compareTo(stableId) >= 0)) {
+					return;
+				}
+				ps = conn.prepareStatement(
+						"update tig_ma_conversations set last_ts = ?, last_stable_id = ? where owner_id = ? and buddy_id = ?");
+				ps.setTimestamp(1, ts);
+				ps.setString(2, stableId);
+				ps.setLong(3, ownerId);
+				ps.setLong(4, buddyId);
+			} else {
+				ps = conn.prepareStatement(
+						"insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id) values (?, ?, ?, ?)");
+				ps.setLong(1, ownerId);
+				ps.setLong(2, buddyId);
+				ps.setTimestamp(3, ts);
+				ps.setString(4, stableId);
+			}
+		} finally {
+			rs.close();
+		}
+		ps.executeUpdate();
+	}
+
+	private static void refreshConversations(Connection conn, long ownerId, Long buddyId) throws SQLException {
+		// summaries need to be refreshed first, as they point to the last day of each conversation
+		PreparedStatement ps = conn.prepareStatement("delete from tig_ma_conversations where owner_id = ?" +
+															 (buddyId != null ? " and buddy_id = ?" : ""));
+		ps.setLong(1, ownerId);
+		if (buddyId != null) {
+			ps.setLong(2, buddyId);
+		}
+		ps.executeUpdate();
+
+		ps = conn.prepareStatement("insert into tig_ma_conversations (owner_id, buddy_id, last_ts, last_stable_id)" +
+										   " select d.owner_id, d.buddy_id, d.last_ts, (select max(m.stable_id) from tig_ma_msgs m" +
+										   " where m.owner_id = d.owner_id and m.buddy_id = d.buddy_id and m.ts = d.last_ts)" +
+										   " from (select owner_id, buddy_id, max(max_ts) as last_ts from tig_ma_msgs_daily" +
+										   " where owner_id = ?" + (buddyId != null ? " and buddy_id = ?" : "") +
+										   " group by owner_id, buddy_id) d");
+		ps.setLong(1, ownerId);
+		if (buddyId != null) {
+			ps.setLong(2, buddyId);
+		}
+		ps.executeUpdate();
+	}
+
+	private static void refreshDailySummary(Connection conn, long ownerId, Long buddyId, Timestamp from, Timestamp to)
+			throws SQLException {
+		// summaries of all days within the range are recalculated from messages which are left
+		StringBuilder sb = new StringBuilder("delete from tig_ma_msgs_daily where owner_id = ?");
+		if (buddyId != null) {
+			sb.append(" and buddy_id = ?");
+		}
+		if (from != null) {
+			sb.append(" and ts_date >= ?");
+		}
+		if (to != null) {
+			sb.append(" and ts_date <= ?");
+		}
+		PreparedStatement ps = conn.prepareStatement(sb.toString());
+		int i = 0;
+		ps.setLong(++i, ownerId);
+		if (buddyId != null) {
+			ps.setLong(++i, buddyId);
+		}
+		if (from != null) {
+			ps.setDate(++i, dayOf(from));
+		}
+		if (to != null) {
+			ps.setDate(++i, dayOf(to));
+		}
+		ps.executeUpdate();
+
+		sb = new StringBuilder("insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)" +
+									   " select m.owner_id, m.buddy_id, date(m.ts), count(1), min(m.ts), max(m.ts)" +
+									   " from tig_ma_msgs m where m.owner_id = ? and m.ts is not null");
+		if (buddyId != null) {
+			sb.append(" and m.buddy_id = ?");
+		}
+		if (from != null) {
+			sb.append(" and m.ts >= ?");
+		}
+		if (to != null) {
+			sb.append(" and m.ts < ?");
+		}
+		sb.append(" group by m.owner_id, m.buddy_id, date(m.ts)");
+		ps = conn.prepareStatement(sb.toString());
+		i = 0;
+		ps.setLong(++i, ownerId);
+		if (buddyId != null) {
+			ps.setLong(++i, buddyId);
+		}
+		if (from != null) {
+			ps.setTimestamp(++i, startOfDay(from, 0));
+		}
+		if (to != null) {
+			ps.setTimestamp(++i, startOfDay(to, 1));
+		}
+		ps.executeUpdate();
+
+		refreshConversations(conn, ownerId, buddyId);
+	}
+
+	private static void deleteExpiredDailySummary(Connection conn, String ownersQuery, Timestamp before,
+												  Object... ownersParams) throws SQLException {
+		// summaries of whole days of expired messages are removed, summary of the last day is recalculated
+		PreparedStatement ps = conn.prepareStatement(
+				"delete from tig_ma_msgs_daily where ts_date <= ? and owner_id in (" + ownersQuery + ")");
+		int i = 0;
+		ps.setDate(++i, dayOf(before));
+		for (Object param : ownersParams) {
+			ps.setObject(++i, param);
+		}
+		ps.executeUpdate();
+
+		ps = conn.prepareStatement("insert into tig_ma_msgs_daily (owner_id, buddy_id, ts_date, msgs_count, min_ts, max_ts)" +
+										   " select m.owner_id, m.buddy_id, date(m.ts), count(1), min(m.ts), max(m.ts)" +
+										   " from tig_ma_msgs m where m.ts >= ? and m.ts < ? and m.owner_id in (" +
+										   ownersQuery + ")" + " group by m.owner_id, m.buddy_id, date(m.ts)");
+		i = 0;
+		ps.setTimestamp(++i, startOfDay(before, 0));
+		ps.setTimestamp(++i, startOfDay(before, 1));
+		for (Object param : ownersParams) {
+			ps.setObject(++i, param);
+		}
+		ps.executeUpdate();
+
+		// last message of a conversation is expired only if all messages of the conversation are expired
+		ps = conn.prepareStatement(
+				"delete from tig_ma_conversations where last_ts < ? and owner_id in (" + ownersQuery + ")");
+		i = 0;
+		ps.setTimestamp(++i, before);
+		for (Object param : ownersParams) {
+			ps.setObject(++i, param);
+		}
+		ps.executeUpdate();
+	}
+
+	/**
+	 * Appends query reading whole days of the range from summaries and only messages of the first and the last day
+	 * from <code>tig_ma_msgs</code>. Parameters of the query are set by {@link #setDailySummaryQueryParams}.
+	 */
+	private static StringBuilder appendDailySummaryQuery(StringBuilder sb, String summarySelect, String msgsSelect,
+														 String msgsSuffix, String separator, boolean hasBuddy,
+														 Timestamp from, Timestamp to) {
+		sb.append(summarySelect).append(" where d.owner_id = ?");
+		if (hasBuddy) {
+			sb.append(" and d.buddy_id = ?");
+		}
+		if (from != null) {
+			sb.append(" and d.ts_date > ?");
+		}
+		if (to != null) {
+			sb.append(" and d.ts_date < ?");
+		}
+		if (from != null) {
+			sb.append(separator).append(msgsSelect).append(" where m.owner_id = ?");
+			if (hasBuddy) {
+				sb.append(" and m.buddy_id = ?");
+			}
+			sb.append(" and m.ts >= ? and m.ts < ?");
+			if (to != null) {
+				sb.append(" and m.ts <= ?");
+			}
+			sb.append(msgsSuffix);
+		}
+		if (to != null) {
+			sb.append(separator).append(msgsSelect).append(" where m.owner_id = ?");
+			if (hasBuddy) {
+				sb.append(" and m.buddy_id = ?");
+			}
+			sb.append(" and m.ts >= ? and m.ts <= ?");
+			if (from != null) {
+				sb.append(" and m.ts >= ?");
+			}
+			sb.append(msgsSuffix);
+		}
+		return sb;
+	}
+
+	private static int setDailySummaryQueryParams(PreparedStatement ps, int i, Long ownerId, Long buddyId,
+												  boolean hasBuddy, Timestamp from, Timestamp to) throws SQLException {
+		int parts = 1 + (from != null ? 1 : 0) + (to != null ? 1 : 0);
+		for (int part = 0; part < parts; part++) {
+			// jids which are not known are matched with nothing
+			ps.setLong(++i, ownerId == null ? -1 : ownerId);
+			if (hasBuddy) {
+				ps.setLong(++i, buddyId == null ? -1 : buddyId);
+			}
+			if (part == 0) {
+				if (from != null) {
+					ps.setDate(++i, dayOf(from));
+				}
+				if (to != null) {
+					ps.setDate(++i, dayOf(to));
+				}
+			} else if (part == 1 && from != null) {
+				ps.setTimestamp(++i, from);
+				ps.setTimestamp(++i, startOfDay(from, 1));
+				if (to != null) {
+					ps.setTimestamp(++i, to);
+				}
+			} else {
+				ps.setTimestamp(++i, startOfDay(to, 0));
+				ps.setTimestamp(++i, to);
+				if (from != null) {
+					ps.setTimestamp(++i, startOfDay(from, 1));
+				}
+			}
+		}
+		return i;
+	}
+
+	private static Date dayOf(Timestamp ts) {
+		// Derby's date() function uses default time zone of the JVM, the same as this conversion
+		return Date.valueOf(ts.toLocalDateTime().toLocalDate());
+	}
+
+	private static Timestamp startOfDay(Timestamp ts, int plusDays) {
+		return Timestamp.valueOf(ts.toLocalDateTime().toLocalDate().plusDays(plusDays).atStartOfDay());
+	}
+
+	protected static StringBuilder appendTagsQuery(StringBuilder sb, String tags) {
+		if (tags != null) {
+			sb.append(" and exists(select 1 from tig_ma_msgs_tags mt " +
+							  "inner join tig_ma_tags t on mt.tag_id = t.tag_id " +
+							  "where m.owner_id = mt.msg_owner_id and m.stable_id = mt.msg_stable_id and t.owner_id = o.jid_id and t.tag IN (")
+					.append(tags)
+					.append("))");
+		}
+		return sb;
+	}
+
+	private static int countMessages(Connection conn) throws SQLException {
+		ResultSet rs = conn.prepareStatement("select count(1) from tig_ma_msgs").executeQuery();
+		if (rs.next()) {
+			return rs.getInt(1);
+		}
+		return -1;
+	}
+
+	public static void deleteExpiredMessages(String domain, Timestamp before) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"delete from tig_ma_msgs where ts <= ? and exists (select 1 from tig_ma_jids o where owner_id = o.jid_id and o.\"domain\" = ?)");
+
+			ps.setTimestamp(1, before);
+			ps.setString(2, domain);
+
+			// jids which are no longer used are removed by deleteUnusedJids
+			ps.execute();
+
+			deleteExpiredDailySummary(conn, "select o.jid_id from tig_ma_jids o where o.\"domain\" = ?", before, domain);
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void addPendingRemoval(String ownerJid, Timestamp removedAt) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String jidSha1 = sha1OfLower(ownerJid);
+			PreparedStatement ps = conn.prepareStatement(
+					"update tig_ma_pending_removals set removed_at = ? where jid_sha1 = ?");
+			ps.setTimestamp(1, removedAt);
+			ps.setString(2, jidSha1);
+			if (ps.executeUpdate() == 0) {
+				ps = conn.prepareStatement(
+						"insert into tig_ma_pending_removals (jid_sha1, jid, removed_at) values (?, ?, ?)");
+				ps.setString(1, jidSha1);
+				ps.setString(2, ownerJid);
+				ps.setTimestamp(3, removedAt);
+				ps.executeUpdate();
+			}
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void getPendingRemovals(ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("select jid from tig_ma_pending_removals");
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void deleteRemovedUserMessages(String ownerJid, int limit, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String jidSha1 = sha1OfLower(ownerJid);
+			Timestamp removedAt = null;
+			PreparedStatement ps = conn.prepareStatement(
+					"select removed_at from tig_ma_pending_removals where jid_sha1 = ?");
+			ps.setString(1, jidSha1);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (rs.next()) {
+					removedAt = rs.getTimestamp(1);
+				}
+			}
+			Long ownerId = getJidId(BareJID.bareJIDInstanceNS(ownerJid), jidSha1);
+
+			int removed = 0;
+			if (ownerId != null && removedAt != null) {
+				// messages stored after the user was removed belong to a new account with the same jid
+				ps = conn.prepareStatement("select stable_id from tig_ma_msgs where owner_id = ? and ts <= ?" +
+												   " fetch first ? rows only");
+				ps.setLong(1, ownerId);
+				ps.setTimestamp(2, removedAt);
+				ps.setInt(3, limit);
+				try (ResultSet rs = ps.executeQuery()) {
+					PreparedStatement dps = conn.prepareStatement(
+							"delete from tig_ma_msgs where owner_id = ? and stable_id = ?");
+					while (rs.next()) {
+						dps.setLong(1, ownerId);
+						dps.setString(2, rs.getString(1));
+						removed += dps.executeUpdate();
+					}
+				}
+			}
+
+			if (removed < limit) {
+				if (ownerId != null && removedAt != null) {
+					// no messages are left before the day of removal, so only summary of that day is recalculated
+					ps = conn.prepareStatement("delete from tig_ma_msgs_daily where owner_id = ? and ts_date < ?");
+					ps.setLong(1, ownerId);
+					ps.setDate(2, dayOf(removedAt));
+					ps.executeUpdate();
+					refreshDailySummary(conn, ownerId, null, removedAt, removedAt);
+				}
+				if (ownerId != null) {
+					ps = conn.prepareStatement("delete from tig_ma_jids" +
+													   " where jid_id = ?" +
+													   " and not exists (" +
+													   "  select 1 from tig_ma_msgs m where m.buddy_id = jid_id" +
+													   " )" +
+													   " and not exists (" +
+													   "  select 1 from tig_ma_msgs m where m.owner_id = jid_id" +
+													   " )");
+					ps.setLong(1, ownerId);
+					ps.execute();
+				}
+				ps = conn.prepareStatement("delete from tig_ma_user_retention where jid_sha1 = ?");
+				ps.setString(1, jidSha1);
+				ps.execute();
+				ps = conn.prepareStatement("delete from tig_ma_pending_removals where jid_sha1 = ?");
+				ps.setString(1, jidSha1);
+				ps.execute();
+			}
+
+			ps = conn.prepareStatement("values cast(? as int)");
+			ps.setInt(1, removed);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void deleteUnusedJids(long afterId, int limit, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select jid_id from tig_ma_jids where jid_id > ? order by jid_id fetch first ? rows only");
+			ps.setLong(1, afterId);
+			ps.setInt(2, limit);
+
+			Long lastId = null;
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					lastId = rs.getLong(1);
+				}
+			}
+
+			int removed = 0;
+			if (lastId != null) {
+				ps = conn.prepareStatement("delete from tig_ma_jids" +
+												   " where jid_id > ? and jid_id <= ?" +
+												   " and not exists (" +
+												   "  select 1 from tig_ma_msgs m where m.owner_id = jid_id" +
+												   " )" +
+												   " and not exists (" +
+												   "  select 1 from tig_ma_msgs m where m.buddy_id = jid_id" +
+												   " )");
+				ps.setLong(1, afterId);
+				ps.setLong(2, lastId);
+				removed = ps.executeUpdate();
+			}
+
+			ps = conn.prepareStatement("values (cast(? as bigint), cast(? as int))");
+			if (lastId == null) {
+				ps.setNull(1, Types.BIGINT);
+			} else {
+				ps.setLong(1, lastId);
+			}
+			ps.setInt(2, removed);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void deleteExpiredMessagesChunk(String domain, Timestamp before, int limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			// Derby does not support limiting number of rows removed by delete statement
+			PreparedStatement ps = conn.prepareStatement(
+					"select m.owner_id, m.stable_id from tig_ma_msgs m inner join tig_ma_jids o on m.owner_id = o.jid_id" +
+							" where m.ts <= ? and o.\"domain\" = ? order by m.ts fetch first ? rows only");
+			ps.setTimestamp(1, before);
+			ps.setString(2, domain);
+			ps.setInt(3, limit);
+
+			int deleted = 0;
+			try (ResultSet rs = ps.executeQuery()) {
+				PreparedStatement dps = conn.prepareStatement(
+						"delete from tig_ma_msgs where owner_id = ? and stable_id = ?");
+				while (rs.next()) {
+					dps.setLong(1, rs.getLong(1));
+					dps.setString(2, rs.getString(2));
+					deleted += dps.executeUpdate();
+				}
+			}
+
+			if (deleted < limit) {
+				deleteExpiredDailySummary(conn, "select o.jid_id from tig_ma_jids o where o.\"domain\" = ?", before,
+										  domain);
+			}
+
+			ps = conn.prepareStatement("values cast(? as int)");
+			ps.setInt(1, deleted);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void getExpiredMessagesCount(String domain, Timestamp before, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select count(1) from tig_ma_msgs m inner join tig_ma_jids o on m.owner_id = o.jid_id" +
+							" where m.ts <= ? and o.\"domain\" = ?");
+			ps.setTimestamp(1, before);
+			ps.setString(2, domain);
+			data[0] = ps.executeQuery();
 		} catch (SQLException e) {
 			throw e;
 		} finally {
@@ -94,45 +791,50 @@ public class StoredProcedures {
 		}
 	}
 
-	public static void addTagToMessage(String ownerJid, String stableId, String tag) throws SQLException {
+	public static void setUserRetention(String ownerJid, Integer retentionDays) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			Long ownerId = ensureJid(ownerJid);
-			PreparedStatement ps = conn.prepareStatement("select tag_id from tig_ma_tags where owner_id = ? and tag = ?");
-
-			ps.setLong(1, ownerId);
-			ps.setString(2, tag);
-
-			ResultSet rs = ps.executeQuery();
-			long tagId = -1;
-			if (!rs.next()) {
-				rs.close();
-				ps = conn.prepareStatement("insert into tig_ma_tags (owner_id, tag) values (?,?)",
-										   Statement.RETURN_GENERATED_KEYS);
-				ps.setLong(1, ownerId);
-				ps.setString(2, tag);
-				ps.execute();
-				rs = ps.getGeneratedKeys();
-				rs.next();
+			String jid = ownerJid.toLowerCase();
+			String jidSha1 = sha1OfLower(ownerJid);
+			PreparedStatement ps;
+			if (retentionDays == null) {
+				ps = conn.prepareStatement("delete from tig_ma_user_retention where jid_sha1 = ?");
+				ps.setString(1, jidSha1);
+				ps.executeUpdate();
+			} else {
+				ps = conn.prepareStatement("update tig_ma_user_retention set retention_days = ? where jid_sha1 = ?");
+				ps.setInt(1, retentionDays);
+				ps.setString(2, jidSha1);
+				if (ps.executeUpdate() == 0) {
+					ps = conn.prepareStatement(
+							"insert into tig_ma_user_retention (jid_sha1, jid, \"domain\", retention_days) values (?, ?, ?, ?)");
+					ps.setString(1, jidSha1);
+					ps.setString(2, jid);
+					ps.setString(3, jid.substring(jid.indexOf('@') + 1));
+					ps.setInt(4, retentionDays);
+					ps.executeUpdate();
+				}
 			}
-			tagId = rs.getLong(1);
-			rs.close();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
 
-			ps = conn.prepareStatement(
-					"insert into tig_ma_msgs_tags (msg_owner_id, msg_stable_id, tag_id) select ?, ?, ? from SYSIBM.SYSDUMMY1" +
-							" where not exists (select 1 from tig_ma_msgs_tags mt where mt.msg_owner_id = ? and mt.msg_stable_id = ? and mt.tag_id = ?)");
+	public static void getUserRetentionPeriods(String domain, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
-			ps.setLong(1, ownerId);
-			ps.setString(2, stableId);
-			ps.setLong(3, tagId);
-			ps.setLong(4, ownerId);
-			ps.setString(5, stableId);
-			ps.setLong(6, tagId);
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
-			ps.executeUpdate();
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select distinct retention_days from tig_ma_user_retention where \"domain\" = ?");
+			ps.setString(1, domain.toLowerCase());
+			data[0] = ps.executeQuery();
 		} catch (SQLException e) {
 			throw e;
 		} finally {
@@ -140,55 +842,76 @@ public class StoredProcedures {
 		}
 	}
 
-	protected static StringBuilder appendContainsQuery(StringBuilder sb, String contains) {
-		if (contains != null) {
-			sb.append(" and m.body like ").append(contains.replace("','", "' and m.body like '"));
-		}
-		return sb;
-	}
+	public static void deleteExpiredUserMessages(String domain, int retentionDays, Timestamp before)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
-	protected static StringBuilder appendTagsQuery(StringBuilder sb, String tags) {
-		if (tags != null) {
-			sb.append(" and exists(select 1 from tig_ma_msgs_tags mt " +
-							  "inner join tig_ma_tags t on mt.tag_id = t.tag_id " +
-							  "where m.owner_id = mt.msg_owner_id and m.stable_id = mt.msg_stable_id and t.owner_id = o.jid_id and t.tag IN (")
-					.append(tags)
-					.append("))");
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			deleteExpiredUserMessages(conn, domain, retentionDays, before);
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
 		}
-		return sb;
 	}
 
-	private static int countMessages(Connection conn) throws SQLException {
-		ResultSet rs = conn.prepareStatement("select count(1) from tig_ma_msgs").executeQuery();
-		if (rs.next()) {
-			return rs.getInt(1);
-		}
-		return -1;
+	private static void deleteExpiredUserMessages(Connection conn, String domain, int retentionDays, Timestamp before)
+			throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(
+				"delete from tig_ma_msgs where is_ref in (0, 1) and ts < ? and owner_id in (" +
+						"select o.jid_id from tig_ma_user_retention r inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1" +
+						" where r.\"domain\" = ? and r.retention_days = ?)");
+		ps.setTimestamp(1, before);
+		ps.setString(2, domain.toLowerCase());
+		ps.setInt(3, retentionDays);
+		ps.executeUpdate();
+
+		deleteExpiredDailySummary(conn,
+								  "select o.jid_id from tig_ma_user_retention r inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1" +
+										  " where r.\"domain\" = ? and r.retention_days = ?", before,
+								  domain.toLowerCase(), retentionDays);
 	}
 
-	public static void deleteExpiredMessages(String domain, Timestamp before) throws SQLException {
+	public static void deleteExpiredUserMessagesChunk(String domain, int retentionDays, Timestamp before, int limit,
+													  ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
+			// Derby does not support limiting number of rows removed by delete statement
 			PreparedStatement ps = conn.prepareStatement(
-					"delete from tig_ma_msgs where ts <= ? and exists (select 1 from tig_ma_jids o where owner_id = o.jid_id and o.\"domain\" = ?)");
+					"select m.owner_id, m.stable_id from tig_ma_user_retention r" +
+							" inner join tig_ma_jids o on o.jid_sha1 = r.jid_sha1" +
+							" inner join tig_ma_msgs m on m.owner_id = o.jid_id" +
+							" where r.\"domain\" = ? and r.retention_days = ? and m.is_ref in (0, 1) and m.ts < ?" +
+							" fetch first ? rows only");
+			ps.setString(1, domain.toLowerCase());
+			ps.setInt(2, retentionDays);
+			ps.setTimestamp(3, before);
+			ps.setInt(4, limit);
 
-			ps.setTimestamp(1, before);
-			ps.setString(2, domain);
+			int deleted = 0;
+			try (ResultSet rs = ps.executeQuery()) {
+				PreparedStatement dps = conn.prepareStatement(
+						"delete from tig_ma_msgs where owner_id = ? and stable_id = ?");
+				while (rs.next()) {
+					dps.setLong(1, rs.getLong(1));
+					dps.setString(2, rs.getString(2));
+					deleted += dps.executeUpdate();
+				}
+			}
 
-			ps.execute();
+			// summaries are updated once all expired messages are removed
+			if (deleted < limit) {
+				deleteExpiredUserMessages(conn, domain, retentionDays, before);
+			}
 
-			ps = conn.prepareStatement("delete from tig_ma_jids" +
-											   " where" +
-											   "  not exists (" +
-											   "    select 1 from tig_ma_msgs m where m.owner_id = jid_id" +
-											   "  )" +
-											   "  and not exists (" +
-											   "    select 1 from tig_ma_msgs m where m.buddy_id = jid_id" +
-											   "  )");
-			ps.execute();
+			ps = conn.prepareStatement("values cast(? as int)");
+			ps.setInt(1, deleted);
+			data[0] = ps.executeQuery();
 		} catch (SQLException e) {
 			throw e;
 		} finally {
@@ -196,6 +919,28 @@ public class StoredProcedures {
 		}
 	}
 
+	private static synchronized long getOrAddTagId(Connection conn, long ownerId, String tag) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("select tag_id from tig_ma_tags where owner_id = ? and tag = ?");
+
+		ps.setLong(1, ownerId);
+		ps.setString(2, tag);
+
+		ResultSet rs = ps.executeQuery();
+		if (!rs.next()) {
+			rs.close();
+			ps = conn.prepareStatement("insert into tig_ma_tags (owner_id, tag) values (?,?)",
+									   Statement.RETURN_GENERATED_KEYS);
+			ps.setLong(1, ownerId);
+			ps.setString(2, tag);
+			ps.execute();
+			rs = ps.getGeneratedKeys();
+			rs.next();
+		}
+		long tagId = rs.getLong(1);
+		rs.close();
+		return tagId;
+	}
+
 	public static synchronized Long ensureJid(String jid) throws SQLException {
 		BareJID bareJid = BareJID.bareJIDInstanceNS(jid);
 		String jidSha1 = sha1OfLower(jid);
@@ -205,6 +950,41 @@ public class StoredProcedures {
 		return getJidId(bareJid, jidSha1);
 	}
 
+	public static void ensureJidId(String jid, ResultSet[] data) throws SQLException {
+		long jidId = ensureJid(jid);
+
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("select jid_id from tig_ma_jids where jid_id = ?");
+			ps.setLong(1, jidId);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void ensureTagId(long ownerId, String tag, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			long tagId = getOrAddTagId(conn, ownerId, tag);
+			PreparedStatement ps = conn.prepareStatement("select tag_id from tig_ma_tags where tag_id = ?");
+			ps.setLong(1, tagId);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void getCollections(String ownerJid, String buddyJid, Timestamp from, Timestamp to, String tags,
 									  String contains, Integer limit, Integer offset, ResultSet[] data)
 			throws SQLException {
@@ -213,6 +993,26 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
+			if (tags == null && contains == null) {
+				Long ownerId = getJidId(BareJID.bareJIDInstanceNS(ownerJid), sha1OfLower(ownerJid));
+				Long buddyId = buddyJid == null ? null : getJidId(BareJID.bareJIDInstanceNS(buddyJid), sha1OfLower(buddyJid));
+
+				// collection is a conversation with a buddy during a day, so whole days are read from summaries
+				StringBuilder sb = new StringBuilder("select c.ts, b.jid from (");
+				appendDailySummaryQuery(sb, "select d.min_ts as ts, d.buddy_id from tig_ma_msgs_daily d",
+										"select min(m.ts) as ts, m.buddy_id from tig_ma_msgs m", " group by m.buddy_id",
+										" union all ", buddyJid != null, from, to);
+				sb.append(") c inner join tig_ma_jids b on b.jid_id = c.buddy_id order by c.ts, b.jid");
+				sb.append(" offset ? rows fetch next ? rows only");
+
+				PreparedStatement ps = conn.prepareStatement(sb.toString());
+				int i = setDailySummaryQueryParams(ps, 0, ownerId, buddyId, buddyJid != null, from, to);
+				ps.setInt(++i, offset);
+				ps.setInt(++i, limit);
+				data[0] = ps.executeQuery();
+				return;
+			}
+
 			StringBuilder sb = new StringBuilder();
 
 			sb.append("select min(m.ts), b.jid");
@@ -259,6 +1059,94 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void getCollectionsByCursor(String ownerJid, String buddyJid, Timestamp from, Timestamp to,
+											  Timestamp afterTs, Long afterBuddyId, Timestamp beforeTs,
+											  Long beforeBuddyId, short reverse, Integer limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			Long ownerId = getJidId(BareJID.bareJIDInstanceNS(ownerJid), sha1OfLower(ownerJid));
+			Long buddyId = buddyJid == null ? null : getJidId(BareJID.bareJIDInstanceNS(buddyJid), sha1OfLower(buddyJid));
+
+			StringBuilder sb = new StringBuilder("select c.ts, b.jid, c.buddy_id from (");
+			appendDailySummaryQuery(sb, "select d.min_ts as ts, d.buddy_id from tig_ma_msgs_daily d",
+									"select min(m.ts) as ts, m.buddy_id from tig_ma_msgs m", " group by m.buddy_id",
+									" union all ", buddyJid != null, from, to);
+			sb.append(") c inner join tig_ma_jids b on b.jid_id = c.buddy_id where 1 = 1");
+			if (afterTs != null) {
+				sb.append(" and c.ts >= ? and (c.ts > ? or c.buddy_id > ?)");
+			}
+			if (beforeTs != null) {
+				sb.append(" and c.ts <= ? and (c.ts < ? or c.buddy_id < ?)");
+			}
+			if (reverse == 1) {
+				sb.append(" order by c.ts desc, c.buddy_id desc");
+			} else {
+				sb.append(" order by c.ts, c.buddy_id");
+			}
+			sb.append(" fetch first ? rows only");
+
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+			int i = setDailySummaryQueryParams(ps, 0, ownerId, buddyId, buddyJid != null, from, to);
+			if (afterTs != null) {
+				ps.setTimestamp(++i, afterTs);
+				ps.setTimestamp(++i, afterTs);
+				ps.setLong(++i, afterBuddyId);
+			}
+			if (beforeTs != null) {
+				ps.setTimestamp(++i, beforeTs);
+				ps.setTimestamp(++i, beforeTs);
+				ps.setLong(++i, beforeBuddyId);
+			}
+			ps.setInt(++i, limit);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void getRecentConversations(String ownerJid, Timestamp beforeTs, String beforeStableId, Integer limit,
+											  ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			Long ownerId = getJidId(BareJID.bareJIDInstanceNS(ownerJid), sha1OfLower(ownerJid));
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("select m.msg, m.ts, b.jid, m.stable_id, m.ref_stable_id" + " from tig_ma_conversations c" +
+							  " inner join tig_ma_msgs m on m.owner_id = c.owner_id and m.stable_id = c.last_stable_id" +
+							  " inner join tig_ma_jids b on b.jid_id = c.buddy_id" + " where c.owner_id = ?");
+			if (beforeTs != null) {
+				sb.append(" and c.last_ts <= ? and (c.last_ts < ? or c.last_stable_id < ?)");
+			}
+			sb.append(" order by c.last_ts desc, c.last_stable_id desc");
+			sb.append(" fetch first ? rows only");
+
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+
+			int i = 0;
+			ps.setLong(++i, ownerId == null ? -1 : ownerId);
+			if (beforeTs != null) {
+				ps.setTimestamp(++i, beforeTs);
+				ps.setTimestamp(++i, beforeTs);
+				ps.setString(++i, beforeStableId);
+			}
+			ps.setInt(++i, limit);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void getCollectionsCount(String ownerJid, String buddyJid, Timestamp from, Timestamp to, String tags,
 										   String contains, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -266,6 +1154,22 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
+			if (tags == null && contains == null) {
+				Long ownerId = getJidId(BareJID.bareJIDInstanceNS(ownerJid), sha1OfLower(ownerJid));
+				Long buddyId = buddyJid == null ? null : getJidId(BareJID.bareJIDInstanceNS(buddyJid), sha1OfLower(buddyJid));
+
+				StringBuilder sb = new StringBuilder("select (");
+				appendDailySummaryQuery(sb, "select count(1) from tig_ma_msgs_daily d",
+										"select count(distinct m.buddy_id) from tig_ma_msgs m", "", ") + (",
+										buddyJid != null, from, to);
+				sb.append(") from sysibm.sysdummy1");
+
+				PreparedStatement ps = conn.prepareStatement(sb.toString());
+				setDailySummaryQueryParams(ps, 0, ownerId, buddyId, buddyJid != null, from, to);
+				data[0] = ps.executeQuery();
+				return;
+			}
+
 			StringBuilder sb = new StringBuilder();
 
 			sb.append("select count(1) from (select min(m.ts), b.jid");
@@ -420,6 +1324,42 @@ public class StoredProcedures {
 		}
 	}
 	
+	public static void getMessagesByIds(String ownerJid, String stableIds, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String[] ids = stableIds.split(",");
+			StringBuilder sb = new StringBuilder();
+
+			sb.append("select m.msg, m.ts, b.jid, m.stable_id, m.ref_stable_id" + " from tig_ma_msgs m" +
+							  " inner join tig_ma_jids o on m.owner_id = o.jid_id" +
+							  " inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
+							  " where o.jid_sha1 = ? and m.stable_id in (");
+			for (int j = 0; j < ids.length; j++) {
+				if (j > 0) {
+					sb.append(",");
+				}
+				sb.append("?");
+			}
+			sb.append(")");
+
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+
+			int i = 0;
+			ps.setString(++i, sha1OfLower(ownerJid));
+			for (String id : ids) {
+				ps.setString(++i, id);
+			}
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void getMessages(String ownerJid, String buddyJid, Timestamp from, Timestamp to, short refType, String tags,
 								   String contains, Integer limit, Integer offset, ResultSet[] data)
 			throws SQLException {
@@ -476,6 +1416,75 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void getMessagesByCursor(String ownerJid, String buddyJid, Timestamp from, Timestamp to,
+										   Timestamp afterTs, String afterStableId, Timestamp beforeTs,
+										   String beforeStableId, short reverse, Integer limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			StringBuilder sb = new StringBuilder();
+
+			sb.append("select m.msg, m.ts, b.jid, m.stable_id, m.ref_stable_id" + " from tig_ma_msgs m" +
+							  " inner join tig_ma_jids o on m.owner_id = o.jid_id" +
+							  " inner join tig_ma_jids b on b.jid_id = m.buddy_id" + " where " + " o.jid_sha1 = ?");
+			if (buddyJid != null) {
+				sb.append(" and b.jid_sha1 = ?");
+			}
+			if (from != null) {
+				sb.append(" and m.ts >= ?");
+			}
+			if (to != null) {
+				sb.append(" and m.ts <= ?");
+			}
+			if (afterTs != null) {
+				sb.append(" and m.ts >= ? and (m.ts > ? or m.stable_id > ?)");
+			}
+			if (beforeTs != null) {
+				sb.append(" and m.ts <= ? and (m.ts < ? or m.stable_id < ?)");
+			}
+
+			if (reverse == 1) {
+				sb.append(" order by m.ts desc, m.stable_id desc");
+			} else {
+				sb.append(" order by m.ts, m.stable_id");
+			}
+			sb.append(" fetch first ? rows only");
+
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+
+			int i = 0;
+			ps.setString(++i, sha1OfLower(ownerJid));
+			if (buddyJid != null) {
+				ps.setString(++i, sha1OfLower(buddyJid));
+			}
+			if (from != null) {
+				ps.setTimestamp(++i, from);
+			}
+			if (to != null) {
+				ps.setTimestamp(++i, to);
+			}
+			if (afterTs != null) {
+				ps.setTimestamp(++i, afterTs);
+				ps.setTimestamp(++i, afterTs);
+				ps.setString(++i, afterStableId);
+			}
+			if (beforeTs != null) {
+				ps.setTimestamp(++i, beforeTs);
+				ps.setTimestamp(++i, beforeTs);
+				ps.setString(++i, beforeStableId);
+			}
+			ps.setInt(++i, limit);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void getMessagesCount(String ownerJid, String buddyJid, Timestamp from, Timestamp to, short refType, String tags,
 										String contains, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -483,6 +1492,22 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
+			if (refType == 1 && tags == null && contains == null) {
+				Long ownerId = getJidId(BareJID.bareJIDInstanceNS(ownerJid), sha1OfLower(ownerJid));
+				Long buddyId = buddyJid == null ? null : getJidId(BareJID.bareJIDInstanceNS(buddyJid), sha1OfLower(buddyJid));
+
+				// whole days are counted using summaries, only messages of the first and the last day are counted
+				StringBuilder sb = new StringBuilder("select (");
+				appendDailySummaryQuery(sb, "select coalesce(sum(d.msgs_count), 0) from tig_ma_msgs_daily d",
+										"select count(1) from tig_ma_msgs m", "", ") + (", buddyJid != null, from, to);
+				sb.append(") from sysibm.sysdummy1");
+
+				PreparedStatement ps = conn.prepareStatement(sb.toString());
+				setDailySummaryQueryParams(ps, 0, ownerId, buddyId, buddyJid != null, from, to);
+				data[0] = ps.executeQuery();
+				return;
+			}
+
 			StringBuilder sb = new StringBuilder();
 
 			sb.append("select count(1)" + " from tig_ma_msgs m" +
@@ -605,6 +1630,7 @@ public class StoredProcedures {
 					ps.setTimestamp(i++, to);
 				}
 				ps.execute();
+				refreshDailySummary(conn, ownerId, buddyId, from, to);
 
 				ps = conn.prepareStatement("delete from tig_ma_jids" +
 												   " where jid_id = ?" +
@@ -634,6 +1660,7 @@ public class StoredProcedures {
 					ps.setTimestamp(i++, to);
 				}
 				ps.execute();
+				refreshDailySummary(conn, ownerId, null, from, to);
 			}
 
 			PreparedStatement ps = conn.prepareStatement("delete from tig_ma_jids" +
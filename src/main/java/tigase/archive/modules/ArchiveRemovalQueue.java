@@ -0,0 +1,212 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.modules;
+
+import tigase.archive.MessageArchiveComponent;
+import tigase.archive.db.MessageArchiveRepository;
+import tigase.db.TigaseDBException;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes archives of removed users in the background. Archive is first registered for removal in the repository,
+ * which hides it from queries at once and keeps it registered if the server is restarted, and then its messages are
+ * removed in chunks, each within a separate transaction, so removal of users with large archives does not block the
+ * component.
+ */
+@Bean(name = "archiveRemovalQueue", parent = MessageArchiveComponent.class, active = true)
+public class ArchiveRemovalQueue
+		implements Initializable, UnregisterAware, ConfigurationChangedAware {
+
+	private static final Logger log = Logger.getLogger(ArchiveRemovalQueue.class.getCanonicalName());
+
+	@ConfigField(desc = "Maximal number of messages removed within a single transaction", alias = "chunk-size")
+	private int chunkSize = 1000;
+	@ConfigField(desc = "Pause between removals of chunks of messages", alias = "chunk-pause")
+	private Duration chunkPause = Duration.ofMillis(100);
+	@ConfigField(desc = "Asynchronous removal of archives of removed users enabled", alias = "enabled")
+	private boolean enabled = true;
+	private final AtomicLong failedRemovals = new AtomicLong();
+	@Inject
+	private MessageArchiveRepository msg_repo;
+	private volatile BlockingQueue<BareJID> queue;
+	private final AtomicLong removalTime = new AtomicLong();
+	private final AtomicLong removedArchives = new AtomicLong();
+	private final AtomicLong removedMessages = new AtomicLong();
+	@ConfigField(desc = "Delay before removal which failed is retried", alias = "retry-delay")
+	private Duration retryDelay = Duration.ofMinutes(1);
+	private volatile boolean stopping = false;
+	private Thread worker;
+	private boolean initialized = false;
+
+	public boolean isEnabled() {
+		return queue != null;
+	}
+
+	/**
+	 * Registers archive of the removed user for removal.
+	 *
+	 * @return false if archive could not be registered for removal and should be removed directly
+	 */
+	public boolean offer(BareJID owner) {
+		BlockingQueue<BareJID> queue = this.queue;
+		if (queue == null || stopping) {
+			return false;
+		}
+		try {
+			msg_repo.addPendingRemoval(owner);
+		} catch (TigaseDBException ex) {
+			log.log(Level.WARNING, "could not register archive of " + owner + " for removal", ex);
+			return false;
+		}
+		queue.offer(owner);
+		return true;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		if (!isEnabled()) {
+			return;
+		}
+		BlockingQueue<BareJID> queue = this.queue;
+		long removedArchives = this.removedArchives.get();
+		list.add(compName, "Archive removal queue size", queue == null ? 0 : queue.size(), Level.FINE);
+		list.add(compName, "Archive removal queue removed archives", removedArchives, Level.FINE);
+		list.add(compName, "Archive removal queue removed messages", removedMessages.get(), Level.FINE);
+		list.add(compName, "Archive removal queue failed removals", failedRemovals.get(), Level.FINE);
+		list.add(compName, "Archive removal queue removal time (avg)",
+				 removedArchives > 0 ? ((float) removalTime.get()) / removedArchives : -1, Level.FINE);
+	}
+
+	@Override
+	public void initialize() {
+		initialized = true;
+		start();
+	}
+
+	@Override
+	public void beforeUnregister() {
+		stop();
+	}
+
+	@Override
+	public void beanConfigurationChanged(Collection<String> changedFields) {
+		if (!initialized) {
+			// will be started by initialize()
+			return;
+		}
+		stop();
+		start();
+	}
+
+	protected synchronized void start() {
+		if (!enabled || queue != null) {
+			return;
+		}
+		stopping = false;
+		queue = new LinkedBlockingQueue<>();
+		worker = new Thread(this::run, "message-archive-removal");
+		worker.setDaemon(true);
+		worker.start();
+		log.log(Level.CONFIG, "started removal of archives of removed users, chunk size = {0}", chunkSize);
+	}
+
+	protected synchronized void stop() {
+		if (queue == null) {
+			return;
+		}
+		stopping = true;
+		worker.interrupt();
+		try {
+			worker.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		// archives which are not removed are still registered in the repository
+		worker = null;
+		queue = null;
+	}
+
+	private void run() {
+		BlockingQueue<BareJID> queue = this.queue;
+		try {
+			// removals registered before the server was restarted
+			for (BareJID owner : msg_repo.getPendingRemovals()) {
+				queue.offer(owner);
+			}
+		} catch (TigaseDBException ex) {
+			log.log(Level.WARNING, "could not retrieve archives registered for removal", ex);
+		}
+		while (!stopping) {
+			try {
+				BareJID owner = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (owner == null) {
+					continue;
+				}
+				if (!remove(owner)) {
+					failedRemovals.incrementAndGet();
+					Thread.sleep(retryDelay.toMillis());
+					queue.offer(owner);
+				}
+			} catch (InterruptedException ex) {
+				// we will finish if we are stopping
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "exception while removing archive of removed user", ex);
+			}
+		}
+	}
+
+	private boolean remove(BareJID owner) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		int chunkSize = Math.max(1, this.chunkSize);
+		try {
+			int removed;
+			while ((removed = msg_repo.deleteRemovedUserMessages(owner, chunkSize)) >= chunkSize) {
+				removedMessages.addAndGet(removed);
+				if (stopping) {
+					// removal will be continued after restart
+					return true;
+				}
+				Thread.sleep(chunkPause.toMillis());
+			}
+			removedMessages.addAndGet(removed);
+			removedArchives.incrementAndGet();
+			removalTime.addAndGet(System.currentTimeMillis() - start);
+			log.log(Level.FINEST, "removed archive of removed user {0} in {1}ms",
+					new Object[]{owner, System.currentTimeMillis() - start});
+			return true;
+		} catch (TigaseDBException ex) {
+			log.log(Level.FINE, "could not remove archive of removed user " + owner + ", removal will be retried", ex);
+			return false;
+		}
+	}
+}
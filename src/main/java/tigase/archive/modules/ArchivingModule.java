@@ -19,10 +19,13 @@ package tigase.archive.modules;
 
 import tigase.archive.MessageArchiveComponent;
 import tigase.archive.TagsHelper;
+import tigase.archive.db.ArchivedMessage;
 import tigase.archive.db.MessageArchiveRepository;
+import tigase.archive.db.MessageContent;
 import tigase.component.exceptions.ComponentException;
 import tigase.criteria.Criteria;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
 import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.util.datetime.TimestampHelper;
@@ -33,6 +36,7 @@ import tigase.xmpp.jid.JID;
 
 import java.text.ParseException;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -50,6 +54,9 @@ public class ArchivingModule
 
 	private final TimestampHelper timestampHelper = new TimestampHelper();
 
+	@Inject
+	private ArchivingQueue archivingQueue;
+
 	@Override
 	public String[] getFeatures() {
 		return new String[0];
@@ -78,9 +85,10 @@ public class ArchivingModule
 						? packet.getStanzaTo()
 						: packet.getStanzaFrom();
 
-			Element msg = packet.getElement();
+			// body, origin-id and delay are extracted at once and XML is created only once by the repository
+			MessageContent content = MessageContent.of(packet.getElement());
 			Date timestamp = null;
-			Element delay = msg.findChildStaticStr(Message.MESSAGE_DELAY_PATH);
+			Element delay = content.getDelay();
 			if (delay != null) {
 				try {
 					String stamp = delay.getAttributeStaticStr("stamp");
@@ -95,10 +103,13 @@ public class ArchivingModule
 
 			Set<String> tags = null;
 			if (config.isTagSupportEnabled()) {
-				tags = TagsHelper.extractTags(msg);
+				tags = TagsHelper.extractTags(new HashSet<>(), content.getBody());
 			}
 
-			msg_repo.archiveMessage(owner, buddy, timestamp, msg, packet.getStableId(), tags);
+			ArchivedMessage message = new ArchivedMessage(owner, buddy, timestamp, content, packet.getStableId(), tags);
+			if (!archivingQueue.offer(message)) {
+				msg_repo.archiveMessage(message);
+			}
 		} else {
 			log.log(Level.FINE, "Owner attribute missing from packet: {0}", packet);
 		}
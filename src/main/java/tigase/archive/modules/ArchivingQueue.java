@@ -0,0 +1,364 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.modules;
+
+import tigase.archive.MessageArchiveComponent;
+import tigase.archive.db.ArchivedMessage;
+import tigase.archive.db.MessageArchiveRepository;
+import tigase.db.TigaseDBException;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
+import tigase.stats.StatisticsList;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional asynchronous write stage placed between {@link ArchivingModule} and a repository. Messages are put into a
+ * bounded queue and drainer threads store them in batches, each batch within a single transaction, to reduce number
+ * of commits executed by the database.
+ * <br>
+ * Batch is closed when it reaches {@code max-batch-size} messages or when {@code max-linger} elapsed since the first
+ * message of the batch was taken from the queue.
+ */
+@Bean(name = "archivingQueue", parent = MessageArchiveComponent.class, active = true)
+public class ArchivingQueue
+		implements Initializable, UnregisterAware, ConfigurationChangedAware {
+
+	private static final Logger log = Logger.getLogger(ArchivingQueue.class.getCanonicalName());
+
+	/**
+	 * Defines guarantees given to the caller of {@link #offer(ArchivedMessage)}.
+	 */
+	public enum Durability {
+		/**
+		 * Caller is blocked until the batch containing its message is committed.
+		 */
+		sync,
+		/**
+		 * Caller is blocked only if the queue is full. Messages waiting in the queue are stored before component is
+		 * stopped.
+		 */
+		async,
+		/**
+		 * Caller is never blocked. If the queue is full the message is dropped.
+		 */
+		bestEffort
+	}
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong commitTime = new AtomicLong();
+	private final AtomicLong droppedMessages = new AtomicLong();
+	private final AtomicLong failedBatches = new AtomicLong();
+	private final AtomicLong failedMessages = new AtomicLong();
+	private final AtomicLong maxCommitTime = new AtomicLong();
+	private final AtomicLong storedMessages = new AtomicLong();
+	@ConfigField(desc = "Durability of messages passed to the queue", alias = "durability")
+	private Durability durability = Durability.async;
+	@ConfigField(desc = "Asynchronous archiving enabled", alias = "enabled")
+	private boolean enabled = false;
+	@ConfigField(desc = "Maximal number of messages stored in a single transaction", alias = "max-batch-size")
+	private int maxBatchSize = 100;
+	@ConfigField(desc = "Maximal time for which batch waits for more messages", alias = "max-linger")
+	private Duration maxLinger = Duration.ofMillis(5);
+	@Inject
+	private MessageArchiveRepository msg_repo;
+	private volatile BlockingQueue<Entry> queue;
+	@ConfigField(desc = "Maximal number of messages waiting to be stored", alias = "queue-size")
+	private int queueSize = 10000;
+	private volatile boolean stopping = false;
+	private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+	@ConfigField(desc = "Maximal time for which caller waits for its message to be stored with sync durability", alias = "sync-timeout")
+	private Duration syncTimeout = Duration.ofSeconds(30);
+	@ConfigField(desc = "Number of threads storing messages", alias = "threads")
+	private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private final List<Thread> workers = new ArrayList<>();
+	private boolean initialized = false;
+
+	public boolean isEnabled() {
+		return queue != null;
+	}
+
+	/**
+	 * Passes message to the queue. Depending on the configured durability method may block until there is space in
+	 * the queue or until the message is committed to the repository.
+	 *
+	 * @return false if message could not be passed to the queue and should be stored directly
+	 */
+	public boolean offer(ArchivedMessage message) {
+		Durability durability = this.durability;
+		Entry entry = new Entry(message, durability == Durability.sync ? new CompletableFuture<>() : null);
+		// state is checked under the same lock which is used to stop the queue, so that no message may be added
+		// after the queue was stopped
+		stateLock.readLock().lock();
+		try {
+			BlockingQueue<Entry> queue = this.queue;
+			if (queue == null || stopping) {
+				return false;
+			}
+			if (durability == Durability.bestEffort) {
+				if (!queue.offer(entry)) {
+					droppedMessages.incrementAndGet();
+					log.log(Level.FINE, "archiving queue is full, dropping message {0}", message);
+				}
+				return true;
+			}
+			queue.put(entry);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			stateLock.readLock().unlock();
+		}
+
+		if (entry.result != null) {
+			try {
+				entry.result.get(syncTimeout.toMillis(), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException ex) {
+				// message was already stored or logged as failed by drainer thread
+				log.log(Level.FINEST, "storing of message " + message + " failed", ex.getCause());
+			} catch (TimeoutException ex) {
+				// message is still in the queue and will be stored, so it must not be stored by the caller
+				log.log(Level.FINE, "message {0} was not stored within {1}, not waiting any longer",
+						new Object[]{message, syncTimeout});
+			}
+		}
+		return true;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		if (!isEnabled()) {
+			return;
+		}
+		BlockingQueue<Entry> queue = this.queue;
+		long batches = this.batches.get();
+		list.add(compName, "Archiving queue size", queue == null ? 0 : queue.size(), Level.FINE);
+		list.add(compName, "Archiving queue stored messages", storedMessages.get(), Level.FINE);
+		list.add(compName, "Archiving queue dropped messages", droppedMessages.get(), Level.FINE);
+		list.add(compName, "Archiving queue batches", batches, Level.FINER);
+		list.add(compName, "Archiving queue failed batches", failedBatches.get(), Level.FINE);
+		list.add(compName, "Archiving queue failed messages", failedMessages.get(), Level.FINE);
+		list.add(compName, "Archiving queue batch size (avg)",
+				 batches > 0 ? ((float) storedMessages.get()) / batches : -1, Level.FINE);
+		list.add(compName, "Archiving queue commit time (avg)",
+				 batches > 0 ? ((float) commitTime.get()) / batches : -1, Level.FINE);
+		list.add(compName, "Archiving queue commit time (max)", maxCommitTime.get(), Level.FINER);
+	}
+
+	@Override
+	public void initialize() {
+		initialized = true;
+		start();
+	}
+
+	@Override
+	public void beforeUnregister() {
+		stop();
+	}
+
+	@Override
+	public void beanConfigurationChanged(Collection<String> changedFields) {
+		if (!initialized) {
+			// will be started by initialize()
+			return;
+		}
+		stop();
+		start();
+	}
+
+	protected void start() {
+		synchronized (workers) {
+			if (!enabled || queue != null) {
+				return;
+			}
+			BlockingQueue<Entry> queue = new LinkedBlockingQueue<>(queueSize);
+			stateLock.writeLock().lock();
+			try {
+				this.queue = queue;
+				stopping = false;
+			} finally {
+				stateLock.writeLock().unlock();
+			}
+			for (int i = 0; i < threads; i++) {
+				Thread worker = new Thread(this::drain, "message-archive-queue-" + i);
+				worker.setDaemon(true);
+				workers.add(worker);
+				worker.start();
+			}
+			log.log(Level.CONFIG, "started {0} archiving queue threads, queue size = {1}, batch size = {2}",
+					new Object[]{threads, queueSize, maxBatchSize});
+		}
+	}
+
+	protected void stop() {
+		synchronized (workers) {
+			BlockingQueue<Entry> queue = this.queue;
+			if (queue == null) {
+				return;
+			}
+			// waits for callers which are adding messages, new messages will not be accepted
+			stateLock.writeLock().lock();
+			try {
+				stopping = true;
+			} finally {
+				stateLock.writeLock().unlock();
+			}
+			for (Thread worker : workers) {
+				try {
+					// workers will store all remaining messages before they finish
+					worker.join(TimeUnit.SECONDS.toMillis(30));
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			workers.clear();
+			// workers which did not finish in time may be still storing their batches, remaining messages are
+			// stored here as nobody else will take them from the queue
+			List<Entry> remaining = new ArrayList<>();
+			queue.drainTo(remaining);
+			if (!remaining.isEmpty()) {
+				log.log(Level.WARNING, "storing {0} messages left in archiving queue after it was stopped",
+						remaining.size());
+				for (int from = 0; from < remaining.size(); from += maxBatchSize) {
+					storeOrFail(remaining.subList(from, Math.min(remaining.size(), from + maxBatchSize)));
+				}
+			}
+			this.queue = null;
+		}
+	}
+
+	private void drain() {
+		BlockingQueue<Entry> queue = this.queue;
+		List<Entry> batch = new ArrayList<>(maxBatchSize);
+		while (!(stopping && queue.isEmpty())) {
+			try {
+				Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + maxLinger.toNanos();
+				while (batch.size() < maxBatchSize) {
+					long remaining = deadline - System.nanoTime();
+					Entry next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				storeOrFail(batch);
+			} catch (InterruptedException ex) {
+				// we will finish when queue is empty, messages already taken are stored
+				storeOrFail(batch);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void storeOrFail(List<Entry> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			store(batch);
+		} catch (Throwable ex) {
+			log.log(Level.WARNING, "exception while storing batch of " + batch.size() + " messages", ex);
+			failedMessages.addAndGet(batch.size());
+			// callers waiting for messages which were not stored need to be released
+			for (Entry entry : batch) {
+				entry.done(ex);
+			}
+		}
+	}
+
+	private void store(List<Entry> batch) {
+		List<ArchivedMessage> messages = new ArrayList<>(batch.size());
+		for (Entry entry : batch) {
+			messages.add(entry.message);
+		}
+
+		long start = System.currentTimeMillis();
+		try {
+			msg_repo.archiveMessages(messages);
+			long time = System.currentTimeMillis() - start;
+			commitTime.addAndGet(time);
+			maxCommitTime.accumulateAndGet(time, Math::max);
+			batches.incrementAndGet();
+			storedMessages.addAndGet(messages.size());
+			for (Entry entry : batch) {
+				entry.done(null);
+			}
+		} catch (TigaseDBException ex) {
+			failedBatches.incrementAndGet();
+			log.log(Level.FINE, "could not store batch of " + batch.size() + " messages, storing them one by one",
+					ex);
+			// single broken message should not cause whole batch to be lost, archiveMessage(message) is not used as
+			// it does not report failures
+			for (Entry entry : batch) {
+				ArchivedMessage message = entry.message;
+				try {
+					msg_repo.archiveMessages(Collections.singletonList(message));
+					storedMessages.incrementAndGet();
+					entry.done(null);
+				} catch (Throwable ex1) {
+					failedMessages.incrementAndGet();
+					log.log(Level.WARNING, "could not store message " + message, ex1);
+					entry.done(ex1);
+				}
+			}
+		}
+	}
+
+	private static class Entry {
+
+		private final ArchivedMessage message;
+		private final CompletableFuture<Void> result;
+
+		private Entry(ArchivedMessage message, CompletableFuture<Void> result) {
+			this.message = message;
+			this.result = result;
+		}
+
+		private void done(Throwable ex) {
+			if (result == null) {
+				return;
+			}
+			if (ex == null) {
+				result.complete(null);
+			} else {
+				result.completeExceptionally(ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.processors;
+
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.ElementMatcher;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matchers of messages to archive with a pre-filter skipping matchers which cannot match a message.
+ * <p>
+ * For each matcher, children which have to be present in the message for the matcher to match (ie.
+ * <code>body</code> for <code>/message/body</code> or <code>result</code> with <code>urn:xmpp:mam:2</code> namespace
+ * for <code>-/message/result[urn:xmpp:mam:2]</code>) are determined from its configured path. Each direct child of
+ * the message is checked once to find which of these children are present, and then only matchers for which all
+ * required children are present are evaluated, in the configured order, so the first matching matcher decides if the
+ * message is archived, as before. Matchers for which required children cannot be determined from the path (or which
+ * path is not known) are always evaluated.
+ * </p>
+ */
+public class CompiledArchivingMatchers {
+
+	// path of the matcher, optionally followed by namespace of the last element of the path
+	private static final Pattern MATCHER_PATTERN = Pattern.compile("^[-+]?((?:/[^/\\[\\]]+)+)(?:\\[([^\\]]*)\\])?$");
+	private static final Pattern NAME_PATTERN = Pattern.compile("^[^*@=\\s]+$");
+	private static final int MAX_CONDITIONS = Long.SIZE;
+
+	private final ElementMatcher[] matchers;
+	private final long[] requiredChildren;
+	private final Map<String, Condition> conditions = new HashMap<>();
+	private int conditionsCount = 0;
+
+	/**
+	 * @param matchers matchers in the order in which they are evaluated
+	 * @param paths paths from which matchers were created (ie. values of <code>msg-archive-paths</code>), with
+	 * <code>null</code> for a matcher which path is not known, or <code>null</code> if none of them is known
+	 */
+	public CompiledArchivingMatchers(ElementMatcher[] matchers, String[] paths) {
+		if (paths != null && paths.length != matchers.length) {
+			throw new IllegalArgumentException("Number of paths does not match number of matchers");
+		}
+		this.matchers = matchers;
+		this.requiredChildren = new long[matchers.length];
+		if (paths != null) {
+			for (int i = 0; i < matchers.length; i++) {
+				requiredChildren[i] = compile(paths[i]);
+			}
+		}
+	}
+
+	public ElementMatcher[] getMatchers() {
+		return matchers;
+	}
+
+	/**
+	 * Returns value of the first matcher matching the packet.
+	 *
+	 * @return <code>false</code> if none of the matchers matches the packet
+	 */
+	public boolean matches(Packet packet) {
+		long present = 0;
+		if (conditionsCount > 0) {
+			List<Element> children = packet.getElement().getChildren();
+			if (children != null) {
+				for (Element child : children) {
+					Condition condition = conditions.get(child.getName());
+					if (condition != null) {
+						present |= condition.check(child);
+					}
+				}
+			}
+		}
+
+		for (int i = 0; i < matchers.length; i++) {
+			if ((requiredChildren[i] & ~present) != 0) {
+				continue;
+			}
+			if (matchers[i].matches(packet)) {
+				return matchers[i].getValue();
+			}
+		}
+		return false;
+	}
+
+	private long compile(String path) {
+		if (path == null) {
+			return 0;
+		}
+		Matcher m = MATCHER_PATTERN.matcher(path.trim());
+		if (!m.matches()) {
+			return 0;
+		}
+		String[] elems = m.group(1).substring(1).split("/");
+		if (elems.length < 2 || !NAME_PATTERN.matcher(elems[1]).matches()) {
+			return 0;
+		}
+		String xmlns = m.group(2);
+		if (elems.length > 2 || xmlns == null || !NAME_PATTERN.matcher(xmlns).matches()) {
+			xmlns = null;
+		}
+		Condition condition = conditions.computeIfAbsent(elems[1], name -> new Condition());
+		return condition.bit(this, xmlns);
+	}
+
+	private int nextBit() {
+		return conditionsCount < MAX_CONDITIONS ? conditionsCount++ : -1;
+	}
+
+	/**
+	 * Bits set for a child with a name, for any namespace and for each namespace required by matchers.
+	 */
+	private static class Condition {
+
+		private final Map<String, Long> xmlnsBits = new HashMap<>();
+		private long anyBit = 0;
+
+		private long bit(CompiledArchivingMatchers compiled, String xmlns) {
+			if (xmlns == null) {
+				if (anyBit == 0) {
+					int bit = compiled.nextBit();
+					anyBit = bit < 0 ? 0 : 1L << bit;
+				}
+				return anyBit;
+			}
+			Long bit = xmlnsBits.get(xmlns);
+			if (bit == null) {
+				int next = compiled.nextBit();
+				bit = next < 0 ? 0 : 1L << next;
+				xmlnsBits.put(xmlns, bit);
+			}
+			return bit;
+		}
+
+		private long check(Element child) {
+			long present = anyBit;
+			if (!xmlnsBits.isEmpty()) {
+				Long bit = xmlnsBits.get(child.getXMLNS());
+				if (bit != null) {
+					present |= bit;
+				}
+			}
+			return present;
+		}
+	}
+}
@@ -19,6 +19,7 @@ package tigase.archive.processors;
 
 //~--- non-JDK imports --------------------------------------------------------
 
+import tigase.archive.LocalArchivingHandoff;
 import tigase.archive.MessageArchiveVHostItemExtension;
 import tigase.archive.Settings;
 import tigase.archive.StoreMethod;
@@ -58,6 +59,7 @@ import tigase.xmpp.impl.roster.RosterFactory;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -95,10 +97,19 @@ public class MessageArchivePlugin
 	private static final String[] MESSAGE_HINTS_NO_STORE = {Message.ELEM_NAME, "no-store"};
 	private static final String[] MESSAGE_HINTS_NO_PERMANENT_STORE = {Message.ELEM_NAME, "no-permanent-store"};
 	private static final String MESSAGE_HINTS_XMLNS = "urn:xmpp:hints";
+	// paths of default matchers, null for matchers which do not require a child to be present
+	private static final String[] DEFAULT_ARCHIVING_PATHS = {"-/message/result[urn:xmpp:mam:1]",
+															 "-/message/result[urn:xmpp:mam:2]", null,
+															 "-/message/no-store[" + MESSAGE_HINTS_XMLNS + "]",
+															 "/message/body",
+															 "/message/store[" + MESSAGE_HINTS_XMLNS + "]", null, null,
+															 null};
 	private final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
 	private final TimestampHelper timestampHelper = new TimestampHelper();
 	@ConfigField(desc = "Message archiving component JID", alias = "component-jid")
 	protected JID componentJid = null;
+	@ConfigField(desc = "Pass messages directly to message archiving component if it runs in the same JVM", alias = "local-handoff")
+	private boolean localHandoff = false;
 	@Inject
 	private UserRepository userRepository;
 	@ConfigField(desc = "Cache size", alias = "size")
@@ -120,6 +131,9 @@ public class MessageArchivePlugin
 			new ElementMatcher(new String[]{Message.ELEM_NAME}, true, "http://jabber.org/protocol/chatstates", null, false),
 			new ElementMatcher(new String[]{Message.ELEM_NAME}, null, true),
 			};
+	// prepared from configured paths when matchers are set
+	private volatile CompiledArchivingMatchers compiledMatchers = new CompiledArchivingMatchers(archivingMatchers,
+																								 DEFAULT_ARCHIVING_PATHS);
 	@ConfigField(desc = "Global default store method", alias = DEFAULT_STORE_METHOD_KEY)
 	private StoreMethod globalDefaultStoreMethod = StoreMethod.Message;
 	@ConfigField(desc = "Global required store method", alias = REQUIRED_STORE_METHOD_KEY)
@@ -140,6 +154,11 @@ public class MessageArchivePlugin
 	private List<AbstractMAMProcessor> mamProcessors = new ArrayList<>();
 
 	private boolean stanzaIdSupport = false;
+	@ConfigField(desc = "Size of cache of archiving decisions made while adding stanza id", alias = "archiving-decisions-cache-size")
+	private int archivingDecisionsCacheSize = 10000;
+	// decisions made while adding stanza id, until the packet is processed by the plugin
+	private LRUConcurrentCache<ArchivingDecisionKey, ArchivingDecision> archivingDecisions = new LRUConcurrentCache<>(
+			archivingDecisionsCacheSize);
 	private boolean archiveOffline = true;
 
 	public boolean isArchivingOfMixMessageEnabled() {
@@ -150,6 +169,13 @@ public class MessageArchivePlugin
 		this.archiveOffline = archiveOffline;
 	}
 
+	public void setArchivingDecisionsCacheSize(int archivingDecisionsCacheSize) {
+		this.archivingDecisionsCacheSize = archivingDecisionsCacheSize;
+		if (archivingDecisions.limit() != archivingDecisionsCacheSize) {
+			archivingDecisions = new LRUConcurrentCache<>(archivingDecisionsCacheSize);
+		}
+	}
+
 	public void setCacheSize(int cacheSize) {
 		this.cacheSize = cacheSize;
 		if (cache.limit() != cacheSize) {
@@ -195,13 +221,28 @@ public class MessageArchivePlugin
 
 	public void setArchivingMatchers(String[] matcherStrs) {
 		List<ElementMatcher> matchers = new ArrayList<>();
+		List<String> paths = new ArrayList<>();
 		for (String matcherStr : matcherStrs) {
 			ElementMatcher matcher = ElementMatcher.create(matcherStr);
 			if (matcher != null) {
 				matchers.add(matcher);
+				paths.add(matcherStr);
 			}
 		}
-		archivingMatchers = matchers.toArray(new ElementMatcher[0]);
+		ElementMatcher[] archivingMatchers = matchers.toArray(new ElementMatcher[0]);
+		compiledMatchers = new CompiledArchivingMatchers(archivingMatchers, paths.toArray(new String[0]));
+		this.archivingMatchers = archivingMatchers;
+	}
+
+	protected CompiledArchivingMatchers getCompiledMatchers() {
+		ElementMatcher[] matchers = archivingMatchers;
+		CompiledArchivingMatchers compiled = compiledMatchers;
+		if (compiled.getMatchers() != matchers) {
+			// paths of matchers set without the setter are not known, so all of them are evaluated
+			compiled = new CompiledArchivingMatchers(matchers, null);
+			compiledMatchers = compiled;
+		}
+		return compiled;
 	}
 
 	public JID getComponentJid() {
@@ -299,6 +340,60 @@ public class MessageArchivePlugin
 	}
 
 
+	private static class ArchivingDecision {
+
+		private static final ArchivingDecision NOT_ARCHIVED = new ArchivingDecision(false, null, null);
+
+		private final boolean archive;
+		private final BareJID owner;
+		private final Settings settings;
+
+		private ArchivingDecision(boolean archive, BareJID owner, Settings settings) {
+			this.archive = archive;
+			this.owner = owner;
+			this.settings = settings;
+		}
+	}
+
+	/**
+	 * Identifies packet processed for a session by identity of both of them, as the same packet may be processed for
+	 * different sessions and equal packets are still processed separately.
+	 * <br>
+	 * Packet and session are referenced weakly, so that decisions for packets which were dropped before they were
+	 * processed by the plugin or for closed sessions do not keep them in memory until they are evicted from the cache.
+	 */
+	private static class ArchivingDecisionKey {
+
+		private final int hashCode;
+		private final WeakReference<Packet> packet;
+		private final WeakReference<XMPPResourceConnection> session;
+
+		private ArchivingDecisionKey(Packet packet, XMPPResourceConnection session) {
+			this.packet = new WeakReference<>(packet);
+			this.session = new WeakReference<>(session);
+			this.hashCode = 31 * System.identityHashCode(packet) + System.identityHashCode(session);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof ArchivingDecisionKey)) {
+				return false;
+			}
+			ArchivingDecisionKey other = (ArchivingDecisionKey) o;
+			Packet packet = this.packet.get();
+			// key of a collected packet is not equal to any other key and will be evicted from the cache
+			return packet != null && packet == other.packet.get() && this.session.get() == other.session.get();
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
 	private interface RepoStringSupplier {
 
 		String get(String node, String key) throws RepositoryException, NotAuthorizedException;
@@ -433,7 +528,10 @@ public class MessageArchivePlugin
 	public void addStableId(Packet packet, XMPPResourceConnection session) {
 		if (stanzaIdSupport) {
 			try {
-				if (willArchive(packet, session)) {
+				// decision is kept, so it will not be made again when the same packet is processed by the plugin
+				ArchivingDecision decision = decideArchiving(packet, session);
+				archivingDecisions.put(new ArchivingDecisionKey(packet, session), decision);
+				if (decision.archive) {
 					try {
 						synchronized (packet) {
 							String by = session == null ? Optional.ofNullable(packet.getStanzaTo())
@@ -510,12 +608,20 @@ public class MessageArchivePlugin
 
 	@Override
 	public boolean willArchive(Packet packet, XMPPResourceConnection session) throws NotAuthorizedException {
+		// decision is not kept here, as there is no guarantee that the packet will be processed by the plugin
+		return decideArchiving(packet, session).archive;
+	}
+
+	private ArchivingDecision decideArchiving(Packet packet, XMPPResourceConnection session)
+			throws NotAuthorizedException {
 		if (packet.getStanzaFrom() == null) {
 			// if packet/message has no "from" it most likely is an error or direct response from server to the client
-			return false;
+			return ArchivingDecision.NOT_ARCHIVED;
 		}
 		if (session != null) {
-			return willArchive(packet, session.isUserId(packet.getStanzaFrom().getBareJID()) ? packet.getStanzaTo() : packet.getStanzaFrom(), getSettings(session.getBareJID(), session),
+			BareJID userJid = session.getBareJID();
+			Settings settings = getSettings(userJid, session);
+			boolean archive = willArchive(packet, session.isUserId(packet.getStanzaFrom().getBareJID()) ? packet.getStanzaTo() : packet.getStanzaFrom(), settings,
 							   () -> Optional.ofNullable(session.getDomain()), (JID jid) -> {
 						try {
 							return rosterUtil.containsBuddy(session, jid);
@@ -526,12 +632,14 @@ public class MessageArchivePlugin
 							return false;
 						}
 					});
+			return new ArchivingDecision(archive, userJid, settings);
 		} else {
 			if (!archiveOffline) {
-				return false;
+				return ArchivingDecision.NOT_ARCHIVED;
 			}
 			final BareJID userJid = packet.getStanzaTo().getBareJID();
-			return willArchive(packet, packet.getStanzaFrom(), getSettings(userJid, null), () -> Optional.ofNullable(vHostManager.getVHostItem(userJid.getDomain())), (JID jid) -> {
+			Settings settings = getSettings(userJid, null);
+			boolean archive = willArchive(packet, packet.getStanzaFrom(), settings, () -> Optional.ofNullable(vHostManager.getVHostItem(userJid.getDomain())), (JID jid) -> {
 				try {
 					XMPPResourceConnection session1 = new JabberIqPrivacy.OfflineResourceConnection(offlineConnectionId,
 																									userRepository,
@@ -549,6 +657,7 @@ public class MessageArchivePlugin
 					return false;
 				}
 			});
+			return new ArchivingDecision(archive, userJid, settings);
 		}
 	}
 
@@ -650,14 +759,7 @@ public class MessageArchivePlugin
 
 		// let's check if message should be stored using matchers to make it configurable
 		// whether to archive this message or not
-		boolean archive = false;
-		for (ElementMatcher matcher : archivingMatchers) {
-			if (matcher.matches(packet)) {
-				archive = matcher.getValue();
-				break;
-			}
-		}
-		if (!archive) {
+		if (!getCompiledMatchers().matches(packet)) {
 			return false;
 		}
 		if (ignorePubSubEventsFullJid) {
@@ -690,14 +792,20 @@ public class MessageArchivePlugin
 
 	private void processMessage(Packet packet, XMPPResourceConnection session, Queue<Packet> results)
 			throws NotAuthorizedException {
-		if (!willArchive(packet, session)) {
+		// decision could be already made for this packet while adding stanza id
+		ArchivingDecisionKey key = new ArchivingDecisionKey(packet, session);
+		ArchivingDecision decision = archivingDecisions.get(key);
+		if (decision != null) {
+			archivingDecisions.remove(key);
+		} else {
+			decision = decideArchiving(packet, session);
+		}
+		if (!decision.archive) {
 			return;
 		}
 
-		BareJID userJid = session == null ? packet.getStanzaTo().getBareJID() : session.getBareJID();
-		Settings settings = getSettings(userJid, session);
 		// redirecting to message archiving component
-		storeMessage(packet, userJid, settings, results);
+		storeMessage(packet, decision.owner, decision.settings, results);
 	}
 
 	private void storeMessage(Packet packet, BareJID owner, Settings settings, Queue<Packet> results)
@@ -734,6 +842,9 @@ public class MessageArchivePlugin
 		if (stanzaIdEl != null) {
 			result.getElement().removeChild(stanzaIdEl);
 		}
+		if (localHandoff && LocalArchivingHandoff.offer(componentJid, result)) {
+			return;
+		}
 		results.offer(result);
 	}
 	
@@ -344,7 +344,18 @@ public class Xep0136MessageArchivingProcessor
 
 				session.setData(ARCHIVE, "settings", settings.serialize());
 
-				results.offer(packet.okResult((String) null, 0));
+				if (expire != null) {
+					// retention period is stored by the component, which will send response to the user
+					Packet result = packet.copyElementOnly();
+
+					if (result.getStanzaFrom() == null) {
+						result.initVars(session.getJID(), messageArchivePlugin.getComponentJid());
+					}
+					result.setPacketTo(messageArchivePlugin.getComponentJid());
+					results.offer(result);
+				} else {
+					results.offer(packet.okResult((String) null, 0));
+				}
 
 				// shouldn't we notify other connected resources? see section 2.4.of XEP-0136
 			} catch (TigaseDBException ex) {
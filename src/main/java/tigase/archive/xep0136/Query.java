@@ -43,6 +43,10 @@ public interface Query
 
 	void setUseMessageIdInRsm(boolean value);
 
+	boolean getRecentConversations();
+
+	void setRecentConversations(boolean value);
+
 	void prepareResult(Element retList);
 
 	void addCollection(Element collection);
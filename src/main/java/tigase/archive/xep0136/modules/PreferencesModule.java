@@ -0,0 +1,110 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.xep0136.modules;
+
+import tigase.annotations.TigaseDeprecated;
+import tigase.archive.MessageArchiveComponent;
+import tigase.archive.MessageArchiveVHostItemExtension;
+import tigase.archive.RetentionType;
+import tigase.archive.modules.AbstractModule;
+import tigase.component.exceptions.ComponentException;
+import tigase.criteria.Criteria;
+import tigase.db.TigaseDBException;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.vhosts.VHostItem;
+import tigase.vhosts.VHostManagerIfc;
+import tigase.xml.Element;
+import tigase.xmpp.Authorization;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.jid.BareJID;
+
+/**
+ * Stores retention period of messages set by the user in <code>expire</code> attribute of default archiving
+ * preferences, so that expired messages of the user may be removed using an index instead of checking preferences of
+ * every user of the domain. Other preferences are stored by the session manager, which forwards request here only if
+ * <code>expire</code> attribute is set.
+ */
+@TigaseDeprecated(since = "3.0.0", note = "XEP-0136 support will be removed in future version")
+@Deprecated
+@Bean(name = "preferences", parent = MessageArchiveComponent.class, active = true)
+public class PreferencesModule
+		extends AbstractModule {
+
+	private static final String PREF_ELEM = "pref";
+	private static final long SECONDS_IN_DAY = 60 * 60 * 24;
+
+	@Inject
+	private VHostManagerIfc vHostManager;
+
+	@Override
+	public String[] getFeatures() {
+		return new String[0];
+	}
+
+	@Override
+	public Criteria getModuleCriteria() {
+		return null;
+	}
+
+	@Override
+	public void process(Packet packet) throws ComponentException, TigaseStringprepException {
+		if (packet.getType() != StanzaType.set) {
+			throw new ComponentException(Authorization.BAD_REQUEST);
+		}
+		Element defaultEl = packet.getElement().getChild(PREF_ELEM, MA_XMLNS).getChild("default");
+		String expire = defaultEl == null ? null : defaultEl.getAttributeStaticStr("expire");
+		if (expire == null) {
+			throw new ComponentException(Authorization.BAD_REQUEST, "Missing value of expire attribute");
+		}
+
+		BareJID owner = packet.getStanzaFrom().getBareJID();
+		VHostItem vhost = vHostManager.getVHostItem(owner.getDomain());
+		MessageArchiveVHostItemExtension extension =
+				vhost == null ? null : vhost.getExtension(MessageArchiveVHostItemExtension.class);
+		if (extension == null || RetentionType.userDefined != extension.getRetentionType()) {
+			throw new ComponentException(Authorization.NOT_ALLOWED, "Expire value is not allowed to be changed by user");
+		}
+
+		long seconds;
+		try {
+			seconds = Long.parseLong(expire);
+		} catch (NumberFormatException ex) {
+			throw new ComponentException(Authorization.BAD_REQUEST, "Value of expire attribute must be a number");
+		}
+		if (seconds <= 0) {
+			throw new ComponentException(Authorization.NOT_ACCEPTABLE, "Value of expire attribute must be bigger than 0");
+		}
+
+		// messages are removed once a day, so partial days are rounded up
+		long days = (seconds + SECONDS_IN_DAY - 1) / SECONDS_IN_DAY;
+		try {
+			msg_repo.setUserRetention(owner, (int) Math.min(days, Integer.MAX_VALUE));
+			packetWriter.write(packet.okResult((Element) null, 0));
+		} catch (TigaseDBException e) {
+			throw new RuntimeException("Error storing retention period of messages", e);
+		}
+	}
+
+	@Override
+	public boolean canHandle(Packet packet) {
+		return packet.getElement().getChild(PREF_ELEM, MA_XMLNS) != null;
+	}
+}
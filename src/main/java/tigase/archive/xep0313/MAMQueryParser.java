@@ -36,6 +36,7 @@ public class MAMQueryParser
 		extends tigase.xmpp.mam.MAM2ExtendedQueryParser {
 
 	private static final String CONTAINS_FIELD_NAME = "tigase:body:contains";
+	private static final String RECENT_CONVERSATIONS_FIELD_NAME = "tigase:conversations:recent";
 	private static final String TAGS_FIELD_NAME = "tigase:tags";
 
 	@Inject(bean = "service")
@@ -68,6 +69,17 @@ public class MAMQueryParser
 			}
 		}
 
+		String[] recentConversations = DataForm.getFieldValues(queryEl, RECENT_CONVERSATIONS_FIELD_NAME);
+		if (recentConversations != null && recentConversations.length > 0 &&
+				("true".equals(recentConversations[0]) || "1".equals(recentConversations[0]))) {
+			if (!(query instanceof tigase.archive.xep0136.Query)) {
+				throw new ComponentException(Authorization.BAD_REQUEST,
+											 "Unsupported feature " + RECENT_CONVERSATIONS_FIELD_NAME);
+			}
+
+			((tigase.archive.xep0136.Query) query).setRecentConversations(true);
+		}
+
 		return result;
 	}
 
@@ -82,6 +94,8 @@ public class MAMQueryParser
 			if (config.isTagSupportEnabled()) {
 				addField(x, TAGS_FIELD_NAME, "text-multi", "Contains tags");
 			}
+
+			addField(x, RECENT_CONVERSATIONS_FIELD_NAME, "boolean", "Only last message of each recent conversation");
 		}
 
 		return form;
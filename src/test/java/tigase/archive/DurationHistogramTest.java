@@ -0,0 +1,46 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DurationHistogramTest {
+
+	@Test
+	public void testRecord() {
+		DurationHistogram histogram = new DurationHistogram();
+		histogram.record(0);
+		histogram.record(99);
+		histogram.record(100);
+		histogram.record(59 * 1000);
+		histogram.record(60 * 60 * 1000);
+
+		assertEquals(5, histogram.getCount());
+		assertEquals(2, histogram.getCount(0));
+		assertEquals(1, histogram.getCount(1));
+		assertEquals(0, histogram.getCount(2));
+		assertEquals(1, histogram.getCount(3));
+		assertEquals(0, histogram.getCount(4));
+		assertEquals(1, histogram.getCount(5));
+		assertEquals(60 * 60 * 1000, histogram.getMax());
+		assertEquals(99 + 100 + 59 * 1000 + 60 * 60 * 1000, histogram.getTotal());
+		assertEquals("<100ms=2, <1s=1, <10s=0, <1m=1, <10m=0, >=10m=1", histogram.toString());
+	}
+}
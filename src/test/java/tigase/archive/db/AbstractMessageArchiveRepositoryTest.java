@@ -31,6 +31,7 @@ import tigase.db.DataSourceAware;
 import tigase.db.TigaseDBException;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
+import tigase.xmpp.Authorization;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
@@ -257,6 +258,68 @@ public abstract class AbstractMessageArchiveRepositoryTest<DS extends DataSource
 		Assert.assertEquals("Incorrect buddy", buddy.getBareJID(), BareJID.bareJIDInstanceNS(chat.with));
 	}
 
+	@Test
+	public void test3_getCollectionsByCursor() throws RepositoryException, ComponentException {
+		JID user = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-1");
+		long hour = 60 * 60 * 1000;
+		long base = LocalDateTime.now(ZoneId.of("Z")).toLocalDate().minusDays(3).atStartOfDay(ZoneId.of("Z"))
+				.toInstant().toEpochMilli();
+		// collections with buddy and buddy2 start at the same time
+		archiveMessages(user, buddy, new Date(base + 10 * hour), new Date(base + 11 * hour), new Date(base + 34 * hour));
+		archiveMessages(user, buddy2, new Date(base + 10 * hour), new Date(base + 58 * hour));
+		try {
+			QueryCriteria crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			crit.getRsm().setMax(100);
+			List<String> offsetCollections = queryCollectionKeys(crit);
+			Assert.assertEquals("Incorrect number of collections", 4, offsetCollections.size());
+
+			if (repo instanceof JDBCMessageArchiveRepository) {
+				((JDBCMessageArchiveRepository) repo).setKeysetPagination(true);
+			}
+			crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			crit.getRsm().setMax(100);
+			List<String> expected = queryCollectionKeys(crit);
+			// order of collections starting at the same time may differ
+			Assert.assertEquals(new HashSet<>(offsetCollections), new HashSet<>(expected));
+
+			List<String> forward = new ArrayList<>();
+			List<String> firstIds = new ArrayList<>();
+			String after = null;
+			for (int i = 0; i < expected.size(); i++) {
+				crit = repo.newQuery();
+				crit.setQuestionerJID(user.copyWithoutResource());
+				crit.getRsm().setMax(3);
+				if (after != null) {
+					crit.getRsm().setAfter(after);
+				}
+				List<String> page = queryCollectionKeys(crit);
+				if (page.isEmpty()) {
+					break;
+				}
+				Assert.assertEquals(Integer.valueOf(expected.size()), crit.getRsm().getCount());
+				forward.addAll(page);
+				firstIds.add(crit.getRsm().getFirst());
+				after = crit.getRsm().getLast();
+			}
+			// collections starting at the same time are neither skipped nor returned twice
+			Assert.assertEquals(expected, forward);
+
+			// page preceding the second page is the first page
+			crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			crit.getRsm().setMax(3);
+			crit.getRsm().setBefore(firstIds.get(1));
+			Assert.assertEquals(expected.subList(0, 3), queryCollectionKeys(crit));
+		} finally {
+			if (repo instanceof JDBCMessageArchiveRepository) {
+				((JDBCMessageArchiveRepository) repo).setKeysetPagination(false);
+			}
+			repo.removeItems(user.getBareJID(), null, null, null);
+		}
+	}
+
 	@Test
 	public void test4_getItems_withIndex() throws InterruptedException, RepositoryException, ComponentException {
 		QueryCriteria crit = repo.newQuery();
@@ -408,6 +471,48 @@ public abstract class AbstractMessageArchiveRepositoryTest<DS extends DataSource
 		Assert.assertEquals(stableId, items.get(0).getId());
 	}
 
+	@Test
+	public void test4_getItemsWithIds() throws RepositoryException, ComponentException {
+		JID user = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-1");
+		long now = System.currentTimeMillis();
+		List<String> archivedIds = archiveMessages(user, buddy, new Date(now - 3000), new Date(now - 2000),
+												   new Date(now - 1000));
+		try {
+			// items are returned in the order in which they were requested, not in the order of timestamps
+			List<String> requestedIds = Arrays.asList(archivedIds.get(2), archivedIds.get(0));
+			QueryCriteria crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			crit.setIds(new LinkedHashSet<>(requestedIds));
+			Assert.assertEquals(requestedIds, queryItemIds(crit));
+
+			// all requested items have to exist, no matter if id is a valid UUID or not
+			for (String missingId : new String[]{UUID.randomUUID().toString(), "not-an-uuid"}) {
+				crit = repo.newQuery();
+				crit.setQuestionerJID(user.copyWithoutResource());
+				crit.setIds(new LinkedHashSet<>(Arrays.asList(archivedIds.get(0), missingId)));
+				try {
+					queryItemIds(crit);
+					Assert.fail("Item with id " + missingId + " should not be found");
+				} catch (ComponentException ex) {
+					Assert.assertEquals(Authorization.ITEM_NOT_FOUND, ex.getErrorCondition());
+				}
+			}
+
+			// messages of other users are not returned
+			crit = repo.newQuery();
+			crit.setQuestionerJID(owner.copyWithoutResource());
+			crit.setIds(Collections.singleton(archivedIds.get(0)));
+			try {
+				queryItemIds(crit);
+				Assert.fail("Item of other user should not be found");
+			} catch (ComponentException ex) {
+				Assert.assertEquals(Authorization.ITEM_NOT_FOUND, ex.getErrorCondition());
+			}
+		} finally {
+			repo.removeItems(user.getBareJID(), null, null, null);
+		}
+	}
+
 	@Test
 	public void test4_getItemWithAfterIdBeforeId() throws RepositoryException, ComponentException {
 		QueryCriteria crit = repo.newQuery();
@@ -432,6 +537,60 @@ public abstract class AbstractMessageArchiveRepositoryTest<DS extends DataSource
 		Assert.assertArrayEquals(expectedIds.toArray(), items.stream().map(MAMRepository.Item::getId).toArray());
 	}
 
+	@Test
+	public void test4_getItemsByKeysetWithEqualTimestamps() throws RepositoryException, ComponentException {
+		JID user = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-1");
+		Date date = new Date();
+		List<String> archivedIds = archiveMessages(user, buddy, date, date, date, date, date);
+
+		if (repo instanceof JDBCMessageArchiveRepository) {
+			((JDBCMessageArchiveRepository) repo).setKeysetPagination(true);
+		}
+		try {
+			// pages are following each other, even if all messages have the same timestamp
+			List<String> forward = new ArrayList<>();
+			String after = null;
+			for (int i = 0; i < archivedIds.size(); i++) {
+				QueryCriteria crit = repo.newQuery();
+				crit.setQuestionerJID(user.copyWithoutResource());
+				crit.getRsm().setMax(2);
+				if (after != null) {
+					crit.getRsm().setAfter(after);
+				}
+				List<String> page = queryItemIds(crit);
+				if (page.isEmpty()) {
+					break;
+				}
+				forward.addAll(page);
+				after = page.get(page.size() - 1);
+			}
+			Assert.assertEquals("Incorrect number of messages", archivedIds.size(), forward.size());
+			Assert.assertEquals("Messages returned more than once", archivedIds.size(), new HashSet<>(forward).size());
+			Assert.assertTrue("Not all messages were returned", forward.containsAll(archivedIds));
+
+			List<String> backward = new ArrayList<>();
+			String before = forward.get(forward.size() - 1);
+			for (int i = 0; i < archivedIds.size(); i++) {
+				QueryCriteria crit = repo.newQuery();
+				crit.setQuestionerJID(user.copyWithoutResource());
+				crit.getRsm().setMax(2);
+				crit.getRsm().setBefore(before);
+				List<String> page = queryItemIds(crit);
+				if (page.isEmpty()) {
+					break;
+				}
+				backward.addAll(0, page);
+				before = page.get(0);
+			}
+			Assert.assertEquals(forward.subList(0, forward.size() - 1), backward);
+		} finally {
+			if (repo instanceof JDBCMessageArchiveRepository) {
+				((JDBCMessageArchiveRepository) repo).setKeysetPagination(false);
+			}
+			repo.removeItems(user.getBareJID(), null, null, null);
+		}
+	}
+
 	@Test
 	public void test4_getItemsWithTag_withIndex() throws InterruptedException, RepositoryException, ComponentException {
 		QueryCriteria crit = repo.newQuery();
@@ -589,6 +748,89 @@ public abstract class AbstractMessageArchiveRepositoryTest<DS extends DataSource
 		Assert.assertEquals("Incorrect number of collections", 0, chats.size());
 	}
 
+	@Test
+	public void test5_getItemsCountWithDailySummaries() throws RepositoryException, ComponentException {
+		JID user = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-1");
+		long hour = 60 * 60 * 1000;
+		// messages of 3 days, days of summaries are UTC days
+		long base = LocalDateTime.now(ZoneId.of("Z")).toLocalDate().minusDays(3).atStartOfDay(ZoneId.of("Z"))
+				.toInstant().toEpochMilli();
+		archiveMessages(user, buddy, new Date(base + 10 * hour), new Date(base + 11 * hour));
+		archiveMessages(user, buddy2, new Date(base + 34 * hour));
+		archiveMessages(user, buddy, new Date(base + 35 * hour), new Date(base + 36 * hour),
+						new Date(base + 58 * hour));
+		try {
+			assertItemsCount(user, null, null, null, 6);
+			assertItemsCount(user, buddy, null, null, 5);
+			assertItemsCount(user, null, new Date(base + 11 * hour), null, 5);
+			assertItemsCount(user, null, null, new Date(base + 34 * hour), 3);
+			assertItemsCount(user, null, new Date(base + 10 * hour + hour / 2), new Date(base + 35 * hour + hour / 2),
+							 3);
+			assertItemsCount(user, buddy, new Date(base + 10 * hour + hour / 2), new Date(base + 58 * hour), 4);
+			assertItemsCount(user, null, new Date(base + 34 * hour + hour / 2), new Date(base + 35 * hour + hour / 2),
+							 1);
+
+			// summaries are refreshed after messages are removed
+			repo.removeItems(user.getBareJID(), buddy.getBareJID().toString(), new Date(base + 34 * hour + hour / 2),
+							 new Date(base + 35 * hour + hour / 2));
+			assertItemsCount(user, null, null, null, 5);
+			assertItemsCount(user, null, new Date(base + 24 * hour), new Date(base + 48 * hour), 2);
+		} finally {
+			repo.removeItems(user.getBareJID(), null, null, null);
+		}
+	}
+
+	@Test
+	public void test6_getRecentConversations() throws RepositoryException, ComponentException {
+		JID user = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-1");
+		JID buddy3 = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-4");
+		long now = System.currentTimeMillis();
+		List<String> buddy3Ids = archiveMessages(user, buddy3, new Date(now - 5000));
+		List<String> buddyIds = archiveMessages(user, buddy, new Date(now - 4000), new Date(now - 2000));
+		List<String> buddy2Ids = archiveMessages(user, buddy2, new Date(now - 3000), new Date(now - 1000));
+		try {
+			// last messages of the most recent conversations are returned in chronological order
+			QueryCriteria crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			crit.getRsm().setMax(2);
+			List<String> ids = queryRecentConversationIds(crit);
+			Assert.assertEquals(Arrays.asList(buddyIds.get(1), buddy2Ids.get(1)), ids);
+
+			crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			crit.getRsm().setMax(2);
+			crit.getRsm().setBefore(ids.get(0));
+			ids = queryRecentConversationIds(crit);
+			Assert.assertEquals(buddy3Ids, ids);
+
+			crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			crit.getRsm().setMax(2);
+			crit.getRsm().setBefore(ids.get(0));
+			Assert.assertEquals(Collections.emptyList(), queryRecentConversationIds(crit));
+
+			// conversations may not be filtered
+			crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			crit.setWith(buddy.copyWithoutResource());
+			try {
+				queryRecentConversationIds(crit);
+				Assert.fail("Filtering of recent conversations should not be allowed");
+			} catch (ComponentException ex) {
+				Assert.assertEquals(Authorization.BAD_REQUEST, ex.getErrorCondition());
+			}
+
+			// conversation is no longer returned after all its messages are removed
+			repo.removeItems(user.getBareJID(), buddy2.getBareJID().toString(), null, null);
+			crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			crit.getRsm().setMax(10);
+			Assert.assertEquals(Arrays.asList(buddy3Ids.get(0), buddyIds.get(1)), queryRecentConversationIds(crit));
+		} finally {
+			repo.removeItems(user.getBareJID(), null, null, null);
+		}
+	}
+
 	@Test
 	public void test6_getItems() throws InterruptedException, RepositoryException, ComponentException {
 		QueryCriteria crit = repo.newQuery();
@@ -640,6 +882,42 @@ public abstract class AbstractMessageArchiveRepositoryTest<DS extends DataSource
 		Assert.assertEquals("Still some messages, while in this duration all should be deleted", 0, msgs.size());
 	}
 
+	@Test
+	public void test7_removePendingArchive() throws RepositoryException, ComponentException {
+		JID removed = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-1");
+		for (int i = 0; i < 3; i++) {
+			Element msg = new Element("message", new String[]{"from", "to", "type"},
+									  new String[]{removed.toString(), buddy.toString(), StanzaType.chat.name()});
+			msg.addChild(new Element("body", "Test " + i));
+			repo.archiveMessage(removed.getBareJID(), buddy, new Date(), msg, UUID.randomUUID().toString(), null);
+		}
+
+		QueryCriteria crit = repo.newQuery();
+		crit.setQuestionerJID(removed.copyWithoutResource());
+		List<Element> msgs = new ArrayList<>();
+		repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> msgs.add(item.getMessage()));
+		Assert.assertEquals("Incorrect number of messages", 3, msgs.size());
+
+		repo.addPendingRemoval(removed.getBareJID());
+		crit = repo.newQuery();
+		crit.setQuestionerJID(removed.copyWithoutResource());
+		msgs.clear();
+		repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> msgs.add(item.getMessage()));
+		Assert.assertEquals("Archive registered for removal should not be returned", 0, msgs.size());
+		Assert.assertTrue(repo.getPendingRemovals().contains(removed.getBareJID()));
+
+		Assert.assertEquals(2, repo.deleteRemovedUserMessages(removed.getBareJID(), 2));
+		Assert.assertTrue(repo.getPendingRemovals().contains(removed.getBareJID()));
+		Assert.assertEquals(1, repo.deleteRemovedUserMessages(removed.getBareJID(), 2));
+		Assert.assertFalse(repo.getPendingRemovals().contains(removed.getBareJID()));
+
+		crit = repo.newQuery();
+		crit.setQuestionerJID(removed.copyWithoutResource());
+		msgs.clear();
+		repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> msgs.add(item.getMessage()));
+		Assert.assertEquals("Still some messages, while archive should be removed", 0, msgs.size());
+	}
+
 	@Test
 	public void test8_removeExpiredItems() throws RepositoryException, TigaseStringprepException, ComponentException {
 		Date date = new Date();
@@ -692,6 +970,91 @@ public abstract class AbstractMessageArchiveRepositoryTest<DS extends DataSource
 		Assert.assertEquals("Incorrect number of messages", 0, msgs.size());
 	}
 
+	@Test
+	public void test8_removeExpiredItemsInChunks() throws RepositoryException, ComponentException {
+		// separate domain, so only messages of this test are expired
+		String domain = "expired-" + UUID.randomUUID() + ".test";
+		JID user = JID.jidInstanceNS("UA-" + UUID.randomUUID(), domain, "tigase-1");
+		long now = System.currentTimeMillis();
+		long day = 24 * 60 * 60 * 1000;
+		List<String> expiredIds = archiveMessages(user, buddy, new Date(now - 3 * day - 5000),
+												  new Date(now - 3 * day - 4000), new Date(now - 3 * day - 3000),
+												  new Date(now - 3 * day - 2000), new Date(now - 3 * day - 1000));
+		List<String> validIds = archiveMessages(user, buddy, new Date(now));
+		try {
+			BareJID domainJid = BareJID.bareJIDInstanceNS(domain);
+			LocalDateTime before = LocalDateTime.now().minusDays(1);
+			Assert.assertEquals(expiredIds.size(), repo.getExpiredMessagesCount(domainJid, before));
+
+			// removal stopped after a chunk, ie. at the deadline, leaves backlog of the oldest messages for the next run
+			Assert.assertEquals(2, repo.deleteExpiredMessages(domainJid, before, 2));
+			Assert.assertEquals(expiredIds.size() - 2, repo.getExpiredMessagesCount(domainJid, before));
+			QueryCriteria crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			List<String> left = queryItemIds(crit);
+			Assert.assertFalse("The oldest messages should be removed first", left.contains(expiredIds.get(0)));
+			Assert.assertFalse("The oldest messages should be removed first", left.contains(expiredIds.get(1)));
+			Assert.assertEquals(expiredIds.size() + validIds.size() - 2, left.size());
+
+			// removal is resumed until chunk is not complete
+			Assert.assertEquals(2, repo.deleteExpiredMessages(domainJid, before, 2));
+			Assert.assertEquals(1, repo.deleteExpiredMessages(domainJid, before, 2));
+			Assert.assertEquals(0, repo.getExpiredMessagesCount(domainJid, before));
+
+			crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			Assert.assertEquals(validIds, queryItemIds(crit));
+		} finally {
+			repo.removeItems(user.getBareJID(), null, null, null);
+		}
+	}
+
+	@Test
+	public void test8_removeExpiredUserItems() throws RepositoryException, ComponentException {
+		String domain = "retention-" + UUID.randomUUID() + ".test";
+		BareJID domainJid = BareJID.bareJIDInstanceNS(domain);
+		JID user1 = JID.jidInstanceNS("UA-" + UUID.randomUUID(), domain, "tigase-1");
+		JID user2 = JID.jidInstanceNS("UA-" + UUID.randomUUID(), domain, "tigase-1");
+		JID user3 = JID.jidInstanceNS("UA-" + UUID.randomUUID(), domain, "tigase-1");
+		long now = System.currentTimeMillis();
+		Date old = new Date(now - 3 * 24 * 60 * 60 * 1000);
+		archiveMessages(user1, buddy, new Date(old.getTime() - 1000), old);
+		List<String> validIds = archiveMessages(user1, buddy, new Date(now));
+		archiveMessages(user2, buddy, old);
+		archiveMessages(user3, buddy, old);
+		try {
+			repo.setUserRetention(user1.getBareJID(), 2);
+			repo.setUserRetention(user2.getBareJID(), 5);
+			Assert.assertEquals(new HashSet<>(Arrays.asList(2, 5)), repo.getUserRetentionPeriods(domainJid));
+
+			// only messages of users with the same retention period are removed, in chunks
+			LocalDateTime before = LocalDateTime.now().minusDays(2);
+			Assert.assertEquals(1, repo.deleteExpiredUserMessages(domainJid, 2, before, 1));
+			Assert.assertEquals(1, repo.deleteExpiredUserMessages(domainJid, 2, before, 1));
+			Assert.assertEquals(0, repo.deleteExpiredUserMessages(domainJid, 2, before, 1));
+			Assert.assertEquals(0, repo.deleteExpiredUserMessages(domainJid, 5, LocalDateTime.now().minusDays(5), 10));
+
+			QueryCriteria crit = repo.newQuery();
+			crit.setQuestionerJID(user1.copyWithoutResource());
+			Assert.assertEquals(validIds, queryItemIds(crit));
+			for (JID user : new JID[]{user2, user3}) {
+				crit = repo.newQuery();
+				crit.setQuestionerJID(user.copyWithoutResource());
+				Assert.assertEquals("Messages of " + user + " should not be removed", 1, queryItemIds(crit).size());
+			}
+
+			// messages of user without retention period are not removed due to expiration
+			repo.setUserRetention(user1.getBareJID(), null);
+			Assert.assertEquals(Collections.singleton(5), repo.getUserRetentionPeriods(domainJid));
+		} finally {
+			repo.setUserRetention(user1.getBareJID(), null);
+			repo.setUserRetention(user2.getBareJID(), null);
+			for (JID user : new JID[]{user1, user2, user3}) {
+				repo.removeItems(user.getBareJID(), null, null, null);
+			}
+		}
+	}
+
 	@Test
 	public void test9_jidComparison() throws TigaseStringprepException, ComponentException, RepositoryException {
 		Date date = new Date();
@@ -721,6 +1084,88 @@ public abstract class AbstractMessageArchiveRepositoryTest<DS extends DataSource
 						 new Date());
 	}
 
+	@Test
+	public void test9_removeUnusedJids() throws RepositoryException, ComponentException {
+		String domain = "unused-" + UUID.randomUUID() + ".test";
+		JID user = JID.jidInstanceNS("UA-" + UUID.randomUUID(), domain, "tigase-1");
+		JID unused = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-2");
+		long now = System.currentTimeMillis();
+		List<String> usedIds = archiveMessages(user, buddy, new Date(now));
+		archiveMessages(user, unused, new Date(now - 3 * 24 * 60 * 60 * 1000));
+		try {
+			// removal of expired messages in chunks leaves jids which are no longer used
+			Assert.assertEquals(1, repo.deleteExpiredMessages(BareJID.bareJIDInstanceNS(domain),
+															  LocalDateTime.now().minusDays(1), 10));
+
+			// nothing is checked after the deadline
+			Assert.assertEquals(0, repo.deleteUnusedJids(2, System.currentTimeMillis() - 1));
+
+			// all ranges are checked, if there is enough time
+			assertTrue("Unused jid should be removed", repo.deleteUnusedJids(2, Long.MAX_VALUE) >= 1);
+
+			QueryCriteria crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			Assert.assertEquals("Messages with jids still in use should be kept", usedIds, queryItemIds(crit));
+
+			// removed jid is added again, even if its id was known before removal
+			List<String> newIds = archiveMessages(user, unused, new Date());
+			crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			crit.setWith(unused.copyWithoutResource());
+			Assert.assertEquals(newIds, queryItemIds(crit));
+		} finally {
+			repo.removeItems(user.getBareJID(), null, null, null);
+		}
+	}
+
+	private List<String> archiveMessages(JID user, JID with, Date... timestamps) {
+		List<String> stableIds = new ArrayList<>();
+		for (Date ts : timestamps) {
+			Element msg = new Element("message", new String[]{"from", "to", "type"},
+									  new String[]{user.toString(), with.toString(), StanzaType.chat.name()});
+			msg.addChild(new Element("body", "Test " + stableIds.size()));
+			String stableId = UUID.randomUUID().toString();
+			repo.archiveMessage(user.getBareJID(), with, ts, msg, stableId, null);
+			stableIds.add(stableId);
+		}
+		return stableIds;
+	}
+
+	private List<String> queryItemIds(QueryCriteria crit) throws RepositoryException, ComponentException {
+		List<String> ids = new ArrayList<>();
+		repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> ids.add(item.getId()));
+		return ids;
+	}
+
+	private List<String> queryRecentConversationIds(QueryCriteria crit) throws RepositoryException, ComponentException {
+		List<String> ids = new ArrayList<>();
+		repo.queryRecentConversations(crit, (QueryCriteria qc, MAMRepository.Item item) -> ids.add(item.getId()));
+		return ids;
+	}
+
+	private void assertItemsCount(JID user, JID with, Date start, Date end, int expected)
+			throws RepositoryException, ComponentException {
+		QueryCriteria crit = repo.newQuery();
+		crit.setQuestionerJID(user.copyWithoutResource());
+		if (with != null) {
+			crit.setWith(with.copyWithoutResource());
+		}
+		crit.setStart(start);
+		crit.setEnd(end);
+		crit.getRsm().setMax(100);
+		List<String> ids = queryItemIds(crit);
+		Assert.assertEquals("Incorrect number of messages", expected, ids.size());
+		Assert.assertEquals("Number of messages does not match returned messages", Integer.valueOf(ids.size()),
+							crit.getRsm().getCount());
+	}
+
+	private List<String> queryCollectionKeys(QueryCriteria crit) throws TigaseDBException {
+		List<String> keys = new ArrayList<>();
+		repo.queryCollections(crit, (QueryCriteria qc, MessageArchiveRepository.Collection col) -> keys.add(
+				BareJID.bareJIDInstanceNS(col.getWith()) + "/" + col.getStartTs().getTime()));
+		return keys;
+	}
+
 	@Override
 	protected Class<? extends DataSourceAware> getDataSourceAwareIfc() {
 		return MessageArchiveRepository.class;
@@ -0,0 +1,68 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+import tigase.xml.Element;
+
+import static org.junit.Assert.*;
+
+public class BinaryElementCodecTest {
+
+	@Test
+	public void testRoundTrip() {
+		Element msg = new Element("message", new String[]{"xmlns", "type", "from", "to", "id"},
+								  new String[]{"jabber:client", "chat", "juliet@capulet.lit/balcony",
+											   "romeo@montague.lit", "5e3a1d2c"});
+		msg.addChild(new Element("body", "Wherefore art thou, Romeo? &lt;3 Zażółć gęślą jaźń."));
+		msg.addChild(new Element("origin-id", new String[]{"xmlns", "id"}, new String[]{"urn:xmpp:sid:0", "5e3a1d2c"}));
+		Element custom = new Element("custom", new String[]{"xmlns", "custom-attr"},
+									 new String[]{"urn:example:custom", "value"});
+		custom.addChild(new Element("custom", new String[]{"custom-attr"}, new String[]{"other"}));
+		msg.addChild(custom);
+
+		String stored = BinaryElementCodec.encode(msg);
+		assertTrue(BinaryElementCodec.isEncoded(stored));
+		assertEquals(msg.toString(), BinaryElementCodec.decode(stored).toString());
+	}
+
+	@Test
+	public void testNotEncodedIfNotShorterThanXml() {
+		Element msg = new Element("message", new String[]{"xmlns"}, new String[]{"jabber:client"});
+		msg.addChild(new Element("body", "Wherefore art thou, Romeo? Deny thy father and refuse thy name. " +
+				"Or if thou wilt not, be but sworn my love, and I'll no longer be a Capulet."));
+		String xml = msg.toString();
+
+		assertNull(BinaryElementCodec.encode(msg, xml.length()));
+		assertNotNull(BinaryElementCodec.encode(msg, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testNotEncoded() {
+		assertFalse(BinaryElementCodec.isEncoded("<message xmlns=\"jabber:client\"/>"));
+		assertFalse(BinaryElementCodec.isEncoded(null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCorrupted() {
+		Element msg = new Element("message", new String[]{"xmlns"}, new String[]{"jabber:client"});
+		msg.addChild(new Element("body", "Test message"));
+		String stored = BinaryElementCodec.encode(msg);
+		BinaryElementCodec.decode(stored.substring(0, stored.length() - 4));
+	}
+}
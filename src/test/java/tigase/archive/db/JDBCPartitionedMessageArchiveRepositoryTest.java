@@ -0,0 +1,193 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db;
+
+import org.junit.*;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import tigase.archive.QueryCriteria;
+import tigase.component.exceptions.ComponentException;
+import tigase.component.exceptions.RepositoryException;
+import tigase.xml.Element;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+import tigase.xmpp.mam.MAMRepository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Executes all repository tests with <code>tig_ma_msgs</code> converted to a partitioned table, which is supported only
+ * on MySQL and PostgreSQL.
+ */
+public class JDBCPartitionedMessageArchiveRepositoryTest
+		extends JDBCMessageArchiveRepositoryTest {
+
+	@ClassRule
+	public static TestRule partitionedRule = new TestRule() {
+		@Override
+		public Statement apply(Statement stmnt, Description d) {
+			if (uri == null || !(uri.startsWith("jdbc:mysql:") || uri.startsWith("jdbc:postgresql:"))) {
+				return new Statement() {
+					@Override
+					public void evaluate() throws Throwable {
+						Assume.assumeTrue("Ignored due to not passed MySQL or PostgreSQL DB URI!", false);
+					}
+				};
+			}
+			return stmnt;
+		}
+	};
+
+	@BeforeClass
+	public static void partitionMessages() throws IOException, SQLException {
+		String file = uri.startsWith("jdbc:mysql:")
+					  ? "src/main/database/partitioning/mysql-message-archiving-partitioning.sql"
+					  : "src/main/database/partitioning/postgresql-message-archiving-partitioning.sql";
+		try (Connection conn = DriverManager.getConnection(uri);
+			 java.sql.Statement stmt = conn.createStatement()) {
+			for (String query : readQueries(file)) {
+				stmt.execute(query);
+			}
+		}
+	}
+
+	private static List<String> readQueries(String file) throws IOException {
+		List<String> queries = new ArrayList<>();
+		StringBuilder query = null;
+		for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+			if (line.startsWith("-- QUERY START:")) {
+				query = new StringBuilder();
+			} else if (line.startsWith("-- QUERY END:")) {
+				queries.add(query.toString().trim());
+				query = null;
+			} else if (query != null && !line.startsWith("delimiter")) {
+				// delimiter of MySQL client is not a part of the query
+				query.append(line.replaceAll("\\s*//\\s*$", "")).append('\n');
+			}
+		}
+		return queries;
+	}
+
+	@Test
+	public void test9_removeTagsOfRemovedItems() throws RepositoryException, ComponentException, SQLException {
+		String domain = "partitioned-" + UUID.randomUUID() + ".test";
+		BareJID domainJid = BareJID.bareJIDInstanceNS(domain);
+		JID user1 = JID.jidInstanceNS("UA-" + UUID.randomUUID(), domain, "tigase-1");
+		JID user2 = JID.jidInstanceNS("UA-" + UUID.randomUUID(), domain, "tigase-1");
+		JID user3 = JID.jidInstanceNS("UA-" + UUID.randomUUID(), domain, "tigase-1");
+		JID buddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-2");
+		long now = System.currentTimeMillis();
+		long day = 24 * 60 * 60 * 1000;
+		Date old = new Date(now - 3 * day);
+		try {
+			archiveTaggedMessages(user1, buddy, new Date(old.getTime() - 2000), new Date(old.getTime() - 1000), old,
+								  new Date(now - 1000), new Date(now));
+			archiveTaggedMessages(user2, buddy, new Date(old.getTime() - 1000), old);
+			archiveTaggedMessages(user3, buddy, new Date(now - 1000), new Date(now));
+			Assert.assertEquals(5, countTags(user1.getBareJID()));
+
+			// removal of messages by a user
+			repo.removeItems(user1.getBareJID(), buddy.getBareJID().toString(), new Date(now - 1500), null);
+			Assert.assertEquals(3, countTags(user1.getBareJID()));
+
+			// removal of messages expired according to retention of a user
+			repo.setUserRetention(user2.getBareJID(), 2);
+			LocalDateTime before = LocalDateTime.now().minusDays(2);
+			Assert.assertEquals(1, repo.deleteExpiredUserMessages(domainJid, 2, before, 1));
+			Assert.assertEquals(1, countTags(user2.getBareJID()));
+			repo.deleteExpiredUserMessages(domainJid, 2, before);
+			Assert.assertEquals(0, countTags(user2.getBareJID()));
+
+			// removal of messages expired according to retention of a domain
+			Assert.assertEquals(1, repo.deleteExpiredMessages(domainJid, before, 1));
+			Assert.assertEquals(2, countTags(user1.getBareJID()));
+			repo.deleteExpiredMessages(domainJid, before);
+			Assert.assertEquals(0, countTags(user1.getBareJID()));
+
+			// removal of messages of a removed user
+			repo.addPendingRemoval(user3.getBareJID());
+			Assert.assertEquals(1, repo.deleteRemovedUserMessages(user3.getBareJID(), 1));
+			Assert.assertEquals(1, countTags(user3.getBareJID()));
+			Assert.assertEquals(1, repo.deleteRemovedUserMessages(user3.getBareJID(), 2));
+			Assert.assertEquals(0, countTags(user3.getBareJID()));
+		} finally {
+			repo.removeItems(user1.getBareJID(), null, null, null);
+			repo.removeItems(user2.getBareJID(), null, null, null);
+			repo.removeItems(user3.getBareJID(), null, null, null);
+		}
+	}
+
+	@Test
+	public void test9_skipDuplicatedStableId() throws RepositoryException, ComponentException {
+		JID user = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-1");
+		JID buddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-2");
+		String stableId = UUID.randomUUID().toString();
+		long now = System.currentTimeMillis();
+		try {
+			// ts is a part of the primary key of partitioned table, so it does not prevent duplicates on its own
+			for (Date ts : new Date[]{new Date(now - 1000), new Date(now)}) {
+				Element msg = new Element("message", new String[]{"from", "to", "type"},
+										  new String[]{user.toString(), buddy.toString(), StanzaType.chat.name()});
+				msg.addChild(new Element("body", "Test"));
+				repo.archiveMessage(user.getBareJID(), buddy, ts, msg, stableId, null);
+			}
+
+			QueryCriteria crit = repo.newQuery();
+			crit.setQuestionerJID(user.copyWithoutResource());
+			List<String> ids = new ArrayList<>();
+			repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> ids.add(item.getId()));
+			Assert.assertEquals(Collections.singletonList(stableId), ids);
+		} finally {
+			repo.removeItems(user.getBareJID(), null, null, null);
+		}
+	}
+
+	private void archiveTaggedMessages(JID user, JID with, Date... timestamps) {
+		for (Date ts : timestamps) {
+			Element msg = new Element("message", new String[]{"from", "to", "type"},
+									  new String[]{user.toString(), with.toString(), StanzaType.chat.name()});
+			msg.addChild(new Element("body", "Test #tag"));
+			repo.archiveMessage(user.getBareJID(), with, ts, msg, UUID.randomUUID().toString(),
+								Collections.singleton("#tag"));
+		}
+	}
+
+	private long countTags(BareJID owner) throws SQLException {
+		try (Connection conn = DriverManager.getConnection(uri);
+			 PreparedStatement stmt = conn.prepareStatement(
+					 "select count(1) from tig_ma_msgs_tags mt inner join tig_ma_jids j on j.jid_id = mt.msg_owner_id where lower(j.jid) = ?")) {
+			stmt.setString(1, owner.toString().toLowerCase());
+			try (ResultSet rs = stmt.executeQuery()) {
+				rs.next();
+				return rs.getLong(1);
+			}
+		}
+	}
+}
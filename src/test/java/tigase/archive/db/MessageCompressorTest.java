@@ -0,0 +1,52 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageCompressorTest {
+
+	private static final String MESSAGE = "<message xmlns=\"jabber:client\" type=\"chat\" from=\"juliet@capulet.lit/balcony\" to=\"romeo@montague.lit\" id=\"5e3a1d2c\"><body>Wherefore art thou, Romeo? Zażółć gęślą jaźń.</body><origin-id xmlns=\"urn:xmpp:sid:0\" id=\"5e3a1d2c\"/><markable xmlns=\"urn:xmpp:chat-markers:0\"/><stanza-id xmlns=\"urn:xmpp:sid:0\" by=\"juliet@capulet.lit\" id=\"3f1c4b0a-9d7e-4c55-8b1e-2f6a0e7d9c11\"/></message>";
+
+	@Test
+	public void testRoundTrip() {
+		String stored = MessageCompressor.compress(MESSAGE, 0);
+		assertTrue(MessageCompressor.isCompressed(stored));
+		assertTrue(stored.length() < MESSAGE.length());
+		assertEquals(MESSAGE, MessageCompressor.decompress(stored));
+	}
+
+	@Test
+	public void testUncompressed() {
+		assertSame(MESSAGE, MessageCompressor.compress(MESSAGE, MESSAGE.length() + 1));
+		assertFalse(MessageCompressor.isCompressed(MESSAGE));
+		assertSame(MESSAGE, MessageCompressor.decompress(MESSAGE));
+		assertNull(MessageCompressor.decompress(null));
+
+		String shortMessage = "<message/>";
+		assertSame(shortMessage, MessageCompressor.compress(shortMessage, 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCorrupted() {
+		String stored = MessageCompressor.compress(MESSAGE, 0);
+		MessageCompressor.decompress(stored.substring(0, stored.length() / 2));
+	}
+}
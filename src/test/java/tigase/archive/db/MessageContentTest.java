@@ -0,0 +1,54 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+import tigase.xml.Element;
+
+import static org.junit.Assert.*;
+
+public class MessageContentTest {
+
+	@Test
+	public void testExtract() {
+		Element msg = new Element("message", new String[]{"xmlns", "type", "id"},
+								  new String[]{"jabber:client", "chat", "message-id"});
+		msg.addChild(new Element("origin-id", new String[]{"xmlns", "id"}, new String[]{"urn:example:other", "other-id"}));
+		msg.addChild(new Element("body", "Test message"));
+		msg.addChild(new Element("origin-id", new String[]{"xmlns", "id"}, new String[]{"urn:xmpp:sid:0", "origin-id"}));
+		msg.addChild(new Element("delay", new String[]{"xmlns", "stamp"},
+								 new String[]{"urn:xmpp:delay", "2020-01-01T00:00:00Z"}));
+
+		MessageContent content = MessageContent.of(msg);
+		assertEquals("Test message", content.getBody());
+		assertEquals("origin-id", content.getOriginId());
+		assertEquals("2020-01-01T00:00:00Z", content.getDelay().getAttributeStaticStr("stamp"));
+		assertSame(content.getXml(), content.getXml());
+		assertEquals(msg.toString(), content.getXml());
+	}
+
+	@Test
+	public void testExtractWithoutOptionalElements() {
+		Element msg = new Element("message", new String[]{"xmlns", "id"}, new String[]{"jabber:client", "message-id"});
+
+		MessageContent content = MessageContent.of(msg);
+		assertNull(content.getBody());
+		assertNull(content.getDelay());
+		assertEquals("message-id", content.getOriginId());
+	}
+}
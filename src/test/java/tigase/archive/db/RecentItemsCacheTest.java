@@ -0,0 +1,99 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RecentItemsCacheTest {
+
+	private static final BareJID OWNER = BareJID.bareJIDInstanceNS("owner@example.com");
+	private static final BareJID BUDDY = BareJID.bareJIDInstanceNS("buddy@example.com");
+
+	private final long now = System.currentTimeMillis() + 60 * 1000;
+
+	@Test
+	public void testGetItemsAfter() {
+		RecentItemsCache cache = new RecentItemsCache(3, 1024 * 1024);
+		String[] ids = new String[4];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = UUID.randomUUID().toString();
+			cache.add(OWNER, ids[i], new Date(now + i * 1000), BUDDY, "<message/>", null);
+		}
+
+		assertEquals(3, cache.size());
+		// oldest message was evicted
+		assertNull(cache.getItemsAfter(OWNER, ids[0]));
+		List<RecentItemsCache.Entry> items = cache.getItemsAfter(OWNER, ids[1].toUpperCase());
+		assertNotNull(items);
+		assertEquals(2, items.size());
+		assertEquals(ids[2], items.get(0).getId());
+		assertEquals(ids[3], items.get(1).getId());
+		assertTrue(cache.getItemsAfter(OWNER, ids[3]).isEmpty());
+		assertNull(cache.getItemsAfter(BUDDY, ids[3]));
+	}
+
+	@Test
+	public void testOrderOfItems() {
+		RecentItemsCache cache = new RecentItemsCache(10, 1024 * 1024);
+		String first = UUID.randomUUID().toString();
+		String second = UUID.randomUUID().toString();
+		String delayed = UUID.randomUUID().toString();
+		cache.add(OWNER, first, new Date(now), BUDDY, "<message/>", null);
+		cache.add(OWNER, second, new Date(now + 2000), BUDDY, "<message/>", null);
+		cache.add(OWNER, delayed, new Date(now + 1000), BUDDY, "<message/>", null);
+		// message which could be stored before the buffer was created
+		cache.add(OWNER, UUID.randomUUID().toString(), new Date(now - 2 * 60 * 1000), BUDDY, "<message/>", null);
+
+		List<RecentItemsCache.Entry> items = cache.getItemsAfter(OWNER, first);
+		assertEquals(2, items.size());
+		assertEquals(delayed, items.get(0).getId());
+		assertEquals(second, items.get(1).getId());
+
+		// order of messages with the same timestamp is not known
+		cache.add(OWNER, UUID.randomUUID().toString(), new Date(now + 2000), BUDDY, "<message/>", null);
+		assertNull(cache.getItemsAfter(OWNER, first));
+	}
+
+	@Test
+	public void testLimits() {
+		RecentItemsCache cache = new RecentItemsCache(10, 1024);
+		BareJID other = BareJID.bareJIDInstanceNS("other@example.com");
+		String id = UUID.randomUUID().toString();
+		cache.add(OWNER, id, new Date(now), BUDDY, "<message/>", null);
+		assertNotNull(cache.getItemsAfter(OWNER, id));
+		for (int i = 0; i < 10; i++) {
+			cache.add(other, UUID.randomUUID().toString(), new Date(now + i * 1000), BUDDY, "<message/>", null);
+		}
+		// buffer of the least recently used owner was dropped
+		assertNull(cache.getItemsAfter(OWNER, id));
+		assertTrue(cache.bytes() <= 1024);
+
+		cache.removeOlderThan(new Date(now + 5000));
+		assertTrue(cache.size() <= 5);
+		cache.invalidate(other);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.bytes());
+	}
+}
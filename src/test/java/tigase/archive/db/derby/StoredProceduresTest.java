@@ -0,0 +1,78 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.db.derby;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StoredProceduresTest {
+
+	@Test
+	public void testExtractWords() {
+		assertTrue(StoredProcedures.extractWords("").isEmpty());
+		assertTrue(StoredProcedures.extractWords(" ,.!? ").isEmpty());
+
+		Set<String> expected = new LinkedHashSet<>(Arrays.asList("hello", "it", "s", "tigase", "3"));
+		assertEquals(expected, StoredProcedures.extractWords("Hello, it's Tigase 3! hello"));
+	}
+
+	@Test
+	public void testExtractWords_longWord() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append('a');
+		}
+		Set<String> words = StoredProcedures.extractWords(sb.toString());
+		assertEquals(1, words.size());
+		assertEquals(64, words.iterator().next().length());
+	}
+
+	@Test
+	public void testExtractIndexedWords() {
+		assertTrue(StoredProcedures.extractIndexedWords("%ail%").isEmpty());
+		assertTrue(StoredProcedures.extractIndexedWords("%\u4f60\u597d%").isEmpty());
+
+		Set<String> expected = new LinkedHashSet<>(Arrays.asList("test", "fail"));
+		assertEquals(expected, StoredProcedures.extractIndexedWords("%st test fail%"));
+		assertEquals(new LinkedHashSet<>(Arrays.asList("foo")), StoredProcedures.extractIndexedWords("% foo%bar%"));
+	}
+
+	@Test
+	public void testAppendContainsQuery() {
+		String query = StoredProcedures.appendContainsQuery(new StringBuilder(), "'%Foo bar%','%it''s%'").toString();
+		assertFalse(query, query.contains("w.word like 'foo%'"));
+		assertTrue(query, query.contains("w.word like 'bar%'"));
+		assertFalse(query, query.contains("w.word like 'it%'"));
+		assertTrue(query, query.contains("w.word like 's%'"));
+		assertTrue(query, query.endsWith(" and m.body like '%Foo bar%' and m.body like '%it''s%'"));
+	}
+
+	@Test
+	public void testAppendContainsQuery_infix() {
+		String query = StoredProcedures.appendContainsQuery(new StringBuilder(), "'%ail%'").toString();
+		assertFalse(query, query.contains("tig_ma_msgs_words"));
+		assertEquals(" and m.body like '%ail%'", query);
+	}
+}
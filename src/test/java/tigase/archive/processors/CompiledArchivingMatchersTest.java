@@ -0,0 +1,97 @@
+/*
+ * Tigase Message Archiving Component - Implementation of Message Archiving component for Tigase XMPP Server.
+ * Copyright (C) 2012 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.archive.processors;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.ElementMatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompiledArchivingMatchersTest {
+
+	@Test
+	public void testSameResultAsMatchersEvaluatedInOrder() throws Exception {
+		MessageArchivePlugin plugin = new MessageArchivePlugin();
+		String[] defaultMatchers = plugin.getArchivingMatchers();
+		String[] customMatchers = {"-/message/result[urn:xmpp:mam:1]", "-/message/result[urn:xmpp:mam:2]",
+								   "/message/body", "/message/subject"};
+
+		// default matchers are compiled from their paths, not from matchers recreated from strings
+		assertSameResult(new MessageArchivePlugin().getCompiledMatchers());
+		for (String[] matcherStrs : new String[][]{defaultMatchers, customMatchers}) {
+			plugin.setArchivingMatchers(matcherStrs);
+			assertSameResult(plugin.getCompiledMatchers());
+			assertSameResult(new CompiledArchivingMatchers(plugin.getCompiledMatchers().getMatchers(), matcherStrs));
+		}
+	}
+
+	@Test
+	public void testRecompiledAfterMatchersChanged() {
+		MessageArchivePlugin plugin = new MessageArchivePlugin();
+		CompiledArchivingMatchers compiled = plugin.getCompiledMatchers();
+		Assert.assertSame(compiled, plugin.getCompiledMatchers());
+
+		plugin.setArchivingMatchers(new String[]{"/message/body"});
+		Assert.assertNotSame(compiled, plugin.getCompiledMatchers());
+		Assert.assertEquals(1, plugin.getCompiledMatchers().getMatchers().length);
+	}
+
+	private void assertSameResult(CompiledArchivingMatchers compiled) throws Exception {
+		for (Packet packet : createPackets()) {
+			boolean expected = false;
+			for (ElementMatcher matcher : compiled.getMatchers()) {
+				if (matcher.matches(packet)) {
+					expected = matcher.getValue();
+					break;
+				}
+			}
+			Assert.assertEquals("invalid result for " + packet, expected, compiled.matches(packet));
+		}
+	}
+
+	private List<Packet> createPackets() throws Exception {
+		Element[][] childrenSets = {{}, {new Element("body", "Test message")},
+									{new Element("subject", "Test subject")},
+									{new Element("body", "Test message"),
+									 new Element("no-store", new String[]{"xmlns"}, new String[]{"urn:xmpp:hints"})},
+									{new Element("store", new String[]{"xmlns"}, new String[]{"urn:xmpp:hints"})},
+									{new Element("result", new String[]{"xmlns"}, new String[]{"urn:xmpp:mam:2"}),
+									 new Element("body", "Test message")},
+									{new Element("result", new String[]{"xmlns"}, new String[]{"urn:example:other"}),
+									 new Element("body", "Test message")},
+									{new Element("sent", new String[]{"xmlns"}, new String[]{"urn:xmpp:carbons:2"})},
+									{new Element("active", new String[]{"xmlns"},
+												 new String[]{"http://jabber.org/protocol/chatstates"})}};
+		List<Packet> packets = new ArrayList<>();
+		for (String type : new String[]{"chat", "headline"}) {
+			for (Element[] children : childrenSets) {
+				Element message = new Element("message", new String[]{"from", "to", "type"},
+											  new String[]{"from@example.com/res1", "to@example.com/res2", type});
+				for (Element child : children) {
+					message.addChild(child.clone());
+				}
+				packets.add(Packet.packetInstance(message));
+			}
+		}
+		return packets;
+	}
+}
@@ -37,6 +37,7 @@ import tigase.xmpp.impl.ProcessorTestCase;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
@@ -172,6 +173,69 @@ public class MessageArchivePluginTest
 		Assert.assertTrue("should not sent packet " + packet + " for storage", results.isEmpty());
 	}
 
+	@Test
+	public void testDecisionReusedWhenPacketIsProcessed() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+													 res1);
+		Settings settings = new Settings();
+		session1.putCommonSessionData("message-archive/settings", settings);
+		Queue<Packet> results = new ArrayDeque<Packet>();
+
+		settings.setAuto(true);
+
+		Packet packet = Packet.packetInstance(
+				new Element("message", new Element[]{new Element("body", "Test message 123")},
+							new String[]{"from", "to"}, new String[]{"from@example.com/res1", "to@example.com/res2"}));
+
+		messageArchivePlugin.setMamProcessors(Collections.singletonList(new MAM2Processor()));
+		messageArchivePlugin.addStableId(packet, session1);
+		// decision made while adding stanza id is used, even if settings were changed in the meantime
+		settings.setAuto(false);
+		messageArchivePlugin.process(packet, session1, null, results, null);
+		Assert.assertFalse("should sent packet " + packet + " for storage", results.isEmpty());
+
+		// decision is dropped after the packet was processed
+		results.clear();
+		messageArchivePlugin.process(packet, session1, null, results, null);
+		Assert.assertTrue("should not sent packet " + packet + " for storage", results.isEmpty());
+
+		// decision made by willArchive() alone is not kept
+		settings.setAuto(true);
+		Assert.assertTrue(messageArchivePlugin.willArchive(packet, session1));
+		settings.setAuto(false);
+		messageArchivePlugin.process(packet, session1, null, results, null);
+		Assert.assertTrue("should not sent packet " + packet + " for storage", results.isEmpty());
+	}
+
+	@Test
+	public void testDecisionDoesNotHoldPacketWhichIsNotProcessed() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+													 res1);
+		Settings settings = new Settings();
+		session1.putCommonSessionData("message-archive/settings", settings);
+		settings.setAuto(true);
+
+		Packet packet = Packet.packetInstance(
+				new Element("message", new Element[]{new Element("body", "Test message 123")},
+							new String[]{"from", "to"}, new String[]{"from@example.com/res1", "to@example.com/res2"}));
+
+		messageArchivePlugin.setMamProcessors(Collections.singletonList(new MAM2Processor()));
+		messageArchivePlugin.addStableId(packet, session1);
+		// packet is dropped, ie. by other plugin, before it is processed by this plugin
+		WeakReference<Packet> packetRef = new WeakReference<>(packet);
+		packet = null;
+
+		for (int i = 0; i < 50 && packetRef.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assert.assertNull("decision should not keep unprocessed packet in memory", packetRef.get());
+	}
+
 	public static class DummyVHostManager
 			implements VHostManagerIfc {
 